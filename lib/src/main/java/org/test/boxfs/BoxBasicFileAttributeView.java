@@ -31,6 +31,7 @@ class BoxBasicFileAttributeView implements BasicFileAttributeView {
 
   @Override
   public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+    fs.checkWritable();
     var inode = fs.resolvePathToInode(path)
       .orElseThrow(() -> new NoSuchFileException(path.toString()));
     inode.setTimes(
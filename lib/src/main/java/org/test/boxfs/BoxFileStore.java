@@ -69,6 +69,18 @@ public class BoxFileStore extends FileStore {
       case "totalSpace" -> getTotalSpace();
       case "usableSpace" -> getUsableSpace();
       case "unallocatedSpace" -> getUnallocatedSpace();
+      case "cacheHits" -> fileSystem.getCacheStats().hits();
+      case "cacheMisses" -> fileSystem.getCacheStats().misses();
+      case "cacheEvictions" -> fileSystem.getCacheStats().evictions();
+      case "cachedBlocks" -> fileSystem.getCacheStats().cachedBlocks();
+      case "pinnedBlocks" -> fileSystem.getCacheStats().pinnedBlocks();
+      case "dirtyBytes" -> fileSystem.getDirtyBytes();
+      case "readaheadFetches" -> fileSystem.getReadaheadCounters().snapshot().fetches();
+      case "readaheadBytes" -> fileSystem.getReadaheadCounters().snapshot().fetchedBytes();
+      case "readaheadHitBytes" -> fileSystem.getReadaheadCounters().snapshot().hitBytes();
+      case "readaheadWastedBytes" -> fileSystem.getReadaheadCounters().snapshot().wastedBytes();
+      case "durableRequests" -> fileSystem.getGroupCommit().getRequests();
+      case "durableCommits" -> fileSystem.getGroupCommit().getCommits();
       default -> throw new UnsupportedOperationException("Unknown attribute: " + attribute);
     };
   }
@@ -4,14 +4,23 @@ import org.jetbrains.annotations.NotNull;
 import org.test.boxfs.internal.*;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import java.util.regex.PatternSyntaxException;
 
 /**
@@ -19,26 +28,192 @@ import java.util.regex.PatternSyntaxException;
  * Holds internal state and coordinates all file system operations.
  */
 public class BoxFileSystem extends FileSystem {
+  private static final int READAHEAD_THREADS = 2;
+  private static final int FILE_LOCK_STRIPES = 64;
+  private static final long MAX_SPECULATIVE_BYTES = 1L << 30;
+  private static final int COPY_CHUNK_BLOCKS = 256;
+
   private final BoxFileSystemProvider provider;
   private final Path containerPath;
   private final ContainerIO containerIO;
   private final InodeTable inodeTable = new InodeTable();
   private final DirectoryTable directoryTable = new DirectoryTable();
-  private final SpaceManager spaceManager;
+  private final int allocationGroups;
+  // Replaced, under the write lock, when the container is compacted
+  private volatile BlockAllocator spaceManager;
   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // File data is written under the read lock above plus the file's striped lock, so writers to
+  // different files run in parallel; the free-space allocator does its own locking
+  private final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[FILE_LOCK_STRIPES];
+  // Extents currently pinned in the block cache, by inode ID
+  private final Map<Long, List<Extent>> pinnedExtents = new ConcurrentHashMap<>();
+  // Data not yet given blocks, by inode ID, and the free blocks held back for it
+  private final Map<Long, DelayedWrite> delayedWrites = new ConcurrentHashMap<>();
+  private final AtomicLong reservedBlocks = new AtomicLong();
+  // Extra references to blocks that copies of a file share with it
+  private final RefCounts refCounts = new RefCounts();
+  private final SnapshotTable snapshots = new SnapshotTable();
+  // Hashes of full data blocks, kept while deduplication is enabled
+  private final DedupIndex dedupIndex = new DedupIndex();
+  private final MetadataLog metadataLog;
+  private long metadataLogSize;
+  // Version of the shared block counts as last persisted, so unchanged counts are not logged again
+  private long persistedRefCounts;
+  private boolean dedup;
+  // Read-only views of snapshots of this container that are open
+  private final List<BoxFileSystem> snapshotViews = new CopyOnWriteArrayList<>();
+  // Container this is a read-only view of a snapshot of; null for the container itself
+  private final BoxFileSystem parent;
+  private final String snapshotName;
+  private int delayedAllocationMax;
+  // Largest last partial block kept in the inode rather than in a block of its own
+  private int inlineDataMax;
+  // Open append channels by inode ID; their files get speculative preallocation
+  private final Map<Long, Integer> appendChannels = new ConcurrentHashMap<>();
+  // First speculatively preallocated file block, by inode ID
+  private final Map<Long, Long> speculativeStarts = new ConcurrentHashMap<>();
+  private final byte[] zeroBlock;
+  private final CompressedFiles compressedFiles;
+  private final Readahead.Counters readaheadCounters = new Readahead.Counters();
+  private final GroupCommit groupCommit = new GroupCommit(this::commitDurable);
+  private int readaheadMaxWindow;
+  private ExecutorService readaheadExecutor;
+  private ExecutorService copyExecutor;
+  // Whether copies within the container share blocks instead of copying data
+  private boolean reflink = true;
+  private long defragBytesPerSecond;
+  private CompletableFuture<DefragReport> defragRun;
+  // Punches freed blocks out of the container file; null unless discard is enabled
+  private final Discarder discarder;
+  // Serializes defragmentation and compaction, which both move extents
+  private final Object maintenanceLock = new Object();
   private volatile boolean open = true;
 
-  BoxFileSystem(BoxFileSystemProvider provider, Path containerPath, ContainerIO containerIO) {
+  BoxFileSystem(BoxFileSystemProvider provider, Path containerPath, ContainerIO containerIO, int allocationGroups) {
     this.provider = provider;
     this.containerPath = containerPath;
     this.containerIO = containerIO;
-    this.spaceManager = new SpaceManager(containerIO.getTotalBlocks());
+    this.allocationGroups = allocationGroups;
+    this.spaceManager = BlockAllocator.forSuperblock(containerIO.getSuperblock(), allocationGroups);
+    this.zeroBlock = new byte[containerIO.getBlockSize()];
+    this.compressedFiles = new CompressedFiles(this, containerIO.getBlockSize());
+    this.metadataLog = new MetadataLog(containerIO.getBlockSize());
+    for (var i = 0; i < fileLocks.length; i++) {
+      fileLocks[i] = new ReentrantReadWriteLock();
+    }
+    this.discarder = containerIO.isDiscard() ? new Discarder(this) : null;
+    this.parent = null;
+    this.snapshotName = null;
+  }
+
+  /**
+   * Creates a read-only view of a snapshot of {@code parent}, reading through the parent's container.
+   */
+  private BoxFileSystem(BoxFileSystem parent, String snapshotName) {
+    this.provider = parent.provider;
+    this.containerPath = parent.containerPath;
+    this.containerIO = parent.containerIO;
+    this.allocationGroups = parent.allocationGroups;
+    this.spaceManager = parent.spaceManager;
+    this.zeroBlock = parent.zeroBlock;
+    this.compressedFiles = new CompressedFiles(this, containerIO.getBlockSize());
+    this.metadataLog = new MetadataLog(containerIO.getBlockSize());
+    for (var i = 0; i < fileLocks.length; i++) {
+      fileLocks[i] = new ReentrantReadWriteLock();
+    }
+    this.discarder = null;
+    this.parent = parent;
+    this.snapshotName = snapshotName;
+    this.readaheadMaxWindow = parent.readaheadMaxWindow;
+  }
+
+  /**
+   * Sets the largest readahead window of channels opened afterwards; 0 disables readahead.
+   */
+  void setReadaheadMaxWindow(int readaheadMaxWindow) {
+    this.readaheadMaxWindow = readaheadMaxWindow;
+  }
+
+  /**
+   * Sets how much data past its allocated blocks a file may buffer before blocks are assigned;
+   * 0 allocates on every write.
+   */
+  void setDelayedAllocationMax(int delayedAllocationMax) {
+    this.delayedAllocationMax = delayedAllocationMax;
+  }
+
+  /**
+   * Sets the largest file tail, and so the largest file, stored inline in its inode; 0 disables
+   * inline data.
+   */
+  void setInlineDataMax(int inlineDataMax) {
+    this.inlineDataMax = inlineDataMax;
+  }
+
+  /**
+   * Sets whether copies within the container share the source's blocks; if not, data is copied.
+   */
+  void setReflink(boolean reflink) {
+    this.reflink = reflink;
+  }
+
+  /**
+   * Sets whether full blocks written to files are shared with existing blocks holding the same data
+   * instead of being written again.
+   */
+  void setDedup(boolean dedup) {
+    this.dedup = dedup;
+  }
+
+  /**
+   * Sets the size of the metadata log allocated at the next checkpoint, capped at a sixteenth of the
+   * container; 0 writes a full checkpoint on every sync.
+   */
+  void setMetadataLogSize(long metadataLogSize) {
+    this.metadataLogSize = metadataLogSize;
+  }
+
+  /**
+   * Sets the copy budget of defragmentation passes started afterwards; 0 removes the limit.
+   */
+  void setDefragBytesPerSecond(long defragBytesPerSecond) {
+    this.defragBytesPerSecond = defragBytesPerSecond;
+  }
+
+  int getReadaheadMaxWindow() {
+    return readaheadMaxWindow;
+  }
+
+  Readahead.Counters getReadaheadCounters() {
+    return readaheadCounters;
+  }
+
+  GroupCommit getGroupCommit() {
+    return groupCommit;
+  }
+
+  synchronized ExecutorService readaheadExecutor() {
+    if (readaheadExecutor == null) {
+      readaheadExecutor = Executors.newFixedThreadPool(READAHEAD_THREADS,
+        Thread.ofPlatform().daemon().name("boxfs-readahead-", 0).factory());
+    }
+    return readaheadExecutor;
+  }
+
+  synchronized ExecutorService copyExecutor() {
+    if (copyExecutor == null) {
+      copyExecutor = Executors.newFixedThreadPool(CopyEngine.PARALLELISM,
+        Thread.ofPlatform().daemon().name("boxfs-copy-", 0).factory());
+    }
+    return copyExecutor;
   }
 
   void initializeNew() throws IOException {
     lock.writeLock().lock();
     try {
-      spaceManager.initializeNew(1);
+      // Block 0 is reserved; a free-space bitmap, if any, follows it
+      var bitmap = containerIO.getSuperblock().getFreeSpaceBitmap();
+      spaceManager.initializeNew(bitmap != null ? Math.toIntExact(bitmap.endBlock()) : 1);
       inodeTable.createRootInode();
       persistMetadata();
     } finally {
@@ -54,59 +229,302 @@ public class BoxFileSystem extends FileSystem {
         throw new IOException("No metadata extents in container");
       }
 
-      var totalSize = (int) metadataExtents.stream()
-        .mapToLong(e -> e.sizeInBytes(containerIO.getBlockSize()))
-        .sum();
-
-      var metadataBytes = new byte[totalSize];
-      var offset = 0;
-
-      for (var extent : metadataExtents) {
-        var extentData = containerIO.readBlocks(extent.startBlock(), extent.blockCount());
-        var bytesToCopy = Math.min(extentData.length, totalSize - offset);
-        System.arraycopy(extentData, 0, metadataBytes, offset, bytesToCopy);
-        offset += bytesToCopy;
+      var metadataBytes = readMetadataFromExtents(metadataExtents);
+      MetadataSerializer.deserialize(metadataBytes, inodeTable, directoryTable, spaceManager, refCounts, snapshots,
+        dedupIndex, metadataLog);
+      var logExtent = metadataLog.getExtent();
+      if (logExtent != null) {
+        var logContents = containerIO.readBlocks(logExtent.startBlock(), logExtent.blockCount());
+        for (var changes : metadataLog.readRecords(logContents)) {
+          MetadataSerializer.applyChanges(changes, inodeTable, directoryTable, spaceManager, refCounts, dedupIndex);
+        }
       }
+      persistedRefCounts = refCounts.getVersion();
 
-      MetadataSerializer.deserialize(metadataBytes, inodeTable, directoryTable, spaceManager);
+      if (spaceManager instanceof BitmapAllocator bitmapAllocator) {
+        var bitmap = containerIO.getSuperblock().getFreeSpaceBitmap();
+        bitmapAllocator.load(containerIO.readBlocks(bitmap.startBlock(), bitmap.blockCount()));
+      }
+      if (discarder != null) {
+        // Free space may still occupy the host file if the container was last used without discard; it is
+        // free on disk already
+        discarder.queue(spaceManager.getFreeExtents());
+        discarder.persisted();
+      }
+      if (!dedup) {
+        // Without deduplication the index is not kept up to date, so it is not kept at all
+        dedupIndex.setEntries(Map.of());
+      } else if (dedupIndex.isEmpty()) {
+        rebuildDedupIndex();
+      } else {
+        verifyDedupIndex();
+      }
     } finally {
       lock.writeLock().unlock();
     }
   }
 
+  /**
+   * Persists the metadata changed since the last call, as a record appended to the metadata log if it
+   * fits, or as a full checkpoint otherwise.
+   */
   void persistMetadata() throws IOException {
+    settleAllocations();
+    if (!appendMetadataChanges()) {
+      checkpointMetadata();
+    }
+  }
+
+  /**
+   * Appends the changed inodes and directory entries, the free extents within the block ranges allocated
+   * or freed, the shared block counts if they changed and the new hash index entries to the metadata log.
+   * Nothing is written if nothing changed.
+   *
+   * @return false if there is no log or the record does not fit in it
+   */
+  private boolean appendMetadataChanges() throws IOException {
+    if (metadataLog.getExtent() == null) {
+      return false;
+    }
+    var changedIds = new TreeSet<>(inodeTable.takeChanges());
+    changedIds.addAll(directoryTable.takeChanges());
+    var refCountsVersion = refCounts.getVersion();
+    var refCountsChanged = refCountsVersion != persistedRefCounts;
+    var indexedBlocks = dedupIndex.takeAdded();
+    var changedRanges = spaceManager.takeChangedRanges();
+    if (changedIds.isEmpty() && !refCountsChanged && indexedBlocks.isEmpty() && changedRanges.isEmpty()) {
+      writeBitmapPages();
+      return true;
+    }
+    try {
+      var changes = MetadataSerializer.serializeChanges(inodeTable, directoryTable, changedIds, spaceManager,
+        changedRanges, refCountsChanged ? refCounts : null, indexedBlocks);
+      var record = metadataLog.encode(changes);
+      if (record == null) {
+        return false;
+      }
+      containerIO.writeBlocks(metadataLog.nextBlock(), record);
+      metadataLog.appended(record);
+      persistedRefCounts = refCountsVersion;
+      writeBitmapPages();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      // Logged again, or checkpointed, by the next attempt
+      changedIds.forEach(inodeTable::markChanged);
+      indexedBlocks.forEach((block, hash) -> dedupIndex.put(hash, block));
+      changedRanges.forEach(spaceManager::markChanged);
+      throw e;
+    }
+  }
+
+  /**
+   * Writes all metadata and starts the metadata log over. The log is allocated here the first time,
+   * and again when its size changed.
+   */
+  private void checkpointMetadata() throws IOException {
     var blockSize = containerIO.getBlockSize();
-    var currentExtents = containerIO.getSuperblock().getMetadataExtents();
+    checkpointMetadata((int) Math.min(metadataLogSize / blockSize, containerIO.getSuperblock().getTotalBlocks() / 16));
+  }
 
-    // The Loop here is used to handle a subtle edge case: metadata includes the free extent
-    // list, which changes when we allocate blocks for metadata storage. After reallocation,
-    // the free list might have MORE extents, making the re-serialized metadata larger than what we allocated space
-    // for. So we are reallocating until the serialized metadata fits. In practice,
-    // this shouldn't iterate more than once or twice, since free list growth is bounded.
-    while (true) {
-      var metadataBytes = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager);
-      var blocksNeeded = (metadataBytes.length + blockSize - 1) / blockSize;
-      var currentBlocks = currentExtents.stream().mapToInt(Extent::blockCount).sum();
+  private void checkpointMetadata(int logBlocks) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var logExtent = metadataLog.getExtent();
+    Extent retiredLog = null;
+    if (logExtent != null && logExtent.blockCount() != logBlocks) {
+      // Its records stay readable until the superblock of this checkpoint is on disk
+      retiredLog = logExtent;
+      logExtent = null;
+    }
+    if (logExtent == null && logBlocks > 0) {
+      // At the end of the container if it is free there, where it is out of the way of vacuum; without
+      // room for a log every sync writes a checkpoint
+      var goal = containerIO.getSuperblock().getTotalBlocks() - logBlocks;
+      logExtent = spaceManager.allocate(logBlocks, goal).orElse(null);
+    }
+    metadataLog.reset(logExtent, metadataLog.getGeneration() + 1);
+    inodeTable.takeChanges();
+    directoryTable.takeChanges();
+    dedupIndex.takeAdded();
+    persistedRefCounts = refCounts.getVersion();
+
+    // Shadow paging: the metadata goes to fresh blocks, and the blocks of the previous checkpoint stay
+    // as they are until the superblock that replaces it is on disk
+    var superblock = containerIO.getSuperblock();
+    List<Extent> previousExtents = List.copyOf(superblock.getMetadataExtents());
+    // Allocating the blocks, and freeing those of the previous checkpoint, can each only add one free
+    // extent per extent, and a superblock refers to fewer extents than fit in a block, so two blocks
+    // more than the current size are always enough
+    var sizing = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, refCounts, snapshots,
+      dedupIndex, metadataLog);
+    var blocksNeeded = (sizing.length + blockSize - 1) / blockSize + 2;
+    var newExtents = allocateMetadata(blocksNeeded);
+    if (newExtents.isEmpty()) {
+      // Without room for a second copy the previous blocks are reused, and a crash while they are
+      // rewritten can lose the metadata, as with containers that predate shadow paging
+      freeBlocks(previousExtents);
+      previousExtents = List.of();
+      newExtents = allocateMetadata(blocksNeeded);
+      if (newExtents.isEmpty()) {
+        throw new IOException("Not enough space for metadata");
+      }
+    }
+    // The blocks the checkpoint replaces are freed in it already; nothing is allocated before the
+    // superblock is on disk, and a bitmap keeps them allocated on disk until then
+    freeBlocks(previousExtents);
+    if (retiredLog != null) {
+      freeBlocks(List.of(retiredLog));
+    }
+    var metadataBytes = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, refCounts, snapshots,
+      dedupIndex, metadataLog);
+    // The checkpoint holds all free space, so the log starts over without changed ranges
+    spaceManager.takeChangedRanges();
+    var allocated = newExtents.stream().mapToLong(extent -> extent.sizeInBytes(blockSize)).sum();
+    if (metadataBytes.length > allocated) {
+      throw new IllegalStateException("Metadata of " + metadataBytes.length + " bytes outgrew " + allocated);
+    }
+    writeMetadataToExtents(metadataBytes, newExtents, blockSize);
+    writeBitmapPages();
 
-      if (blocksNeeded <= currentBlocks) {
-        writeMetadataToExtents(metadataBytes, currentExtents, blockSize);
-        break;
+    superblock.setMetadataExtents(newExtents);
+    containerIO.writeSuperblock();
+    containerIO.sync();
+    metadataSynced();
+  }
+
+  /**
+   * Called once the metadata persisted last is on disk. Blocks freed until then are no longer referred
+   * to there, so the bitmap pages that free them are written, and the discarder may punch them.
+   */
+  private void metadataSynced() throws IOException {
+    if (spaceManager instanceof BitmapAllocator bitmapAllocator) {
+      bitmapAllocator.freesPersisted();
+      writeBitmapPages();
+    }
+    if (discarder != null) {
+      discarder.persisted();
+    }
+  }
+
+  /**
+   * Allocates blocks for metadata in at most as many extents as the superblock can refer to.
+   *
+   * @return the extents, or an empty list if there is not enough free space
+   */
+  private List<Extent> allocateMetadata(int blockCount) {
+    var extents = spaceManager.allocateMultiple(blockCount);
+    if (extents.size() > containerIO.getSuperblock().getMaxMetadataExtents()) {
+      freeBlocks(extents);
+      return List.of();
+    }
+    return extents;
+  }
+
+  private void writeBitmapPages() throws IOException {
+    if (spaceManager instanceof BitmapAllocator bitmapAllocator) {
+      // Only pages changed since the last persist are written
+      var bitmapStart = containerIO.getSuperblock().getFreeSpaceBitmap().startBlock();
+      bitmapAllocator.writeDirtyPages((firstPage, pages) -> containerIO.writeBlocks(bitmapStart + firstPage, pages));
+    }
+  }
+
+  /**
+   * Gives all delayed data its blocks and trims speculative preallocation, so the extent lists
+   * describe exactly the space files use.
+   */
+  private void settleAllocations() throws IOException {
+    for (var delayed : List.copyOf(delayedWrites.values())) {
+      allocateDelayed(delayed, true);
+    }
+    for (var inodeId : List.copyOf(speculativeStarts.keySet())) {
+      var inode = inodeTable.get(inodeId);
+      if (inode.isPresent()) {
+        trimSpeculative(inode.get());
+      } else {
+        speculativeStarts.remove(inodeId);
       }
+    }
+  }
 
-      for (var extent : currentExtents) {
-        spaceManager.free(extent);
+  /**
+   * Hashes every full, written data block of every file, in parallel, and indexes the first block
+   * found for each hash. Blocks already holding the same data are not merged.
+   */
+  private void rebuildDedupIndex() throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var blocks = new ArrayList<Long>();
+    for (var inode : inodeTable.getAllInodes()) {
+      // Compressed chunks are rewritten as a whole, never shared block by block
+      if (inode.isCompressed()) {
+        continue;
+      }
+      var fullBlocks = inode.getSize() / blockSize;
+      var fileBlock = 0L;
+      for (var extent : inode.getExtents()) {
+        for (var i = 0; i < extent.blockCount() && fileBlock + i < fullBlocks && !extent.isHole(); i++) {
+          if (!inode.isUnwritten(fileBlock + i)) {
+            blocks.add(extent.startBlock() + i);
+          }
+        }
+        fileBlock += extent.blockCount();
       }
+    }
+    var hashes = hashBlocks(blocks);
+    var index = new TreeMap<Long, Long>();
+    for (var i = 0; i < blocks.size(); i++) {
+      index.put(blocks.get(i), hashes[i]);
+    }
+    dedupIndex.setEntries(index);
+  }
 
-      var newExtents = spaceManager.allocateMultiple(blocksNeeded);
-      if (newExtents.isEmpty()) {
-        throw new IOException("Not enough space for metadata");
+  /**
+   * Hashes the indexed blocks again, in parallel, and drops the entries of blocks that are free or
+   * no longer hold the data they were indexed with, as after a crash between a write and a sync.
+   */
+  private void verifyDedupIndex() throws IOException {
+    var entries = dedupIndex.getEntries();
+    var blocks = new ArrayList<>(entries.keySet());
+    var hashes = hashBlocks(blocks);
+    var valid = new TreeMap<Long, Long>();
+    for (var i = 0; i < blocks.size(); i++) {
+      var block = blocks.get(i);
+      if (hashes[i] == entries.get(block) && !spaceManager.areFree(block, 1)) {
+        valid.put(block, hashes[i]);
       }
+    }
+    dedupIndex.setEntries(valid);
+  }
 
-      containerIO.getSuperblock().setMetadataExtents(newExtents);
-      currentExtents = newExtents;
+  private long[] hashBlocks(List<Long> blocks) throws IOException {
+    var hashes = new long[blocks.size()];
+    try {
+      IntStream.range(0, blocks.size()).parallel().forEach(i -> {
+        try {
+          hashes[i] = DedupIndex.hash(ByteBuffer.wrap(containerIO.readBlocks(blocks.get(i), 1)));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
+    return hashes;
+  }
 
-    containerIO.writeSuperblock();
+  private byte[] readMetadataFromExtents(List<Extent> extents) throws IOException {
+    var totalSize = (int) extents.stream()
+      .mapToLong(e -> e.sizeInBytes(containerIO.getBlockSize()))
+      .sum();
+
+    var metadataBytes = new byte[totalSize];
+    var offset = 0;
+
+    for (var extent : extents) {
+      var extentData = containerIO.readBlocks(extent.startBlock(), extent.blockCount());
+      var bytesToCopy = Math.min(extentData.length, totalSize - offset);
+      System.arraycopy(extentData, 0, metadataBytes, offset, bytesToCopy);
+      offset += bytesToCopy;
+    }
+    return metadataBytes;
   }
 
   private void writeMetadataToExtents(byte[] metadataBytes, List<Extent> extents, int blockSize)
@@ -178,6 +596,7 @@ public class BoxFileSystem extends FileSystem {
       }
 
       var inode = inodeTable.createInode(type);
+      inode.setChunkBlocks(parentInode.getChunkBlocks());
       directoryTable.addEntry(new DirectoryEntry(parentInode.getId(), name, inode.getId()));
       return inode;
     } finally {
@@ -207,8 +626,15 @@ public class BoxFileSystem extends FileSystem {
       var name = absPath.getFileName().toString();
       var parentId = resolvePathToInodeId(parent).orElseThrow();
 
+      var pinned = pinnedExtents.remove(inodeId);
+      if (pinned != null) {
+        unpinExtents(pinned);
+      }
+      discardDelayed(inode);
+      speculativeStarts.remove(inodeId);
+
       if (!inode.getExtents().isEmpty()) {
-        spaceManager.freeAll(inode.getExtents());
+        releaseBlocks(inode.getDataExtents());
       }
 
       directoryTable.removeEntry(parentId, name);
@@ -245,7 +671,17 @@ public class BoxFileSystem extends FileSystem {
     }
   }
 
+  /**
+   * Copies a file without copying its data: the copy shares the source's blocks, which each gain a
+   * reference, and whichever of the two is written to later gets blocks of its own for the part it
+   * changes. The cost grows with the number of extents, not with the size of the file. With reflinks
+   * disabled the data is copied by a {@link CopyEngine} instead.
+   */
   void copy(BoxPath source, BoxPath target, CopyOption... options) throws IOException {
+    if (!reflink) {
+      CopyEngine.copy(this, source, this, target, options);
+      return;
+    }
     lock.writeLock().lock();
     try {
       checkWritable();
@@ -263,34 +699,182 @@ public class BoxFileSystem extends FileSystem {
 
       var newInode = inodeTable.createInode(Inode.Type.FILE);
       directoryTable.addEntry(new DirectoryEntry(targetParentId, targetName, newInode.getId()));
+      shareContents(sourceInode, newInode);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      var sourceSize = sourceInode.getSize();
-      if (sourceSize > 0) {
-        var blockSize = containerIO.getBlockSize();
-        var blocksNeeded = (int) ((sourceSize + blockSize - 1) / blockSize);
+  /**
+   * Copies a directory with everything below it, or a single file, in one step under the write lock.
+   * Files share their blocks with the originals as with {@link #copy}, so the cost grows with the
+   * number of entries and extents in the subtree rather than with the amount of data.
+   */
+  void copyTree(BoxPath source, BoxPath target, CopyOption... options) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkWritable();
 
-        var newExtents = spaceManager.allocateMultiple(blocksNeeded);
-        if (newExtents.isEmpty()) {
-          throw new IOException("No space available for copy");
-        }
+      var absSource = (BoxPath) source.toAbsolutePath();
+      var absTarget = (BoxPath) target.toAbsolutePath();
+      var sourceInode = resolvePathToInode(absSource)
+        .orElseThrow(() -> new NoSuchFileException(source.toString()));
+      if (absTarget.startsWith(absSource)) {
+        throw new IOException("Cannot copy " + source + " into itself");
+      }
 
-        for (var extent : newExtents) {
-          newInode.addExtent(extent);
+      var targetParentId = prepareTarget(sourceInode, absTarget, options);
+      var targetName = absTarget.getFileName().toString();
+
+      // Entries still to copy: the directory the copy goes into, its name, and the inode copied
+      var pending = new ArrayDeque<DirectoryEntry>();
+      pending.add(new DirectoryEntry(targetParentId, targetName, sourceInode.getId()));
+      while (!pending.isEmpty()) {
+        var next = pending.poll();
+        var original = inodeTable.get(next.childId()).orElseThrow();
+        var copy = inodeTable.createInode(original.getType());
+        directoryTable.addEntry(new DirectoryEntry(next.parentId(), next.name(), copy.getId()));
+        if (original.isDirectory()) {
+          copy.setChunkBlocks(original.getChunkBlocks());
+          for (var child : directoryTable.listChildren(original.getId())) {
+            pending.add(new DirectoryEntry(copy.getId(), child.name(), child.childId()));
+          }
+        } else {
+          shareContents(original, copy);
         }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Gives the empty file {@code copy} the contents of {@code source} by sharing its blocks. The extent
+   * list, unwritten ranges and chunk map are duplicated and every data extent gains a reference, so
+   * nothing is read or written. Delayed data is allocated first so it is shared as well; speculative
+   * blocks past the end of the source are left out.
+   */
+  private void shareContents(Inode source, Inode copy) throws IOException {
+    var delayed = delayedWrites.get(source.getId());
+    if (delayed != null) {
+      allocateDelayed(delayed, true);
+    }
+
+    var blockSize = containerIO.getBlockSize();
+    copy.setExtents(source.getExtents());
+    for (var range : source.getUnwrittenRanges()) {
+      copy.markUnwritten(range.startBlock(), range.blockCount());
+    }
+    copy.truncateToBlocks((source.getSize() + blockSize - 1) / blockSize);
+    for (var extent : copy.getDataExtents()) {
+      refCounts.share(extent);
+    }
+    copy.setChunkBlocks(source.getChunkBlocks());
+    copy.setChunkLengths(source.getChunkLengths());
+    var tail = source.getInlineTail();
+    copy.setInlineTail(tail != null ? tail.clone() : null);
+    copy.setSize(source.getSize());
+    copy.markDataChanged();
+  }
 
-        var buffer = ByteBuffer.allocate((int) sourceSize);
-        readFileData(sourceInode, 0, buffer);
-        buffer.flip();
+  /**
+   * Prepares a file as the source of a {@link CopyEngine} copy. Its delayed data is given blocks
+   * first, so the returned data ranges cover everything but the last partial block; holes and
+   * unwritten blocks, which read as zeros, are left out. A file with compressed chunks is one range,
+   * since the holes behind its compressed data do not read as zeros.
+   */
+  CopyEngine.Source openCopySource(BoxPath source) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      var inode = resolvePathToInode((BoxPath) source.toAbsolutePath())
+        .orElseThrow(() -> new NoSuchFileException(source.toString()));
+      if (inode.isDirectory()) {
+        throw new IOException("Cannot copy directories");
+      }
+      var delayed = delayedWrites.get(inode.getId());
+      if (delayed != null) {
+        allocateDelayed(delayed, true);
+      }
 
-        for (var extent : newInode.getExtents()) {
-          var bytesToWrite = (int) Math.min(buffer.remaining(), extent.sizeInBytes(blockSize));
-          if (bytesToWrite > 0) {
-            containerIO.writeToExtent(extent, 0, buffer);
+      var fullBlocks = inode.getSize() / containerIO.getBlockSize();
+      var ranges = new ArrayList<Extent>();
+      if (inode.hasCompressedChunks() && fullBlocks > 0) {
+        ranges.add(new Extent(0, Math.toIntExact(fullBlocks)));
+        return new CopyEngine.Source(inode, inode.getSize(), containerIO.getBlockSize(), ranges);
+      }
+      var fileBlock = 0L;
+      for (var i = 0; i < inode.getExtentCount() && fileBlock < fullBlocks; i++) {
+        var extent = inode.getExtent(i);
+        var end = Math.min(fileBlock + extent.blockCount(), fullBlocks);
+        for (var block = fileBlock; block < end && !extent.isHole(); ) {
+          var boundary = Math.min(end, inode.nextUnwrittenBoundary(block));
+          if (!inode.isUnwritten(block)) {
+            appendMerged(ranges, new Extent(block, (int) (boundary - block)));
           }
+          block = boundary;
+        }
+        fileBlock += extent.blockCount();
+      }
+      return new CopyEngine.Source(inode, inode.getSize(), containerIO.getBlockSize(), ranges);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Creates the target of a {@link CopyEngine} copy with the size of the source, blocks for its data
+   * ranges and holes elsewhere. The blocks are allocated in one pass and marked unwritten, so the
+   * data can then arrive in any order.
+   */
+  Inode createCopyTarget(BoxPath target, CopyEngine.Source source, CopyOption... options) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkWritable();
+
+      var targetParentId = prepareTarget(source.inode(), target, options);
+      var targetName = target.toAbsolutePath().getFileName().toString();
+
+      // The source may come from a container with another block size
+      var blockSize = containerIO.getBlockSize();
+      var fullBlocks = source.size() / blockSize;
+      var ranges = new ArrayList<Extent>();
+      for (var range : source.dataRanges()) {
+        var first = range.startBlock() * source.blockSize() / blockSize;
+        var end = Math.min(fullBlocks, Math.ceilDiv(range.endBlock() * source.blockSize(), (long) blockSize));
+        if (!ranges.isEmpty()) {
+          first = Math.max(first, ranges.getLast().endBlock());
+        }
+        if (first < end) {
+          appendMerged(ranges, new Extent(first, Math.toIntExact(end - first)));
         }
+      }
+      var blocksNeeded = ranges.stream().mapToLong(Extent::blockCount).sum();
+      if (blocksNeeded > getFreeBlocks()) {
+        throw new IOException("No space available for copy");
+      }
 
-        newInode.setSize(sourceSize);
+      var inode = inodeTable.createInode(Inode.Type.FILE);
+      inode.setChunkBlocks(inodeTable.get(targetParentId).orElseThrow().getChunkBlocks());
+      directoryTable.addEntry(new DirectoryEntry(targetParentId, targetName, inode.getId()));
+      for (var range : ranges) {
+        if (range.startBlock() > inode.getAllocatedBlocks()) {
+          inode.addHole(range.startBlock() - inode.getAllocatedBlocks());
+        }
+        var extents = allocateNear(inode, range.blockCount(), appendGoal(inode));
+        if (extents.isEmpty()) {
+          throw new IOException("No space available for copy");
+        }
+        for (var extent : extents) {
+          inode.addExtent(extent);
+        }
+        inode.markUnwritten(range.startBlock(), range.blockCount());
+      }
+      if (fullBlocks > inode.getAllocatedBlocks()) {
+        inode.addHole(fullBlocks - inode.getAllocatedBlocks());
       }
+      inode.setSize(source.size());
+      return inode;
     } finally {
       lock.writeLock().unlock();
     }
@@ -384,91 +968,128 @@ public class BoxFileSystem extends FileSystem {
     }
   }
 
-  /**
-   * Helper class to map an extent to its byte range within a file.
-   */
-  private record ExtentRange(Extent extent, long startByte, long endByte) {
-    boolean notContains(long position) {
-      return position < startByte || position >= endByte;
-    }
-
-    long offsetAt(long position) {
-      return position - startByte;
-    }
-
-    long bytesAvailableFrom(long position) {
-      return endByte - position;
-    }
+  int readFileData(Inode inode, long position, ByteBuffer dest) throws IOException {
+    return readFileData(inode, position, dest, new ExtentCursor());
   }
 
   /**
-   * Pre-computes byte ranges for all extents in a file.
+   * Reads file data straight into {@code dest}: each extent read targets the caller's buffer with its
+   * limit narrowed to the bytes wanted, so no intermediate buffer is allocated or copied. Compressed
+   * chunks are decompressed whole and copied out.
    */
-  private List<ExtentRange> computeExtentRanges(List<Extent> extents, int blockSize) {
-    var ranges = new ArrayList<ExtentRange>();
-    var cumulativeBytes = 0L;
-    for (var extent : extents) {
-      var endByte = cumulativeBytes + extent.sizeInBytes(blockSize);
-      ranges.add(new ExtentRange(extent, cumulativeBytes, endByte));
-      cumulativeBytes = endByte;
-    }
-    return ranges;
-  }
-
-  int readFileData(Inode inode, long position, ByteBuffer dest) throws IOException {
+  int readFileData(Inode inode, long position, ByteBuffer dest, ExtentCursor cursor) throws IOException {
     lock.readLock().lock();
+    var fileLock = fileLock(inode).readLock();
+    fileLock.lock();
     try {
       if (position >= inode.getSize()) {
         return -1;
       }
 
       var blockSize = containerIO.getBlockSize();
-      var extentRanges = computeExtentRanges(inode.getExtents(), blockSize);
-      var totalBytesRead = 0;
-      var currentPosition = position;
       var remainingInFile = inode.getSize() - position;
+      var totalBytesRead = inode.hasCompressedChunks()
+        ? compressedFiles.read(inode, position, dest, remainingInFile, cursor)
+        : readStored(inode, position, dest, remainingInFile, cursor);
+      var currentPosition = position + totalBytesRead;
+
+      var delayed = delayedWrites.get(inode.getId());
+      if (delayed != null && currentPosition >= delayed.start() && totalBytesRead < remainingInFile) {
+        totalBytesRead += delayed.read(currentPosition, dest, (int) Math.min(dest.remaining(), remainingInFile - totalBytesRead));
+      }
+      var tail = inode.getInlineTail();
+      var tailStart = inode.getAllocatedBlocks() * blockSize;
+      if (tail != null && currentPosition >= tailStart && totalBytesRead < remainingInFile) {
+        var n = (int) Math.min(Math.min(dest.remaining(), remainingInFile - totalBytesRead), tail.length - (currentPosition - tailStart));
+        dest.put(tail, (int) (currentPosition - tailStart), n);
+        totalBytesRead += n;
+      }
 
-      for (var range : extentRanges) {
-        if (range.notContains(currentPosition)) {
-          continue;
-        }
-
-        var offsetInExtent = range.offsetAt(currentPosition);
-        var bytesAvailableInExtent = range.bytesAvailableFrom(currentPosition);
-        var bytesToRead = (int) Math.min(
-          Math.min(bytesAvailableInExtent, dest.remaining()),
-          remainingInFile - totalBytesRead
-        );
-
-        if (bytesToRead <= 0) {
-          break;
-        }
-
-        var readBuffer = ByteBuffer.allocate(bytesToRead);
-        var bytesRead = containerIO.readFromExtent(range.extent(), offsetInExtent, readBuffer);
+      return totalBytesRead > 0 ? totalBytesRead : -1;
+    } finally {
+      fileLock.unlock();
+      lock.readLock().unlock();
+    }
+  }
 
-        if (bytesRead > 0) {
-          readBuffer.flip();
-          var actualBytes = (int) Math.min(bytesRead, remainingInFile - totalBytesRead);
-          readBuffer.limit(actualBytes);
-          dest.put(readBuffer);
-          totalBytesRead += actualBytes;
-          currentPosition += actualBytes;
+  /**
+   * Reads at most {@code maxLength} bytes from the file's blocks as they are stored, stopping at the
+   * end of its mapping.
+   */
+  int readStored(Inode inode, long position, ByteBuffer dest, long maxLength, ExtentCursor cursor)
+    throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var totalBytesRead = 0;
+    var currentPosition = position;
+    var index = inode.findExtent(position / blockSize, cursor);
+
+    while (index >= 0 && index < inode.getExtentCount() && dest.hasRemaining() && totalBytesRead < maxLength) {
+      var extent = inode.getExtent(index);
+      var extentStart = inode.getExtentStartBlock(index) * blockSize;
+      var extentEnd = extentStart + extent.sizeInBytes(blockSize);
+      var bytesToRead = (int) Math.min(
+        Math.min(extentEnd - currentPosition, dest.remaining()),
+        maxLength - totalBytesRead
+      );
+
+      int bytesRead;
+      if (extent.isHole()) {
+        // Holes have no blocks behind them
+        bytesRead = fillZeros(dest, bytesToRead);
+      } else if (inode.hasUnwrittenBlocks() && inode.isUnwritten(currentPosition / blockSize)) {
+        // Preallocated blocks that were never written read as zeros without touching the container
+        var runEnd = inode.nextUnwrittenBoundary(currentPosition / blockSize) * blockSize;
+        bytesToRead = (int) Math.min(bytesToRead, runEnd - currentPosition);
+        bytesRead = fillZeros(dest, bytesToRead);
+      } else {
+        if (inode.hasUnwrittenBlocks()) {
+          var runEnd = inode.nextUnwrittenBoundary(currentPosition / blockSize);
+          if (runEnd != Long.MAX_VALUE) {
+            bytesToRead = (int) Math.min(bytesToRead, runEnd * blockSize - currentPosition);
+          }
         }
-
-        if (!dest.hasRemaining() || totalBytesRead >= remainingInFile) {
-          break;
+        var originalLimit = dest.limit();
+        dest.limit(dest.position() + bytesToRead);
+        try {
+          bytesRead = containerIO.readFromExtent(extent, currentPosition - extentStart, dest);
+        } finally {
+          dest.limit(originalLimit);
         }
       }
 
-      return totalBytesRead > 0 ? totalBytesRead : -1;
-    } finally {
-      lock.readLock().unlock();
+      if (bytesRead <= 0) {
+        break;
+      }
+      cursor.moveTo(index);
+      totalBytesRead += bytesRead;
+      currentPosition += bytesRead;
+      if (bytesRead < bytesToRead) {
+        break;
+      }
+      if (currentPosition == extentEnd) {
+        index++;
+      }
     }
+    return totalBytesRead;
   }
 
   int writeFileData(Inode inode, long position, ByteBuffer src) throws IOException {
-    lock.writeLock().lock();
+    return writeFileData(inode, position, src, new ExtentCursor());
+  }
+
+  /**
+   * Writes file data. Data past the file's last allocated block is buffered as a {@link DelayedWrite}
+   * with blocks reserved for it, and only allocated once the channel is closed, the file system is
+   * synced, or the buffer reaches its limit, so a file written in small chunks still ends up in as
+   * few extents as possible.
+   * <p>
+   * Whole blocks skipped by writing past the end of the file become a hole, and blocks that would only
+   * receive zeros are not allocated either, so sparse files take space only for the data they hold.
+   */
+  int writeFileData(Inode inode, long position, ByteBuffer src, ExtentCursor cursor) throws IOException {
+    lock.readLock().lock();
+    var fileLock = fileLock(inode).writeLock();
+    fileLock.lock();
     try {
       checkWritable();
 
@@ -476,110 +1097,1479 @@ public class BoxFileSystem extends FileSystem {
       var bytesToWrite = src.remaining();
       var endPosition = position + bytesToWrite;
 
-      var currentAllocatedBytes = inode.getExtents().stream()
-        .mapToLong(e -> e.sizeInBytes(blockSize))
-        .sum();
+      unpackTail(inode);
+      var delayed = delayedWrites.get(inode.getId());
+      if (delayed != null && (endPosition - delayed.start() > delayedAllocationMax
+        || position / blockSize > (delayed.start() + delayed.length() + blockSize - 1) / blockSize)) {
+        allocateDelayed(delayed, false);
+        delayed = null;
+      }
+      var firstBlock = position / blockSize;
+      if (delayed == null && firstBlock > inode.getAllocatedBlocks()) {
+        inode.addHole(firstBlock - inode.getAllocatedBlocks());
+      }
 
-      if (endPosition > currentAllocatedBytes) {
-        var additionalBytesNeeded = (int) (endPosition - currentAllocatedBytes);
-        var additionalBlocksNeeded = (additionalBytesNeeded + blockSize - 1) / blockSize;
+      var currentAllocatedBytes = inode.getAllocatedBlocks() * blockSize;
+      var totalBytesWritten = 0;
 
-        var newExtents = spaceManager.allocateMultiple(additionalBlocksNeeded);
-        if (newExtents.isEmpty()) {
-          throw new IOException("No space available");
+      if (endPosition > currentAllocatedBytes && endPosition - currentAllocatedBytes <= delayedAllocationMax) {
+        if (delayed == null) {
+          delayed = new DelayedWrite(inode, currentAllocatedBytes);
         }
+        reserveBlocks(delayed, endPosition);
+        delayedWrites.put(inode.getId(), delayed);
 
-        for (var extent : newExtents) {
-          inode.addExtent(extent);
+        if (position < currentAllocatedBytes) {
+          totalBytesWritten += writeAllocated(inode, position, src, (int) (currentAllocatedBytes - position), cursor);
+        }
+        totalBytesWritten += delayed.write(Math.max(position, currentAllocatedBytes), src);
+      } else {
+        if (endPosition > currentAllocatedBytes) {
+          extendMapping(inode, position, src, endPosition);
         }
+
+        totalBytesWritten = writeAllocated(inode, position, src, bytesToWrite, cursor);
       }
 
-      var extentRanges = computeExtentRanges(inode.getExtents(), blockSize);
-      var totalBytesWritten = 0;
+      if (endPosition > inode.getSize()) {
+        inode.setSize(endPosition);
+      }
+
+      inode.markDataChanged();
+      inode.touch();
+
+      return totalBytesWritten;
+    } finally {
+      fileLock.unlock();
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes {@code length} bytes of {@code src} into blocks the file already has. With deduplication,
+   * a full block whose data some block already holds is mapped to that block instead of being written.
+   */
+  private int writeAllocated(Inode inode, long position, ByteBuffer src, int length, ExtentCursor cursor)
+    throws IOException {
+    if (inode.isCompressed()) {
+      return compressedFiles.write(inode, position, src, length, cursor);
+    }
+    if (!dedup) {
+      return writeBlocks(inode, position, src, length, cursor);
+    }
+    var blockSize = containerIO.getBlockSize();
+    var endPosition = position + length;
+    var totalBytesWritten = 0;
+    // Bytes from runStart on are written together; hashes of the full blocks among them are indexed after
+    var runStart = position;
+    var runHashes = new LinkedHashMap<Long, Long>();
+    for (var block = (position + blockSize - 1) / blockSize; (block + 1) * blockSize <= endPosition; block++) {
+      var data = src.slice(src.position() + (int) (block * blockSize - runStart), blockSize);
+      var hash = DedupIndex.hash(data);
+      if (shareDuplicate(inode, block, data, hash)) {
+        totalBytesWritten += writeRun(inode, runStart, src, (int) (block * blockSize - runStart), cursor, runHashes);
+        src.position(src.position() + blockSize);
+        totalBytesWritten += blockSize;
+        runStart = (block + 1) * blockSize;
+      } else {
+        runHashes.put(block, hash);
+      }
+    }
+    return totalBytesWritten + writeRun(inode, runStart, src, (int) (endPosition - runStart), cursor, runHashes);
+  }
+
+  /**
+   * Writes a run of bytes none of whose full blocks could be shared, then indexes those blocks.
+   */
+  private int writeRun(Inode inode, long position, ByteBuffer src, int length, ExtentCursor cursor,
+                       Map<Long, Long> hashes) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    // Blocks about to change must not be handed out as duplicates; shared ones are copied before the write
+    dedupIndex.removeAll(mappedBlocks(inode, position, length));
+    var written = writeBlocks(inode, position, src, length, cursor);
+    for (var entry : hashes.entrySet()) {
+      var physical = physicalBlock(inode, entry.getKey());
+      if (physical >= 0) {
+        dedupIndex.put(entry.getValue(), physical);
+      }
+    }
+    hashes.clear();
+    return written;
+  }
+
+  /**
+   * Maps file block {@code block} to a block recorded with the same hash if that block holds exactly
+   * {@code data}. The block the file had there, if any, loses its reference.
+   *
+   * @return false if no block holds the data
+   */
+  private boolean shareDuplicate(Inode inode, long block, ByteBuffer data, long hash) throws IOException {
+    synchronized (dedupIndex) {
+      var candidate = dedupIndex.lookup(hash);
+      if (candidate < 0) {
+        return false;
+      }
+      var current = physicalBlock(inode, block);
+      if (current == candidate) {
+        return !inode.isUnwritten(block);
+      }
+      if (data.mismatch(ByteBuffer.wrap(containerIO.readBlocks(candidate, 1))) >= 0) {
+        // A hash collision; the block that is written instead takes over the entry
+        dedupIndex.remove(candidate);
+        return false;
+      }
+      var shared = new Extent(candidate, 1);
+      refCounts.share(shared);
+      if (current < 0) {
+        inode.mapHole(block, List.of(shared));
+      } else {
+        releaseBlocks(List.of(inode.remap(block, List.of(shared))));
+      }
+      inode.markWritten(block, block + 1);
+    }
+    refreshPins(inode);
+    return true;
+  }
+
+  /**
+   * Returns the container block file block {@code block} is mapped to, or -1 for a hole.
+   */
+  private static long physicalBlock(Inode inode, long block) {
+    var index = inode.findExtent(block, new ExtentCursor());
+    var extent = inode.getExtent(index);
+    return extent.isHole() ? -1 : extent.startBlock() + (block - inode.getExtentStartBlock(index));
+  }
+
+  /**
+   * Returns the container blocks behind the file's bytes from {@code position} on, leaving out holes.
+   */
+  private List<Extent> mappedBlocks(Inode inode, long position, int length) {
+    var blockSize = containerIO.getBlockSize();
+    var endBlock = Math.min((position + length + blockSize - 1) / blockSize, inode.getAllocatedBlocks());
+    var cursor = new ExtentCursor();
+    var mapped = new ArrayList<Extent>();
+    for (var block = position / blockSize; block < endBlock; ) {
+      var index = inode.findExtent(block, cursor);
+      var extent = inode.getExtent(index);
+      var extentStart = inode.getExtentStartBlock(index);
+      var runEnd = Math.min(endBlock, extentStart + extent.blockCount());
+      if (!extent.isHole()) {
+        mapped.add(new Extent(extent.startBlock() + (block - extentStart), (int) (runEnd - block)));
+      }
+      block = runEnd;
+    }
+    return mapped;
+  }
+
+  /**
+   * Writes {@code length} bytes of {@code src} into blocks the file already has, copying shared blocks
+   * and giving holes blocks first.
+   */
+  int writeBlocks(Inode inode, long position, ByteBuffer src, int length, ExtentCursor cursor)
+    throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    if (inode.hasHoles()) {
+      fillHoles(inode, position, src, length);
+    }
+    if (!refCounts.isEmpty()) {
+      unshare(inode, position, length);
+    }
+    if (inode.hasUnwrittenBlocks()) {
+      initializeUnwritten(inode, position, length);
+    }
+    var originalLimit = src.limit();
+    src.limit(src.position() + length);
+    try {
+      var totalBytesWritten = 0;
       var currentPosition = position;
+      var index = inode.findExtent(position / blockSize, cursor);
+
+      while (index >= 0 && index < inode.getExtentCount() && src.hasRemaining()) {
+        var extent = inode.getExtent(index);
+        var offsetInExtent = currentPosition - inode.getExtentStartBlock(index) * blockSize;
+
+        int written;
+        if (extent.isHole()) {
+          // Whatever is left in a hole after fillHoles is zeros, which the hole already reads as
+          written = (int) Math.min(src.remaining(), extent.sizeInBytes(blockSize) - offsetInExtent);
+          src.position(src.position() + written);
+        } else {
+          written = containerIO.writeToExtent(extent, offsetInExtent, src);
+        }
+        if (written <= 0) {
+          break;
+        }
+        cursor.moveTo(index);
+        totalBytesWritten += written;
+        currentPosition += written;
+        index++;
+      }
+      return totalBytesWritten;
+    } finally {
+      src.limit(originalLimit);
+    }
+  }
+
+  /**
+   * Allocates blocks for the file's delayed data, if any, and writes it out.
+   */
+  void flushDelayedWrite(Inode inode) throws IOException {
+    lock.readLock().lock();
+    var fileLock = fileLock(inode).writeLock();
+    fileLock.lock();
+    try {
+      var delayed = delayedWrites.get(inode.getId());
+      if (delayed != null) {
+        allocateDelayed(delayed, true);
+      }
+    } finally {
+      fileLock.unlock();
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gives delayed data its blocks, preferably as one extent continuing the file's last one, and writes
+   * it. The data stays buffered if allocation fails. With {@code inlineTail}, a last partial block of
+   * at most {@code inlineDataMax} bytes at the end of the file is kept in the inode instead.
+   */
+  private void allocateDelayed(DelayedWrite delayed, boolean inlineTail) throws IOException {
+    var inode = delayed.inode();
+    var blockSize = containerIO.getBlockSize();
+    var length = delayed.length();
+    var tailLength = inlineTail && delayed.start() + length == inode.getSize() ? length % blockSize : 0;
+    if (tailLength > inlineDataMax) {
+      tailLength = 0;
+    }
+    var blockBytes = length - tailLength;
+
+    if (blockBytes > 0) {
+      extendMapping(inode, delayed.start(), delayed.contents(), delayed.start() + blockBytes);
+      writeAllocated(inode, delayed.start(), delayed.contents(), blockBytes, new ExtentCursor());
+    }
+    if (tailLength > 0) {
+      var tail = new byte[tailLength];
+      delayed.contents().get(blockBytes, tail);
+      inode.setInlineTail(tail);
+    }
+
+    delayedWrites.remove(inode.getId());
+    reservedBlocks.addAndGet(-delayed.reservedBlocks());
+  }
+
+  /**
+   * Turns the file's inline tail back into delayed data at the end of its blocks, so writes and
+   * allocation deal with it like any other buffered data.
+   */
+  private void unpackTail(Inode inode) throws IOException {
+    var tail = inode.getInlineTail();
+    if (tail == null) {
+      return;
+    }
+    var delayed = new DelayedWrite(inode, inode.getAllocatedBlocks() * containerIO.getBlockSize());
+    reserveBlocks(delayed, delayed.start() + tail.length);
+    delayed.write(delayed.start(), ByteBuffer.wrap(tail));
+    delayedWrites.put(inode.getId(), delayed);
+    inode.setInlineTail(null);
+  }
+
+  /**
+   * Extends the file's mapping to cover a write of the bytes of {@code src} at {@code position} up to
+   * {@code endPosition}, which reaches past its last mapped block. Runs of new blocks the write fills
+   * with zeros only become holes; the others are allocated. A new block that the write enters partway
+   * is marked unwritten, so the bytes before the write read as zeros. A compressed file only gets
+   * holes, as its chunks are given blocks when they are stored.
+   */
+  private void extendMapping(Inode inode, long position, ByteBuffer src, long endPosition) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var block = inode.getAllocatedBlocks();
+    var endBlock = (endPosition + blockSize - 1) / blockSize;
+    while (block < endBlock) {
+      var zeros = writesZeros(src, position, endPosition, block);
+      var runEnd = block + 1;
+      while (runEnd < endBlock && writesZeros(src, position, endPosition, runEnd) == zeros) {
+        runEnd++;
+      }
+      if (zeros || inode.isCompressed()) {
+        inode.addHole(runEnd - block);
+      } else {
+        allocateGrowth(inode, Math.toIntExact(runEnd - block));
+        if (block * blockSize < position) {
+          inode.markUnwritten(block, 1);
+        }
+      }
+      block = runEnd;
+    }
+  }
+
+  /**
+   * Gives container blocks to the holes a write of {@code length} bytes of {@code src} at
+   * {@code position} puts data into. Blocks that would only receive zeros stay in the hole. The new
+   * blocks are marked unwritten, so the parts of them outside the write read as zeros.
+   */
+  private void fillHoles(Inode inode, long position, ByteBuffer src, int length) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var endPosition = position + length;
+    var endBlock = Math.min((endPosition + blockSize - 1) / blockSize, inode.getAllocatedBlocks());
+    var cursor = new ExtentCursor();
+    var mapped = false;
+    for (var block = position / blockSize; block < endBlock; ) {
+      var index = inode.findExtent(block, cursor);
+      var extentEnd = Math.min(endBlock, inode.getExtentStartBlock(index) + inode.getExtent(index).blockCount());
+      if (!inode.getExtent(index).isHole() || writesZeros(src, position, endPosition, block)) {
+        block = inode.getExtent(index).isHole() ? block + 1 : extentEnd;
+        continue;
+      }
+      var runEnd = block + 1;
+      while (runEnd < extentEnd && !writesZeros(src, position, endPosition, runEnd)) {
+        runEnd++;
+      }
+      var extents = allocateNear(inode, Math.toIntExact(runEnd - block), holeGoal(inode, index));
+      if (extents.isEmpty()) {
+        throw new IOException("No space available");
+      }
+      inode.mapHole(block, extents);
+      inode.markUnwritten(block, runEnd - block);
+      mapped = true;
+      block = runEnd;
+    }
+    if (mapped) {
+      refreshPins(inode);
+    }
+  }
+
+  /**
+   * Gives the file blocks of its own for the shared blocks a write of {@code length} bytes at
+   * {@code position} touches, so the files it shares them with keep their contents. Only blocks the
+   * write covers partly are copied; the others are about to be overwritten.
+   */
+  private void unshare(Inode inode, long position, int length) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var endPosition = position + length;
+    var endBlock = Math.min((endPosition + blockSize - 1) / blockSize, inode.getAllocatedBlocks());
+    var cursor = new ExtentCursor();
+    var remapped = false;
+    for (var block = position / blockSize; block < endBlock; ) {
+      var index = inode.findExtent(block, cursor);
+      var extent = inode.getExtent(index);
+      var extentStart = inode.getExtentStartBlock(index);
+      var runEnd = Math.min(endBlock, extentStart + extent.blockCount());
+      if (extent.isHole()) {
+        block = runEnd;
+        continue;
+      }
+      var physical = extent.startBlock() + (block - extentStart);
+      // No boundary ahead is Long.MAX_VALUE; adding it to block would overflow
+      runEnd = block + Math.min(runEnd - block, refCounts.nextBoundary(physical) - physical);
+      if (!refCounts.isShared(physical)) {
+        block = runEnd;
+        continue;
+      }
+
+      var count = Math.toIntExact(runEnd - block);
+      var copies = allocateNear(inode, count, holeGoal(inode, index));
+      if (copies.isEmpty()) {
+        throw new IOException("No space available");
+      }
+      var headPartial = block * blockSize < position;
+      if (headPartial) {
+        copyBlocks(new Extent(physical, 1), List.of(new Extent(copies.getFirst().startBlock(), 1)));
+      }
+      if (runEnd * blockSize > endPosition && (count > 1 || !headPartial)) {
+        copyBlocks(new Extent(physical + count - 1, 1), List.of(new Extent(copies.getLast().endBlock() - 1, 1)));
+      }
+      releaseBlocks(List.of(inode.remap(block, copies)));
+      remapped = true;
+      block = runEnd;
+    }
+    if (remapped) {
+      refreshPins(inode);
+    }
+  }
+
+  /**
+   * Returns true if a write of the bytes of {@code src} at {@code position} up to {@code endPosition}
+   * puts nothing but zeros into file block {@code block}.
+   */
+  private boolean writesZeros(ByteBuffer src, long position, long endPosition, long block) {
+    var blockSize = containerIO.getBlockSize();
+    var from = Math.max(position, block * blockSize);
+    var to = Math.min(endPosition, (block + 1) * blockSize);
+    var offset = src.position() + (int) (from - position);
+    var end = offset + (int) Math.max(0, to - from);
+    while (offset + Long.BYTES <= end) {
+      if (src.getLong(offset) != 0) {
+        return false;
+      }
+      offset += Long.BYTES;
+    }
+    for (; offset < end; offset++) {
+      if (src.get(offset) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds {@code blocksNeeded} blocks at the end of a file, right after its last extent when that space
+   * is free. A file with an open append channel also gets speculative blocks, about as many as it
+   * already has, marked unwritten; a steadily growing file thus lands in a few large extents. The
+   * unused part is trimmed once appending stops or on sync.
+   */
+  private void allocateGrowth(Inode inode, int blocksNeeded) throws IOException {
+    var firstBlock = inode.getAllocatedBlocks();
+    var goalBlock = appendGoal(inode);
+    var speculative = appendChannels.containsKey(inode.getId()) ? speculativeBlocks(firstBlock, blocksNeeded) : 0;
+
+    var newExtents = speculative > 0 ? allocateNear(inode, blocksNeeded + speculative, goalBlock) : List.<Extent>of();
+    if (newExtents.isEmpty()) {
+      speculative = 0;
+      newExtents = allocateNear(inode, blocksNeeded, goalBlock);
+      if (newExtents.isEmpty()) {
+        throw new IOException("No space available");
+      }
+    }
+
+    for (var extent : newExtents) {
+      inode.addExtent(extent);
+    }
+    if (speculative > 0) {
+      inode.markUnwritten(firstBlock + blocksNeeded, speculative);
+      speculativeStarts.putIfAbsent(inode.getId(), firstBlock + blocksNeeded);
+    }
+    refreshPins(inode);
+  }
+
+  private int speculativeBlocks(long allocatedBlocks, int blocksNeeded) {
+    var maxBlocks = MAX_SPECULATIVE_BYTES / containerIO.getBlockSize();
+    // Leave at least half of the unreserved free space to other files
+    var spareBlocks = (getFreeBlocks() - blocksNeeded) / 2;
+    return (int) Math.max(0, Math.min(Math.min(Math.max(allocatedBlocks, blocksNeeded), maxBlocks), spareBlocks));
+  }
+
+  void beginAppend(Inode inode) {
+    appendChannels.merge(inode.getId(), 1, Integer::sum);
+  }
+
+  /**
+   * Called when an append channel is closed. Once the file has no append channel left, its delayed
+   * data is allocated and unused speculative blocks are returned to free space.
+   */
+  void endAppend(Inode inode) throws IOException {
+    lock.readLock().lock();
+    var fileLock = fileLock(inode).writeLock();
+    fileLock.lock();
+    try {
+      var remaining = appendChannels.compute(inode.getId(), (id, count) -> count == null || count <= 1 ? null : count - 1);
+      if (remaining == null) {
+        trimSpeculative(inode);
+      }
+    } finally {
+      fileLock.unlock();
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Frees speculative blocks past the end of the file. Blocks the file had before speculation
+   * started are kept.
+   */
+  private void trimSpeculative(Inode inode) throws IOException {
+    var delayed = delayedWrites.get(inode.getId());
+    if (delayed != null) {
+      allocateDelayed(delayed, true);
+    }
+    var firstSpeculative = speculativeStarts.remove(inode.getId());
+    if (firstSpeculative == null) {
+      return;
+    }
+
+    var blockSize = containerIO.getBlockSize();
+    var usedBlocks = (inode.getSize() + blockSize - 1) / blockSize;
+    var freeExtents = inode.truncateToBlocks(Math.max(usedBlocks, firstSpeculative));
+    if (!freeExtents.isEmpty()) {
+      refreshPins(inode);
+      releaseBlocks(freeExtents);
+    }
+  }
+
+  private void discardDelayed(Inode inode) {
+    var delayed = delayedWrites.remove(inode.getId());
+    if (delayed != null) {
+      reservedBlocks.addAndGet(-delayed.reservedBlocks());
+    }
+  }
+
+  /**
+   * Reserves enough free blocks for delayed data reaching {@code endPosition}, so running out of space
+   * is reported by the write rather than when the data is allocated later.
+   */
+  private void reserveBlocks(DelayedWrite delayed, long endPosition) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var blocks = (endPosition - delayed.start() + blockSize - 1) / blockSize;
+    var additional = blocks - delayed.reservedBlocks();
+    if (additional <= 0) {
+      return;
+    }
+    if (!tryReserve(additional)) {
+      throw new IOException("No space available");
+    }
+    delayed.setReservedBlocks(blocks);
+  }
+
+  /**
+   * Adds {@code blocks} to the reserved blocks if that many free blocks are not reserved yet.
+   */
+  private boolean tryReserve(long blocks) {
+    while (true) {
+      var reserved = reservedBlocks.get();
+      if (spaceManager.getTotalFreeBlocks() - reserved < blocks) {
+        return false;
+      }
+      if (reservedBlocks.compareAndSet(reserved, reserved + blocks)) {
+        return true;
+      }
+    }
+  }
+
+  private int fillZeros(ByteBuffer dest, int length) {
+    var filled = 0;
+    while (filled < length) {
+      var n = Math.min(length - filled, zeroBlock.length);
+      dest.put(dest.position(), zeroBlock, 0, n);
+      dest.position(dest.position() + n);
+      filled += n;
+    }
+    return filled;
+  }
+
+  /**
+   * Prepares unwritten blocks that a write of {@code length} bytes at {@code position} is about to
+   * touch: blocks only partly covered by the write are zeroed on disk first, then all of them
+   * leave the unwritten ranges.
+   */
+  private void initializeUnwritten(Inode inode, long position, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    var blockSize = containerIO.getBlockSize();
+    var endPosition = position + length;
+    var firstBlock = position / blockSize;
+    var lastBlock = (endPosition - 1) / blockSize;
+    var headPartial = position % blockSize != 0;
+    if (headPartial && inode.isUnwritten(firstBlock)) {
+      zeroBlock(inode, firstBlock);
+    }
+    if (endPosition % blockSize != 0 && (lastBlock != firstBlock || !headPartial) && inode.isUnwritten(lastBlock)) {
+      zeroBlock(inode, lastBlock);
+    }
+    inode.markWritten(firstBlock, lastBlock + 1);
+  }
+
+  private void zeroBlock(Inode inode, long fileBlock) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var index = inode.findExtent(fileBlock, new ExtentCursor());
+    var offsetInExtent = (fileBlock - inode.getExtentStartBlock(index)) * blockSize;
+    containerIO.writeToExtent(inode.getExtent(index), offsetInExtent, ByteBuffer.wrap(zeroBlock, 0, blockSize));
+  }
+
+  /**
+   * Makes sure the file has blocks for its first {@code length} bytes, without changing its size.
+   * Missing blocks are allocated in one pass, as a single extent after the file's last one when
+   * possible, and marked unwritten so they read as zeros without being cleared on disk. Holes below
+   * {@code length} are filled the same way.
+   */
+  void preallocate(BoxPath path, long length) throws IOException {
+    if (length < 0) {
+      throw new IllegalArgumentException("length must be non-negative");
+    }
+    lock.writeLock().lock();
+    try {
+      checkWritable();
+      var inode = resolvePathToInode((BoxPath) path.toAbsolutePath())
+        .orElseThrow(() -> new NoSuchFileException(path.toString()));
+      if (!inode.isFile()) {
+        throw new IOException("Not a regular file: " + path);
+      }
+
+      unpackTail(inode);
+      var delayed = delayedWrites.get(inode.getId());
+      if (delayed != null) {
+        allocateDelayed(delayed, false);
+      }
+      // Blocks preallocated speculatively so far now belong to the explicit reservation
+      speculativeStarts.remove(inode.getId());
+
+      var blockSize = containerIO.getBlockSize();
+      var firstBlock = inode.getAllocatedBlocks();
+      var blocksNeeded = (length + blockSize - 1) / blockSize - firstBlock;
+      var holes = holesBelow(inode, (length + blockSize - 1) / blockSize);
+      var holeBlocks = holes.stream().mapToLong(Extent::blockCount).sum();
+      if (Math.max(0, blocksNeeded) + holeBlocks > getFreeBlocks()) {
+        throw new IOException("No space available");
+      }
+
+      for (var hole : holes) {
+        var index = inode.findExtent(hole.startBlock(), new ExtentCursor());
+        var extents = allocateNear(inode, hole.blockCount(), holeGoal(inode, index));
+        if (extents.isEmpty()) {
+          throw new IOException("No space available");
+        }
+        inode.mapHole(hole.startBlock(), extents);
+        inode.markUnwritten(hole.startBlock(), hole.blockCount());
+      }
+      if (blocksNeeded <= 0) {
+        if (!holes.isEmpty()) {
+          refreshPins(inode);
+        }
+        return;
+      }
+
+      var newExtents = allocateNear(inode, Math.toIntExact(blocksNeeded), appendGoal(inode));
+      if (newExtents.isEmpty()) {
+        throw new IOException("No space available");
+      }
+      for (var extent : newExtents) {
+        inode.addExtent(extent);
+      }
+      inode.markUnwritten(firstBlock, blocksNeeded);
+      refreshPins(inode);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Turns compression on or off for a file without data, or for the files and directories created in
+   * a directory from now on. A compressed file is divided into chunks of
+   * {@link CompressedFiles#CHUNK_BYTES}, or one block if blocks are larger.
+   */
+  void setCompressed(BoxPath path, boolean compressed) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkWritable();
+      var inode = resolvePathToInode((BoxPath) path.toAbsolutePath())
+        .orElseThrow(() -> new NoSuchFileException(path.toString()));
+      if (inode.isFile() && (inode.getSize() > 0 || inode.getAllocatedBlocks() > 0)) {
+        throw new IOException("Cannot change compression of a file with data: " + path);
+      }
+      inode.setChunkBlocks(compressed ? CompressedFiles.chunkBlocks(containerIO.getBlockSize()) : 0);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  CompressionReport compressionReport() {
+    lock.readLock().lock();
+    try {
+      var blockSize = containerIO.getBlockSize();
+      var files = 0L;
+      var logicalBytes = 0L;
+      var storedBytes = 0L;
+      for (var inode : inodeTable.getAllInodes()) {
+        if (!inode.isFile() || !inode.isCompressed()) {
+          continue;
+        }
+        // Writers change extent lists under the file lock only
+        var fileLock = fileLock(inode).readLock();
+        fileLock.lock();
+        try {
+          var tail = inode.getInlineTail();
+          files++;
+          logicalBytes += inode.getSize();
+          storedBytes += inode.getDataExtents().stream().mapToLong(Extent::blockCount).sum() * blockSize
+            + (tail != null ? tail.length : 0);
+        } finally {
+          fileLock.unlock();
+        }
+      }
+      return new CompressionReport(files, logicalBytes, storedBytes);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the holes among the file's first {@code blocks} blocks as ranges of file blocks.
+   */
+  private static List<Extent> holesBelow(Inode inode, long blocks) {
+    var holes = new ArrayList<Extent>();
+    if (!inode.hasHoles()) {
+      return holes;
+    }
+    for (var i = 0; i < inode.getExtentCount() && inode.getExtentStartBlock(i) < blocks; i++) {
+      var start = inode.getExtentStartBlock(i);
+      if (inode.getExtent(i).isHole()) {
+        holes.add(new Extent(start, (int) Math.min(inode.getExtent(i).blockCount(), blocks - start)));
+      }
+    }
+    return holes;
+  }
+
+  /**
+   * Allocates blocks for {@code inode} as one extent if possible, preferably at {@code goalBlock}, and
+   * split otherwise. Blocks reserved for delayed data are left alone unless they are the file's own.
+   *
+   * @return the extents, or an empty list if there is not enough unreserved free space
+   */
+  private List<Extent> allocateNear(Inode inode, int blockCount, long goalBlock) {
+    var delayed = delayedWrites.get(inode.getId());
+    // Reserved while allocating, so no concurrent reservation counts on the same blocks
+    var claimed = blockCount - (delayed != null ? delayed.reservedBlocks() : 0);
+    if (claimed > 0 && !tryReserve(claimed)) {
+      return List.of();
+    }
+    try {
+      return spaceManager.allocate(blockCount, goalBlock)
+        .map(List::of)
+        .orElseGet(() -> spaceManager.allocateMultiple(blockCount, goalBlock));
+    } finally {
+      if (claimed > 0) {
+        reservedBlocks.addAndGet(-claimed);
+      }
+    }
+  }
+
+  private static long appendGoal(Inode inode) {
+    return holeGoal(inode, inode.getExtentCount());
+  }
+
+  /**
+   * Returns the block after the last data extent before the extent with the given index, or -1.
+   */
+  private static long holeGoal(Inode inode, int index) {
+    for (var i = index - 1; i >= 0; i--) {
+      if (!inode.getExtent(i).isHole()) {
+        return inode.getExtent(i).endBlock();
+      }
+    }
+    return -1;
+  }
+
+  void truncateFile(Inode inode, long newSize) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkWritable();
+
+      if (newSize >= inode.getSize()) {
+        return;
+      }
+
+      var blockSize = containerIO.getBlockSize();
+      var blocksNeeded = (newSize + blockSize - 1) / blockSize;
+
+      if (inode.isCompressed()) {
+        compressedFiles.truncate(inode, newSize);
+      }
+      var tail = inode.getInlineTail();
+      if (tail != null) {
+        var tailStart = inode.getAllocatedBlocks() * blockSize;
+        inode.setInlineTail(newSize > tailStart ? Arrays.copyOf(tail, (int) (newSize - tailStart)) : null);
+      }
+      var delayed = delayedWrites.get(inode.getId());
+      if (delayed != null && newSize > delayed.start()) {
+        delayed.truncate(newSize);
+        var keptBlocks = (newSize - delayed.start() + blockSize - 1) / blockSize;
+        reservedBlocks.addAndGet(keptBlocks - delayed.reservedBlocks());
+        delayed.setReservedBlocks(keptBlocks);
+      } else {
+        discardDelayed(inode);
+      }
+
+      var freeExtents = inode.truncateToBlocks(blocksNeeded);
+      speculativeStarts.remove(inode.getId());
+      inode.setSize(newSize);
+      inode.markDataChanged();
+      inode.touch();
+      refreshPins(inode);
+
+      if (!freeExtents.isEmpty()) {
+        releaseBlocks(freeExtents);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Starts a defragmentation pass on a background thread, or returns the one already running.
+   */
+  CompletableFuture<DefragReport> defragment() {
+    synchronized (maintenanceLock) {
+      checkWritable();
+      if (defragRun == null || defragRun.isDone()) {
+        var run = new CompletableFuture<DefragReport>();
+        var defragmenter = new Defragmenter(this, defragBytesPerSecond);
+        Thread.ofPlatform().daemon().name("boxfs-defrag").start(() -> {
+          try {
+            run.complete(defragmenter.run());
+          } catch (IOException | RuntimeException e) {
+            run.completeExceptionally(e);
+          }
+        });
+        defragRun = run;
+      }
+      return defragRun;
+    }
+  }
+
+  /**
+   * Returns the files with more than one data extent, most fragmented first. Files sharing blocks with
+   * a copy are left out, since moving them would give up the sharing.
+   */
+  List<Defragmenter.Candidate> fragmentedFiles() {
+    lock.readLock().lock();
+    try {
+      var candidates = new ArrayList<Defragmenter.Candidate>();
+      for (var inode : inodeTable.getAllInodes()) {
+        if (!inode.isFile()) {
+          continue;
+        }
+        // Writers change extent lists under the file lock only
+        var fileLock = fileLock(inode).readLock();
+        fileLock.lock();
+        try {
+          var dataExtents = inode.getDataExtents();
+          if (dataExtents.size() > 1 && !refCounts.anyShared(dataExtents)) {
+            candidates.add(new Defragmenter.Candidate(inode, dataExtents.size()));
+          }
+        } finally {
+          fileLock.unlock();
+        }
+      }
+      candidates.sort(Comparator.comparingInt(Defragmenter.Candidate::extentCount).reversed());
+      return candidates;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of data extents of a file.
+   */
+  int dataExtentCount(Inode inode) {
+    lock.readLock().lock();
+    var fileLock = fileLock(inode).readLock();
+    fileLock.lock();
+    try {
+      return inode.getDataExtents().size();
+    } finally {
+      fileLock.unlock();
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Moves a file's blocks into one newly allocated extent. The copy runs in chunks under the file's
+   * read lock, so readers are never blocked and writers only for one chunk; the extent list is then
+   * swapped under its write lock. Holes stay holes. Files that are being appended to, hold delayed
+   * data, share blocks with a copy, or change during the copy are left as they are.
+   *
+   * @return true if the file's data now lies in a single extent in its new location
+   */
+  boolean relocateFile(Inode inode, Defragmenter defragmenter) throws IOException {
+    List<Extent> oldExtents;
+    long dataVersion;
+    Extent target;
+    lock.readLock().lock();
+    var readLock = fileLock(inode).readLock();
+    readLock.lock();
+    try {
+      var dataExtents = inode.getDataExtents();
+      var blocks = dataExtents.stream().mapToLong(Extent::blockCount).sum();
+      if (!open || inodeTable.get(inode.getId()).orElse(null) != inode || dataExtents.size() < 2
+        || blocks > Integer.MAX_VALUE || appendChannels.containsKey(inode.getId())
+        || delayedWrites.containsKey(inode.getId()) || refCounts.anyShared(dataExtents)) {
+        return false;
+      }
+      oldExtents = List.copyOf(inode.getExtents());
+      dataVersion = inode.getDataVersion();
+      // Blocks reserved for delayed data are left alone
+      if (!tryReserve(blocks)) {
+        return false;
+      }
+      Optional<Extent> allocated;
+      try {
+        allocated = spaceManager.allocate((int) blocks);
+      } finally {
+        reservedBlocks.addAndGet(-blocks);
+      }
+      if (allocated.isEmpty()) {
+        return false;
+      }
+      target = allocated.get();
+    } finally {
+      readLock.unlock();
+      lock.readLock().unlock();
+    }
 
-      for (var range : extentRanges) {
-        if (range.notContains(currentPosition)) {
+    var blockSize = containerIO.getBlockSize();
+    var chunk = ByteBuffer.allocate(Defragmenter.CHUNK_BLOCKS * blockSize);
+    var swapped = false;
+    try {
+      var copied = 0L;
+      for (var source : oldExtents) {
+        if (source.isHole()) {
           continue;
         }
+        for (var offset = 0L; offset < source.blockCount(); offset += Defragmenter.CHUNK_BLOCKS) {
+          var blocks = (int) Math.min(Defragmenter.CHUNK_BLOCKS, source.blockCount() - offset);
+          lock.readLock().lock();
+          readLock.lock();
+          try {
+            if (!unchangedSince(inode, dataVersion, oldExtents)) {
+              return false;
+            }
+            chunk.clear().limit(blocks * blockSize);
+            containerIO.readFromExtent(source, offset * blockSize, chunk);
+            chunk.flip();
+            containerIO.writeToExtent(target, copied * blockSize, chunk);
+          } finally {
+            readLock.unlock();
+            lock.readLock().unlock();
+          }
+          copied += blocks;
+          defragmenter.charge((long) blocks * blockSize);
+        }
+      }
+
+      lock.readLock().lock();
+      var writeLock = fileLock(inode).writeLock();
+      writeLock.lock();
+      try {
+        if (!unchangedSince(inode, dataVersion, oldExtents)) {
+          return false;
+        }
+        var newExtents = new ArrayList<Extent>();
+        var next = target.startBlock();
+        for (var extent : oldExtents) {
+          if (extent.isHole()) {
+            newExtents.add(extent);
+          } else {
+            appendMerged(newExtents, new Extent(next, extent.blockCount()));
+            next += extent.blockCount();
+          }
+        }
+        inode.setExtents(newExtents);
+        refreshPins(inode);
+        // The file may have been copied meanwhile, in which case the copy keeps the old blocks
+        releaseBlocks(oldExtents.stream().filter(extent -> !extent.isHole()).toList());
+        swapped = true;
+        return true;
+      } finally {
+        writeLock.unlock();
+        lock.readLock().unlock();
+      }
+    } finally {
+      if (!swapped) {
+        freeBlocks(List.of(target));
+      }
+    }
+  }
 
-        var offsetInExtent = range.offsetAt(currentPosition);
-        var bytesAvailableInExtent = range.bytesAvailableFrom(currentPosition);
-        var bytesForThisExtent = (int) Math.min(bytesAvailableInExtent, src.remaining());
+  private boolean unchangedSince(Inode inode, long dataVersion, List<Extent> extents) {
+    return open && inodeTable.get(inode.getId()).orElse(null) == inode
+      && inode.getDataVersion() == dataVersion && inode.getExtents().equals(extents);
+  }
 
-        if (bytesForThisExtent <= 0) {
-          break;
+  /**
+   * Compacts the container: extents of files and metadata near its end are moved into free space
+   * further forward, and the container file is truncated behind them, keeping at least
+   * {@code freeBytesToKeep} free since a container never grows again. At most {@code maxBytesMoved}
+   * bytes are copied per call, so a large container can be compacted in steps while it stays in use;
+   * each step holds the write lock only while it copies its share.
+   *
+   * @throws IllegalStateException if a defragmentation pass is running
+   */
+  VacuumReport vacuum(long maxBytesMoved, long freeBytesToKeep) throws IOException {
+    if (maxBytesMoved < 0 || freeBytesToKeep < 0) {
+      throw new IllegalArgumentException("maxBytesMoved and freeBytesToKeep must be non-negative");
+    }
+    synchronized (maintenanceLock) {
+      if (defragRun != null && !defragRun.isDone()) {
+        throw new IllegalStateException("Defragmentation in progress");
+      }
+      lock.writeLock().lock();
+      try {
+        checkWritable();
+        settleAllocations();
+        // The log is sized for the container, so it is dropped here and allocated anew by the checkpoint
+        // at the end; its blocks are then free for relocated data
+        if (metadataLog.getExtent() != null) {
+          checkpointMetadata(0);
         }
 
-        var written = containerIO.writeToExtent(range.extent(), offsetInExtent, src);
-        totalBytesWritten += written;
-        currentPosition += written;
+        var superblock = containerIO.getSuperblock();
+        var blocksBefore = superblock.getTotalBlocks();
+        var metadataBlocks = superblock.getMetadataExtents().stream().mapToLong(Extent::blockCount).sum();
+        var blockSize = containerIO.getBlockSize();
+        var keepBlocks = (freeBytesToKeep + blockSize - 1) / blockSize;
+        // Leave room for the metadata to grow when it is rewritten
+        var minBlocks = Math.min(blocksBefore, spaceManager.getTotalUsedBlocks() + metadataBlocks + 1 + keepBlocks);
+        // Blocks that snapshots refer to stay where they are
+        minBlocks = Math.max(minBlocks, snapshots.endBlock());
+        var newTotal = Math.max(minBlocks, cutoffWithin(maxBytesMoved / blockSize));
+        if (newTotal >= blocksBefore) {
+          return new VacuumReport(blocksBefore, blocksBefore, 0, newTotal == minBlocks);
+        }
 
-        if (!src.hasRemaining()) {
-          break;
+        // The new allocator only knows the blocks that remain; relocated data is allocated from it
+        var allocator = BlockAllocator.forSuperblock(superblock, newTotal, allocationGroups);
+        var freeBelow = new ArrayList<Extent>();
+        for (var free : spaceManager.getFreeExtents()) {
+          if (free.startBlock() < newTotal) {
+            freeBelow.add(new Extent(free.startBlock(), (int) Math.min(free.blockCount(), newTotal - free.startBlock())));
+          }
+        }
+        allocator.setFreeExtents(freeBelow);
+
+        var relocated = new HashMap<Inode, List<Extent>>();
+        var sharedMoves = new TreeMap<Long, SharedMove>();
+        var bytesMoved = 0L;
+        for (var inode : inodeTable.getAllInodes()) {
+          if (inode.getDataExtents().stream().anyMatch(extent -> extent.endBlock() > newTotal)) {
+            var extents = relocateBeyond(inode, newTotal, allocator, sharedMoves);
+            bytesMoved += blocksBeyond(inode.getDataExtents(), newTotal) * blockSize;
+            relocated.put(inode, extents);
+          }
+        }
+        // Metadata is rewritten to fresh blocks below, so its blocks need no copying; those that remain
+        // are freed by the checkpoint once it no longer needs them
+        var metadataExtents = new ArrayList<Extent>();
+        for (var extent : superblock.getMetadataExtents()) {
+          var keep = Math.clamp(newTotal - extent.startBlock(), 0, extent.blockCount());
+          if (keep > 0) {
+            metadataExtents.add(new Extent(extent.startBlock(), keep));
+          }
+        }
+
+        for (var entry : relocated.entrySet()) {
+          entry.getKey().setExtents(entry.getValue());
+          refreshPins(entry.getKey());
+        }
+        for (var move : sharedMoves.entrySet()) {
+          refCounts.relocate(move.getKey(), move.getValue().targets());
         }
+        superblock.setMetadataExtents(metadataExtents);
+        superblock.setTotalBlocks(newTotal);
+        // Relocated blocks are indexed again when next written
+        dedupIndex.removeFrom(newTotal);
+        spaceManager = allocator;
+
+        // The checkpoint puts the superblock with the new size on disk before the blocks behind it disappear
+        checkpointMetadata();
+        containerIO.truncate();
+        return new VacuumReport(blocksBefore, newTotal, bytesMoved, newTotal == minBlocks);
+      } finally {
+        lock.writeLock().unlock();
       }
+    }
+  }
 
-      if (endPosition > inode.getSize()) {
-        inode.setSize(endPosition);
+  /**
+   * Returns the lowest block such that the live blocks at and after it add up to at most
+   * {@code budgetBlocks}.
+   */
+  private long cutoffWithin(long budgetBlocks) {
+    var live = new ArrayList<Extent>(containerIO.getSuperblock().getMetadataExtents());
+    for (var inode : inodeTable.getAllInodes()) {
+      live.addAll(inode.getDataExtents());
+    }
+    live.sort(Comparator.comparingLong(Extent::startBlock).reversed());
+
+    var cutoff = 0L;
+    var moved = 0L;
+    for (var extent : live) {
+      if (moved + extent.blockCount() > budgetBlocks) {
+        return extent.endBlock() - (budgetBlocks - moved);
       }
+      moved += extent.blockCount();
+      cutoff = extent.startBlock();
+    }
+    return cutoff;
+  }
 
-      inode.touch();
+  private static long blocksBeyond(List<Extent> extents, long cutoff) {
+    return extents.stream().mapToLong(extent -> Math.clamp(extent.endBlock() - cutoff, 0, extent.blockCount())).sum();
+  }
 
-      return totalBytesWritten;
+  /**
+   * Copies the file's blocks at and after {@code cutoff} into blocks from {@code allocator} and
+   * returns the extent list the file will have afterwards. The file itself is not changed. Shared
+   * blocks are copied only once, by the first file that maps them; {@code sharedMoves} records where
+   * they went, so the other files follow them there.
+   */
+  private List<Extent> relocateBeyond(Inode inode, long cutoff, BlockAllocator allocator,
+                                      TreeMap<Long, SharedMove> sharedMoves) throws IOException {
+    var extents = new ArrayList<Extent>();
+    for (var extent : inode.getExtents()) {
+      if (extent.isHole()) {
+        extents.add(extent);
+        continue;
+      }
+      var keep = Math.clamp(cutoff - extent.startBlock(), 0, extent.blockCount());
+      if (keep > 0) {
+        appendMerged(extents, new Extent(extent.startBlock(), keep));
+      }
+      for (var start = extent.startBlock() + keep; start < extent.endBlock(); ) {
+        var end = Math.min(extent.endBlock(), refCounts.nextBoundary(start));
+        var goal = extents.isEmpty() || extents.getLast().isHole() ? -1 : extents.getLast().endBlock();
+        List<Extent> targets;
+        if (refCounts.isShared(start)) {
+          targets = relocateShared(start, end, allocator, sharedMoves, goal);
+        } else {
+          targets = allocateOrFail(allocator, (int) (end - start), goal);
+          copyBlocks(new Extent(start, (int) (end - start)), targets);
+        }
+        for (var target : targets) {
+          appendMerged(extents, target);
+        }
+        start = end;
+      }
+    }
+    return extents;
+  }
+
+  /**
+   * Where shared blocks from a start block up to {@code endBlock} are copied during a compaction.
+   */
+  private record SharedMove(long endBlock, List<Extent> targets) {
+  }
+
+  /**
+   * Returns the blocks the shared blocks [start, end) are moved to, copying the ones not moved yet.
+   */
+  private List<Extent> relocateShared(long start, long end, BlockAllocator allocator,
+                                      TreeMap<Long, SharedMove> sharedMoves, long goal) throws IOException {
+    var targets = new ArrayList<Extent>();
+    for (var cursor = start; cursor < end; ) {
+      var move = sharedMoves.floorEntry(cursor);
+      if (move != null && move.getValue().endBlock() > cursor) {
+        var blocks = Math.min(end, move.getValue().endBlock()) - cursor;
+        targets.addAll(sliceExtents(move.getValue().targets(), cursor - move.getKey(), blocks));
+        cursor += blocks;
+      } else {
+        var next = sharedMoves.higherKey(cursor);
+        var moveEnd = next == null ? end : Math.min(end, next);
+        var moved = allocateOrFail(allocator, (int) (moveEnd - cursor), goal);
+        copyBlocks(new Extent(cursor, (int) (moveEnd - cursor)), moved);
+        sharedMoves.put(cursor, new SharedMove(moveEnd, moved));
+        targets.addAll(moved);
+        cursor = moveEnd;
+      }
+    }
+    return targets;
+  }
+
+  /**
+   * Returns {@code blockCount} blocks of the given extents, taken in order, from the {@code offset}-th on.
+   */
+  private static List<Extent> sliceExtents(List<Extent> extents, long offset, long blockCount) {
+    var slice = new ArrayList<Extent>();
+    for (var extent : extents) {
+      if (blockCount == 0) {
+        break;
+      }
+      if (offset >= extent.blockCount()) {
+        offset -= extent.blockCount();
+        continue;
+      }
+      var blocks = Math.min(blockCount, extent.blockCount() - offset);
+      slice.add(new Extent(extent.startBlock() + offset, (int) blocks));
+      blockCount -= blocks;
+      offset = 0;
+    }
+    return slice;
+  }
+
+  private static List<Extent> allocateOrFail(BlockAllocator allocator, int blockCount, long goalBlock) throws IOException {
+    var extents = allocator.allocateMultiple(blockCount, goalBlock);
+    if (extents.isEmpty()) {
+      throw new IOException("Not enough free space to compact the container");
+    }
+    return extents;
+  }
+
+  private static void appendMerged(List<Extent> extents, Extent extent) {
+    var last = extents.isEmpty() ? null : extents.getLast();
+    if (last != null && last.endBlock() == extent.startBlock()
+      && (long) last.blockCount() + extent.blockCount() <= Integer.MAX_VALUE) {
+      extents.set(extents.size() - 1, last.mergeWith(extent));
+    } else {
+      extents.add(extent);
+    }
+  }
+
+  /**
+   * Copies the blocks of {@code source} into the target extents, in order.
+   */
+  private void copyBlocks(Extent source, List<Extent> targets) throws IOException {
+    var blockSize = containerIO.getBlockSize();
+    var chunk = ByteBuffer.allocate(Math.min(COPY_CHUNK_BLOCKS, source.blockCount()) * blockSize);
+    var sourceOffset = 0L;
+    for (var target : targets) {
+      for (var offset = 0; offset < target.blockCount(); offset += COPY_CHUNK_BLOCKS) {
+        var blocks = Math.min(COPY_CHUNK_BLOCKS, target.blockCount() - offset);
+        chunk.clear().limit(blocks * blockSize);
+        while (chunk.hasRemaining()) {
+          containerIO.readFromExtent(source, sourceOffset * blockSize + chunk.position(), chunk);
+        }
+        chunk.flip();
+        containerIO.writeToExtent(target, (long) offset * blockSize, chunk);
+        sourceOffset += blocks;
+      }
+    }
+  }
+
+  /**
+   * Takes a snapshot of all files under {@code name}. The inode and directory tables are written to
+   * blocks of their own and every data block the files map gains a reference, so later writes to
+   * the live files go to new blocks and the snapshot keeps seeing the old ones. No file data is copied.
+   */
+  Snapshot createSnapshot(String name) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkWritable();
+      if (name == null || name.isEmpty()) {
+        throw new IllegalArgumentException("Snapshot name must not be empty");
+      }
+      if (snapshots.get(name).isPresent()) {
+        throw new IllegalArgumentException("Snapshot already exists: " + name);
+      }
+      settleAllocations();
+
+      var metadataBytes = MetadataSerializer.serializeNamespace(inodeTable, directoryTable);
+      var blockSize = containerIO.getBlockSize();
+      var metadataExtents = spaceManager.allocateMultiple((metadataBytes.length + blockSize - 1) / blockSize);
+      if (metadataExtents.isEmpty()) {
+        throw new IOException("Not enough space for snapshot metadata");
+      }
+      writeMetadataToExtents(metadataBytes, metadataExtents, blockSize);
+
+      var endBlock = metadataExtents.stream().mapToLong(Extent::endBlock).max().orElse(0);
+      for (var inode : inodeTable.getAllInodes()) {
+        for (var extent : inode.getDataExtents()) {
+          refCounts.share(extent);
+          endBlock = Math.max(endBlock, extent.endBlock());
+        }
+      }
+      var entry = new SnapshotTable.Entry(name, System.currentTimeMillis(), metadataExtents, endBlock);
+      snapshots.add(entry);
+      // The snapshot list is only kept by checkpoints
+      checkpointMetadata();
+      return toSnapshot(entry);
     } finally {
       lock.writeLock().unlock();
     }
   }
 
-  void truncateFile(Inode inode, long newSize) {
+  List<Snapshot> listSnapshots() {
+    checkOpen();
+    return snapshots.getAll().stream().map(BoxFileSystem::toSnapshot).toList();
+  }
+
+  /**
+   * Deletes a snapshot, dropping its references to data blocks; blocks no live file or other
+   * snapshot maps become free.
+   */
+  void deleteSnapshot(String name) throws IOException {
     lock.writeLock().lock();
     try {
       checkWritable();
+      var entry = snapshots.get(name)
+        .orElseThrow(() -> new IllegalArgumentException("No such snapshot: " + name));
+      if (snapshotViews.stream().anyMatch(view -> view.snapshotName.equals(name))) {
+        throw new IllegalStateException("Snapshot is mounted: " + name);
+      }
 
-      if (newSize >= inode.getSize()) {
+      var frozenInodes = new InodeTable();
+      MetadataSerializer.deserializeNamespace(readMetadataFromExtents(entry.metadataExtents()),
+        frozenInodes, new DirectoryTable());
+      for (var inode : frozenInodes.getAllInodes()) {
+        releaseBlocks(inode.getDataExtents());
+      }
+      freeBlocks(entry.metadataExtents());
+      snapshots.remove(name);
+      settleAllocations();
+      checkpointMetadata();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Opens a snapshot as a read-only file system. The view shares this container and is closed with
+   * it; the snapshot cannot be deleted while the view is open.
+   */
+  BoxFileSystem mountSnapshot(String name) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      var entry = snapshots.get(name)
+        .orElseThrow(() -> new IllegalArgumentException("No such snapshot: " + name));
+      var view = new BoxFileSystem(this, name);
+      MetadataSerializer.deserializeNamespace(readMetadataFromExtents(entry.metadataExtents()),
+        view.inodeTable, view.directoryTable);
+      snapshotViews.add(view);
+      return view;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static Snapshot toSnapshot(SnapshotTable.Entry entry) {
+    return new Snapshot(entry.name(), Instant.ofEpochMilli(entry.creationTime()));
+  }
+
+  void pinFile(BoxPath path) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      if (!containerIO.hasBlockCache()) {
+        throw new UnsupportedOperationException("Block cache is not enabled");
+      }
+
+      var inode = resolvePathToInode((BoxPath) path.toAbsolutePath())
+        .orElseThrow(() -> new NoSuchFileException(path.toString()));
+      if (!inode.isFile()) {
+        throw new IOException("Not a regular file: " + path);
+      }
+      if (pinnedExtents.containsKey(inode.getId())) {
         return;
       }
 
-      var blockSize = containerIO.getBlockSize();
-      var blocksNeeded = (newSize + blockSize - 1) / blockSize;
+      var pinned = pinExtents(inode.getDataExtents());
+      if (pinned.size() < inode.getDataExtents().size()) {
+        unpinExtents(pinned);
+        throw new IOException("Block cache too small to pin " + path);
+      }
+      pinnedExtents.put(inode.getId(), pinned);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      var currentExtents = new ArrayList<>(inode.getExtents());
-      var keepExtents = new ArrayList<Extent>();
-      var freeExtents = new ArrayList<Extent>();
-
-      var accumulatedBlocks = 0L;
-      for (var extent : currentExtents) {
-        if (accumulatedBlocks >= blocksNeeded) {
-          freeExtents.add(extent);
-        } else if (accumulatedBlocks + extent.blockCount() <= blocksNeeded) {
-          keepExtents.add(extent);
-          accumulatedBlocks += extent.blockCount();
-        } else {
-          var blocksToKeep = (int) (blocksNeeded - accumulatedBlocks);
-          if (blocksToKeep > 0) {
-            keepExtents.add(new Extent(extent.startBlock(), blocksToKeep));
-          }
-          var blocksToFree = extent.blockCount() - blocksToKeep;
-          if (blocksToFree > 0) {
-            freeExtents.add(new Extent(extent.startBlock() + blocksToKeep, blocksToFree));
-          }
-          accumulatedBlocks += blocksToKeep;
-        }
+  void unpinFile(BoxPath path) throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      var inode = resolvePathToInode((BoxPath) path.toAbsolutePath())
+        .orElseThrow(() -> new NoSuchFileException(path.toString()));
+      var pinned = pinnedExtents.remove(inode.getId());
+      if (pinned != null) {
+        unpinExtents(pinned);
       }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      inode.setExtents(keepExtents);
-      inode.setSize(newSize);
-      inode.touch();
+  /**
+   * Drops a reference to each of the given file data extents. Blocks that no other file shares are
+   * returned to free space.
+   */
+  void releaseBlocks(List<Extent> extents) {
+    var unreferenced = new ArrayList<Extent>();
+    for (var extent : extents) {
+      unreferenced.addAll(refCounts.release(extent));
+    }
+    freeBlocks(unreferenced);
+  }
 
-      if (!freeExtents.isEmpty()) {
-        spaceManager.freeAll(freeExtents);
+  /**
+   * Returns extents to free space and, with discard enabled, queues them to be punched out of the
+   * container file once the metadata that frees them is on disk.
+   */
+  private void freeBlocks(List<Extent> extents) {
+    dedupIndex.removeAll(extents);
+    spaceManager.freeAll(extents);
+    if (discarder != null) {
+      discarder.queue(extents);
+    }
+  }
+
+  /**
+   * Punches the parts of the given extents that are still free out of the container file. Runs under
+   * the write lock, so no block is allocated and written while its range is being punched.
+   */
+  void discardFree(List<Extent> extents) throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (!open) {
+        return;
+      }
+      var totalBlocks = containerIO.getSuperblock().getTotalBlocks();
+      var free = new ArrayList<Extent>();
+      for (var extent : extents) {
+        // Blocks past the end of a compacted container are already gone
+        if (extent.startBlock() < totalBlocks) {
+          collectFree(new Extent(extent.startBlock(), (int) Math.min(extent.blockCount(), totalBlocks - extent.startBlock())), free);
+        }
       }
+      containerIO.discard(free);
     } finally {
       lock.writeLock().unlock();
     }
   }
 
+  /**
+   * Adds the free parts of {@code extent} to {@code free}, halving it until each part is either
+   * entirely free or a single allocated block.
+   */
+  private void collectFree(Extent extent, List<Extent> free) {
+    if (spaceManager.areFree(extent.startBlock(), extent.blockCount())) {
+      appendMerged(free, extent);
+    } else if (extent.blockCount() > 1) {
+      var half = extent.blockCount() / 2;
+      collectFree(new Extent(extent.startBlock(), half), free);
+      collectFree(new Extent(extent.startBlock() + half, extent.blockCount() - half), free);
+    }
+  }
+
+  private ReentrantReadWriteLock fileLock(Inode inode) {
+    return fileLocks[(int) Math.floorMod(inode.getId(), (long) FILE_LOCK_STRIPES)];
+  }
+
+  /**
+   * Re-pins a pinned file after its extent list changed.
+   * Best effort: extents that no longer fit in the cache stay unpinned.
+   */
+  void refreshPins(Inode inode) throws IOException {
+    var previous = pinnedExtents.get(inode.getId());
+    if (previous == null) {
+      return;
+    }
+    unpinExtents(previous);
+    pinnedExtents.put(inode.getId(), pinExtents(inode.getDataExtents()));
+  }
+
+  private List<Extent> pinExtents(List<Extent> extents) throws IOException {
+    var pinned = new ArrayList<Extent>();
+    for (var extent : extents) {
+      if (containerIO.pinExtent(extent)) {
+        pinned.add(extent);
+      }
+    }
+    return pinned;
+  }
+
+  private void unpinExtents(List<Extent> extents) {
+    for (var extent : extents) {
+      containerIO.unpinExtent(extent);
+    }
+  }
+
+  BlockCache.Stats getCacheStats() {
+    return containerIO.getCacheStats();
+  }
+
+  long getDirtyBytes() {
+    return containerIO.getDirtyBytes();
+  }
+
   @Override
   public FileSystemProvider provider() {
     return provider;
@@ -587,14 +2577,28 @@ public class BoxFileSystem extends FileSystem {
 
   @Override
   public void close() throws IOException {
+    if (parent != null) {
+      closeView();
+      return;
+    }
     if (open) {
       lock.writeLock().lock();
       try {
         if (open) {
+          for (var view : snapshotViews) {
+            view.closeView();
+          }
+          if (discarder != null) {
+            discarder.close();
+          }
           open = false;
           persistMetadata();
           containerIO.sync();
+          // The bitmap pages freeing blocks only now are written before the container is closed
+          metadataSynced();
+          containerIO.sync();
           containerIO.close();
+          shutdownExecutors();
           provider.removeFileSystem(containerPath);
         }
       } finally {
@@ -603,6 +2607,33 @@ public class BoxFileSystem extends FileSystem {
     }
   }
 
+  /**
+   * Closes a snapshot view. Its metadata is never written back and the container stays open.
+   */
+  private void closeView() {
+    lock.writeLock().lock();
+    try {
+      if (open) {
+        open = false;
+        pinnedExtents.values().forEach(this::unpinExtents);
+        pinnedExtents.clear();
+        shutdownExecutors();
+        parent.snapshotViews.remove(this);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private synchronized void shutdownExecutors() {
+    if (readaheadExecutor != null) {
+      readaheadExecutor.shutdownNow();
+    }
+    if (copyExecutor != null) {
+      copyExecutor.shutdownNow();
+    }
+  }
+
   @Override
   public boolean isOpen() {
     return open;
@@ -610,7 +2641,7 @@ public class BoxFileSystem extends FileSystem {
 
   @Override
   public boolean isReadOnly() {
-    return false;
+    return parent != null;
   }
 
   @Override
@@ -828,12 +2859,10 @@ public class BoxFileSystem extends FileSystem {
   }
 
   long getFreeBlocks() {
-    lock.readLock().lock();
-    try {
-      return spaceManager.getTotalFreeBlocks();
-    } finally {
-      lock.readLock().unlock();
+    if (parent != null) {
+      return parent.getFreeBlocks();
     }
+    return Math.max(0, spaceManager.getTotalFreeBlocks() - reservedBlocks.get());
   }
 
   void checkOpen() {
@@ -844,13 +2873,56 @@ public class BoxFileSystem extends FileSystem {
 
   void checkWritable() {
     checkOpen();
+    if (parent != null) {
+      throw new ReadOnlyFileSystemException();
+    }
+  }
+
+  /**
+   * Makes everything written so far durable, sharing the container flush with concurrent callers;
+   * see {@link GroupCommit}. A snapshot view has nothing to write.
+   */
+  void force() throws IOException {
+    if (parent != null) {
+      checkOpen();
+      return;
+    }
+    groupCommit.await();
+  }
+
+  /**
+   * One group commit: the metadata changes of all writers, including their delayed data, go to the
+   * metadata log, and a single container flush makes them and the data durable.
+   */
+  private void commitDurable() throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      persistMetadata();
+      containerIO.sync();
+      metadataSynced();
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
+  /**
+   * Writes metadata and buffered data to the container and forces it to disk. Freed blocks still
+   * waiting to be discarded are punched out of the container file as well.
+   */
   void sync() throws IOException {
+    if (parent != null) {
+      checkOpen();
+      return;
+    }
     lock.writeLock().lock();
     try {
       persistMetadata();
       containerIO.sync();
+      metadataSynced();
+      if (discarder != null) {
+        discarder.flush();
+      }
     } finally {
       lock.writeLock().unlock();
     }
@@ -2,7 +2,11 @@ package org.test.boxfs;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.test.boxfs.internal.BitmapAllocator;
+import org.test.boxfs.internal.BlockAllocator;
+import org.test.boxfs.internal.BlockCache;
 import org.test.boxfs.internal.ContainerIO;
+import org.test.boxfs.internal.EvictionPolicy;
 import org.test.boxfs.internal.Inode;
 import org.test.boxfs.internal.Superblock;
 
@@ -28,11 +32,52 @@ import java.util.Set;
  * - "create" (String "true"): create a new container if it doesn't exist
  * - "totalBlocks" (Long): number of blocks for the new container (default: 256)
  * - "blockSize" (Integer): block size in bytes (default: 4096)
+ * - "memoryMapped" (String "true" or Boolean): map the container into memory instead of
+ *   issuing a positional read/write per extent access (default: false)
+ * - "cacheSize" (Long): memory budget in bytes for the off-heap block cache (default: 0, disabled)
+ * - "cachePolicy" (String): block cache eviction policy, one of "clock", "lru", "arc" (default: "clock")
+ * - "writeBack" (String "true" or Boolean): buffer writes in memory and flush them from a background
+ *   thread; dirty data is always flushed on sync and close (default: false)
+ * - "writeBackMaxDirty" (Long): dirty bytes that trigger a full flush (default: 16 MiB)
+ * - "writeBackMaxAge" (Long): milliseconds after which a dirty block is flushed (default: 5000)
+ * - "allocator" (String): free-space representation of a new container, "extents" for a free extent
+ *   list or "bitmap" for a free-space bitmap suited to very large containers (default: "extents")
+ * - "allocationGroups" (Integer): number of independently locked allocation groups the free extent
+ *   list is split into, so parallel writers rarely contend; capped so that groups keep at least
+ *   1024 blocks (default: available processors)
+ * - "delayedAllocationMax" (Long): bytes a file may hold in memory past its allocated blocks before
+ *   blocks are assigned; they are otherwise assigned when the channel is closed or the file system is
+ *   synced. 0 allocates on every write (default: 4 MiB)
+ * - "readaheadMaxWindow" (Long): largest sequential readahead window per channel in bytes;
+ *   0 disables readahead (default: 4 MiB)
+ * - "defragBytesPerSecond" (Long): copy budget of background defragmentation passes;
+ *   0 removes the limit (default: 32 MiB)
+ * - "inlineDataMax" (Long): files, or last partial blocks of files, of at most this many bytes are
+ *   stored in the inode instead of a data block once their delayed data is allocated; 0 disables
+ *   (default: 2048)
+ * - "discard" (String "true" or Boolean): punch freed blocks out of the container file in the
+ *   background, so it only occupies disk space for blocks in use; Linux only (default: false)
+ * - "reflink" (String "true" or Boolean): copies within the container share the source's blocks
+ *   instead of copying data (default: true)
+ * - "dedup" (String "true" or Boolean): a full block written to a file whose data another block
+ *   already holds is shared with that block instead of written; the block hash index is verified,
+ *   or rebuilt, in parallel when the container is opened (default: false)
+ * - "metadataLogSize" (Long): bytes of the log that syncs append metadata changes to, capped at a
+ *   sixteenth of the container; all metadata is rewritten only when the log is full. 0 rewrites all
+ *   metadata on every sync (default: 1 MiB)
  */
 public class BoxFileSystemProvider extends FileSystemProvider {
   private static final String SCHEME = "box";
   private static final long DEFAULT_TOTAL_BLOCKS = 256;
   private static final int DEFAULT_BLOCK_SIZE = Superblock.DEFAULT_BLOCK_SIZE;
+  private static final long DEFAULT_WRITE_BACK_MAX_DIRTY = 16L * 1024 * 1024;
+  private static final long DEFAULT_WRITE_BACK_MAX_AGE_MILLIS = 5000;
+  private static final long DEFAULT_READAHEAD_MAX_WINDOW = 4L * 1024 * 1024;
+  private static final long DEFAULT_DELAYED_ALLOCATION_MAX = 4L * 1024 * 1024;
+  private static final long MAX_DELAYED_ALLOCATION_MAX = 1L << 30;
+  private static final long DEFAULT_DEFRAG_BYTES_PER_SECOND = 32L * 1024 * 1024;
+  private static final long DEFAULT_INLINE_DATA_MAX = 2048;
+  private static final long DEFAULT_METADATA_LOG_SIZE = 1L << 20;
 
   private final Map<Path, BoxFileSystem> fileSystems = new HashMap<>();
 
@@ -53,12 +98,17 @@ public class BoxFileSystemProvider extends FileSystemProvider {
       }
 
       var create = "true".equals(env.get("create"));
+      var memoryMapped = getBooleanEnv(env, "memoryMapped");
 
       BoxFileSystem fs;
 
       if (Files.exists(containerPath)) {
-        var containerIO = ContainerIO.open(containerPath);
-        fs = new BoxFileSystem(this, containerPath, containerIO);
+        var containerIO = ContainerIO.open(containerPath, memoryMapped);
+        configureCache(containerIO, env);
+        configureWriteBack(containerIO, env);
+        configureDiscard(containerIO, containerPath, env);
+        fs = new BoxFileSystem(this, containerPath, containerIO, getAllocationGroups(env));
+        configure(fs, env);
         fs.loadMetadata();
       } else {
         if (!create) {
@@ -67,8 +117,17 @@ public class BoxFileSystemProvider extends FileSystemProvider {
         var totalBlocks = getLongEnv(env, "totalBlocks", DEFAULT_TOTAL_BLOCKS);
         var blockSize = getIntEnv(env, "blockSize", DEFAULT_BLOCK_SIZE);
 
-        var containerIO = ContainerIO.create(containerPath, blockSize, totalBlocks);
-        fs = new BoxFileSystem(this, containerPath, containerIO);
+        var allocator = BlockAllocator.Kind.fromName(getStringEnv(env, "allocator", "extents"));
+
+        var containerIO = ContainerIO.create(containerPath, blockSize, totalBlocks, memoryMapped);
+        if (allocator == BlockAllocator.Kind.BITMAP) {
+          containerIO.getSuperblock().setFreeSpaceBitmap(BitmapAllocator.layoutFor(blockSize, totalBlocks));
+        }
+        configureCache(containerIO, env);
+        configureWriteBack(containerIO, env);
+        configureDiscard(containerIO, containerPath, env);
+        fs = new BoxFileSystem(this, containerPath, containerIO, getAllocationGroups(env));
+        configure(fs, env);
         fs.initializeNew();
       }
 
@@ -77,6 +136,77 @@ public class BoxFileSystemProvider extends FileSystemProvider {
     }
   }
 
+  /**
+   * Applies the options that are not stored in the container, alike for an opened and a new one.
+   */
+  private void configure(BoxFileSystem fs, Map<String, ?> env) {
+    fs.setReadaheadMaxWindow(getReadaheadMaxWindow(env));
+    fs.setDelayedAllocationMax(getDelayedAllocationMax(env));
+    fs.setDefragBytesPerSecond(Math.max(0, getLongEnv(env, "defragBytesPerSecond", DEFAULT_DEFRAG_BYTES_PER_SECOND)));
+    fs.setInlineDataMax(getInlineDataMax(env));
+    fs.setReflink(getBooleanEnv(env, "reflink", true));
+    fs.setDedup(getBooleanEnv(env, "dedup", false));
+    fs.setMetadataLogSize(Math.max(0, getLongEnv(env, "metadataLogSize", DEFAULT_METADATA_LOG_SIZE)));
+  }
+
+  private void configureCache(ContainerIO containerIO, Map<String, ?> env) throws IOException {
+    var cacheSize = getLongEnv(env, "cacheSize", 0);
+    if (cacheSize <= 0) {
+      return;
+    }
+    try {
+      var policy = EvictionPolicy.Kind.fromName(getStringEnv(env, "cachePolicy", "clock"));
+      containerIO.attachCache(new BlockCache(containerIO.getBlockSize(), cacheSize, policy));
+    } catch (IllegalArgumentException e) {
+      containerIO.close();
+      throw e;
+    }
+  }
+
+  private void configureWriteBack(ContainerIO containerIO, Map<String, ?> env) throws IOException {
+    if (!getBooleanEnv(env, "writeBack")) {
+      return;
+    }
+    try {
+      containerIO.enableWriteBack(
+        getLongEnv(env, "writeBackMaxDirty", DEFAULT_WRITE_BACK_MAX_DIRTY),
+        getLongEnv(env, "writeBackMaxAge", DEFAULT_WRITE_BACK_MAX_AGE_MILLIS));
+    } catch (IllegalArgumentException e) {
+      containerIO.close();
+      throw e;
+    }
+  }
+
+  private void configureDiscard(ContainerIO containerIO, Path containerPath, Map<String, ?> env) throws IOException {
+    if (!getBooleanEnv(env, "discard")) {
+      return;
+    }
+    try {
+      containerIO.enableDiscard(containerPath);
+    } catch (IOException | UnsupportedOperationException e) {
+      containerIO.close();
+      throw e;
+    }
+  }
+
+  private int getDelayedAllocationMax(Map<String, ?> env) {
+    var max = getLongEnv(env, "delayedAllocationMax", DEFAULT_DELAYED_ALLOCATION_MAX);
+    return (int) Math.clamp(max, 0, MAX_DELAYED_ALLOCATION_MAX);
+  }
+
+  private int getInlineDataMax(Map<String, ?> env) {
+    return Math.clamp(getLongEnv(env, "inlineDataMax", DEFAULT_INLINE_DATA_MAX), 0, Integer.MAX_VALUE);
+  }
+
+  private int getAllocationGroups(Map<String, ?> env) {
+    return getIntEnv(env, "allocationGroups", Runtime.getRuntime().availableProcessors());
+  }
+
+  private int getReadaheadMaxWindow(Map<String, ?> env) {
+    var maxWindow = getLongEnv(env, "readaheadMaxWindow", DEFAULT_READAHEAD_MAX_WINDOW);
+    return Math.clamp(maxWindow, 0, Integer.MAX_VALUE);
+  }
+
   @Override
   public @NotNull FileSystem getFileSystem(@NotNull URI uri) {
     checkUri(uri);
@@ -155,7 +285,8 @@ public class BoxFileSystemProvider extends FileSystemProvider {
    * Copies a file.
    * <p>
    * Supports both same-container and cross-container copy operations.
-   * For cross-container copies, data is streamed from source to target.
+   * Within a container the copy shares the source's blocks unless reflinks are disabled; otherwise,
+   * and across containers, data is streamed from source to target by a {@link CopyEngine}.
    * <p>
    * The JDK handles cross-provider copy (e.g., BoxFS to OS filesystem) automatically
    * via the java.nio.file.CopyMoveHelper.copyToForeignTarget() method.
@@ -179,20 +310,7 @@ public class BoxFileSystemProvider extends FileSystemProvider {
   }
 
   private void crossContainerCopy(BoxPath source, BoxPath target, CopyOption... options) throws IOException {
-    var replaceExisting = replaceExisting(options);
-
-    if (Files.exists(target) && !replaceExisting) {
-      throw new FileAlreadyExistsException(target.toString());
-    }
-
-    var openOptions = replaceExisting
-            ? new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE}
-            : new OpenOption[]{StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE};
-
-    try (var in = Files.newInputStream(source);
-         var out = Files.newOutputStream(target, openOptions)) {
-      in.transferTo(out);
-    }
+    CopyEngine.copy((BoxFileSystem) source.getFileSystem(), source, (BoxFileSystem) target.getFileSystem(), target, options);
   }
 
   private boolean replaceExisting(CopyOption[] options) {
@@ -228,6 +346,7 @@ public class BoxFileSystemProvider extends FileSystemProvider {
     if (sourceFs == targetFs) {
       sourceFs.move(boxSource, boxTarget, options);
     } else {
+      sourceFs.checkWritable();
       crossContainerCopy(boxSource, boxTarget, options);
       sourceFs.delete(boxSource);
     }
@@ -389,7 +508,6 @@ public class BoxFileSystemProvider extends FileSystemProvider {
     throw new IllegalArgumentException("Path is not a BoxPath: " + path);
   }
 
-  @SuppressWarnings("SameParameterValue")
   private long getLongEnv(Map<String, ?> env, String key, long defaultValue) {
     var value = env.get(key);
     if (value == null) {
@@ -401,6 +519,26 @@ public class BoxFileSystemProvider extends FileSystemProvider {
     return Long.parseLong(value.toString());
   }
 
+  private String getStringEnv(Map<String, ?> env, String key, String defaultValue) {
+    var value = env.get(key);
+    return value != null ? value.toString() : defaultValue;
+  }
+
+  private boolean getBooleanEnv(Map<String, ?> env, String key) {
+    return getBooleanEnv(env, key, false);
+  }
+
+  private boolean getBooleanEnv(Map<String, ?> env, String key, boolean defaultValue) {
+    var value = env.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    if (value instanceof Boolean bool) {
+      return bool;
+    }
+    return "true".equalsIgnoreCase(value.toString());
+  }
+
   @SuppressWarnings("SameParameterValue")
   private int getIntEnv(Map<String, ?> env, String key, int defaultValue) {
     var value = env.get(key);
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -13,6 +14,7 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Simple facade API for the BoxFS single-container file system.
@@ -105,8 +107,20 @@ public class BoxFs implements Closeable {
    * @throws IOException if the container cannot be opened
    */
   public static BoxFs open(Path containerPath) throws IOException {
+    return open(containerPath, Map.of());
+  }
+
+  /**
+   * Opens an existing container file with provider options such as "memoryMapped" or "cacheSize".
+   *
+   * @param containerPath path to the container file on the host filesystem
+   * @param env           provider environment options (see {@link BoxFileSystemProvider})
+   * @return a BoxFs instance for the existing container
+   * @throws IOException if the container cannot be opened
+   */
+  public static BoxFs open(Path containerPath, Map<String, ?> env) throws IOException {
     var uri = URI.create("box:" + containerPath.toAbsolutePath());
-    var fs = FileSystems.newFileSystem(uri, Map.of());
+    var fs = FileSystems.newFileSystem(uri, env);
     return new BoxFs(fs);
   }
 
@@ -197,6 +211,30 @@ public class BoxFs implements Closeable {
     Files.move(resolvePath(source), resolvePath(target));
   }
 
+  /**
+   * Copies a file. The copy shares the original's blocks until one of them is written to, so it takes
+   * no space and the same short time whatever the size of the file.
+   *
+   * @param source path of the file to copy
+   * @param target path of the new file
+   * @throws IOException if the source is missing or a directory, or the target exists
+   */
+  public void copyFile(String source, String target) throws IOException {
+    Files.copy(resolvePath(source), resolvePath(target));
+  }
+
+  /**
+   * Copies a directory with everything below it, or a single file, in one step. Files share blocks
+   * with their originals as with {@link #copyFile(String, String)}.
+   *
+   * @param source path of the directory or file to copy
+   * @param target path of the copy, which must not exist yet
+   * @throws IOException if the source is missing, the target exists, or the target lies inside the source
+   */
+  public void copyTree(String source, String target) throws IOException {
+    ((BoxFileSystem) fileSystem).copyTree((BoxPath) resolvePath(source), (BoxPath) resolvePath(target));
+  }
+
   // ==================== Directory Operations ====================
 
   /**
@@ -289,6 +327,169 @@ public class BoxFs implements Closeable {
     return Files.size(resolvePath(path));
   }
 
+  /**
+   * Reserves space for a file to grow to {@code bytes} without allocating on later writes, for
+   * example before ingesting data of known length. The file is created if it does not exist and its
+   * size is unchanged. Reserved space reads as zeros until written.
+   *
+   * @param path  absolute path within the container
+   * @param bytes expected final size in bytes
+   * @throws IOException if the path is a directory or there is not enough free space
+   */
+  public void preallocate(String path, long bytes) throws IOException {
+    var file = resolvePath(path);
+    try {
+      Files.createFile(file);
+    } catch (FileAlreadyExistsException ignored) {
+      // Preallocating an existing file extends its reservation
+    }
+    ((BoxFileSystem) fileSystem).preallocate((BoxPath) file, bytes);
+  }
+
+  /**
+   * Turns compression on or off for a file or directory. A compressed file is stored in chunks of
+   * 64 KiB, each compressed on its own once it has been written in full, so a random read only
+   * decompresses the chunks it touches. Files and directories created in a compressed directory
+   * are compressed too.
+   *
+   * @param path       absolute path within the container
+   * @param compressed whether to compress
+   * @throws IOException if the path does not exist or is a file that already holds data
+   */
+  public void setCompressed(String path, boolean compressed) throws IOException {
+    ((BoxFileSystem) fileSystem).setCompressed((BoxPath) resolvePath(path), compressed);
+  }
+
+  /**
+   * Reports how much the compressed files in the container take up compared to their size.
+   *
+   * @return sizes of all compressed files, logical and stored
+   */
+  public CompressionReport compressionReport() {
+    return ((BoxFileSystem) fileSystem).compressionReport();
+  }
+
+  // ==================== Cache Operations ====================
+
+  /**
+   * Loads a file into the block cache and pins it there, so reads never touch the container.
+   * Requires the container to be opened with a "cacheSize" budget.
+   *
+   * @param path absolute path within the container
+   * @throws IOException if the file does not exist or does not fit in the cache
+   */
+  public void pin(String path) throws IOException {
+    ((BoxFileSystem) fileSystem).pinFile((BoxPath) resolvePath(path));
+  }
+
+  /**
+   * Releases a pin taken with {@link #pin(String)}.
+   *
+   * @param path absolute path within the container
+   * @throws IOException if the file does not exist
+   */
+  public void unpin(String path) throws IOException {
+    ((BoxFileSystem) fileSystem).unpinFile((BoxPath) resolvePath(path));
+  }
+
+  // ==================== Maintenance ====================
+
+  /**
+   * Starts defragmenting the container in the background, most fragmented files first. Each file is
+   * copied into a single free extent and switched over once the copy is complete; copying is limited
+   * to the "defragBytesPerSecond" budget the container was opened with. If a pass is already running,
+   * its result is returned instead of starting another.
+   *
+   * @return completes with the extent counts before and after the pass
+   */
+  public CompletableFuture<DefragReport> defragment() {
+    return ((BoxFileSystem) fileSystem).defragment();
+  }
+
+  /**
+   * Shrinks the container while it stays open. Data near the end of the container is moved into free
+   * space further forward and the container file is truncated behind it. At most
+   * {@code maxBytesMoved} bytes are copied per call, which bounds how long other operations wait;
+   * call repeatedly until the report says the compaction is complete. A container never grows, so
+   * keep enough free space for the data still to be written.
+   *
+   * @param maxBytesMoved   copy budget of this step; {@link Long#MAX_VALUE} compacts in one go
+   * @param freeBytesToKeep free space the container keeps after shrinking
+   * @return container sizes before and after the step
+   * @throws IOException if data cannot be moved or the container cannot be truncated
+   * @throws IllegalStateException if a defragmentation pass is running
+   */
+  public VacuumReport vacuum(long maxBytesMoved, long freeBytesToKeep) throws IOException {
+    return ((BoxFileSystem) fileSystem).vacuum(maxBytesMoved, freeBytesToKeep);
+  }
+
+  /**
+   * Shrinks a container that is not in use to the smallest size that holds its data plus
+   * {@code freeBytesToKeep}, in one pass.
+   *
+   * @param containerPath   path to the container file on the host filesystem
+   * @param freeBytesToKeep free space the container keeps after shrinking
+   * @return container sizes before and after compaction
+   * @throws IOException if the container cannot be opened or compacted
+   */
+  public static VacuumReport vacuum(Path containerPath, long freeBytesToKeep) throws IOException {
+    try (var fs = open(containerPath)) {
+      return fs.vacuum(Long.MAX_VALUE, freeBytesToKeep);
+    }
+  }
+
+  // ==================== Snapshots ====================
+
+  /**
+   * Takes a read-only snapshot of all files in the container. Only metadata is written; the snapshot
+   * shares data blocks with the live files, and a live file written afterwards gets new blocks for
+   * the parts written, so the snapshot keeps its contents. Blocks a snapshot refers to are not freed,
+   * and not moved by {@link #vacuum(long, long)}, until the snapshot is deleted.
+   *
+   * @param name unique name of the snapshot
+   * @return the new snapshot
+   * @throws IOException if the snapshot metadata cannot be written
+   * @throws IllegalArgumentException if the name is empty or already taken
+   */
+  public Snapshot createSnapshot(String name) throws IOException {
+    return ((BoxFileSystem) fileSystem).createSnapshot(name);
+  }
+
+  /**
+   * Lists the snapshots of the container.
+   *
+   * @return the snapshots ordered by name
+   */
+  public List<Snapshot> listSnapshots() {
+    return ((BoxFileSystem) fileSystem).listSnapshots();
+  }
+
+  /**
+   * Opens a snapshot read-only. The returned instance reads from this container and is closed
+   * along with it; any attempt to modify it throws {@link java.nio.file.ReadOnlyFileSystemException}.
+   *
+   * @param name name of the snapshot
+   * @return a read-only view of the snapshot
+   * @throws IOException if the snapshot metadata cannot be read
+   * @throws IllegalArgumentException if there is no snapshot with that name
+   */
+  public BoxFs openSnapshot(String name) throws IOException {
+    return new BoxFs(((BoxFileSystem) fileSystem).mountSnapshot(name));
+  }
+
+  /**
+   * Deletes a snapshot. Data blocks that neither a live file nor another snapshot refers to become
+   * free space.
+   *
+   * @param name name of the snapshot
+   * @throws IOException if the snapshot metadata cannot be read
+   * @throws IllegalArgumentException if there is no snapshot with that name
+   * @throws IllegalStateException if the snapshot is open
+   */
+  public void deleteSnapshot(String name) throws IOException {
+    ((BoxFileSystem) fileSystem).deleteSnapshot(name);
+  }
+
   // ==================== Lifecycle ====================
 
   /**
@@ -1,5 +1,6 @@
 package org.test.boxfs;
 
+import org.test.boxfs.internal.ExtentCursor;
 import org.test.boxfs.internal.Inode;
 
 import java.io.IOException;
@@ -19,6 +20,10 @@ import java.util.Set;
  * there is a brief window between the truncation and subsequent write operations where
  * concurrent readers may observe an empty file. This occurs because truncation and write
  * are separate operations, each acquiring and releasing the filesystem lock independently.
+ *
+ * <p>Writes are durable once {@link #force} returns. With {@link StandardOpenOption#SYNC} or
+ * {@link StandardOpenOption#DSYNC} every write and truncation forces before it returns. Concurrent
+ * forces, from any channels of the file system, share one container flush.
  */
 public class BoxSeekableByteChannel implements SeekableByteChannel {
 
@@ -26,7 +31,11 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
   private final boolean readable;
   private final boolean writable;
   private final boolean append;
+  private final boolean sync;
   private final Inode inode;
+  // Last extent touched, so sequential reads and writes find the next one without searching
+  private final ExtentCursor cursor = new ExtentCursor();
+  private final Readahead readahead;
   private long position;
   private volatile boolean open;
 
@@ -44,6 +53,7 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
     var createNew = options.contains(StandardOpenOption.CREATE_NEW);
     var truncateExisting = options.contains(StandardOpenOption.TRUNCATE_EXISTING);
     this.append = options.contains(StandardOpenOption.APPEND);
+    this.sync = options.contains(StandardOpenOption.SYNC) || options.contains(StandardOpenOption.DSYNC);
 
     if (write || append || truncateExisting) {
       write = true;
@@ -51,6 +61,9 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
 
     this.readable = read;
     this.writable = write;
+    if (writable) {
+      fileSystem.checkWritable();
+    }
 
     // Get or create the file
     var existingInode = fileSystem.resolvePathToInode(path1);
@@ -80,7 +93,12 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
 
     if (append) {
       this.position = inode.getSize();
+      fileSystem.beginAppend(inode);
     }
+
+    this.readahead = readable && fileSystem.getReadaheadMaxWindow() > 0
+      ? new Readahead(fileSystem, inode, cursor, fileSystem.getReadaheadMaxWindow(), fileSystem.getReadaheadCounters())
+      : null;
   }
 
   @Override
@@ -90,7 +108,9 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
       throw new NonWritableChannelException();
     }
 
-    var bytesRead = fileSystem.readFileData(inode, position, dst);
+    var bytesRead = readahead != null
+      ? readahead.read(position, dst)
+      : fileSystem.readFileData(inode, position, dst, cursor);
     if (bytesRead > 0) {
       position += bytesRead;
     }
@@ -108,8 +128,11 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
       position = inode.getSize();
     }
 
-    var bytesWritten = fileSystem.writeFileData(inode, position, src);
+    var bytesWritten = fileSystem.writeFileData(inode, position, src, cursor);
     position += bytesWritten;
+    if (sync) {
+      fileSystem.force();
+    }
     return bytesWritten;
   }
 
@@ -150,19 +173,49 @@ public class BoxSeekableByteChannel implements SeekableByteChannel {
     if (position > size) {
       position = size;
     }
+    if (sync) {
+      fileSystem.force();
+    }
 
     return this;
   }
 
+  /**
+   * Forces the data written to this file, and the metadata needed to find it, to disk. Data of other
+   * files written before the call is made durable with it. The block map and size are what locate
+   * the data, so {@code metaData} makes no difference: metadata changes are always committed.
+   */
+  public void force(boolean metaData) throws IOException {
+    checkOpen();
+    if (writable) {
+      fileSystem.force();
+    }
+  }
+
   @Override
   public boolean isOpen() {
     return open;
   }
 
   @Override
-  public void close() {
-    // Durability is only guaranteed after explicit FileSystem.close() or sync() call.
+  public void close() throws IOException {
+    // Durability is only guaranteed after force(), or FileSystem.close() or sync().
+    if (!open) {
+      return;
+    }
     open = false;
+    if (readahead != null) {
+      readahead.reset();
+    }
+    if (!writable || !fileSystem.isOpen()) {
+      return;
+    }
+    // The final size is known now, so delayed data can get its blocks in one piece
+    if (append) {
+      fileSystem.endAppend(inode);
+    } else {
+      fileSystem.flushDelayedWrite(inode);
+    }
   }
 
   private void checkOpen() throws IOException {
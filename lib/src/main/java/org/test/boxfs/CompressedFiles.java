@@ -0,0 +1,224 @@
+package org.test.boxfs;
+
+import org.test.boxfs.internal.ChunkCodec;
+import org.test.boxfs.internal.Extent;
+import org.test.boxfs.internal.ExtentCursor;
+import org.test.boxfs.internal.Inode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads and writes the data of compressed files in a {@link BoxFileSystem}.
+ * <p>
+ * A compressed file is divided into chunks of {@link #CHUNK_BYTES}, or one block if blocks are larger.
+ * A chunk that compresses into fewer blocks than it spans is stored compressed at its start, with a hole
+ * behind it, and its compressed length is kept in the inode's chunk map; any other chunk is stored as
+ * is. Callers hold the file's lock, and the blocks themselves are read, written and released through
+ * the file system.
+ */
+final class CompressedFiles {
+
+  static final int CHUNK_BYTES = 64 * 1024;
+
+  private final BoxFileSystem fileSystem;
+  private final int blockSize;
+  private final byte[] zeroBlock;
+
+  CompressedFiles(BoxFileSystem fileSystem, int blockSize) {
+    this.fileSystem = fileSystem;
+    this.blockSize = blockSize;
+    this.zeroBlock = new byte[blockSize];
+  }
+
+  /**
+   * Returns the blocks per chunk of a file compressed in a container with the given block size.
+   */
+  static int chunkBlocks(int blockSize) {
+    return Math.max(1, CHUNK_BYTES / blockSize);
+  }
+
+  /**
+   * Reads at most {@code maxLength} bytes of a file with compressed chunks, stopping at the end of its
+   * mapping. Chunks stored as they are are read like any other file data.
+   */
+  int read(Inode inode, long position, ByteBuffer dest, long maxLength, ExtentCursor cursor) throws IOException {
+    var chunkBytes = (long) inode.getChunkBlocks() * blockSize;
+    var mappedEnd = inode.getAllocatedBlocks() * blockSize;
+    var totalBytesRead = 0;
+    var currentPosition = position;
+    while (dest.hasRemaining() && totalBytesRead < maxLength && currentPosition < mappedEnd) {
+      var chunk = currentPosition / chunkBytes;
+      var offsetInChunk = (int) (currentPosition - chunk * chunkBytes);
+      var bytesToRead = (int) Math.min(Math.min(chunkBytes - offsetInChunk, dest.remaining()),
+        Math.min(maxLength - totalBytesRead, mappedEnd - currentPosition));
+      int bytesRead;
+      if (inode.getChunkLength(chunk) > 0) {
+        dest.put(decompressedChunk(inode, chunk, cursor), offsetInChunk, bytesToRead);
+        bytesRead = bytesToRead;
+      } else {
+        bytesRead = fileSystem.readStored(inode, currentPosition, dest, bytesToRead, cursor);
+      }
+      totalBytesRead += bytesRead;
+      currentPosition += bytesRead;
+      if (bytesRead < bytesToRead) {
+        break;
+      }
+    }
+    return totalBytesRead;
+  }
+
+  /**
+   * Returns the data of a compressed chunk, decompressing it unless the cursor kept it from the
+   * previous read.
+   */
+  private byte[] decompressedChunk(Inode inode, long chunk, ExtentCursor cursor) throws IOException {
+    var dataVersion = inode.getDataVersion();
+    var data = cursor.decompressedChunk(chunk, dataVersion);
+    if (data == null) {
+      data = decompressChunk(inode, chunk);
+      cursor.keepDecompressedChunk(chunk, dataVersion, data);
+    }
+    return data;
+  }
+
+  private byte[] decompressChunk(Inode inode, long chunk) throws IOException {
+    var chunkBytes = inode.getChunkBlocks() * blockSize;
+    var length = inode.getChunkLength(chunk);
+    var stored = ByteBuffer.allocate(length);
+    var cursor = new ExtentCursor();
+    while (stored.hasRemaining()) {
+      var position = chunk * chunkBytes + stored.position();
+      if (fileSystem.readStored(inode, position, stored, stored.remaining(), cursor) <= 0) {
+        throw new IOException("Compressed chunk " + chunk + " of inode " + inode.getId() + " is truncated");
+      }
+    }
+    var data = new byte[chunkBytes];
+    ChunkCodec.decompress(stored.array(), length, data);
+    return data;
+  }
+
+  /**
+   * Writes {@code length} bytes of {@code src} into a compressed file, chunk by chunk. A chunk written
+   * in full is compressed straight from {@code src}, and a compressed chunk written in part is
+   * decompressed, patched and compressed again. Other partial writes go to the blocks as they are;
+   * once such a chunk holds data up to its end, it is read back and compressed.
+   */
+  int write(Inode inode, long position, ByteBuffer src, int length, ExtentCursor cursor) throws IOException {
+    var chunkBytes = inode.getChunkBlocks() * blockSize;
+    var endPosition = position + length;
+    var totalBytesWritten = 0;
+    for (var chunk = position / chunkBytes; chunk * chunkBytes < endPosition; chunk++) {
+      var chunkStart = chunk * chunkBytes;
+      var from = Math.max(position, chunkStart);
+      var count = (int) (Math.min(endPosition, chunkStart + chunkBytes) - from);
+      if (count == chunkBytes || inode.getChunkLength(chunk) > 0) {
+        var data = count == chunkBytes ? new byte[chunkBytes] : decompressChunk(inode, chunk);
+        src.get(src.position(), data, (int) (from - chunkStart), count);
+        src.position(src.position() + count);
+        storeChunk(inode, chunk, data, false);
+      } else {
+        var written = fileSystem.writeBlocks(inode, from, src, count, cursor);
+        if (written < count) {
+          return totalBytesWritten + written;
+        }
+        var complete = chunkStart + chunkBytes <= Math.min(Math.max(inode.getSize(), endPosition),
+          inode.getAllocatedBlocks() * blockSize);
+        if (complete && inode.getChunkLength(chunk) == 0) {
+          var data = ByteBuffer.allocate(chunkBytes);
+          fileSystem.readStored(inode, chunkStart, data, chunkBytes, new ExtentCursor());
+          storeChunk(inode, chunk, data.array(), true);
+        }
+      }
+      totalBytesWritten += count;
+    }
+    return totalBytesWritten;
+  }
+
+  /**
+   * Stores the full data of a chunk of a compressed file. If it compresses into fewer blocks than the
+   * chunk has, the chunk's blocks are given up and the compressed data written to new ones, leaving a
+   * hole behind it. Otherwise the chunk is marked incompressible and written as is, unless
+   * {@code onDisk} says its blocks already hold the data. A chunk of zeros becomes a hole.
+   */
+  private void storeChunk(Inode inode, long chunk, byte[] data, boolean onDisk) throws IOException {
+    var chunkBlocks = inode.getChunkBlocks();
+    var firstBlock = chunk * chunkBlocks;
+    if (isZeros(data)) {
+      punchBlocks(inode, firstBlock, chunkBlocks);
+      inode.setChunkLength(chunk, 0);
+      return;
+    }
+    var compressed = ChunkCodec.compress(data, (chunkBlocks - 1) * blockSize);
+    if (compressed == null) {
+      var wasCompressed = inode.getChunkLength(chunk) > 0;
+      if (wasCompressed) {
+        punchBlocks(inode, firstBlock, chunkBlocks);
+      }
+      inode.setChunkLength(chunk, Inode.INCOMPRESSIBLE);
+      if (!onDisk || wasCompressed) {
+        fileSystem.writeBlocks(inode, firstBlock * blockSize, ByteBuffer.wrap(data), data.length,
+          new ExtentCursor());
+      }
+      return;
+    }
+    punchBlocks(inode, firstBlock, chunkBlocks);
+    fileSystem.writeBlocks(inode, firstBlock * blockSize, ByteBuffer.wrap(compressed), compressed.length,
+      new ExtentCursor());
+    inode.setChunkLength(chunk, compressed.length);
+  }
+
+  /**
+   * Turns {@code count} file blocks from {@code firstBlock} on into a hole, dropping a reference to
+   * the blocks they were mapped to.
+   */
+  private void punchBlocks(Inode inode, long firstBlock, int count) throws IOException {
+    var released = new ArrayList<Extent>();
+    var cursor = new ExtentCursor();
+    for (var block = firstBlock; block < firstBlock + count; ) {
+      var index = inode.findExtent(block, cursor);
+      var runEnd = Math.min(firstBlock + count, inode.getExtentStartBlock(index) + inode.getExtent(index).blockCount());
+      if (!inode.getExtent(index).isHole()) {
+        released.add(inode.remap(block, List.of(Extent.hole((int) (runEnd - block)))));
+      }
+      block = runEnd;
+    }
+    inode.markWritten(firstBlock, firstBlock + count);
+    if (!released.isEmpty()) {
+      fileSystem.releaseBlocks(released);
+      fileSystem.refreshPins(inode);
+    }
+  }
+
+  private boolean isZeros(byte[] data) {
+    for (var offset = 0; offset < data.length; offset += zeroBlock.length) {
+      var end = Math.min(data.length, offset + zeroBlock.length);
+      if (!Arrays.equals(data, offset, end, zeroBlock, 0, end - offset)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Cuts the chunk map of a compressed file at {@code newSize}. A compressed chunk that the new size
+   * ends inside is stored again as is, holding only the bytes that are kept.
+   */
+  void truncate(Inode inode, long newSize) throws IOException {
+    var chunkBytes = inode.getChunkBlocks() * blockSize;
+    var chunk = newSize / chunkBytes;
+    var kept = (int) (newSize - chunk * chunkBytes);
+    if (kept > 0 && inode.getChunkLength(chunk) > 0) {
+      var data = decompressChunk(inode, chunk);
+      punchBlocks(inode, chunk * inode.getChunkBlocks(), inode.getChunkBlocks());
+      inode.setChunkLength(chunk, 0);
+      fileSystem.writeBlocks(inode, chunk * chunkBytes, ByteBuffer.wrap(data, 0, kept), kept,
+        new ExtentCursor());
+    }
+    // The chunk the new size ends inside is left stored as is
+    inode.truncateChunks(chunk);
+  }
+}
@@ -0,0 +1,18 @@
+package org.test.boxfs;
+
+/**
+ * How much space compressed files take.
+ *
+ * @param files        compressed files in the container
+ * @param logicalBytes total size of those files
+ * @param storedBytes  bytes of container blocks and inline tails holding their data
+ */
+public record CompressionReport(long files, long logicalBytes, long storedBytes) {
+
+  /**
+   * Returns logical bytes per stored byte, or 1 if nothing is stored.
+   */
+  public double ratio() {
+    return storedBytes == 0 ? 1 : (double) logicalBytes / storedBytes;
+  }
+}
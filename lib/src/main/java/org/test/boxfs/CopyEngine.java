@@ -0,0 +1,136 @@
+package org.test.boxfs;
+
+import org.test.boxfs.internal.BufferPool;
+import org.test.boxfs.internal.Extent;
+import org.test.boxfs.internal.Inode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.CopyOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Copies a file's data into a new file, in the same or another container, without holding it all in
+ * memory or holding either file system's write lock while data moves.
+ * <p>
+ * The target is created with blocks for the source's data ranges and holes elsewhere, in one step
+ * under the target's write lock. The data then moves in chunks of at most {@link #CHUNK_BYTES} on
+ * the target's copy threads, each reading into a pooled buffer and writing it out, so reads of some
+ * chunks overlap writes of others and at most {@link #PARALLELISM} buffers are in use. Each chunk goes
+ * through the ordinary read and write paths, which take only the global read lock and the file's lock.
+ * A source written to during the copy may leave the copy with a mix of old and new data, as with any
+ * reader of a file that is being written.
+ */
+final class CopyEngine {
+
+  static final int CHUNK_BYTES = 1 << 20;
+  static final int PARALLELISM = 4;
+
+  private static final BufferPool BUFFERS = new BufferPool();
+
+  private CopyEngine() {
+  }
+
+  /**
+   * What a copy reads: the source file, its size, and the ranges of file blocks, of
+   * {@code blockSize} bytes, that hold data when the copy starts. The last partial block is never
+   * part of the ranges.
+   */
+  record Source(Inode inode, long size, int blockSize, List<Extent> dataRanges) {
+  }
+
+  static void copy(BoxFileSystem sourceFs, BoxPath source, BoxFileSystem targetFs, BoxPath target,
+                   CopyOption... options) throws IOException {
+    var from = sourceFs.openCopySource(source);
+    var to = targetFs.createCopyTarget(target, from, options);
+    var blockSize = from.blockSize();
+
+    var inFlight = new ArrayDeque<Future<?>>();
+    try {
+      for (var range : from.dataRanges()) {
+        var end = range.endBlock() * blockSize;
+        for (var position = range.startBlock() * blockSize; position < end; position += CHUNK_BYTES) {
+          if (inFlight.size() == PARALLELISM) {
+            await(inFlight.poll());
+          }
+          var chunkPosition = position;
+          var length = (int) Math.min(CHUNK_BYTES, end - position);
+          inFlight.add(CompletableFuture.runAsync(() -> {
+            try {
+              copyChunk(sourceFs, from.inode(), targetFs, to, chunkPosition, length);
+            } catch (IOException e) {
+              throw new CompletionException(e);
+            }
+          }, targetFs.copyExecutor()));
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        await(inFlight.poll());
+      }
+    } finally {
+      // After a failure, let the chunks already started finish before the error is reported
+      for (var pending : inFlight) {
+        try {
+          pending.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+          // The first failure is the one reported
+        }
+      }
+    }
+
+    var tailStart = from.size() / blockSize * blockSize;
+    if (tailStart < from.size()) {
+      copyChunk(sourceFs, from.inode(), targetFs, to, tailStart, (int) (from.size() - tailStart));
+    }
+    targetFs.flushDelayedWrite(to);
+  }
+
+  private static void copyChunk(BoxFileSystem sourceFs, Inode source, BoxFileSystem targetFs, Inode target,
+                                long position, int length) throws IOException {
+    var buffer = BUFFERS.acquire(length);
+    try {
+      while (buffer.hasRemaining()) {
+        if (sourceFs.readFileData(source, position + buffer.position(), buffer) < 0) {
+          // The source shrank meanwhile; the copy keeps zeros there
+          break;
+        }
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        targetFs.writeFileData(target, position + buffer.position(), buffer);
+      }
+    } finally {
+      BUFFERS.release(buffer);
+    }
+  }
+
+  private static void await(Future<?> chunk) throws IOException {
+    try {
+      chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Copy interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CompletionException wrapped && wrapped.getCause() != null) {
+        throwCause(wrapped.getCause());
+      }
+      throwCause(e.getCause());
+    }
+  }
+
+  private static void throwCause(Throwable cause) throws IOException {
+    switch (cause) {
+      case IOException io -> throw io;
+      case RuntimeException runtime -> throw runtime;
+      case Error error -> throw error;
+      default -> throw new IOException(cause);
+    }
+  }
+}
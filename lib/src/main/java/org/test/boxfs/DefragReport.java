@@ -0,0 +1,14 @@
+package org.test.boxfs;
+
+/**
+ * Outcome of a defragmentation pass.
+ *
+ * @param filesExamined     files that had more than one extent when the pass started
+ * @param filesDefragmented files moved into a single extent
+ * @param extentsBefore     extents of the examined files before the pass
+ * @param extentsAfter      extents of the examined files after the pass
+ * @param bytesMoved        bytes copied to new locations
+ */
+public record DefragReport(int filesExamined, int filesDefragmented, long extentsBefore, long extentsAfter,
+                           long bytesMoved) {
+}
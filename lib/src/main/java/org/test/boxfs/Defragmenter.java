@@ -0,0 +1,80 @@
+package org.test.boxfs;
+
+import org.test.boxfs.internal.Inode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One online defragmentation pass over a {@link BoxFileSystem}, run on a background thread.
+ * <p>
+ * Files are visited most fragmented first. Each one is copied chunk by chunk into a single free extent
+ * large enough for all its blocks and then switched over to it, or left alone if no such extent exists
+ * or the file changes while it is copied. Copying is paced so that it moves at most the configured
+ * number of bytes per second, leaving the container's bandwidth to foreground I/O.
+ */
+final class Defragmenter {
+
+  // Blocks copied per lock acquisition; foreground writes to the file wait at most this long
+  static final int CHUNK_BLOCKS = 256;
+
+  private final BoxFileSystem fileSystem;
+  private final long bytesPerSecond;
+  private long startNanos;
+  private long bytesMoved;
+
+  /**
+   * @param bytesPerSecond copy budget; 0 copies as fast as the container allows
+   */
+  Defragmenter(BoxFileSystem fileSystem, long bytesPerSecond) {
+    this.fileSystem = fileSystem;
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  DefragReport run() throws IOException {
+    startNanos = System.nanoTime();
+    var candidates = fileSystem.fragmentedFiles();
+    var filesDefragmented = 0;
+    var extentsBefore = 0L;
+    var extentsAfter = 0L;
+
+    for (var candidate : candidates) {
+      extentsBefore += candidate.extentCount();
+      if (fileSystem.isOpen() && fileSystem.relocateFile(candidate.inode(), this)) {
+        filesDefragmented++;
+        extentsAfter += 1;
+      } else {
+        extentsAfter += fileSystem.dataExtentCount(candidate.inode());
+      }
+    }
+    return new DefragReport(candidates.size(), filesDefragmented, extentsBefore, extentsAfter, bytesMoved);
+  }
+
+  /**
+   * Accounts for {@code bytes} just copied and sleeps until the pass is back within its budget.
+   * Called without any file system lock held.
+   */
+  void charge(long bytes) throws InterruptedIOException {
+    bytesMoved += bytes;
+    if (bytesPerSecond <= 0) {
+      return;
+    }
+    var dueNanos = startNanos + bytesMoved * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+    var waitNanos = dueNanos - System.nanoTime();
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Defragmentation interrupted");
+      }
+    }
+  }
+
+  /**
+   * A file chosen for defragmentation, with its extent count when it was chosen.
+   */
+  record Candidate(Inode inode, int extentCount) {
+  }
+}
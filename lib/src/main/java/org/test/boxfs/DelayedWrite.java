@@ -0,0 +1,97 @@
+package org.test.boxfs;
+
+import org.test.boxfs.internal.Inode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Data written past the last allocated block of a file, held in memory until blocks are assigned.
+ * <p>
+ * The buffer begins at the file's first unallocated byte, which is block aligned, and grows with the
+ * file. Bytes in gaps that were never written read as zeros. Blocks reserved for the data are
+ * tracked here so they can be released when it is allocated or dropped. Callers hold the file's lock.
+ */
+final class DelayedWrite {
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  private final Inode inode;
+  private final long start;
+  private byte[] data = new byte[0];
+  private int length;
+  private long reservedBlocks;
+
+  DelayedWrite(Inode inode, long start) {
+    this.inode = inode;
+    this.start = start;
+  }
+
+  Inode inode() {
+    return inode;
+  }
+
+  /**
+   * File position of the first buffered byte.
+   */
+  long start() {
+    return start;
+  }
+
+  int length() {
+    return length;
+  }
+
+  long reservedBlocks() {
+    return reservedBlocks;
+  }
+
+  void setReservedBlocks(long reservedBlocks) {
+    this.reservedBlocks = reservedBlocks;
+  }
+
+  /**
+   * Copies all remaining bytes of {@code src} to file position {@code position}.
+   */
+  int write(long position, ByteBuffer src) {
+    var offset = Math.toIntExact(position - start);
+    var n = src.remaining();
+    ensureCapacity(offset + n);
+    src.get(data, offset, n);
+    length = Math.max(length, offset + n);
+    return n;
+  }
+
+  /**
+   * Copies up to {@code maxLength} buffered bytes from file position {@code position} into {@code dest}.
+   */
+  int read(long position, ByteBuffer dest, int maxLength) {
+    var offset = (int) (position - start);
+    var n = Math.min(maxLength, length - offset);
+    if (n <= 0) {
+      return 0;
+    }
+    dest.put(data, offset, n);
+    return n;
+  }
+
+  /**
+   * Drops buffered bytes at and after file position {@code end}.
+   */
+  void truncate(long end) {
+    var newLength = (int) Math.max(0, end - start);
+    if (newLength < length) {
+      Arrays.fill(data, newLength, length, (byte) 0);
+      length = newLength;
+    }
+  }
+
+  ByteBuffer contents() {
+    return ByteBuffer.wrap(data, 0, length);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > data.length) {
+      data = Arrays.copyOf(data, Math.max(capacity, Math.max(INITIAL_CAPACITY, data.length * 2)));
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package org.test.boxfs;
+
+import org.test.boxfs.internal.Extent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects extents freed in a {@link BoxFileSystem} and has them punched out of the container file on a
+ * background thread, so the operation that freed them does not wait for the host file system.
+ * <p>
+ * Freed extents are held until {@link #persisted} reports that metadata recording them as free is on
+ * disk; punched earlier, a crash could leave the last persisted metadata referring to zeroed blocks.
+ * A batch is taken a short while after that; neighbouring extents freed in the meantime are merged
+ * into one range, so a bulk delete turns into a few large punches.
+ */
+final class Discarder {
+
+  static final long BATCH_DELAY_MILLIS = 100;
+
+  private final BoxFileSystem fileSystem;
+  private final ScheduledExecutorService executor;
+  // Freed, but still in use by the metadata on disk
+  private List<Extent> freed = new ArrayList<>();
+  private List<Extent> pending = new ArrayList<>();
+  private boolean scheduled;
+  private boolean closed;
+
+  Discarder(BoxFileSystem fileSystem) {
+    this.fileSystem = fileSystem;
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().daemon().name("boxfs-discard").factory());
+  }
+
+  synchronized void queue(List<Extent> extents) {
+    if (closed || extents.isEmpty()) {
+      return;
+    }
+    freed.addAll(extents);
+  }
+
+  /**
+   * Called once the metadata that frees the extents queued so far is on disk; schedules them to be discarded.
+   */
+  synchronized void persisted() {
+    if (closed || freed.isEmpty()) {
+      return;
+    }
+    pending.addAll(freed);
+    freed = new ArrayList<>();
+    if (!scheduled) {
+      scheduled = true;
+      executor.schedule(this::flush, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Discards everything scheduled so far.
+   */
+  void flush() {
+    List<Extent> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new ArrayList<>();
+      scheduled = false;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      fileSystem.discardFree(coalesce(batch));
+    } catch (IOException e) {
+      // Discarding is best effort; the blocks just keep their space in the host file
+    }
+  }
+
+  /**
+   * Discards what is still scheduled and stops the background thread. Extents not yet persisted as free,
+   * and later frees, are left to be discarded when the container is next opened.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    executor.shutdownNow();
+    flush();
+  }
+
+  /**
+   * Sorts extents by start block and merges the ones that touch.
+   */
+  static List<Extent> coalesce(List<Extent> extents) {
+    var sorted = new ArrayList<>(extents);
+    sorted.sort(Comparator.comparingLong(Extent::startBlock));
+    var merged = new ArrayList<Extent>();
+    for (var extent : sorted) {
+      var last = merged.isEmpty() ? null : merged.getLast();
+      if (last != null && last.endBlock() >= extent.startBlock()
+        && Math.max(last.endBlock(), extent.endBlock()) - last.startBlock() <= Integer.MAX_VALUE) {
+        var end = Math.max(last.endBlock(), extent.endBlock());
+        merged.set(merged.size() - 1, new Extent(last.startBlock(), (int) (end - last.startBlock())));
+      } else {
+        merged.add(extent);
+      }
+    }
+    return merged;
+  }
+}
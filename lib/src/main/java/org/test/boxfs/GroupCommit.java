@@ -0,0 +1,101 @@
+package org.test.boxfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Makes writes durable for many callers at once. Each caller that needs its writes on disk takes a
+ * ticket and waits; if no commit is running it becomes the leader and commits for itself and every
+ * caller that took a ticket before the commit started. Callers arriving while a commit runs wait for
+ * it to end, and one of them then leads the next commit for all of them, so concurrent writers share
+ * each container flush instead of queueing for one each.
+ * <p>
+ * A failed commit is reported to every caller it covered; the next caller leads a new one.
+ */
+final class GroupCommit {
+
+  /**
+   * The work of one commit: everything written before it starts must be on disk when it returns.
+   */
+  interface Committer {
+    void commit() throws IOException;
+  }
+
+  private final Committer committer;
+  private long issued;
+  private long durable;
+  private long failedThrough;
+  private IOException failure;
+  private boolean leading;
+  private long commits;
+
+  GroupCommit(Committer committer) {
+    this.committer = committer;
+  }
+
+  /**
+   * Returns once everything the caller wrote before calling is durable.
+   */
+  void await() throws IOException {
+    long ticket;
+    long covered;
+    synchronized (this) {
+      ticket = ++issued;
+      while (true) {
+        if (durable >= ticket) {
+          return;
+        }
+        if (failedThrough >= ticket) {
+          throw new IOException("Commit failed", failure);
+        }
+        if (!leading) {
+          break;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for commit");
+        }
+      }
+      leading = true;
+      // Everyone with a ticket so far wrote before this commit starts
+      covered = issued;
+    }
+
+    var committed = false;
+    try {
+      committer.commit();
+      committed = true;
+    } catch (IOException e) {
+      synchronized (this) {
+        failedThrough = covered;
+        failure = e;
+      }
+      throw e;
+    } finally {
+      synchronized (this) {
+        leading = false;
+        commits++;
+        if (committed) {
+          durable = covered;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of callers that asked for durability so far.
+   */
+  synchronized long getRequests() {
+    return issued;
+  }
+
+  /**
+   * Returns the number of commits led so far, failed ones included.
+   */
+  synchronized long getCommits() {
+    return commits;
+  }
+}
@@ -0,0 +1,226 @@
+package org.test.boxfs;
+
+import org.test.boxfs.internal.ExtentCursor;
+import org.test.boxfs.internal.Inode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive sequential readahead for one {@link BoxSeekableByteChannel}.
+ * <p>
+ * Once consecutive reads continue where the previous one ended, the next window of the file is
+ * fetched in the background while the caller consumes the current one. Each window issued while
+ * access stays sequential doubles in size, from {@link #MIN_WINDOW} up to the configured maximum.
+ * A read anywhere else drops the prefetched data and closes the window again.
+ * <p>
+ * Prefetched data is tagged with the inode's data version and discarded if the file changes.
+ */
+class Readahead {
+
+  static final int MIN_WINDOW = 128 * 1024;
+  // Reads continuing the previous one before the first window is issued
+  private static final int SEQUENTIAL_TRIGGER = 2;
+
+  /**
+   * Snapshot of readahead counters, summed over all channels of a file system.
+   *
+   * @param fetches      background reads issued
+   * @param fetchedBytes bytes read ahead
+   * @param hitBytes     bytes served to callers from read-ahead data
+   * @param wastedBytes  bytes read ahead but discarded unused
+   */
+  record Stats(long fetches, long fetchedBytes, long hitBytes, long wastedBytes) {
+  }
+
+  static final class Counters {
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder fetchedBytes = new LongAdder();
+    private final LongAdder hitBytes = new LongAdder();
+    private final LongAdder wastedBytes = new LongAdder();
+
+    Stats snapshot() {
+      return new Stats(fetches.sum(), fetchedBytes.sum(), hitBytes.sum(), wastedBytes.sum());
+    }
+  }
+
+  private final BoxFileSystem fileSystem;
+  private final Inode inode;
+  private final int maxWindow;
+  private final Counters counters;
+  private final ExtentCursor cursor;
+  private long expectedPosition = -1;
+  private int sequentialReads;
+  private int window;
+  // Prefetched data being consumed; position marks the bytes already served
+  private Chunk current;
+  private Future<Chunk> pending;
+  private ByteBuffer spare;
+
+  Readahead(BoxFileSystem fileSystem, Inode inode, ExtentCursor cursor, int maxWindow, Counters counters) {
+    this.fileSystem = fileSystem;
+    this.inode = inode;
+    this.cursor = cursor;
+    this.maxWindow = Math.max(maxWindow, MIN_WINDOW);
+    this.counters = counters;
+  }
+
+  /**
+   * Reads at {@code position} into {@code dest}, serving what it can from read-ahead data.
+   * Same contract as {@link BoxFileSystem#readFileData}.
+   */
+  synchronized int read(long position, ByteBuffer dest) throws IOException {
+    if (position == expectedPosition) {
+      sequentialReads++;
+    } else {
+      reset();
+    }
+
+    var total = serve(position, dest);
+    if (dest.hasRemaining()) {
+      var n = fileSystem.readFileData(inode, position + total, dest, cursor);
+      if (n > 0) {
+        total += n;
+      }
+    }
+    if (total == 0) {
+      expectedPosition = -1;
+      return -1;
+    }
+
+    expectedPosition = position + total;
+    if (sequentialReads >= SEQUENTIAL_TRIGGER) {
+      readAhead();
+    }
+    return total;
+  }
+
+  /**
+   * Drops all read-ahead state, e.g. when the channel is closed.
+   */
+  synchronized void reset() {
+    sequentialReads = 0;
+    window = 0;
+    discard(current);
+    current = null;
+    if (pending != null) {
+      pending.cancel(false);
+      if (pending.isDone() && !pending.isCancelled()) {
+        discard(await(pending));
+      }
+      pending = null;
+    }
+  }
+
+  private int serve(long position, ByteBuffer dest) {
+    var served = 0;
+    while (dest.hasRemaining()) {
+      var offset = position + served;
+      if (current == null || !current.covers(offset)) {
+        discard(current);
+        current = null;
+        if (pending == null) {
+          break;
+        }
+        current = await(pending);
+        pending = null;
+        if (current == null) {
+          break;
+        }
+        continue;
+      }
+      if (current.version != inode.getDataVersion()) {
+        discard(current);
+        current = null;
+        continue;
+      }
+
+      var data = current.data;
+      var from = (int) (offset - current.start);
+      data.position(from);
+      var n = Math.min(dest.remaining(), data.remaining());
+      dest.put(dest.position(), data, from, n);
+      dest.position(dest.position() + n);
+      data.position(from + n);
+      served += n;
+      counters.hitBytes.add(n);
+    }
+    return served;
+  }
+
+  /**
+   * Issues the next background read once less than half of the current window is left unread.
+   */
+  private void readAhead() {
+    if (pending != null) {
+      return;
+    }
+    var start = current != null ? current.end() : expectedPosition;
+    if (current != null && current.end() - expectedPosition > window / 2) {
+      return;
+    }
+    if (start >= inode.getSize()) {
+      return;
+    }
+
+    window = window == 0 ? MIN_WINDOW : Math.min(window * 2, maxWindow);
+    var buffer = spare != null && spare.capacity() >= window ? spare : ByteBuffer.allocateDirect(window);
+    spare = null;
+    buffer.clear().limit(window);
+
+    var version = inode.getDataVersion();
+    try {
+      pending = fileSystem.readaheadExecutor().submit(() -> fetch(start, buffer, version));
+      counters.fetches.increment();
+    } catch (RejectedExecutionException e) {
+      // File system is closing
+      spare = buffer;
+    }
+  }
+
+  private Chunk fetch(long start, ByteBuffer buffer, long version) throws IOException {
+    // The version is taken before reading, so a concurrent write can only make the data look stale
+    var n = fileSystem.readFileData(inode, start, buffer, new ExtentCursor());
+    buffer.flip();
+    if (n <= 0) {
+      return null;
+    }
+    counters.fetchedBytes.add(n);
+    return new Chunk(start, buffer, version);
+  }
+
+  private Chunk await(Future<Chunk> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | CancellationException e) {
+      // A failed prefetch falls back to a direct read
+      return null;
+    }
+  }
+
+  private void discard(Chunk chunk) {
+    if (chunk == null) {
+      return;
+    }
+    counters.wastedBytes.add(chunk.data.remaining());
+    spare = chunk.data;
+  }
+
+  private record Chunk(long start, ByteBuffer data, long version) {
+    long end() {
+      return start + data.limit();
+    }
+
+    boolean covers(long position) {
+      return position >= start && position < end();
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package org.test.boxfs;
+
+import java.time.Instant;
+
+/**
+ * A named, read-only snapshot of a container's files.
+ *
+ * @param name         unique name of the snapshot
+ * @param creationTime when the snapshot was taken
+ */
+public record Snapshot(String name, Instant creationTime) {
+}
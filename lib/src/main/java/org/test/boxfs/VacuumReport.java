@@ -0,0 +1,12 @@
+package org.test.boxfs;
+
+/**
+ * Outcome of a container compaction step.
+ *
+ * @param blocksBefore container size in blocks before the step
+ * @param blocksAfter  container size in blocks after the step
+ * @param bytesMoved   file data copied to new locations
+ * @param complete     true if the container cannot be shrunk any further
+ */
+public record VacuumReport(long blocksBefore, long blocksAfter, long bytesMoved, boolean complete) {
+}
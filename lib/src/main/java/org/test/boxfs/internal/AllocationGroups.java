@@ -0,0 +1,282 @@
+package org.test.boxfs.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+/**
+ * Free extent list split into allocation groups that can be used in parallel.
+ * <p>
+ * The block space is divided into equal, consecutive groups, each tracked by its own
+ * {@link SpaceManager} and guarded by that manager's lock. An allocation goes to the group holding
+ * its goal block, or to the calling thread's group when it has no goal, so independent writers
+ * mostly touch different groups. When the preferred group cannot satisfy a request, space is taken
+ * from the group with the most free blocks, and as a last resort spread over several groups.
+ * <p>
+ * Groups are not persisted: the free extent list is split at group boundaries when loaded and
+ * merged again when saved, so the group count can change between opens.
+ */
+public class AllocationGroups implements BlockAllocator {
+
+    // Smaller groups would mostly split files without adding useful parallelism
+    static final long MIN_GROUP_BLOCKS = 1024;
+
+    private final long totalBlocks;
+    private final long groupBlocks;
+    private final SpaceManager[] groups;
+
+    public AllocationGroups(long totalBlocks, int requestedGroups) {
+        var maxGroups = Math.max(1, totalBlocks / MIN_GROUP_BLOCKS);
+        // Every group must be addressable by a single extent
+        var minGroups = (totalBlocks + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE;
+        var groupCount = (int) Math.max(minGroups, Math.clamp(requestedGroups, 1, maxGroups));
+
+        this.totalBlocks = totalBlocks;
+        this.groupBlocks = (totalBlocks + groupCount - 1) / groupCount;
+        this.groups = new SpaceManager[groupCount];
+        for (var i = 0; i < groupCount; i++) {
+            groups[i] = new SpaceManager(totalBlocks);
+        }
+    }
+
+    public int getGroupCount() {
+        return groups.length;
+    }
+
+    @Override
+    public void initializeNew(int reservedBlocks) {
+        for (var i = 0; i < groups.length; i++) {
+            var start = Math.max(groupStart(i), reservedBlocks);
+            var end = groupStart(i + 1);
+            groups[i].setFreeExtents(start < end ? List.of(new Extent(start, (int) (end - start))) : List.of());
+        }
+    }
+
+    /**
+     * Sets the free extent list (used during deserialization), splitting extents at group boundaries.
+     */
+    @Override
+    public void setFreeExtents(List<Extent> extents) {
+        var perGroup = new ArrayList<List<Extent>>();
+        for (var i = 0; i < groups.length; i++) {
+            perGroup.add(new ArrayList<>());
+        }
+        for (var extent : extents) {
+            forEachGroupPart(extent, (group, part) -> perGroup.get(group).add(part));
+        }
+        for (var i = 0; i < groups.length; i++) {
+            groups[i].setFreeExtents(perGroup.get(i));
+        }
+    }
+
+    /**
+     * Returns the free extent list ordered by start block, with runs crossing a group boundary merged.
+     */
+    @Override
+    public List<Extent> getFreeExtents() {
+        var merged = new ArrayList<Extent>();
+        for (var group : groups) {
+            for (var extent : group.getFreeExtents()) {
+                var last = merged.isEmpty() ? null : merged.getLast();
+                if (last != null && last.endBlock() == extent.startBlock()
+                        && (long) last.blockCount() + extent.blockCount() <= Integer.MAX_VALUE) {
+                    merged.set(merged.size() - 1, new Extent(last.startBlock(), last.blockCount() + extent.blockCount()));
+                } else {
+                    merged.add(extent);
+                }
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public Optional<Extent> allocate(int blockCount) {
+        return allocate(blockCount, -1);
+    }
+
+    /**
+     * Allocates a contiguous range, trying the goal block's group first and then the others in turn.
+     */
+    @Override
+    public Optional<Extent> allocate(int blockCount, long goalBlock) {
+        var preferred = preferredGroup(goalBlock);
+        for (var i = 0; i < groups.length; i++) {
+            var group = groups[(preferred + i) % groups.length];
+            var extent = i == 0 ? group.allocate(blockCount, goalBlock) : group.allocate(blockCount);
+            if (extent.isPresent()) {
+                return extent;
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Extent> allocateMultiple(int blockCount) {
+        return allocateMultiple(blockCount, -1);
+    }
+
+    /**
+     * Allocates from the goal block's group if it has room, otherwise steals from the group with the
+     * most free space, and spreads the request over several groups only when no single one can hold it.
+     */
+    @Override
+    public List<Extent> allocateMultiple(int blockCount, long goalBlock) {
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("blockCount must be positive");
+        }
+
+        var allocated = groups[preferredGroup(goalBlock)].allocateMultiple(blockCount, goalBlock);
+        if (!allocated.isEmpty()) {
+            return allocated;
+        }
+
+        // Free counts are sampled once; other threads may change them while sorting
+        var freeBlocks = new long[groups.length];
+        for (var i = 0; i < groups.length; i++) {
+            freeBlocks[i] = groups[i].getTotalFreeBlocks();
+        }
+        var byFreeSpace = IntStream.range(0, groups.length).boxed()
+                .sorted(Comparator.comparingLong((Integer i) -> freeBlocks[i]).reversed())
+                .map(i -> groups[i])
+                .toList();
+        allocated = byFreeSpace.getFirst().allocateMultiple(blockCount);
+        if (!allocated.isEmpty()) {
+            return allocated;
+        }
+
+        var parts = new ArrayList<Extent>();
+        var remaining = blockCount;
+        for (var group : byFreeSpace) {
+            var take = (int) Math.min(remaining, group.getTotalFreeBlocks());
+            if (take > 0) {
+                var part = group.allocateMultiple(take);
+                parts.addAll(part);
+                remaining -= part.stream().mapToInt(Extent::blockCount).sum();
+            }
+            if (remaining == 0) {
+                return parts;
+            }
+        }
+        // Other threads took the space meanwhile, or it was never there
+        freeAll(parts);
+        return List.of();
+    }
+
+    @Override
+    public void free(Extent extent) {
+        forEachGroupPart(extent, (group, part) -> groups[group].free(part));
+    }
+
+    @Override
+    public List<Extent> takeChangedRanges() {
+        var ranges = new ArrayList<Extent>();
+        for (var group : groups) {
+            ranges.addAll(group.takeChangedRanges());
+        }
+        return ranges;
+    }
+
+    @Override
+    public void markChanged(Extent range) {
+        forEachGroupPart(range, (group, part) -> groups[group].markChanged(part));
+    }
+
+    @Override
+    public List<Extent> getFreeExtents(Extent range) {
+        var free = new ArrayList<Extent>();
+        forEachGroupPart(range, (group, part) -> free.addAll(groups[group].getFreeExtents(part)));
+        return free;
+    }
+
+    /**
+     * Replaces the free space within {@code range}, which may cross group boundaries when it was logged
+     * with another group count.
+     */
+    @Override
+    public void replaceFreeExtents(Extent range, List<Extent> extents) {
+        forEachGroupPart(range, (group, part) -> {
+            var inPart = new ArrayList<Extent>();
+            for (var extent : extents) {
+                var start = Math.max(extent.startBlock(), part.startBlock());
+                var end = Math.min(extent.endBlock(), part.endBlock());
+                if (start < end) {
+                    inPart.add(new Extent(start, (int) (end - start)));
+                }
+            }
+            groups[group].replaceFreeExtents(part, inPart);
+        });
+    }
+
+    @Override
+    public long getTotalFreeBlocks() {
+        var free = 0L;
+        for (var group : groups) {
+            free += group.getTotalFreeBlocks();
+        }
+        return free;
+    }
+
+    /**
+     * Returns the largest free run within a single group, which is the largest contiguous allocation possible.
+     */
+    @Override
+    public int getLargestFreeExtent() {
+        var largest = 0;
+        for (var group : groups) {
+            largest = Math.max(largest, group.getLargestFreeExtent());
+        }
+        return largest;
+    }
+
+    @Override
+    public boolean areFree(long startBlock, int blockCount) {
+        if (startBlock < 0 || startBlock + blockCount > totalBlocks) {
+            return false;
+        }
+        var free = new boolean[] {true};
+        forEachGroupPart(new Extent(startBlock, blockCount),
+                (group, part) -> free[0] &= groups[group].areFree(part.startBlock(), part.blockCount()));
+        return free[0];
+    }
+
+    @Override
+    public long getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    private int preferredGroup(long goalBlock) {
+        if (goalBlock >= 0 && goalBlock < totalBlocks) {
+            return groupOf(goalBlock);
+        }
+        return (int) Math.floorMod(Thread.currentThread().threadId(), (long) groups.length);
+    }
+
+    private int groupOf(long block) {
+        return (int) (block / groupBlocks);
+    }
+
+    private long groupStart(int group) {
+        return Math.min((long) group * groupBlocks, totalBlocks);
+    }
+
+    private void forEachGroupPart(Extent extent, GroupPartConsumer consumer) {
+        var start = extent.startBlock();
+        var end = extent.endBlock();
+        if (start < 0 || end > totalBlocks) {
+            throw new IllegalArgumentException("Extent outside the container: " + extent);
+        }
+        while (start < end) {
+            var group = groupOf(start);
+            var partEnd = Math.min(end, groupStart(group + 1));
+            consumer.accept(group, new Extent(start, (int) (partEnd - start)));
+            start = partEnd;
+        }
+    }
+
+    @FunctionalInterface
+    private interface GroupPartConsumer {
+        void accept(int group, Extent part);
+    }
+}
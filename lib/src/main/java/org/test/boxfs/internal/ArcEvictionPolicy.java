@@ -0,0 +1,103 @@
+package org.test.boxfs.internal;
+
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Adaptive Replacement Cache (ARC) eviction.
+ * <p>
+ * Resident frames are split into a "recent" list (seen once) and a "frequent" list (seen at least twice).
+ * Ghost lists remember the block numbers recently evicted from each list; a miss that hits a ghost list
+ * shifts the target size of the recent list towards the side that would have kept the block.
+ * This keeps one-off scans from flushing the frequently used working set.
+ */
+class ArcEvictionPolicy implements EvictionPolicy {
+
+  private final int capacity;
+  private final FrameList recent;
+  private final FrameList frequent;
+  private final LinkedHashSet<Long> recentGhosts = new LinkedHashSet<>();
+  private final LinkedHashSet<Long> frequentGhosts = new LinkedHashSet<>();
+  private int recentTarget;
+  private boolean insertAsFrequent;
+  private boolean missInFrequentGhost;
+
+  ArcEvictionPolicy(int capacity) {
+    this.capacity = capacity;
+    this.recent = new FrameList(capacity);
+    this.frequent = new FrameList(capacity);
+  }
+
+  @Override
+  public void onHit(int frame) {
+    recent.remove(frame);
+    frequent.pushFront(frame);
+  }
+
+  @Override
+  public void onMiss(long block) {
+    missInFrequentGhost = false;
+    insertAsFrequent = false;
+
+    if (recentGhosts.contains(block)) {
+      var delta = recentGhosts.size() >= frequentGhosts.size() ? 1 : frequentGhosts.size() / recentGhosts.size();
+      recentTarget = Math.min(capacity, recentTarget + delta);
+      recentGhosts.remove(block);
+      insertAsFrequent = true;
+    } else if (frequentGhosts.contains(block)) {
+      var delta = frequentGhosts.size() >= recentGhosts.size() ? 1 : recentGhosts.size() / frequentGhosts.size();
+      recentTarget = Math.max(0, recentTarget - delta);
+      frequentGhosts.remove(block);
+      insertAsFrequent = true;
+      missInFrequentGhost = true;
+    }
+  }
+
+  @Override
+  public void onInsert(int frame, long block) {
+    (insertAsFrequent ? frequent : recent).pushFront(frame);
+    insertAsFrequent = false;
+  }
+
+  @Override
+  public void onEvict(int frame, long block) {
+    if (recent.contains(frame)) {
+      recent.remove(frame);
+      recentGhosts.add(block);
+    } else if (frequent.contains(frame)) {
+      frequent.remove(frame);
+      frequentGhosts.add(block);
+    }
+    trimGhosts();
+  }
+
+  @Override
+  public int selectVictim(IntPredicate evictable) {
+    var preferRecent = recent.size() > 0
+      && (recent.size() > recentTarget || (missInFrequentGhost && recent.size() == recentTarget));
+
+    var victim = preferRecent ? recent.findFromBack(evictable) : frequent.findFromBack(evictable);
+    if (victim < 0) {
+      victim = preferRecent ? frequent.findFromBack(evictable) : recent.findFromBack(evictable);
+    }
+    return victim;
+  }
+
+  /**
+   * Keeps the directory bounded: recent side at most c entries, everything at most 2c.
+   */
+  private void trimGhosts() {
+    while (!recentGhosts.isEmpty() && recent.size() + recentGhosts.size() > capacity) {
+      removeOldest(recentGhosts);
+    }
+    while (recent.size() + frequent.size() + recentGhosts.size() + frequentGhosts.size() > 2 * capacity) {
+      removeOldest(frequentGhosts.isEmpty() ? recentGhosts : frequentGhosts);
+    }
+  }
+
+  private static void removeOldest(LinkedHashSet<Long> ghosts) {
+    var iterator = ghosts.iterator();
+    iterator.next();
+    iterator.remove();
+  }
+}
@@ -0,0 +1,489 @@
+package org.test.boxfs.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Free-space bitmap with a summary tree for contiguous-run search.
+ * <p>
+ * One bit per block (set = allocated), grouped into chunks of {@link #CHUNK_BLOCKS} blocks. A segment
+ * tree over the chunks keeps, for every node, the free run at its start, the free run at its end and
+ * the longest free run inside it. First-fit search for a run of any length, and updates after an
+ * allocation or free, are O(log chunks) plus a scan of one chunk.
+ * <p>
+ * On disk the bitmap lives in its own block range, recorded in the superblock; each block holds one
+ * page of the bitmap. Changes mark their pages dirty, so persisting costs one write per dirty page
+ * regardless of how fragmented free space is.
+ * <p>
+ * Pages are written in place, so a freed block is written as allocated until {@link #freesPersisted}
+ * reports that metadata no longer referring to it is on disk; otherwise a crash could leave the last
+ * persisted metadata using blocks the bitmap on disk hands out again.
+ */
+public class BitmapAllocator implements BlockAllocator {
+
+    static final int CHUNK_WORDS = 64;
+    static final int CHUNK_BLOCKS = CHUNK_WORDS * Long.SIZE;
+    // The bitmap is placed right after reserved block 0
+    private static final long BITMAP_START_BLOCK = 1;
+
+    /**
+     * Receives runs of dirty bitmap pages to persist.
+     */
+    @FunctionalInterface
+    public interface PageWriter {
+        void write(int firstPage, byte[] pages) throws IOException;
+    }
+
+    private final long totalBlocks;
+    private final int pageBytes;
+    private final long[] words;
+    private final int leafCount;
+    // Segment tree over chunks, 1-based; leaves start at leafCount
+    private final long[] prefixFree;
+    private final long[] suffixFree;
+    private final long[] longestFree;
+    private final BitSet dirtyPages = new BitSet();
+    // Blocks freed since the metadata was last on disk: start block -> end block, merged when they touch
+    private final TreeMap<Long, Long> unpersistedFrees = new TreeMap<>();
+    private long freeBlocks;
+
+    public BitmapAllocator(long totalBlocks, int blockSize) {
+        var chunkCount = (int) ((totalBlocks + CHUNK_BLOCKS - 1) / CHUNK_BLOCKS);
+        this.totalBlocks = totalBlocks;
+        this.pageBytes = blockSize;
+        this.words = new long[chunkCount * CHUNK_WORDS];
+        this.leafCount = Integer.highestOneBit(Math.max(1, chunkCount - 1)) << 1;
+        this.prefixFree = new long[leafCount * 2];
+        this.suffixFree = new long[leafCount * 2];
+        this.longestFree = new long[leafCount * 2];
+        markAllAllocated();
+    }
+
+    /**
+     * Returns where a new container keeps its bitmap: one block per page, after reserved block 0.
+     */
+    public static Extent layoutFor(int blockSize, long totalBlocks) {
+        var blocksPerPage = (long) blockSize * Byte.SIZE;
+        var pages = (totalBlocks + blocksPerPage - 1) / blocksPerPage;
+        return new Extent(BITMAP_START_BLOCK, Math.toIntExact(pages));
+    }
+
+    public synchronized int getPageCount() {
+        return (int) ((totalBlocks + (long) pageBytes * Byte.SIZE - 1) / ((long) pageBytes * Byte.SIZE));
+    }
+
+    @Override
+    public synchronized void initializeNew(int reservedBlocks) {
+        markAllAllocated();
+        if (reservedBlocks < totalBlocks) {
+            setRange(reservedBlocks, totalBlocks - reservedBlocks, false);
+        }
+        rebuildTree();
+        freeBlocks = totalBlocks - Math.min(reservedBlocks, totalBlocks);
+        dirtyPages.set(0, getPageCount());
+        unpersistedFrees.clear();
+    }
+
+    /**
+     * Loads the bitmap from its on-disk pages, concatenated.
+     */
+    public synchronized void load(byte[] pages) {
+        var bitmapBytes = (int) Math.min(pages.length, (long) words.length * Long.BYTES);
+        ByteBuffer.wrap(pages, 0, bitmapBytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer()
+                .get(words, 0, bitmapBytes / Long.BYTES);
+        // Bits past the last block never describe real blocks
+        if (totalBlocks < (long) words.length * Long.SIZE) {
+            setRange(totalBlocks, (long) words.length * Long.SIZE - totalBlocks, true);
+        }
+        rebuildTree();
+
+        var allocated = 0L;
+        for (var word : words) {
+            allocated += Long.bitCount(word);
+        }
+        freeBlocks = (long) words.length * Long.SIZE - allocated;
+        dirtyPages.clear();
+        unpersistedFrees.clear();
+    }
+
+    /**
+     * Replaces the bitmap contents; every page becomes dirty.
+     */
+    @Override
+    public synchronized void setFreeExtents(List<Extent> extents) {
+        markAllAllocated();
+        for (var extent : extents) {
+            if (extent.endBlock() > totalBlocks) {
+                throw new IllegalArgumentException("Extent outside container: " + extent);
+            }
+            setRange(extent.startBlock(), extent.blockCount(), false);
+            freeBlocks += extent.blockCount();
+        }
+        rebuildTree();
+        dirtyPages.set(0, getPageCount());
+        unpersistedFrees.clear();
+    }
+
+    /**
+     * Returns the free runs ordered by start block, found by scanning the bitmap; whole words that are
+     * fully allocated or fully free are skipped in one step.
+     */
+    @Override
+    public synchronized List<Extent> getFreeExtents() {
+        var extents = new ArrayList<Extent>();
+        var runStart = -1L;
+        for (var block = 0L; block < totalBlocks; block++) {
+            if ((block & 63) == 0 && block + 64 <= totalBlocks) {
+                var word = words[(int) (block >>> 6)];
+                if (runStart < 0 ? word == -1L : word == 0) {
+                    block += 63;
+                    continue;
+                }
+            }
+            var free = !isAllocated(block);
+            if (free && runStart < 0) {
+                runStart = block;
+            } else if (!free && runStart >= 0) {
+                addRun(extents, runStart, block);
+                runStart = -1;
+            }
+        }
+        if (runStart >= 0) {
+            addRun(extents, runStart, totalBlocks);
+        }
+        return extents;
+    }
+
+    private static void addRun(List<Extent> extents, long start, long end) {
+        for (var block = start; block < end; block += Integer.MAX_VALUE) {
+            extents.add(new Extent(block, (int) Math.min(Integer.MAX_VALUE, end - block)));
+        }
+    }
+
+    /**
+     * Called once metadata that no longer refers to the blocks freed so far is on disk; the pages that
+     * free them are written by the next {@link #writeDirtyPages}.
+     */
+    public synchronized void freesPersisted() {
+        var blocksPerPage = (long) pageBytes * Byte.SIZE;
+        for (var range : unpersistedFrees.entrySet()) {
+            dirtyPages.set((int) (range.getKey() / blocksPerPage), (int) ((range.getValue() - 1) / blocksPerPage) + 1);
+        }
+        unpersistedFrees.clear();
+    }
+
+    /**
+     * Hands every run of consecutive dirty pages to the writer, then marks them clean. Blocks freed
+     * since {@link #freesPersisted} are written as allocated. Pages stay dirty if the writer fails.
+     */
+    public synchronized void writeDirtyPages(PageWriter writer) throws IOException {
+        for (var page = dirtyPages.nextSetBit(0); page >= 0; page = dirtyPages.nextSetBit(page)) {
+            var end = dirtyPages.nextClearBit(page);
+            writer.write(page, pageBytes(page, end - page));
+            dirtyPages.clear(page, end);
+            page = end;
+        }
+    }
+
+    public synchronized int getDirtyPageCount() {
+        return dirtyPages.cardinality();
+    }
+
+    private byte[] pageBytes(int firstPage, int pageCount) {
+        var data = new byte[pageCount * pageBytes];
+        var wordsPerPage = pageBytes / Long.BYTES;
+        var firstWord = firstPage * wordsPerPage;
+        var wordCount = Math.min(pageCount * wordsPerPage, words.length - firstWord);
+        var pageWords = Arrays.copyOfRange(words, firstWord, firstWord + wordCount);
+
+        var firstBlock = (long) firstWord * Long.SIZE;
+        var endBlock = firstBlock + (long) wordCount * Long.SIZE;
+        var before = unpersistedFrees.floorEntry(firstBlock);
+        var from = before != null && before.getValue() > firstBlock ? before.getKey() : firstBlock;
+        for (var range : unpersistedFrees.subMap(from, true, endBlock, false).entrySet()) {
+            var start = Math.max(range.getKey(), firstBlock);
+            var end = Math.min(range.getValue(), endBlock);
+            for (var block = start; block < end; ) {
+                var bit = (int) (block & 63);
+                var n = (int) Math.min(64 - bit, end - block);
+                pageWords[(int) ((block - firstBlock) >>> 6)] |= n == 64 ? -1L : ((1L << n) - 1) << bit;
+                block += n;
+            }
+        }
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(pageWords);
+        return data;
+    }
+
+    @Override
+    public synchronized Optional<Extent> allocate(int blockCount) {
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("blockCount must be positive");
+        }
+        var start = findRun(blockCount);
+        if (start < 0) {
+            return Optional.empty();
+        }
+        return Optional.of(take(start, blockCount));
+    }
+
+    /**
+     * Allocates the blocks starting exactly at {@code goalBlock} when they are all free; otherwise
+     * falls back to the lowest run that is long enough.
+     */
+    @Override
+    public synchronized Optional<Extent> allocate(int blockCount, long goalBlock) {
+        if (blockCount > 0 && areFree(goalBlock, blockCount)) {
+            return Optional.of(take(goalBlock, blockCount));
+        }
+        return allocate(blockCount);
+    }
+
+    /**
+     * Uses a single run when one is long enough; otherwise splits the request over the longest runs.
+     */
+    @Override
+    public synchronized List<Extent> allocateMultiple(int blockCount) {
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("blockCount must be positive");
+        }
+        if (freeBlocks < blockCount) {
+            return List.of();
+        }
+
+        var single = allocate(blockCount);
+        if (single.isPresent()) {
+            return List.of(single.get());
+        }
+
+        var allocated = new ArrayList<Extent>();
+        var remaining = blockCount;
+        while (remaining > 0) {
+            var length = (int) Math.min(remaining, longestFree[1]);
+            allocated.add(take(findRun(length), length));
+            remaining -= length;
+        }
+        return allocated;
+    }
+
+    @Override
+    public synchronized void free(Extent extent) {
+        if (extent.endBlock() > totalBlocks || !isRange(extent.startBlock(), extent.blockCount(), true)) {
+            throw new IllegalArgumentException("Extent is not allocated: " + extent);
+        }
+        setRange(extent.startBlock(), extent.blockCount(), false);
+        updateTree(extent.startBlock(), extent.blockCount());
+        freeBlocks += extent.blockCount();
+        noteUnpersistedFree(extent.startBlock(), extent.endBlock());
+    }
+
+    private void noteUnpersistedFree(long start, long end) {
+        var before = unpersistedFrees.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        for (var after = unpersistedFrees.ceilingEntry(start); after != null && after.getKey() <= end;
+             after = unpersistedFrees.ceilingEntry(start)) {
+            end = Math.max(end, after.getValue());
+            unpersistedFrees.remove(after.getKey());
+        }
+        unpersistedFrees.put(start, end);
+    }
+
+    @Override
+    public synchronized long getTotalFreeBlocks() {
+        return freeBlocks;
+    }
+
+    @Override
+    public synchronized int getLargestFreeExtent() {
+        return (int) Math.min(longestFree[1], Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized boolean areFree(long startBlock, int blockCount) {
+        return startBlock >= 0 && startBlock + blockCount <= totalBlocks && isRange(startBlock, blockCount, false);
+    }
+
+    @Override
+    public synchronized long getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    private Extent take(long start, int blockCount) {
+        setRange(start, blockCount, true);
+        updateTree(start, blockCount);
+        freeBlocks -= blockCount;
+        return new Extent(start, blockCount);
+    }
+
+    /**
+     * Returns the lowest block starting a free run of at least {@code length} blocks, or -1.
+     */
+    private long findRun(long length) {
+        if (longestFree[1] < length) {
+            return -1;
+        }
+        var node = 1;
+        var nodeStart = 0L;
+        while (node < leafCount) {
+            var left = node * 2;
+            var leftSpan = span(left);
+            if (longestFree[left] >= length) {
+                node = left;
+            } else if (suffixFree[left] + prefixFree[left + 1] >= length) {
+                return nodeStart + leftSpan - suffixFree[left];
+            } else {
+                node = left + 1;
+                nodeStart += leftSpan;
+            }
+        }
+        return findRunInChunk(node - leafCount, length);
+    }
+
+    private long findRunInChunk(int chunk, long length) {
+        var chunkStart = (long) chunk * CHUNK_BLOCKS;
+        var runStart = chunkStart;
+        var run = 0L;
+        for (var block = chunkStart; block < chunkStart + CHUNK_BLOCKS; block++) {
+            if (isAllocated(block)) {
+                run = 0;
+                runStart = block + 1;
+            } else if (++run >= length) {
+                return runStart;
+            }
+        }
+        throw new IllegalStateException("Summary tree out of sync with bitmap at chunk " + chunk);
+    }
+
+    /**
+     * Number of blocks covered by a tree node.
+     */
+    private long span(int node) {
+        var depth = 31 - Integer.numberOfLeadingZeros(node);
+        return (long) (leafCount >>> depth) * CHUNK_BLOCKS;
+    }
+
+    private boolean isAllocated(long block) {
+        return (words[(int) (block >>> 6)] & (1L << block)) != 0;
+    }
+
+    private boolean isRange(long start, long count, boolean allocated) {
+        for (var block = start; block < start + count; ) {
+            var word = words[(int) (block >>> 6)];
+            var bit = (int) (block & 63);
+            var n = (int) Math.min(64 - bit, start + count - block);
+            var mask = n == 64 ? -1L : ((1L << n) - 1) << bit;
+            if ((allocated ? ~word & mask : word & mask) != 0) {
+                return false;
+            }
+            block += n;
+        }
+        return true;
+    }
+
+    private void setRange(long start, long count, boolean allocated) {
+        for (var block = start; block < start + count; ) {
+            var index = (int) (block >>> 6);
+            var bit = (int) (block & 63);
+            var n = (int) Math.min(64 - bit, start + count - block);
+            var mask = n == 64 ? -1L : ((1L << n) - 1) << bit;
+            words[index] = allocated ? words[index] | mask : words[index] & ~mask;
+            block += n;
+        }
+        if (count > 0 && start < totalBlocks) {
+            var blocksPerPage = (long) pageBytes * Byte.SIZE;
+            var lastBlock = Math.min(start + count, totalBlocks) - 1;
+            dirtyPages.set((int) (start / blocksPerPage), (int) (lastBlock / blocksPerPage) + 1);
+        }
+    }
+
+    private void markAllAllocated() {
+        Arrays.fill(words, -1L);
+        Arrays.fill(prefixFree, 0);
+        Arrays.fill(suffixFree, 0);
+        Arrays.fill(longestFree, 0);
+        freeBlocks = 0;
+    }
+
+    private void rebuildTree() {
+        for (var chunk = 0; chunk < leafCount; chunk++) {
+            summarizeChunk(chunk);
+        }
+        for (var node = leafCount - 1; node >= 1; node--) {
+            combine(node);
+        }
+    }
+
+    private void updateTree(long start, long count) {
+        var firstChunk = (int) (start / CHUNK_BLOCKS);
+        var lastChunk = (int) ((start + count - 1) / CHUNK_BLOCKS);
+        for (var chunk = firstChunk; chunk <= lastChunk; chunk++) {
+            summarizeChunk(chunk);
+        }
+        // Recombine the ancestors of the touched leaves, one level at a time
+        for (int low = (firstChunk + leafCount) / 2, high = (lastChunk + leafCount) / 2; low >= 1; low /= 2, high /= 2) {
+            for (var node = low; node <= high; node++) {
+                combine(node);
+            }
+        }
+    }
+
+    private void combine(int node) {
+        var left = node * 2;
+        var right = left + 1;
+        var childSpan = span(left);
+        prefixFree[node] = prefixFree[left] == childSpan ? childSpan + prefixFree[right] : prefixFree[left];
+        suffixFree[node] = suffixFree[right] == childSpan ? childSpan + suffixFree[left] : suffixFree[right];
+        longestFree[node] = Math.max(Math.max(longestFree[left], longestFree[right]),
+                suffixFree[left] + prefixFree[right]);
+    }
+
+    private void summarizeChunk(int chunk) {
+        var leaf = leafCount + chunk;
+        if (chunk * CHUNK_WORDS >= words.length) {
+            // Padding leaf past the end of the container
+            prefixFree[leaf] = 0;
+            suffixFree[leaf] = 0;
+            longestFree[leaf] = 0;
+            return;
+        }
+
+        var prefix = -1L;
+        var run = 0L;
+        var longest = 0L;
+        for (var i = chunk * CHUNK_WORDS; i < (chunk + 1) * CHUNK_WORDS; i++) {
+            var free = ~words[i];
+            if (free == -1L) {
+                run += 64;
+                continue;
+            }
+            var bit = 0;
+            while (bit < 64) {
+                var shifted = free >>> bit;
+                if ((shifted & 1) != 0) {
+                    var n = Math.min(Long.numberOfTrailingZeros(~shifted), 64 - bit);
+                    run += n;
+                    bit += n;
+                } else {
+                    if (prefix < 0) {
+                        prefix = run;
+                    }
+                    longest = Math.max(longest, run);
+                    run = 0;
+                    bit += Math.min(Long.numberOfTrailingZeros(shifted), 64 - bit);
+                }
+            }
+        }
+        prefixFree[leaf] = prefix < 0 ? run : prefix;
+        suffixFree[leaf] = run;
+        longestFree[leaf] = Math.max(longest, run);
+    }
+}
@@ -0,0 +1,150 @@
+package org.test.boxfs.internal;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Tracks which container blocks are free and hands out extents.
+ * Implementations are safe for concurrent use.
+ */
+public interface BlockAllocator {
+
+    /**
+     * Available free-space representations, selectable through the "allocator" environment option
+     * when a container is created.
+     */
+    enum Kind {
+        /** Sorted free extent list, stored inside the metadata stream. */
+        EXTENTS,
+        /** Hierarchical free-space bitmap, stored in its own section of the container. */
+        BITMAP;
+
+        public static Kind fromName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Creates the allocator matching the free-space representation recorded in the superblock.
+     * A free extent list is split into up to {@code allocationGroups} independently locked groups.
+     */
+    static BlockAllocator forSuperblock(Superblock superblock, int allocationGroups) {
+        return forSuperblock(superblock, superblock.getTotalBlocks(), allocationGroups);
+    }
+
+    /**
+     * Like {@link #forSuperblock(Superblock, int)}, for a container resized to {@code totalBlocks}.
+     */
+    static BlockAllocator forSuperblock(Superblock superblock, long totalBlocks, int allocationGroups) {
+        return superblock.getFreeSpaceBitmap() != null
+                ? new BitmapAllocator(totalBlocks, superblock.getBlockSize())
+                : new AllocationGroups(totalBlocks, allocationGroups);
+    }
+
+    /**
+     * Initializes free space for a new file system, keeping blocks [0, reservedBlocks) allocated.
+     */
+    void initializeNew(int reservedBlocks);
+
+    /**
+     * Replaces the free space with the given extents; all other blocks become allocated.
+     */
+    void setFreeExtents(List<Extent> extents);
+
+    /**
+     * Returns the free extents ordered by start block.
+     */
+    List<Extent> getFreeExtents();
+
+    /**
+     * Allocates a contiguous range of blocks.
+     *
+     * @return the allocated extent, or empty if no free run is long enough
+     */
+    Optional<Extent> allocate(int blockCount);
+
+    /**
+     * Allocates a contiguous range of blocks, preferably close to {@code goalBlock}.
+     * A negative goal means no preference. The default ignores the goal.
+     */
+    default Optional<Extent> allocate(int blockCount, long goalBlock) {
+        return allocate(blockCount);
+    }
+
+    /**
+     * Allocates {@code blockCount} blocks, split over several extents if needed.
+     *
+     * @return the allocated extents, or an empty list if there is not enough free space
+     */
+    List<Extent> allocateMultiple(int blockCount);
+
+    /**
+     * Allocates {@code blockCount} blocks, preferably close to {@code goalBlock}.
+     * A negative goal means no preference. The default ignores the goal.
+     */
+    default List<Extent> allocateMultiple(int blockCount, long goalBlock) {
+        return allocateMultiple(blockCount);
+    }
+
+    /**
+     * Returns an allocated extent to free space.
+     *
+     * @throws IllegalArgumentException if any of its blocks is already free
+     */
+    void free(Extent extent);
+
+    default void freeAll(List<Extent> extents) {
+        for (var extent : extents) {
+            free(extent);
+        }
+    }
+
+    /**
+     * Returns the block ranges whose free space changed since the last call, ordered by start block,
+     * and forgets them. Replacing the free space as a whole starts over with no changes. An allocator
+     * that persists free space by itself reports none.
+     */
+    default List<Extent> takeChangedRanges() {
+        return List.of();
+    }
+
+    /**
+     * Marks a block range as changed again, as when persisting its change failed.
+     */
+    default void markChanged(Extent range) {
+    }
+
+    /**
+     * Returns the free extents within {@code range}, cut to it, ordered by start block.
+     */
+    default List<Extent> getFreeExtents(Extent range) {
+        throw new UnsupportedOperationException("Free space of this allocator is not logged");
+    }
+
+    /**
+     * Replaces the free space within {@code range} with {@code extents}, which lie within it; blocks
+     * outside the range are left as they are.
+     */
+    default void replaceFreeExtents(Extent range, List<Extent> extents) {
+        throw new UnsupportedOperationException("Free space of this allocator is not logged");
+    }
+
+    long getTotalFreeBlocks();
+
+    default long getTotalUsedBlocks() {
+        return getTotalBlocks() - getTotalFreeBlocks();
+    }
+
+    /**
+     * Returns the length of the longest free run, capped at {@link Integer#MAX_VALUE}.
+     */
+    int getLargestFreeExtent();
+
+    /**
+     * Checks if all the specified blocks are free.
+     */
+    boolean areFree(long startBlock, int blockCount);
+
+    long getTotalBlocks();
+}
@@ -0,0 +1,297 @@
+package org.test.boxfs.internal;
+
+import java.io.Closeable;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Buffer cache of container blocks keyed by physical block number.
+ * <p>
+ * Block images are held off-heap in a single segment split into block-sized frames. The cache is
+ * write-through: {@link ContainerIO} updates resident frames whenever it writes a block, so cached
+ * contents always mirror the container and freed or reused blocks never need invalidation.
+ * Pinned frames are never chosen for eviction.
+ * <p>
+ * A write to a block that is not resident leaves nothing to update, so a read that began before it
+ * could install the old image afterwards. Every write stamps its block with a sequence number, and an
+ * install is refused for a block stamped after the read began; stamps share slots by block number,
+ * which may refuse an install needlessly but never lets a stale one through.
+ */
+public class BlockCache implements Closeable {
+
+  /**
+   * Snapshot of cache counters.
+   */
+  public record Stats(long hits, long misses, long evictions, int cachedBlocks, int pinnedBlocks) {
+    public static final Stats EMPTY = new Stats(0, 0, 0, 0, 0);
+  }
+
+  static final int MAX_FRAMES = 1 << 28;
+  private static final int MAX_CHUNK_BYTES = 1 << 30;
+  private static final int STAMP_SLOTS = 4096;
+
+  private final int blockSize;
+  private final int capacity;
+  private final EvictionPolicy policy;
+  private final Arena arena;
+  private final MemorySegment frames;
+  // Buffer views over consecutive runs of frames, so copies in and out need no per-call view objects
+  private final ByteBuffer[] frameChunks;
+  private final int framesPerChunk;
+  private final long[] frameBlocks;
+  private final int[] pinCounts;
+  private final int[] freeFrames;
+  private final BlockIndex index;
+  private final IntPredicate unpinned;
+  // Sequence number of the last write to any block in each slot
+  private final long[] writeStamps = new long[STAMP_SLOTS];
+  private long writeSequence;
+  private int freeCount;
+  private int pinnedFrames;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public BlockCache(int blockSize, long budgetBytes, EvictionPolicy.Kind policyKind) {
+    var frameCount = budgetBytes / blockSize;
+    if (frameCount < 1) {
+      throw new IllegalArgumentException("Cache budget must hold at least one block");
+    }
+    this.blockSize = blockSize;
+    this.capacity = (int) Math.min(frameCount, MAX_FRAMES);
+    this.policy = policyKind.create(capacity);
+    this.arena = Arena.ofShared();
+    this.frames = arena.allocate((long) capacity * blockSize);
+    this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / blockSize);
+    this.frameChunks = new ByteBuffer[(capacity + framesPerChunk - 1) / framesPerChunk];
+    for (var i = 0; i < frameChunks.length; i++) {
+      var chunkFrames = Math.min(framesPerChunk, capacity - i * framesPerChunk);
+      frameChunks[i] = frames.asSlice(frameOffset(i * framesPerChunk), (long) chunkFrames * blockSize).asByteBuffer();
+    }
+    this.frameBlocks = new long[capacity];
+    this.pinCounts = new int[capacity];
+    this.freeFrames = new int[capacity];
+    this.index = new BlockIndex(capacity);
+    this.unpinned = frame -> pinCounts[frame] == 0;
+
+    for (var i = 0; i < capacity; i++) {
+      freeFrames[i] = capacity - 1 - i;
+    }
+    freeCount = capacity;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Copies part of a cached block into {@code dest}, advancing its position.
+   *
+   * @return true on a hit, false if the block is not resident
+   */
+  public synchronized boolean read(long block, int offsetInBlock, ByteBuffer dest, int length) {
+    var frame = index.get(block);
+    if (frame < 0) {
+      return false;
+    }
+    hits++;
+    policy.onHit(frame);
+    dest.put(dest.position(), frameChunks[frame / framesPerChunk], offsetInChunk(frame) + offsetInBlock, length);
+    dest.position(dest.position() + length);
+    return true;
+  }
+
+  public synchronized boolean contains(long block) {
+    return index.get(block) >= 0;
+  }
+
+  /**
+   * Returns the current write sequence number, taken before reading a block image to install.
+   */
+  public synchronized long writeSequence() {
+    return writeSequence;
+  }
+
+  /**
+   * Returns whether the block may have been written since {@code sequence} was taken.
+   */
+  public synchronized boolean writtenSince(long block, long sequence) {
+    return writeStamps[stampSlot(block)] > sequence;
+  }
+
+  /**
+   * Installs a full block image read from the container after a miss, with no write racing the read.
+   */
+  public boolean install(long block, ByteBuffer src, int srcIndex) {
+    return install(block, src, srcIndex, Long.MAX_VALUE);
+  }
+
+  /**
+   * Installs a full block image read from the container after a miss, unless the block was written since
+   * {@code readSince}, the {@link #writeSequence} taken before the read.
+   * {@code srcIndex} is relative to the buffer's position; the buffer itself is not modified.
+   *
+   * @return true if the block is resident afterwards, false if it was written meanwhile or every frame
+   * is pinned
+   */
+  public synchronized boolean install(long block, ByteBuffer src, int srcIndex, long readSince) {
+    if (index.get(block) >= 0) {
+      return true;
+    }
+    if (writeStamps[stampSlot(block)] > readSince) {
+      return false;
+    }
+    misses++;
+    policy.onMiss(block);
+    var frame = acquireFrame();
+    if (frame < 0) {
+      return false;
+    }
+    frameChunks[frame / framesPerChunk].put(offsetInChunk(frame), src, src.position() + srcIndex, blockSize);
+    frameBlocks[frame] = block;
+    index.put(block, frame);
+    policy.onInsert(frame, block);
+    return true;
+  }
+
+  /**
+   * Applies a write to the cached copy of a block, if it is resident.
+   */
+  public synchronized void update(long block, int offsetInBlock, MemorySegment src, long srcOffset, int length) {
+    writeStamps[stampSlot(block)] = ++writeSequence;
+    var frame = index.get(block);
+    if (frame >= 0) {
+      MemorySegment.copy(src, srcOffset, frames, frameOffset(frame) + offsetInBlock, length);
+    }
+  }
+
+  /**
+   * Pins a resident block so it is never evicted. Pins nest.
+   *
+   * @return false if the block is not resident
+   */
+  public synchronized boolean pin(long block) {
+    var frame = index.get(block);
+    if (frame < 0) {
+      return false;
+    }
+    if (pinCounts[frame]++ == 0) {
+      pinnedFrames++;
+    }
+    return true;
+  }
+
+  public synchronized void unpin(long block) {
+    var frame = index.get(block);
+    if (frame >= 0 && pinCounts[frame] > 0 && --pinCounts[frame] == 0) {
+      pinnedFrames--;
+    }
+  }
+
+  public synchronized Stats stats() {
+    return new Stats(hits, misses, evictions, capacity - freeCount, pinnedFrames);
+  }
+
+  @Override
+  public void close() {
+    arena.close();
+  }
+
+  private int acquireFrame() {
+    if (freeCount > 0) {
+      return freeFrames[--freeCount];
+    }
+    var victim = policy.selectVictim(unpinned);
+    if (victim < 0) {
+      return -1;
+    }
+    var evictedBlock = frameBlocks[victim];
+    policy.onEvict(victim, evictedBlock);
+    index.remove(evictedBlock);
+    evictions++;
+    return victim;
+  }
+
+  private static int stampSlot(long block) {
+    return (int) (block & (STAMP_SLOTS - 1));
+  }
+
+  private long frameOffset(int frame) {
+    return (long) frame * blockSize;
+  }
+
+  private int offsetInChunk(int frame) {
+    return (frame % framesPerChunk) * blockSize;
+  }
+
+  /**
+   * Open-addressing map from block number to frame index. Avoids boxing on the lookup path.
+   */
+  private static final class BlockIndex {
+    private static final long EMPTY = -1;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+
+    BlockIndex(int capacity) {
+      var size = 2;
+      while (size < capacity * 2) {
+        size <<= 1;
+      }
+      this.keys = new long[size];
+      this.values = new int[size];
+      this.mask = size - 1;
+      Arrays.fill(keys, EMPTY);
+    }
+
+    int get(long block) {
+      for (var i = slot(block); keys[i] != EMPTY; i = (i + 1) & mask) {
+        if (keys[i] == block) {
+          return values[i];
+        }
+      }
+      return -1;
+    }
+
+    void put(long block, int frame) {
+      var i = slot(block);
+      while (keys[i] != EMPTY && keys[i] != block) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = block;
+      values[i] = frame;
+    }
+
+    void remove(long block) {
+      var i = slot(block);
+      while (keys[i] != block) {
+        if (keys[i] == EMPTY) {
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = EMPTY;
+
+      // Backward-shift deletion keeps probe chains intact without tombstones
+      for (var j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+        var home = slot(keys[j]);
+        var movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+        if (movable) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          keys[j] = EMPTY;
+          i = j;
+        }
+      }
+    }
+
+    private int slot(long block) {
+      var h = block * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+  }
+}
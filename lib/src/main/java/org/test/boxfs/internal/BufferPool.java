@@ -0,0 +1,68 @@
+package org.test.boxfs.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of direct buffers for staging I/O that cannot go straight into a caller's buffer.
+ * <p>
+ * Buffers are kept in power-of-two size classes and handed out with their limit set to the
+ * requested size. Requests above the largest class get a fresh, unpooled buffer.
+ */
+public class BufferPool {
+
+  static final int MIN_CLASS_SHIFT = 12;
+  static final int MAX_CLASS_SHIFT = 22;
+  static final int MAX_BUFFERS_PER_CLASS = 8;
+
+  private final ByteBuffer[][] freeBuffers = new ByteBuffer[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1][];
+  private final int[] freeCounts = new int[freeBuffers.length];
+
+  public BufferPool() {
+    for (var i = 0; i < freeBuffers.length; i++) {
+      freeBuffers[i] = new ByteBuffer[MAX_BUFFERS_PER_CLASS];
+    }
+  }
+
+  /**
+   * Returns a direct buffer with position 0 and limit {@code size}. Contents are undefined.
+   */
+  public ByteBuffer acquire(int size) {
+    var sizeClass = sizeClass(size);
+    if (sizeClass < 0) {
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    ByteBuffer buffer = null;
+    synchronized (this) {
+      if (freeCounts[sizeClass] > 0) {
+        buffer = freeBuffers[sizeClass][--freeCounts[sizeClass]];
+        freeBuffers[sizeClass][freeCounts[sizeClass]] = null;
+      }
+    }
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+    }
+    return buffer.clear().limit(size);
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire} to the pool. The caller must not use it afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    var capacity = buffer.capacity();
+    var sizeClass = sizeClass(capacity);
+    if (sizeClass < 0 || capacity != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+      return;
+    }
+    synchronized (this) {
+      if (freeCounts[sizeClass] < MAX_BUFFERS_PER_CLASS) {
+        freeBuffers[sizeClass][freeCounts[sizeClass]++] = buffer;
+      }
+    }
+  }
+
+  private static int sizeClass(int size) {
+    var shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+    return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
+  }
+}
@@ -0,0 +1,64 @@
+package org.test.boxfs.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the chunks of compressed files with raw Deflate at its fastest level, which keeps
+ * ahead of disk throughput while still shrinking text and JSON several times.
+ */
+public final class ChunkCodec {
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private ChunkCodec() {}
+
+    /**
+     * Compresses {@code data} into at most {@code maxLength} bytes.
+     *
+     * @return the compressed bytes, or null if they would not fit
+     */
+    public static byte[] compress(byte[] data, int maxLength) {
+        var deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        var out = new byte[maxLength];
+        var length = 0;
+        while (!deflater.finished() && length < maxLength) {
+            length += deflater.deflate(out, length, maxLength - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(out, length) : null;
+    }
+
+    /**
+     * Decompresses the first {@code length} bytes of {@code compressed}, filling {@code data} exactly.
+     *
+     * @throws IOException if the compressed data is corrupt or too short
+     */
+    public static void decompress(byte[] compressed, int length, byte[] data) throws IOException {
+        var inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        var filled = 0;
+        try {
+            while (filled < data.length) {
+                var n = inflater.inflate(data, filled, data.length - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk", e);
+        }
+        if (filled < data.length) {
+            throw new IOException("Compressed chunk holds " + filled + " of " + data.length + " bytes");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.test.boxfs.internal;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) eviction: a hand sweeps the frames, clearing reference bits
+ * and evicting the first frame whose bit is already clear.
+ */
+class ClockEvictionPolicy implements EvictionPolicy {
+
+  private final boolean[] resident;
+  private final boolean[] referenced;
+  private int hand;
+
+  ClockEvictionPolicy(int capacity) {
+    this.resident = new boolean[capacity];
+    this.referenced = new boolean[capacity];
+  }
+
+  @Override
+  public void onHit(int frame) {
+    referenced[frame] = true;
+  }
+
+  @Override
+  public void onMiss(long block) {
+  }
+
+  @Override
+  public void onInsert(int frame, long block) {
+    resident[frame] = true;
+    referenced[frame] = true;
+  }
+
+  @Override
+  public void onEvict(int frame, long block) {
+    resident[frame] = false;
+    referenced[frame] = false;
+  }
+
+  @Override
+  public int selectVictim(IntPredicate evictable) {
+    // Two full sweeps: the first may only clear reference bits
+    for (var step = 0; step < 2 * resident.length; step++) {
+      var frame = hand;
+      hand = (hand + 1) % resident.length;
+      if (!resident[frame] || !evictable.test(frame)) {
+        continue;
+      }
+      if (referenced[frame]) {
+        referenced[frame] = false;
+      } else {
+        return frame;
+      }
+    }
+    return -1;
+  }
+}
@@ -2,28 +2,72 @@ package org.test.boxfs.internal;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * Low-level I/O operations for the container file.
  * Provides block-level read/write operations.
+ *
+ * <p>In memory-mapped mode the whole container is mapped in fixed-size windows,
+ * so extent reads and writes become memory copies instead of positional syscalls.
+ * The container never grows, so the mapping is established once on open and only redone when
+ * the container is truncated.
+ *
+ * <p>With write-back enabled, writes are absorbed by a {@link WriteBackBuffer} and reach the
+ * container through its background flusher; reads overlay any dirty bytes still buffered.
+ *
+ * <p>With discard enabled, freed blocks can be punched out of the container file through a
+ * {@link HolePuncher}, so the host file system only stores blocks that are in use.
+ *
+ * <p>The superblock has two slots: the start of the file and reserved block 0. Writes alternate
+ * between them by generation, and opening picks the valid slot with the higher generation, so a
+ * superblock write torn by a crash falls back to the previous one.
  */
 public class ContainerIO implements Closeable {
 
+  static final long DEFAULT_MAP_WINDOW_SIZE = 1L << 30;
+  // Upper bound on blocks fetched by a single cache miss
+  private static final int MAX_MISS_RUN_BLOCKS = 32;
+
   private final FileChannel channel;
   private final Superblock superblock;
+  private final long mapWindowSize;
+  private final BufferPool bufferPool = new BufferPool();
+  private Arena mappingArena;
+  private MemorySegment[] mappedWindows;
+  // Buffer views of the windows; absolute bulk get/put on them copies without allocating
+  private ByteBuffer[] windowBuffers;
+  private BlockCache blockCache;
+  private WriteBackBuffer writeBack;
+  private HolePuncher holePuncher;
   private boolean closed;
 
-  private ContainerIO(FileChannel channel, Superblock superblock) {
+  private ContainerIO(FileChannel channel, Superblock superblock, long mapWindowSize) throws IOException {
     this.channel = channel;
     this.superblock = superblock;
+    this.mapWindowSize = mapWindowSize;
     this.closed = false;
+    if (mapWindowSize > 0) {
+      mapContainer();
+    }
   }
 
   public static ContainerIO create(Path path, int blockSize, long totalBlocks) throws IOException {
+    return create(path, blockSize, totalBlocks, false);
+  }
+
+  public static ContainerIO create(Path path, int blockSize, long totalBlocks, boolean memoryMapped)
+    throws IOException {
+    return create(path, blockSize, totalBlocks, memoryMapped ? DEFAULT_MAP_WINDOW_SIZE : 0);
+  }
+
+  static ContainerIO create(Path path, int blockSize, long totalBlocks, long mapWindowSize) throws IOException {
     var channel = FileChannel.open(path,
       StandardOpenOption.CREATE_NEW,
       StandardOpenOption.READ,
@@ -47,22 +91,210 @@ public class ContainerIO implements Closeable {
       channel.write(endByte);
     }
 
-    return new ContainerIO(channel, superblock);
+    return new ContainerIO(channel, superblock, mapWindowSize);
   }
 
   public static ContainerIO open(Path path) throws IOException {
+    return open(path, false);
+  }
+
+  public static ContainerIO open(Path path, boolean memoryMapped) throws IOException {
+    return open(path, memoryMapped ? DEFAULT_MAP_WINDOW_SIZE : 0);
+  }
+
+  static ContainerIO open(Path path, long mapWindowSize) throws IOException {
     var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      var superblock = readSuperblock(channel);
+      return new ContainerIO(channel, superblock, mapWindowSize);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
 
-    var buffer = ByteBuffer.allocate(Superblock.MIN_BLOCK_SIZE);
-    channel.position(0);
+  /**
+   * Reads both superblock slots and returns the valid one with the higher generation. The second slot
+   * is found through the block size of the first, or, if the first cannot be read, by trying every
+   * block size.
+   */
+  private static Superblock readSuperblock(FileChannel channel) throws IOException {
+    var header = readFully(channel, 0, Superblock.MIN_BLOCK_SIZE);
+    if (header == null) {
+      throw new IOException("Unexpected end of file while reading superblock");
+    }
+    var blockSize = Superblock.peekBlockSize(header);
+    var block = blockSize > 0 ? readFully(channel, 0, blockSize) : null;
+    Superblock first = null;
+    IOException firstError = null;
+    try {
+      first = Superblock.deserialize(block != null ? block : header);
+    } catch (IOException e) {
+      firstError = e;
+    }
+
+    Superblock second = null;
+    if (first != null) {
+      second = readSecondSlot(channel, first.getBlockSize());
+    } else {
+      for (var size = Superblock.MIN_BLOCK_SIZE; size <= Superblock.MAX_BLOCK_SIZE && second == null; size *= 2) {
+        second = readSecondSlot(channel, size);
+      }
+    }
+    if (first == null && second == null) {
+      throw firstError;
+    }
+    if (first == null || second != null && second.getGeneration() > first.getGeneration()) {
+      return second;
+    }
+    return first;
+  }
+
+  private static Superblock readSecondSlot(FileChannel channel, int blockSize) throws IOException {
+    var data = readFully(channel, blockSize, blockSize);
+    if (data == null || Superblock.peekBlockSize(data) != blockSize) {
+      return null;
+    }
+    try {
+      var superblock = Superblock.deserialize(data);
+      // Block 0 of a container that predates the second slot is never written
+      return superblock.getGeneration() > 0 ? superblock : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads {@code length} bytes at {@code offset}, or returns null if the file ends before.
+   */
+  private static byte[] readFully(FileChannel channel, long offset, int length) throws IOException {
+    var buffer = ByteBuffer.allocate(length);
     while (buffer.hasRemaining()) {
-      if (channel.read(buffer) == -1) {
-        throw new IOException("Unexpected end of file while reading superblock");
+      if (channel.read(buffer, offset + buffer.position()) == -1) {
+        return null;
+      }
+    }
+    return buffer.array();
+  }
+
+  private void mapContainer() throws IOException {
+    var containerSize = superblock.blockOffset(superblock.getTotalBlocks());
+    var windowCount = (int) ((containerSize + mapWindowSize - 1) / mapWindowSize);
+
+    mappingArena = Arena.ofShared();
+    mappedWindows = new MemorySegment[windowCount];
+    windowBuffers = new ByteBuffer[windowCount];
+    try {
+      for (var i = 0; i < windowCount; i++) {
+        var windowStart = i * mapWindowSize;
+        var windowSize = Math.min(mapWindowSize, containerSize - windowStart);
+        mappedWindows[i] = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowSize, mappingArena);
+        windowBuffers[i] = mappedWindows[i].asByteBuffer();
       }
+    } catch (IOException | RuntimeException e) {
+      mappingArena.close();
+      channel.close();
+      throw e;
     }
+  }
+
+  public boolean isMemoryMapped() {
+    return mappedWindows != null;
+  }
 
-    var superblock = Superblock.deserialize(buffer.array());
-    return new ContainerIO(channel, superblock);
+  /**
+   * Routes extent reads through the given block cache. The cache is closed together with this container.
+   */
+  public void attachCache(BlockCache cache) {
+    this.blockCache = cache;
+  }
+
+  public boolean hasBlockCache() {
+    return blockCache != null;
+  }
+
+  public BlockCache.Stats getCacheStats() {
+    return blockCache != null ? blockCache.stats() : BlockCache.Stats.EMPTY;
+  }
+
+  /**
+   * Buffers subsequent writes and flushes them in the background once they exceed
+   * {@code maxDirtyBytes} in total or become older than {@code maxAgeMillis}.
+   */
+  public void enableWriteBack(long maxDirtyBytes, long maxAgeMillis) {
+    this.writeBack = new WriteBackBuffer(new WriteBackBuffer.Backend() {
+      @Override
+      public void read(long block, int offsetInBlock, ByteBuffer dest) throws IOException {
+        readAt(superblock.blockOffset(block) + offsetInBlock, dest);
+      }
+
+      @Override
+      public void write(long block, int offsetInBlock, ByteBuffer src) throws IOException {
+        var written = blockCache != null ? MemorySegment.ofBuffer(src) : null;
+        writeAt(superblock.blockOffset(block) + offsetInBlock, src);
+        if (written != null) {
+          updateCache(block, offsetInBlock, written, written.byteSize());
+        }
+      }
+    }, bufferPool, superblock.getBlockSize(), maxDirtyBytes, maxAgeMillis);
+  }
+
+  public boolean isWriteBack() {
+    return writeBack != null;
+  }
+
+  /**
+   * Lets {@link #discard(List)} punch blocks out of the container file at {@code path}.
+   *
+   * @throws UnsupportedOperationException if the platform cannot punch holes
+   */
+  public void enableDiscard(Path path) throws IOException {
+    holePuncher = HolePuncher.open(path);
+  }
+
+  public boolean isDiscard() {
+    return holePuncher != null;
+  }
+
+  /**
+   * Returns the blocks of the given extents to the host file system; they read as zeros afterwards.
+   * Buffered writes are flushed first so none of them lands in a range after it was punched, and
+   * cached copies are zeroed so the cache keeps mirroring the container. If the host file system
+   * cannot punch holes, discard is switched off.
+   */
+  public void discard(List<Extent> extents) throws IOException {
+    checkNotClosed();
+    if (holePuncher == null || extents.isEmpty()) {
+      return;
+    }
+    if (writeBack != null) {
+      writeBack.flush();
+    }
+    var blockSize = superblock.getBlockSize();
+    for (var extent : extents) {
+      if (!holePuncher.punch(superblock.blockOffset(extent.startBlock()), extent.sizeInBytes(blockSize))) {
+        holePuncher.close();
+        holePuncher = null;
+        return;
+      }
+      if (blockCache != null) {
+        var zeros = MemorySegment.ofArray(new byte[blockSize]);
+        for (var block = extent.startBlock(); block < extent.endBlock(); block++) {
+          updateCache(block, 0, zeros, blockSize);
+        }
+      }
+    }
+  }
+
+  /**
+   * Bytes buffered by the write-back layer that have not reached the container yet.
+   */
+  public long getDirtyBytes() {
+    return writeBack != null ? writeBack.getDirtyBytes() : 0;
+  }
+
+  WriteBackBuffer getWriteBackBuffer() {
+    return writeBack;
   }
 
   public Superblock getSuperblock() {
@@ -85,13 +317,16 @@ public class ContainerIO implements Closeable {
     var totalSize = blockCount * superblock.getBlockSize();
     var data = new byte[totalSize];
     var buffer = ByteBuffer.wrap(data);
-    var offset = superblock.blockOffset(startBlock);
-
-    channel.position(offset);
-    while (buffer.hasRemaining()) {
-      if (channel.read(buffer) == -1) {
-        break;
-      }
+    if (writeBack == null) {
+      readAt(superblock.blockOffset(startBlock), buffer);
+      return data;
+    }
+    writeBack.beginRead();
+    try {
+      readAt(superblock.blockOffset(startBlock), buffer);
+      writeBack.overlay(startBlock, 0, buffer, 0, totalSize);
+    } finally {
+      writeBack.endRead();
     }
 
     return data;
@@ -110,12 +345,13 @@ public class ContainerIO implements Closeable {
       ? copyWithPadding(data, paddedSize)
       : data;
 
-    var buffer = ByteBuffer.wrap(paddedData);
-    var offset = superblock.blockOffset(startBlock);
-    channel.position(offset);
-    while (buffer.hasRemaining()) {
-      //noinspection ResultOfMethodCallIgnored
-      channel.write(buffer);
+    if (writeBack != null) {
+      writeBack.write(startBlock, 0, ByteBuffer.wrap(paddedData), paddedSize);
+      return;
+    }
+    writeAt(superblock.blockOffset(startBlock), ByteBuffer.wrap(paddedData));
+    if (blockCache != null) {
+      updateCache(startBlock, 0, MemorySegment.ofArray(paddedData), paddedSize);
     }
   }
 
@@ -137,24 +373,38 @@ public class ContainerIO implements Closeable {
 
     var availableBytes = extentSize - offsetInExtent;
     var bytesToRead = (int) Math.min(availableBytes, dest.remaining());
+    var destStart = dest.position();
+
+    int bytesRead;
+    if (writeBack == null) {
+      bytesRead = readContainer(extent, offsetInExtent, dest, bytesToRead);
+    } else {
+      writeBack.beginRead();
+      try {
+        bytesRead = readContainer(extent, offsetInExtent, dest, bytesToRead);
+        if (bytesRead > 0) {
+          var block = extent.startBlock() + offsetInExtent / blockSize;
+          writeBack.overlay(block, (int) (offsetInExtent % blockSize), dest, destStart, bytesRead);
+        }
+      } finally {
+        writeBack.endRead();
+      }
+    }
 
+    return bytesRead > 0 ? bytesRead : -1;
+  }
+
+  private int readContainer(Extent extent, long offsetInExtent, ByteBuffer dest, int length) throws IOException {
+    if (blockCache != null) {
+      return readThroughCache(extent, offsetInExtent, dest, length);
+    }
     var absoluteOffset = superblock.blockOffset(extent.startBlock()) + offsetInExtent;
 
     var originalLimit = dest.limit();
-    dest.limit(dest.position() + bytesToRead);
-    var bytesRead = 0;
-    var currentOffset = absoluteOffset;
-    while (dest.hasRemaining()) {
-      var n = channel.read(dest, currentOffset);
-      if (n == -1) {
-        break;
-      }
-      bytesRead += n;
-      currentOffset += n;
-    }
+    dest.limit(dest.position() + length);
+    var bytesRead = readAt(absoluteOffset, dest);
     dest.limit(originalLimit);
-
-    return bytesRead > 0 ? bytesRead : -1;
+    return bytesRead;
   }
 
   public int writeToExtent(Extent extent, long offsetInExtent, ByteBuffer src) throws IOException {
@@ -170,37 +420,250 @@ public class ContainerIO implements Closeable {
     var availableBytes = extentSize - offsetInExtent;
     var bytesToWrite = (int) Math.min(availableBytes, src.remaining());
 
+    if (writeBack != null) {
+      var block = extent.startBlock() + offsetInExtent / blockSize;
+      writeBack.write(block, (int) (offsetInExtent % blockSize), src, bytesToWrite);
+      return bytesToWrite;
+    }
+
     var absoluteOffset = superblock.blockOffset(extent.startBlock()) + offsetInExtent;
 
     var originalLimit = src.limit();
     src.limit(src.position() + bytesToWrite);
-    var bytesWritten = 0;
-    var currentOffset = absoluteOffset;
-    while (src.hasRemaining()) {
-      var n = channel.write(src, currentOffset);
-      bytesWritten += n;
-      currentOffset += n;
-    }
+    var written = blockCache != null ? MemorySegment.ofBuffer(src) : null;
+    writeAt(absoluteOffset, src);
     src.limit(originalLimit);
 
-    return bytesWritten;
+    if (written != null) {
+      updateCache(extent.startBlock(), offsetInExtent, written, bytesToWrite);
+    }
+
+    return bytesToWrite;
+  }
+
+  /**
+   * Serves an extent read from the block cache, fetching runs of missing blocks with one read each.
+   */
+  private int readThroughCache(Extent extent, long offsetInExtent, ByteBuffer dest, int length) throws IOException {
+    var blockSize = superblock.getBlockSize();
+    var block = extent.startBlock() + offsetInExtent / blockSize;
+    var lastBlock = extent.startBlock() + (offsetInExtent + length - 1) / blockSize;
+    var offsetInBlock = (int) (offsetInExtent % blockSize);
+    var remaining = length;
+
+    while (remaining > 0) {
+      var n = Math.min(remaining, blockSize - offsetInBlock);
+      if (blockCache.read(block, offsetInBlock, dest, n)) {
+        remaining -= n;
+        block++;
+        offsetInBlock = 0;
+        continue;
+      }
+
+      var runBlocks = 1;
+      while (runBlocks < MAX_MISS_RUN_BLOCKS && block + runBlocks <= lastBlock
+        && !blockCache.contains(block + runBlocks)) {
+        runBlocks++;
+      }
+
+      var copied = Math.min(remaining, runBlocks * blockSize - offsetInBlock);
+      var staging = bufferPool.acquire(runBlocks * blockSize);
+      try {
+        var readSince = blockCache.writeSequence();
+        if (readAt(superblock.blockOffset(block), staging) < runBlocks * blockSize) {
+          throw new IOException("Unexpected end of container at block " + block);
+        }
+        staging.flip();
+        for (var i = 0; i < runBlocks; i++) {
+          // A block still buffered by write-back is cached once it is written
+          if (writeBack == null || !writeBack.isDirty(block + i)) {
+            blockCache.install(block + i, staging, i * blockSize, readSince);
+          }
+        }
+        dest.put(dest.position(), staging, offsetInBlock, copied);
+      } finally {
+        bufferPool.release(staging);
+      }
+      dest.position(dest.position() + copied);
+      remaining -= copied;
+      block += runBlocks;
+      offsetInBlock = 0;
+    }
+
+    return length;
+  }
+
+  private void updateCache(long startBlock, long offsetInExtent, MemorySegment data, long length) {
+    var blockSize = superblock.getBlockSize();
+    var block = startBlock + offsetInExtent / blockSize;
+    var offsetInBlock = (int) (offsetInExtent % blockSize);
+    var copied = 0L;
+    while (copied < length) {
+      var n = (int) Math.min(length - copied, blockSize - offsetInBlock);
+      blockCache.update(block, offsetInBlock, data, copied, n);
+      copied += n;
+      block++;
+      offsetInBlock = 0;
+    }
+  }
+
+  /**
+   * Loads every block of the extent into the cache and pins it.
+   *
+   * @return false if the cache could not hold the whole extent; no pins are kept in that case
+   */
+  public boolean pinExtent(Extent extent) throws IOException {
+    checkNotClosed();
+    if (blockCache == null) {
+      return false;
+    }
+
+    var blockSize = superblock.getBlockSize();
+    var staging = bufferPool.acquire(blockSize);
+    try {
+      for (var i = 0; i < extent.blockCount(); i++) {
+        var block = extent.startBlock() + i;
+        if (blockCache.pin(block)) {
+          continue;
+        }
+        boolean installed;
+        long readSince;
+        do {
+          // Read again if a write overtook the read
+          readSince = blockCache.writeSequence();
+          staging.clear().limit(blockSize);
+          readAt(superblock.blockOffset(block), staging);
+          installed = blockCache.install(block, staging.flip(), 0, readSince);
+        } while (!installed && blockCache.writtenSince(block, readSince));
+        if (!installed || !blockCache.pin(block)) {
+          for (var j = 0; j < i; j++) {
+            blockCache.unpin(extent.startBlock() + j);
+          }
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      bufferPool.release(staging);
+    }
+  }
+
+  public void unpinExtent(Extent extent) {
+    if (blockCache == null) {
+      return;
+    }
+    for (var i = 0; i < extent.blockCount(); i++) {
+      blockCache.unpin(extent.startBlock() + i);
+    }
   }
 
+  /**
+   * Writes the superblock as the next generation, into the slot the previous generation does not use.
+   * Everything written before is forced to disk first, so that the new superblock never refers to data
+   * that is not there; the superblock itself is durable after the next {@link #sync}.
+   */
   public void writeSuperblock() throws IOException {
     checkNotClosed();
-    var buffer = ByteBuffer.wrap(superblock.serialize());
-    channel.position(0);
-    while (buffer.hasRemaining()) {
-      //noinspection ResultOfMethodCallIgnored
-      channel.write(buffer);
+    sync();
+    superblock.setGeneration(superblock.getGeneration() + 1);
+    var slot = superblock.getGeneration() % 2 == 0 ? 0 : superblock.blockOffset(0);
+    writeAt(slot, ByteBuffer.wrap(superblock.serialize()));
+  }
+
+  /**
+   * Cuts the container file down to the size recorded in the superblock. The caller must have moved all
+   * live data out of the blocks being removed and persisted the superblock first.
+   */
+  public void truncate() throws IOException {
+    checkNotClosed();
+    if (writeBack != null) {
+      writeBack.flush();
+    }
+    if (mappingArena != null) {
+      mappedWindows = null;
+      windowBuffers = null;
+      mappingArena.close();
+      mappingArena = null;
+    }
+    channel.truncate(superblock.blockOffset(superblock.getTotalBlocks()));
+    if (mapWindowSize > 0) {
+      mapContainer();
     }
   }
 
   public void sync() throws IOException {
     checkNotClosed();
+    if (writeBack != null) {
+      writeBack.flush();
+    }
+    if (mappedWindows != null) {
+      for (var window : mappedWindows) {
+        window.force();
+      }
+    }
     channel.force(true);
   }
 
+  /**
+   * Reads {@code dest.remaining()} bytes starting at the absolute container offset.
+   * Returns the number of bytes read, which is less than requested only at end of file.
+   */
+  private int readAt(long offset, ByteBuffer dest) throws IOException {
+    if (mappedWindows != null) {
+      var length = dest.remaining();
+      copyMapped(offset, dest, length, true);
+      dest.position(dest.position() + length);
+      return length;
+    }
+
+    var bytesRead = 0;
+    while (dest.hasRemaining()) {
+      var n = channel.read(dest, offset + bytesRead);
+      if (n == -1) {
+        break;
+      }
+      bytesRead += n;
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Writes all remaining bytes of {@code src} starting at the absolute container offset.
+   */
+  private void writeAt(long offset, ByteBuffer src) throws IOException {
+    if (mappedWindows != null) {
+      var length = src.remaining();
+      copyMapped(offset, src, length, false);
+      src.position(src.position() + length);
+      return;
+    }
+
+    var bytesWritten = 0;
+    while (src.hasRemaining()) {
+      bytesWritten += channel.write(src, offset + bytesWritten);
+    }
+  }
+
+  /**
+   * Copies between the mapped container and the remaining bytes of a buffer, splitting the range at
+   * window boundaries. Buffer position is left unchanged.
+   */
+  private void copyMapped(long offset, ByteBuffer buffer, int length, boolean toBuffer) {
+    var copied = 0;
+    while (copied < length) {
+      var containerOffset = offset + copied;
+      var window = windowBuffers[(int) (containerOffset / mapWindowSize)];
+      var offsetInWindow = (int) (containerOffset % mapWindowSize);
+      var n = Math.min(length - copied, window.capacity() - offsetInWindow);
+      if (toBuffer) {
+        buffer.put(buffer.position() + copied, window, offsetInWindow, n);
+      } else {
+        window.put(offsetInWindow, buffer, buffer.position() + copied, n);
+      }
+      copied += n;
+    }
+  }
+
   private void validateBlockNumber(long blockNumber) {
     if (blockNumber < 0 || blockNumber >= superblock.getTotalBlocks()) {
       throw new IllegalArgumentException("Block number out of range: " + blockNumber);
@@ -217,7 +680,24 @@ public class ContainerIO implements Closeable {
   public void close() throws IOException {
     if (!closed) {
       closed = true;
-      channel.close();
+      try {
+        if (writeBack != null) {
+          writeBack.close();
+        }
+      } finally {
+        if (mappingArena != null) {
+          mappedWindows = null;
+          windowBuffers = null;
+          mappingArena.close();
+        }
+        if (blockCache != null) {
+          blockCache.close();
+        }
+        if (holePuncher != null) {
+          holePuncher.close();
+        }
+        channel.close();
+      }
     }
   }
 }
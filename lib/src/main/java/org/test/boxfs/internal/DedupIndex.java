@@ -0,0 +1,138 @@
+package org.test.boxfs.internal;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Content-hash index of full data blocks, used to share a block that already holds the data a write
+ * would put into a new one. Keys are the first 64 bits of the block's SHA-256 digest; a match is only
+ * a candidate, to be compared byte for byte before it is shared.
+ * <p>
+ * An entry must be removed before its block is freed or written in place. Safe for concurrent use;
+ * callers that look up, compare and share a block hold the index's monitor throughout, so the block
+ * cannot be dropped from the index for a write meanwhile.
+ * <p>
+ * Entries added since {@link #takeAdded} was last called are kept apart, so that they can be logged
+ * without writing the whole index. Removals are not tracked: an entry left over from before is
+ * dropped when the index is verified against the blocks.
+ */
+public class DedupIndex {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    // Hash -> block holding data with that hash; only the first block seen with a hash is kept
+    private final Map<Long, Long> blocksByHash = new HashMap<>();
+    // Block -> hash of its data, ordered so that ranges of blocks can be dropped at once
+    private final TreeMap<Long, Long> hashesByBlock = new TreeMap<>();
+    // Block -> hash of the entries added since takeAdded was last called
+    private TreeMap<Long, Long> added = new TreeMap<>();
+
+    /**
+     * Hashes the remaining bytes of {@code data} without moving its position.
+     */
+    public static long hash(ByteBuffer data) {
+        var digest = SHA_256.get();
+        digest.update(data.duplicate());
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Returns the block recorded for {@code hash}, or -1 if there is none.
+     */
+    public synchronized long lookup(long hash) {
+        return blocksByHash.getOrDefault(hash, -1L);
+    }
+
+    /**
+     * Records that {@code block} holds data with {@code hash}. If another block is already recorded for
+     * the hash, it is kept and this block is not indexed.
+     */
+    public synchronized void put(long hash, long block) {
+        remove(block);
+        if (blocksByHash.putIfAbsent(hash, block) == null) {
+            hashesByBlock.put(block, hash);
+            added.put(block, hash);
+        }
+    }
+
+    public synchronized void remove(long block) {
+        var hash = hashesByBlock.remove(block);
+        if (hash != null) {
+            blocksByHash.remove(hash);
+            added.remove(block);
+        }
+    }
+
+    /**
+     * Drops the entries of all blocks of the given extents.
+     */
+    public synchronized void removeAll(List<Extent> extents) {
+        if (hashesByBlock.isEmpty()) {
+            return;
+        }
+        for (var extent : extents) {
+            removeRange(extent.startBlock(), extent.endBlock());
+        }
+    }
+
+    /**
+     * Drops the entries of all blocks from {@code block} on.
+     */
+    public synchronized void removeFrom(long block) {
+        removeRange(block, Long.MAX_VALUE);
+    }
+
+    private void removeRange(long startBlock, long endBlock) {
+        var range = hashesByBlock.subMap(startBlock, endBlock);
+        for (var hash : range.values()) {
+            blocksByHash.remove(hash);
+        }
+        range.clear();
+        added.subMap(startBlock, endBlock).clear();
+    }
+
+    public synchronized int size() {
+        return hashesByBlock.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return hashesByBlock.isEmpty();
+    }
+
+    /**
+     * Returns the entries as block -> hash, ordered by block.
+     */
+    public synchronized Map<Long, Long> getEntries() {
+        return new TreeMap<>(hashesByBlock);
+    }
+
+    /**
+     * Replaces all entries with the given block -> hash pairs (used during deserialization).
+     */
+    public synchronized void setEntries(Map<Long, Long> entries) {
+        blocksByHash.clear();
+        hashesByBlock.clear();
+        entries.forEach((block, hash) -> put(hash, block));
+        added = new TreeMap<>();
+    }
+
+    /**
+     * Returns the entries added since the last call, as block -> hash, and starts collecting anew.
+     */
+    public synchronized Map<Long, Long> takeAdded() {
+        var taken = added;
+        added = new TreeMap<>();
+        return taken;
+    }
+}
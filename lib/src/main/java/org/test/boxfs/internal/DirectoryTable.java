@@ -2,12 +2,17 @@ package org.test.boxfs.internal;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * In-memory directory structure providing O(1) path resolution.
  * Maps (parentId, name) -> childId.
+ * <p>
+ * Every inode but the root has exactly one entry, so changes are collected as the IDs of the children
+ * whose entry was added, moved or removed since the changes were last taken.
  */
 public class DirectoryTable {
 
@@ -17,6 +22,8 @@ public class DirectoryTable {
     // Reverse index: childId -> DirectoryEntry (for finding parent)
     private final HashMap<Long, DirectoryEntry> childIndex = new HashMap<>();
 
+    private Set<Long> changed = new HashSet<>();
+
     /**
      * Adds a directory entry.
      */
@@ -24,6 +31,7 @@ public class DirectoryTable {
         parentIndex.computeIfAbsent(entry.parentId(), _ -> new HashMap<>())
                    .put(entry.name(), entry);
         childIndex.put(entry.childId(), entry);
+        changed.add(entry.childId());
     }
 
     /**
@@ -37,6 +45,7 @@ public class DirectoryTable {
         var entry = children.remove(name);
         if (entry != null) {
             childIndex.remove(entry.childId());
+            changed.add(entry.childId());
             if (children.isEmpty()) {
                 parentIndex.remove(parentId);
             }
@@ -102,6 +111,16 @@ public class DirectoryTable {
     public void clear() {
         parentIndex.clear();
         childIndex.clear();
+        changed = new HashSet<>();
+    }
+
+    /**
+     * Returns the IDs of the children whose entry changed since the last call, and starts collecting anew.
+     */
+    public Set<Long> takeChanges() {
+        var taken = changed;
+        changed = new HashSet<>();
+        return taken;
     }
 
     /**
@@ -0,0 +1,61 @@
+package org.test.boxfs.internal;
+
+import java.util.Locale;
+import java.util.function.IntPredicate;
+
+/**
+ * Chooses which {@link BlockCache} frame to reuse when the cache is full.
+ * Frames are identified by their index; implementations keep their own per-frame bookkeeping.
+ * Calls are serialized by the owning cache.
+ */
+public interface EvictionPolicy {
+
+  /**
+   * Available policies, selectable through the "cachePolicy" environment option.
+   */
+  enum Kind {
+    CLOCK,
+    LRU,
+    ARC;
+
+    public static Kind fromName(String name) {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    EvictionPolicy create(int capacity) {
+      return switch (this) {
+        case CLOCK -> new ClockEvictionPolicy(capacity);
+        case LRU -> new LruEvictionPolicy(capacity);
+        case ARC -> new ArcEvictionPolicy(capacity);
+      };
+    }
+  }
+
+  /**
+   * Records a cache hit on a resident frame.
+   */
+  void onHit(int frame);
+
+  /**
+   * Records a miss for a block before a frame is chosen for it.
+   */
+  void onMiss(long block);
+
+  /**
+   * Records that a frame now holds the given block.
+   */
+  void onInsert(int frame, long block);
+
+  /**
+   * Records that a frame was evicted (or invalidated) and no longer holds the given block.
+   */
+  void onEvict(int frame, long block);
+
+  /**
+   * Selects a resident frame to evict.
+   *
+   * @param evictable filter rejecting frames that must stay resident (e.g. pinned)
+   * @return frame index, or -1 if no resident frame is evictable
+   */
+  int selectVictim(IntPredicate evictable);
+}
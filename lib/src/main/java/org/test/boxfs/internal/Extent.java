@@ -2,14 +2,20 @@ package org.test.boxfs.internal;
 
 /**
  * Represents a contiguous range of blocks in the container.
+ * <p>
+ * In a file's extent list, an extent starting at {@link #HOLE} stands for a run of file blocks that
+ * have no container blocks behind them and read as zeros.
  *
- * @param startBlock the first block index of this extent
+ * @param startBlock the first block index of this extent, or {@link #HOLE}
  * @param blockCount the number of contiguous blocks
  */
 public record Extent(long startBlock, int blockCount) {
 
+    /** Start block of a hole extent. */
+    public static final long HOLE = Long.MIN_VALUE;
+
     public Extent {
-        if (startBlock < 0) {
+        if (startBlock < 0 && startBlock != HOLE) {
             throw new IllegalArgumentException("startBlock must be non-negative");
         }
         if (blockCount <= 0) {
@@ -17,6 +23,17 @@ public record Extent(long startBlock, int blockCount) {
         }
     }
 
+    /**
+     * Returns a hole of {@code blockCount} file blocks.
+     */
+    public static Extent hole(int blockCount) {
+        return new Extent(HOLE, blockCount);
+    }
+
+    public boolean isHole() {
+        return startBlock == HOLE;
+    }
+
     /**
      * Returns the block index immediately after this extent.
      */
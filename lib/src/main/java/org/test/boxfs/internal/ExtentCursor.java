@@ -0,0 +1,39 @@
+package org.test.boxfs.internal;
+
+/**
+ * Remembers the extent last touched by a reader or writer of one inode, so that sequential
+ * access resolves the next offset without searching. A stale cursor is harmless: it only
+ * costs a fallback to binary search in {@link Inode#findExtent}.
+ * <p>
+ * For a compressed file it also keeps the chunk last decompressed, so small sequential reads
+ * decompress each chunk once.
+ */
+public final class ExtentCursor {
+
+    private record DecompressedChunk(long chunk, long dataVersion, byte[] data) {
+    }
+
+    private int index;
+    // Replaced as a whole, since a channel's readahead may use the cursor from another thread
+    private volatile DecompressedChunk decompressed;
+
+    public int index() {
+        return index;
+    }
+
+    public void moveTo(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Returns the data of {@code chunk} if it was kept at {@code dataVersion} of the file, or null.
+     */
+    public byte[] decompressedChunk(long chunk, long dataVersion) {
+        var kept = decompressed;
+        return kept != null && kept.chunk() == chunk && kept.dataVersion() == dataVersion ? kept.data() : null;
+    }
+
+    public void keepDecompressedChunk(long chunk, long dataVersion, byte[] data) {
+        decompressed = new DecompressedChunk(chunk, dataVersion, data);
+    }
+}
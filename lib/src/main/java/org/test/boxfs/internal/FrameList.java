@@ -0,0 +1,77 @@
+package org.test.boxfs.internal;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Intrusive doubly-linked list of cache frame indexes, ordered from most to least recently used.
+ * Backed by index arrays so that list maintenance never allocates.
+ */
+class FrameList {
+
+  private static final int NONE = -1;
+
+  private final int[] prev;
+  private final int[] next;
+  private final int sentinel;
+  private int size;
+
+  FrameList(int capacity) {
+    this.prev = new int[capacity + 1];
+    this.next = new int[capacity + 1];
+    this.sentinel = capacity;
+    Arrays.fill(prev, NONE);
+    Arrays.fill(next, NONE);
+    prev[sentinel] = sentinel;
+    next[sentinel] = sentinel;
+  }
+
+  boolean contains(int frame) {
+    return next[frame] != NONE;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Inserts the frame at the most recently used end, unlinking it first if present.
+   */
+  void pushFront(int frame) {
+    if (contains(frame)) {
+      unlink(frame);
+    }
+    var first = next[sentinel];
+    next[frame] = first;
+    prev[frame] = sentinel;
+    prev[first] = frame;
+    next[sentinel] = frame;
+    size++;
+  }
+
+  void remove(int frame) {
+    if (contains(frame)) {
+      unlink(frame);
+    }
+  }
+
+  /**
+   * Returns the least recently used frame accepted by the filter, or -1.
+   */
+  int findFromBack(IntPredicate accept) {
+    for (var frame = prev[sentinel]; frame != sentinel; frame = prev[frame]) {
+      if (accept.test(frame)) {
+        return frame;
+      }
+    }
+    return NONE;
+  }
+
+  private void unlink(int frame) {
+    next[prev[frame]] = next[frame];
+    prev[next[frame]] = prev[frame];
+    next[frame] = NONE;
+    prev[frame] = NONE;
+    size--;
+  }
+}
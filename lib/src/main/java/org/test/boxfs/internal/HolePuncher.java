@@ -0,0 +1,153 @@
+package org.test.boxfs.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Deallocates byte ranges of a file on the host file system with
+ * {@code fallocate(FALLOC_FL_PUNCH_HOLE | FALLOC_FL_KEEP_SIZE)}, called through the foreign function API.
+ * The ranges then read as zeros and take no disk space, and the device underneath is told they are unused.
+ * <p>
+ * Only available on Linux; {@link #isSupported()} tells whether the calls could be bound.
+ */
+public class HolePuncher implements Closeable {
+
+  private static final int O_WRONLY = 1;
+  private static final int FALLOC_FL_KEEP_SIZE = 0x01;
+  private static final int FALLOC_FL_PUNCH_HOLE = 0x02;
+  private static final int EOPNOTSUPP = 95;
+
+  private static final MethodHandle OPEN;
+  private static final MethodHandle FALLOCATE;
+  private static final MethodHandle CLOSE;
+  private static final MemoryLayout CALL_STATE;
+  private static final long ERRNO_OFFSET;
+
+  static {
+    MethodHandle open = null;
+    MethodHandle fallocate = null;
+    MethodHandle close = null;
+    MemoryLayout callState = null;
+    var errnoOffset = 0L;
+    if (System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux")) {
+      try {
+        var linker = Linker.nativeLinker();
+        var libc = linker.defaultLookup();
+        var captureErrno = Linker.Option.captureCallState("errno");
+        callState = Linker.Option.captureStateLayout();
+        errnoOffset = callState.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+        open = linker.downcallHandle(libc.find("open").orElseThrow(),
+          FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT), captureErrno);
+        fallocate = linker.downcallHandle(libc.find("fallocate").orElseThrow(),
+          FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+            ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG), captureErrno);
+        close = linker.downcallHandle(libc.find("close").orElseThrow(),
+          FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+      } catch (RuntimeException e) {
+        open = null;
+      }
+    }
+    OPEN = open;
+    FALLOCATE = fallocate;
+    CLOSE = close;
+    CALL_STATE = callState;
+    ERRNO_OFFSET = errnoOffset;
+  }
+
+  private final Path path;
+  private final int fd;
+  private final Arena arena = Arena.ofShared();
+  private final MemorySegment callState;
+  private boolean closed;
+
+  private HolePuncher(Path path, int fd) {
+    this.path = path;
+    this.fd = fd;
+    this.callState = arena.allocate(CALL_STATE);
+  }
+
+  public static boolean isSupported() {
+    return OPEN != null;
+  }
+
+  /**
+   * Opens {@code path} for punching holes.
+   *
+   * @throws UnsupportedOperationException if hole punching is not available on this platform
+   */
+  public static HolePuncher open(Path path) throws IOException {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Punching holes needs fallocate, which is only available on Linux");
+    }
+    try (var arena = Arena.ofConfined()) {
+      var name = path.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+      var cName = arena.allocate(name.length + 1L);
+      MemorySegment.copy(name, 0, cName, ValueLayout.JAVA_BYTE, 0, name.length);
+      cName.set(ValueLayout.JAVA_BYTE, name.length, (byte) 0);
+      var state = arena.allocate(CALL_STATE);
+      var fd = (int) OPEN.invokeExact(state, cName, O_WRONLY);
+      if (fd < 0) {
+        throw new IOException("Cannot open " + path + " for punching holes, errno " + errno(state));
+      }
+      return new HolePuncher(path, fd);
+    } catch (IOException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Deallocates {@code length} bytes at {@code offset} without changing the file size.
+   *
+   * @return false if the host file system does not support punching holes
+   */
+  public synchronized boolean punch(long offset, long length) throws IOException {
+    if (closed) {
+      throw new IOException("Hole puncher is closed");
+    }
+    int result;
+    try {
+      result = (int) FALLOCATE.invokeExact(callState, fd, FALLOC_FL_PUNCH_HOLE | FALLOC_FL_KEEP_SIZE, offset, length);
+    } catch (Throwable e) {
+      throw new IOException(e);
+    }
+    if (result == 0) {
+      return true;
+    }
+    var errno = errno(callState);
+    if (errno == EOPNOTSUPP) {
+      return false;
+    }
+    throw new IOException("Punching a hole in " + path + " failed, errno " + errno);
+  }
+
+  private static int errno(MemorySegment state) {
+    return state.get(ValueLayout.JAVA_INT, ERRNO_OFFSET);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      var ignored = (int) CLOSE.invokeExact(fd);
+    } catch (Throwable e) {
+      throw new IOException(e);
+    } finally {
+      arena.close();
+    }
+  }
+}
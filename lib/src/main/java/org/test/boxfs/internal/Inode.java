@@ -1,14 +1,41 @@
 package org.test.boxfs.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.TreeMap;
 
 /**
  * Represents a file or directory inode with metadata and extent list.
+ * <p>
+ * Alongside the extents the inode keeps a prefix sum of their block counts, so a file offset is
+ * translated to its extent by binary search and the allocated size is known without a scan.
+ * The index is updated incrementally on append and truncate.
+ * <p>
+ * Preallocated blocks that were never written are tracked as unwritten ranges of file blocks,
+ * separately from the extents, and read as zeros. Writing to a block removes it from those ranges.
+ * <p>
+ * File blocks that were never given container blocks, such as the gap left by writing past the end of
+ * a sparse file, are covered by {@link Extent#isHole() hole} extents so the list keeps mapping every
+ * file block. Holes also read as zeros.
+ * <p>
+ * A small last partial block can be kept as an inline tail in the inode itself instead of in a block
+ * of its own; it holds the file's bytes from the end of its mapped blocks to its size, so a file of a
+ * few hundred bytes needs no data block at all.
+ * <p>
+ * A compressed file is divided into chunks of a fixed number of file blocks. A chunk that compresses
+ * is stored at the start of its own file blocks, the rest of which become a hole, and the chunk map
+ * records the stored length so that a read decompresses only the chunks it touches.
+ * <p>
+ * An inode registered with an {@link InodeTable} reports every change to its metadata there, so that
+ * only changed inodes need to be persisted.
  */
 public class Inode {
 
+    /** Chunk length of a chunk of a compressed file that was found not to compress; it is stored as is. */
+    public static final int INCOMPRESSIBLE = -1;
+
     public enum Type {
         FILE((byte) 0),
         DIRECTORY((byte) 1);
@@ -34,11 +61,27 @@ public class Inode {
 
     private final long id;
     private final Type type;
-    private long size;
+    // Volatile so size checks outside the file's lock never see a torn value
+    private volatile long size;
     private final List<Extent> extents;
+    // extentEnds[i] is the number of file blocks covered by extents 0..i
+    private long[] extentEnds;
+    private int holeCount;
     private long creationTime;
     private long lastModifiedTime;
     private long lastAccessTime;
+    // Unwritten file block ranges, start to end (exclusive); null when there are none
+    private TreeMap<Long, Long> unwritten;
+    // File bytes past the mapped blocks, stored with the inode; null when there are none
+    private byte[] inlineTail;
+    // Bumped whenever file contents change, so cached copies of the data can detect staleness
+    private volatile long dataVersion;
+    // File blocks per compressed chunk; 0 unless the file, or for a directory its new files, is compressed
+    private int chunkBlocks;
+    // Per chunk, the stored length of its compressed data, 0 for data stored as is, or INCOMPRESSIBLE
+    private int[] chunkLengths;
+    // Table to report metadata changes to; null while the inode is not registered
+    private volatile InodeTable owner;
 
     public Inode(long id, Type type) {
         this(id, type, 0, new ArrayList<>(), System.currentTimeMillis());
@@ -63,6 +106,8 @@ public class Inode {
         this.type = type;
         this.size = size;
         this.extents = new ArrayList<>(extents);
+        this.extentEnds = new long[Math.max(4, extents.size())];
+        rebuildIndex();
         this.creationTime = creationTime;
         this.lastModifiedTime = lastModifiedTime;
         this.lastAccessTime = lastAccessTime;
@@ -93,30 +138,446 @@ public class Inode {
             throw new IllegalArgumentException("size must be non-negative");
         }
         this.size = size;
+        changed();
     }
 
     public List<Extent> getExtents() {
         return Collections.unmodifiableList(extents);
     }
 
+    public int getExtentCount() {
+        return extents.size();
+    }
+
+    /**
+     * Returns the extent at the given index without going through a list view.
+     */
+    public Extent getExtent(int index) {
+        return extents.get(index);
+    }
+
+    /**
+     * Returns the extents backed by container blocks, leaving out holes.
+     */
+    public List<Extent> getDataExtents() {
+        if (holeCount == 0) {
+            return getExtents();
+        }
+        return extents.stream().filter(extent -> !extent.isHole()).toList();
+    }
+
+    public boolean hasHoles() {
+        return holeCount > 0;
+    }
+
+    /**
+     * Appends an extent, merging it into the last one when it continues it on disk or both are holes.
+     */
     public void addExtent(Extent extent) {
+        changed();
+        var index = extents.size();
+        if (index > 0) {
+            var last = extents.get(index - 1);
+            if (continues(last, extent)) {
+                extents.set(index - 1, new Extent(last.startBlock(), last.blockCount() + extent.blockCount()));
+                extentEnds[index - 1] += extent.blockCount();
+                return;
+            }
+        }
+        if (index == extentEnds.length) {
+            extentEnds = Arrays.copyOf(extentEnds, index * 2);
+        }
+        extentEnds[index] = getAllocatedBlocks() + extent.blockCount();
         extents.add(extent);
+        if (extent.isHole()) {
+            holeCount++;
+        }
+    }
+
+    /**
+     * Appends a hole of {@code blockCount} file blocks.
+     */
+    public void addHole(long blockCount) {
+        for (var remaining = blockCount; remaining > 0; remaining -= Integer.MAX_VALUE) {
+            addExtent(Extent.hole((int) Math.min(remaining, Integer.MAX_VALUE)));
+        }
+    }
+
+    /**
+     * Gives file blocks inside a hole the container blocks in {@code mapped}, in order. The blocks from
+     * {@code fileBlock} to the end of {@code mapped} must all lie in the same hole.
+     */
+    public void mapHole(long fileBlock, List<Extent> mapped) {
+        var index = findExtent(fileBlock, new ExtentCursor());
+        if (index < 0 || !extents.get(index).isHole()) {
+            throw new IllegalArgumentException("Block " + fileBlock + " is not in a hole");
+        }
+        remap(fileBlock, mapped);
+    }
+
+    /**
+     * Maps file blocks from {@code fileBlock} on to the container blocks in {@code mapped}, in order,
+     * instead of what they were mapped to. The blocks must all lie in the same extent.
+     *
+     * @return the container blocks, or the hole, the file blocks were mapped to before
+     */
+    public Extent remap(long fileBlock, List<Extent> mapped) {
+        var index = findExtent(fileBlock, new ExtentCursor());
+        var old = index < 0 ? null : extents.get(index);
+        var before = fileBlock - (index < 0 ? 0 : getExtentStartBlock(index));
+        var blockCount = mapped.stream().mapToLong(Extent::blockCount).sum();
+        if (old == null || before + blockCount > old.blockCount()) {
+            throw new IllegalArgumentException("Blocks " + fileBlock + ".." + (fileBlock + blockCount) + " are not in one extent");
+        }
+
+        var replacement = new ArrayList<Extent>(extents.size() + mapped.size() + 1);
+        replacement.addAll(extents.subList(0, index));
+        if (before > 0) {
+            replacement.add(slice(old, 0, before));
+        }
+        for (var extent : mapped) {
+            appendMerged(replacement, extent);
+        }
+        var after = old.blockCount() - before - blockCount;
+        if (after > 0) {
+            appendMerged(replacement, slice(old, before + blockCount, after));
+        }
+        for (var extent : extents.subList(index + 1, extents.size())) {
+            appendMerged(replacement, extent);
+        }
+        setExtents(replacement);
+        return slice(old, before, blockCount);
+    }
+
+    private static Extent slice(Extent extent, long offset, long blockCount) {
+        return extent.isHole() ? Extent.hole((int) blockCount) : new Extent(extent.startBlock() + offset, (int) blockCount);
     }
 
     public void setExtents(List<Extent> newExtents) {
+        changed();
         extents.clear();
         extents.addAll(newExtents);
+        if (extentEnds.length < extents.size()) {
+            extentEnds = new long[extents.size()];
+        }
+        rebuildIndex();
     }
 
     public void clearExtents() {
+        changed();
         extents.clear();
+        holeCount = 0;
+        unwritten = null;
+        inlineTail = null;
     }
 
     /**
-     * Returns the total number of allocated blocks.
+     * Returns the number of file blocks covered by the extents, holes included.
      */
     public long getAllocatedBlocks() {
-        return extents.stream().mapToLong(Extent::blockCount).sum();
+        return extents.isEmpty() ? 0 : extentEnds[extents.size() - 1];
+    }
+
+    /**
+     * Returns the file-relative block at which the extent with the given index begins.
+     */
+    public long getExtentStartBlock(int index) {
+        return index == 0 ? 0 : extentEnds[index - 1];
+    }
+
+    /**
+     * Returns the index of the extent holding the given file-relative block, or -1 if it lies beyond
+     * the allocated blocks. The cursor is tried first, then the extent after it, so sequential access
+     * resolves in constant time; otherwise the index is binary searched. The cursor is updated to the result.
+     */
+    public int findExtent(long fileBlock, ExtentCursor cursor) {
+        var count = extents.size();
+        if (fileBlock < 0 || fileBlock >= getAllocatedBlocks()) {
+            return -1;
+        }
+
+        var hint = cursor.index();
+        for (var candidate = hint; candidate <= hint + 1; candidate++) {
+            if (candidate >= 0 && candidate < count && containsBlock(candidate, fileBlock)) {
+                cursor.moveTo(candidate);
+                return candidate;
+            }
+        }
+
+        var low = 0;
+        var high = count - 1;
+        while (low < high) {
+            var mid = (low + high) >>> 1;
+            if (extentEnds[mid] <= fileBlock) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        cursor.moveTo(low);
+        return low;
+    }
+
+    /**
+     * Shrinks the extent list to cover exactly {@code blocks} file blocks, splitting the extent that
+     * straddles the boundary.
+     *
+     * @return the container blocks that are no longer referenced
+     */
+    public List<Extent> truncateToBlocks(long blocks) {
+        var freed = new ArrayList<Extent>();
+        if (blocks >= getAllocatedBlocks()) {
+            return freed;
+        }
+        changed();
+
+        var keepCount = blocks == 0 ? 0 : findExtent(blocks - 1, new ExtentCursor()) + 1;
+        if (keepCount > 0) {
+            var last = extents.get(keepCount - 1);
+            var blocksToKeep = (int) (blocks - getExtentStartBlock(keepCount - 1));
+            if (blocksToKeep < last.blockCount()) {
+                if (last.isHole()) {
+                    extents.set(keepCount - 1, Extent.hole(blocksToKeep));
+                } else {
+                    extents.set(keepCount - 1, new Extent(last.startBlock(), blocksToKeep));
+                    freed.add(new Extent(last.startBlock() + blocksToKeep, last.blockCount() - blocksToKeep));
+                }
+                extentEnds[keepCount - 1] = blocks;
+            }
+        }
+
+        var tail = extents.subList(keepCount, extents.size());
+        for (var extent : tail) {
+            if (extent.isHole()) {
+                holeCount--;
+            } else {
+                freed.add(extent);
+            }
+        }
+        tail.clear();
+        markWritten(blocks, Long.MAX_VALUE);
+        return freed;
+    }
+
+    /**
+     * Returns the bytes stored inline after the mapped blocks, or null. The array is not copied.
+     */
+    public byte[] getInlineTail() {
+        return inlineTail;
+    }
+
+    public void setInlineTail(byte[] inlineTail) {
+        changed();
+        this.inlineTail = inlineTail != null && inlineTail.length > 0 ? inlineTail : null;
+    }
+
+    public boolean isCompressed() {
+        return chunkBlocks > 0;
+    }
+
+    public int getChunkBlocks() {
+        return chunkBlocks;
+    }
+
+    /**
+     * Sets how many file blocks make up a compressed chunk; 0 turns compression off. The chunk map is
+     * cleared, so this is only meant for files without data.
+     */
+    public void setChunkBlocks(int chunkBlocks) {
+        if (chunkBlocks < 0) {
+            throw new IllegalArgumentException("chunkBlocks must be non-negative");
+        }
+        changed();
+        this.chunkBlocks = chunkBlocks;
+        this.chunkLengths = null;
+    }
+
+    /**
+     * Returns true if any chunk of the file is stored compressed.
+     */
+    public boolean hasCompressedChunks() {
+        if (chunkLengths != null) {
+            for (var length : chunkLengths) {
+                if (length > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the stored length of a compressed chunk, 0 if the chunk is stored as is, or
+     * {@link #INCOMPRESSIBLE}.
+     */
+    public int getChunkLength(long chunk) {
+        return chunkLengths != null && chunk < chunkLengths.length ? chunkLengths[(int) chunk] : 0;
+    }
+
+    public void setChunkLength(long chunk, int length) {
+        changed();
+        var index = Math.toIntExact(chunk);
+        if (chunkLengths == null || index >= chunkLengths.length) {
+            if (length == 0) {
+                return;
+            }
+            chunkLengths = Arrays.copyOf(chunkLengths != null ? chunkLengths : new int[0], Math.max(index + 1, index * 3 / 2));
+        }
+        chunkLengths[index] = length;
+    }
+
+    /**
+     * Forgets the stored lengths of the chunks from {@code chunkCount} on.
+     */
+    public void truncateChunks(long chunkCount) {
+        if (chunkLengths != null && chunkCount < chunkLengths.length) {
+            changed();
+            Arrays.fill(chunkLengths, (int) chunkCount, chunkLengths.length, 0);
+        }
+    }
+
+    /**
+     * Returns the chunk map up to its last chunk that is not stored as is.
+     */
+    public int[] getChunkLengths() {
+        if (chunkLengths == null) {
+            return new int[0];
+        }
+        var end = chunkLengths.length;
+        while (end > 0 && chunkLengths[end - 1] == 0) {
+            end--;
+        }
+        return Arrays.copyOf(chunkLengths, end);
+    }
+
+    public void setChunkLengths(int[] lengths) {
+        changed();
+        this.chunkLengths = lengths.length > 0 ? lengths.clone() : null;
+    }
+
+    public boolean hasUnwrittenBlocks() {
+        return unwritten != null;
+    }
+
+    /**
+     * Marks {@code blockCount} file blocks from {@code firstBlock} as allocated but never written.
+     */
+    public void markUnwritten(long firstBlock, long blockCount) {
+        if (blockCount <= 0) {
+            return;
+        }
+        changed();
+        if (unwritten == null) {
+            unwritten = new TreeMap<>();
+        }
+        var start = firstBlock;
+        var end = firstBlock + blockCount;
+        var before = unwritten.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        for (var next = unwritten.ceilingEntry(start); next != null && next.getKey() <= end; next = unwritten.ceilingEntry(start)) {
+            end = Math.max(end, next.getValue());
+            unwritten.remove(next.getKey());
+        }
+        unwritten.put(start, end);
+    }
+
+    /**
+     * Removes file blocks [firstBlock, endBlock) from the unwritten ranges.
+     */
+    public void markWritten(long firstBlock, long endBlock) {
+        if (unwritten == null) {
+            return;
+        }
+        changed();
+        var before = unwritten.lowerEntry(firstBlock);
+        if (before != null && before.getValue() > firstBlock) {
+            unwritten.put(before.getKey(), firstBlock);
+            if (before.getValue() > endBlock) {
+                unwritten.put(endBlock, before.getValue());
+            }
+        }
+        for (var next = unwritten.ceilingEntry(firstBlock); next != null && next.getKey() < endBlock;
+             next = unwritten.ceilingEntry(firstBlock)) {
+            unwritten.remove(next.getKey());
+            if (next.getValue() > endBlock) {
+                unwritten.put(endBlock, next.getValue());
+            }
+        }
+        if (unwritten.isEmpty()) {
+            unwritten = null;
+        }
+    }
+
+    public boolean isUnwritten(long fileBlock) {
+        if (unwritten == null) {
+            return false;
+        }
+        var range = unwritten.floorEntry(fileBlock);
+        return range != null && range.getValue() > fileBlock;
+    }
+
+    /**
+     * Returns the first block after {@code fileBlock} whose written state differs from it,
+     * or {@link Long#MAX_VALUE} if there is none.
+     */
+    public long nextUnwrittenBoundary(long fileBlock) {
+        if (unwritten == null) {
+            return Long.MAX_VALUE;
+        }
+        var range = unwritten.floorEntry(fileBlock);
+        if (range != null && range.getValue() > fileBlock) {
+            return range.getValue();
+        }
+        var next = unwritten.higherKey(fileBlock);
+        return next != null ? next : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the unwritten ranges as extents of file blocks, ordered by start.
+     */
+    public List<Extent> getUnwrittenRanges() {
+        if (unwritten == null) {
+            return List.of();
+        }
+        var ranges = new ArrayList<Extent>(unwritten.size());
+        for (var range : unwritten.entrySet()) {
+            for (var start = range.getKey(); start < range.getValue(); start += Integer.MAX_VALUE) {
+                ranges.add(new Extent(start, (int) Math.min(range.getValue() - start, Integer.MAX_VALUE)));
+            }
+        }
+        return ranges;
+    }
+
+    private boolean containsBlock(int index, long fileBlock) {
+        return fileBlock >= getExtentStartBlock(index) && fileBlock < extentEnds[index];
+    }
+
+    private void rebuildIndex() {
+        var total = 0L;
+        holeCount = 0;
+        for (var i = 0; i < extents.size(); i++) {
+            total += extents.get(i).blockCount();
+            extentEnds[i] = total;
+            if (extents.get(i).isHole()) {
+                holeCount++;
+            }
+        }
+    }
+
+    private static boolean continues(Extent last, Extent next) {
+        var adjacent = last.isHole() ? next.isHole() : !next.isHole() && last.endBlock() == next.startBlock();
+        return adjacent && (long) last.blockCount() + next.blockCount() <= Integer.MAX_VALUE;
+    }
+
+    private static void appendMerged(List<Extent> extents, Extent extent) {
+        if (!extents.isEmpty() && continues(extents.getLast(), extent)) {
+            var last = extents.removeLast();
+            extent = new Extent(last.startBlock(), last.blockCount() + extent.blockCount());
+        }
+        extents.add(extent);
     }
 
     public long getCreationTime() {
@@ -128,6 +589,7 @@ public class Inode {
     }
 
     public void setLastModifiedTime(long lastModifiedTime) {
+        changed();
         this.lastModifiedTime = lastModifiedTime;
     }
 
@@ -136,10 +598,12 @@ public class Inode {
     }
 
     public void setLastAccessTime(long lastAccessTime) {
+        changed();
         this.lastAccessTime = lastAccessTime;
     }
 
     public void setTimes(Long lastModifiedTime, Long lastAccessTime, Long creationTime) {
+        changed();
         if (lastModifiedTime != null) {
             this.lastModifiedTime = lastModifiedTime;
         }
@@ -151,9 +615,33 @@ public class Inode {
         }
     }
 
+    public long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * Records that the file contents changed.
+     */
+    @SuppressWarnings("NonAtomicOperationOnVolatileField")
+    public void markDataChanged() {
+        dataVersion++;
+    }
+
     public void touch() {
+        changed();
         var now = System.currentTimeMillis();
         this.lastModifiedTime = now;
         this.lastAccessTime = now;
     }
+
+    void setOwner(InodeTable owner) {
+        this.owner = owner;
+    }
+
+    private void changed() {
+        var table = owner;
+        if (table != null) {
+            table.markChanged(id);
+        }
+    }
 }
@@ -3,10 +3,16 @@ package org.test.boxfs.internal;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * In-memory table mapping inode IDs to Inode objects.
  * Provides O(1) inode lookup.
+ * <p>
+ * The table also collects the IDs of inodes created, changed or removed since the changes were last
+ * taken, for incremental persistence. Inodes report their own changes, possibly from concurrent
+ * writers of different files, so the set of changed IDs is thread-safe.
  */
 public class InodeTable {
 
@@ -14,6 +20,7 @@ public class InodeTable {
 
     private final HashMap<Long, Inode> inodes = new HashMap<>();
     private long nextInodeId = ROOT_INODE_ID;
+    private Set<Long> changed = ConcurrentHashMap.newKeySet();
 
     /**
      * Creates and registers the root directory inode.
@@ -23,7 +30,7 @@ public class InodeTable {
             throw new IllegalStateException("Root inode already exists");
         }
         var root = new Inode(ROOT_INODE_ID, Inode.Type.DIRECTORY);
-        inodes.put(ROOT_INODE_ID, root);
+        add(root);
         nextInodeId = ROOT_INODE_ID + 1;
         return root;
     }
@@ -34,7 +41,7 @@ public class InodeTable {
     public Inode createInode(Inode.Type type) {
         var id = nextInodeId++;
         var inode = new Inode(id, type);
-        inodes.put(id, inode);
+        add(inode);
         return inode;
     }
 
@@ -42,7 +49,7 @@ public class InodeTable {
      * Registers an inode (used during deserialization).
      */
     public void registerInode(Inode inode) {
-        inodes.put(inode.getId(), inode);
+        add(inode);
         if (inode.getId() >= nextInodeId) {
             nextInodeId = inode.getId() + 1;
         }
@@ -69,7 +76,11 @@ public class InodeTable {
         if (id == ROOT_INODE_ID) {
             throw new IllegalArgumentException("Cannot remove root inode");
         }
-        inodes.remove(id);
+        var removed = inodes.remove(id);
+        if (removed != null) {
+            removed.setOwner(null);
+        }
+        changed.add(id);
     }
 
     /**
@@ -97,7 +108,35 @@ public class InodeTable {
      * Clears all inodes.
      */
     public void clear() {
+        inodes.values().forEach(inode -> inode.setOwner(null));
         inodes.clear();
         nextInodeId = ROOT_INODE_ID;
+        changed = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Records that the inode with the given ID was created, changed or removed.
+     */
+    public void markChanged(long id) {
+        changed.add(id);
+    }
+
+    /**
+     * Returns the IDs of the inodes created, changed or removed since the last call, and starts
+     * collecting anew. Callers must keep the inodes from changing meanwhile.
+     */
+    public Set<Long> takeChanges() {
+        var taken = changed;
+        changed = ConcurrentHashMap.newKeySet();
+        return taken;
+    }
+
+    private void add(Inode inode) {
+        var previous = inodes.put(inode.getId(), inode);
+        if (previous != null && previous != inode) {
+            previous.setOwner(null);
+        }
+        inode.setOwner(this);
+        changed.add(inode.getId());
     }
 }
@@ -0,0 +1,39 @@
+package org.test.boxfs.internal;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Least-recently-used eviction over an intrusive frame list.
+ */
+class LruEvictionPolicy implements EvictionPolicy {
+
+  private final FrameList frames;
+
+  LruEvictionPolicy(int capacity) {
+    this.frames = new FrameList(capacity);
+  }
+
+  @Override
+  public void onHit(int frame) {
+    frames.pushFront(frame);
+  }
+
+  @Override
+  public void onMiss(long block) {
+  }
+
+  @Override
+  public void onInsert(int frame, long block) {
+    frames.pushFront(frame);
+  }
+
+  @Override
+  public void onEvict(int frame, long block) {
+    frames.remove(frame);
+  }
+
+  @Override
+  public int selectVictim(IntPredicate evictable) {
+    return frames.findFromBack(evictable);
+  }
+}
@@ -0,0 +1,142 @@
+package org.test.boxfs.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of metadata changes made since the last full write of the metadata, the checkpoint.
+ * The log lives in an extent of its own that the checkpoint records together with its generation.
+ * Each sync appends one record holding the changes since the previous one, so its cost follows the
+ * number of changes rather than the size of the namespace; when a record no longer fits, the metadata
+ * is checkpointed instead and the log starts over.
+ * <p>
+ * Records start at block boundaries: magic(4) + generation(8) + sequence(4) + length(4) + CRC-32C(4),
+ * then the payload, zero-padded to whole blocks. The checksum covers the header fields before it and
+ * the payload. A record is valid only with the checkpoint's generation and the next sequence number,
+ * so records left over from an earlier generation, or torn by a crash, end the log when it is read.
+ */
+public class MetadataLog {
+
+    public static final int MAGIC = 0x42584C47; // "BXLG"
+    static final int HEADER_SIZE = 24;
+
+    private final int blockSize;
+    private Extent extent;
+    private long generation;
+    private int usedBlocks;
+    private int sequence;
+
+    public MetadataLog(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the blocks of the log, or null if there is none.
+     */
+    public Extent getExtent() {
+        return extent;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns the number of records appended since the checkpoint.
+     */
+    public int getRecordCount() {
+        return sequence;
+    }
+
+    /**
+     * Starts an empty log in {@code extent}, which may be null, after a checkpoint of {@code generation}.
+     */
+    public void reset(Extent extent, long generation) {
+        this.extent = extent;
+        this.generation = generation;
+        this.usedBlocks = 0;
+        this.sequence = 0;
+    }
+
+    /**
+     * Encodes {@code payload} as the next record.
+     *
+     * @return the record padded to whole blocks, or null if it does not fit in the rest of the log
+     */
+    public byte[] encode(byte[] payload) {
+        if (extent == null) {
+            return null;
+        }
+        var blocks = (HEADER_SIZE + (long) payload.length + blockSize - 1) / blockSize;
+        if (blocks > extent.blockCount() - usedBlocks) {
+            return null;
+        }
+        var record = ByteBuffer.allocate((int) blocks * blockSize);
+        record.putInt(MAGIC).putLong(generation).putInt(sequence).putInt(payload.length);
+        record.putInt(checksum(record.array(), payload));
+        record.put(payload);
+        return record.array();
+    }
+
+    /**
+     * Returns the container block at which the next record goes.
+     */
+    public long nextBlock() {
+        return extent.startBlock() + usedBlocks;
+    }
+
+    /**
+     * Records that a record returned by {@link #encode} was written.
+     */
+    public void appended(byte[] record) {
+        usedBlocks += record.length / blockSize;
+        sequence++;
+    }
+
+    /**
+     * Reads the valid records from the contents of the log's blocks, and positions the log after them.
+     *
+     * @return the payloads in the order they were appended
+     */
+    public List<byte[]> readRecords(byte[] contents) throws IOException {
+        var payloads = new ArrayList<byte[]>();
+        usedBlocks = 0;
+        sequence = 0;
+        var buffer = ByteBuffer.wrap(contents);
+        while (contents.length - (long) usedBlocks * blockSize >= HEADER_SIZE) {
+            var offset = usedBlocks * blockSize;
+            buffer.position(offset);
+            if (buffer.getInt() != MAGIC || buffer.getLong() != generation || buffer.getInt() != sequence) {
+                break;
+            }
+            var length = buffer.getInt();
+            var checksum = buffer.getInt();
+            if (length < 0 || length > contents.length - offset - HEADER_SIZE) {
+                break;
+            }
+            var payload = new byte[length];
+            buffer.get(payload);
+            if (checksum(contents, offset, payload) != checksum) {
+                break;
+            }
+            payloads.add(payload);
+            usedBlocks += (HEADER_SIZE + length + blockSize - 1) / blockSize;
+            sequence++;
+        }
+        return payloads;
+    }
+
+    private static int checksum(byte[] header, byte[] payload) {
+        return checksum(header, 0, payload);
+    }
+
+    private static int checksum(byte[] header, int offset, byte[] payload) {
+        var crc = new CRC32C();
+        crc.update(header, offset, HEADER_SIZE - Integer.BYTES);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
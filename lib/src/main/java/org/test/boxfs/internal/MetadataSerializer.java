@@ -3,20 +3,119 @@ package org.test.boxfs.internal;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
- * Serializes and deserializes file system metadata (inodes, directory entries, free space)
- * to/from binary format.
+ * Serializes and deserializes file system metadata (inodes, directory entries, free space,
+ * unwritten ranges of preallocated files, inline file tails, reference counts of shared blocks,
+ * snapshots, the content-hash index of deduplicated blocks, chunk maps of compressed files, the
+ * location of the {@link MetadataLog}) to/from binary format.
+ * <p>
+ * The changes a {@link MetadataLog} record holds are written by {@link #serializeChanges}: for each
+ * changed inode either its full state and directory entry or the fact that it was removed, followed
+ * by the free extents within each block range allocated or freed, the shared block counts if they
+ * changed, and the hash index entries added since the previous record.
+ * <p>
+ * A snapshot's frozen namespace uses the same format with the free space, reference count, snapshot
+ * and hash index sections left empty.
+ * <p>
+ * The free extent section is only populated for a {@link SpaceManager} or {@link AllocationGroups};
+ * a {@link BitmapAllocator} persists free space in its own section and writes an empty list here,
+ * and logs no changed ranges.
  */
 public class MetadataSerializer {
 
     private MetadataSerializer() {}
 
     /**
-     * Serializes all metadata to a byte array.
+     * Serializes all metadata as a checkpoint, including the location and generation of the metadata log.
      */
     public static byte[] serialize(InodeTable inodeTable, DirectoryTable directoryTable,
-                                   SpaceManager spaceManager) throws IOException {
+                                   BlockAllocator spaceManager, RefCounts refCounts,
+                                   SnapshotTable snapshots, DedupIndex dedupIndex, MetadataLog log)
+            throws IOException {
+        return write(inodeTable, directoryTable, freeExtents(spaceManager), refCounts, snapshots, dedupIndex, log);
+    }
+
+    /**
+     * Serializes only the inode and directory tables, as frozen by a snapshot.
+     */
+    public static byte[] serializeNamespace(InodeTable inodeTable, DirectoryTable directoryTable)
+            throws IOException {
+        return write(inodeTable, directoryTable, List.of(), new RefCounts(), new SnapshotTable(), new DedupIndex(),
+                new MetadataLog(1));
+    }
+
+    /**
+     * Serializes the changes to the inodes with the given IDs, as a {@link MetadataLog} record. The free
+     * extents are included for the block ranges in {@code changedRanges}, as taken from the allocator;
+     * the shared block counts only if {@code refCounts} is not null. {@code indexedBlocks} are the hash
+     * index entries added meanwhile, as block -> hash.
+     */
+    public static byte[] serializeChanges(InodeTable inodeTable, DirectoryTable directoryTable,
+                                          Collection<Long> changedIds, BlockAllocator spaceManager,
+                                          List<Extent> changedRanges, RefCounts refCounts,
+                                          Map<Long, Long> indexedBlocks)
+            throws IOException {
+        var baos = new ByteArrayOutputStream();
+        var dos = new DataOutputStream(baos);
+
+        dos.writeInt(changedIds.size());
+        for (var id : changedIds) {
+            var inode = inodeTable.get(id);
+            dos.writeLong(id);
+            dos.writeBoolean(inode.isPresent());
+            if (inode.isPresent()) {
+                writeInode(dos, inode.get());
+                writeInodeDetails(dos, inode.get());
+                var entry = directoryTable.getEntryForChild(id);
+                dos.writeBoolean(entry.isPresent());
+                if (entry.isPresent()) {
+                    writeDirectoryEntry(dos, entry.get());
+                }
+            }
+        }
+
+        // Only the ranges allocated or freed, each with the free extents it now holds
+        dos.writeInt(changedRanges.size());
+        for (var range : changedRanges) {
+            writeExtent(dos, range);
+            var free = spaceManager.getFreeExtents(range);
+            dos.writeInt(free.size());
+            for (var extent : free) {
+                writeExtent(dos, extent);
+            }
+        }
+
+        dos.writeBoolean(refCounts != null);
+        if (refCounts != null) {
+            writeSharedRanges(dos, refCounts);
+        }
+
+        dos.writeInt(indexedBlocks.size());
+        for (var entry : indexedBlocks.entrySet()) {
+            dos.writeLong(entry.getKey());
+            dos.writeLong(entry.getValue());
+        }
+
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static List<Extent> freeExtents(BlockAllocator spaceManager) {
+        return switch (spaceManager) {
+            case SpaceManager extentList -> extentList.getFreeExtents();
+            case AllocationGroups groups -> groups.getFreeExtents();
+            default -> List.of();
+        };
+    }
+
+    private static byte[] write(InodeTable inodeTable, DirectoryTable directoryTable, List<Extent> freeExtents,
+                                RefCounts refCounts, SnapshotTable snapshots, DedupIndex dedupIndex,
+                                MetadataLog log) throws IOException {
         var baos = new ByteArrayOutputStream();
         var dos = new DataOutputStream(baos);
 
@@ -35,21 +134,100 @@ public class MetadataSerializer {
         }
 
         // Write free extents
-        var freeExtents = spaceManager.getFreeExtents();
         dos.writeInt(freeExtents.size());
         for (var extent : freeExtents) {
             writeExtent(dos, extent);
         }
 
+        // Write unwritten ranges of preallocated files. Containers written before this section
+        // existed end in zero padding here, which reads back as an empty section.
+        var preallocated = inodes.stream().filter(Inode::hasUnwrittenBlocks).toList();
+        dos.writeInt(preallocated.size());
+        for (var inode : preallocated) {
+            var ranges = inode.getUnwrittenRanges();
+            dos.writeLong(inode.getId());
+            dos.writeInt(ranges.size());
+            for (var range : ranges) {
+                writeExtent(dos, range);
+            }
+        }
+
+        // Write inline tails; older containers read back an empty section as above
+        var inlined = inodes.stream().filter(inode -> inode.getInlineTail() != null).toList();
+        dos.writeInt(inlined.size());
+        for (var inode : inlined) {
+            var tail = inode.getInlineTail();
+            dos.writeLong(inode.getId());
+            dos.writeInt(tail.length);
+            dos.write(tail);
+        }
+
+        // Write reference counts of shared blocks; older containers read back an empty section as above
+        writeSharedRanges(dos, refCounts);
+
+        // Write snapshots; older containers read back an empty section as above
+        var snapshotEntries = snapshots.getAll();
+        dos.writeInt(snapshotEntries.size());
+        for (var snapshot : snapshotEntries) {
+            var nameBytes = snapshot.name().getBytes(StandardCharsets.UTF_8);
+            dos.writeShort(nameBytes.length);
+            dos.write(nameBytes);
+            dos.writeLong(snapshot.creationTime());
+            dos.writeLong(snapshot.endBlock());
+            dos.writeInt(snapshot.metadataExtents().size());
+            for (var extent : snapshot.metadataExtents()) {
+                writeExtent(dos, extent);
+            }
+        }
+
+        // Write the block hash index; older containers read back an empty section as above
+        var hashes = dedupIndex.getEntries();
+        dos.writeInt(hashes.size());
+        for (var entry : hashes.entrySet()) {
+            dos.writeLong(entry.getKey());
+            dos.writeLong(entry.getValue());
+        }
+
+        // Write compression settings and chunk maps; older containers read back an empty section as above
+        var compressed = inodes.stream().filter(Inode::isCompressed).toList();
+        dos.writeInt(compressed.size());
+        for (var inode : compressed) {
+            var lengths = inode.getChunkLengths();
+            dos.writeLong(inode.getId());
+            dos.writeInt(inode.getChunkBlocks());
+            dos.writeInt(lengths.length);
+            for (var length : lengths) {
+                dos.writeInt(length);
+            }
+        }
+
+        // Write the generation and location of the metadata log; older containers read back no log
+        var logExtent = log.getExtent();
+        dos.writeLong(log.getGeneration());
+        dos.writeInt(logExtent != null ? logExtent.blockCount() : 0);
+        dos.writeLong(logExtent != null ? logExtent.startBlock() : 0);
+
         dos.flush();
         return baos.toByteArray();
     }
 
     /**
-     * Deserializes metadata from a byte array.
+     * Deserializes only the inode and directory tables written by {@link #serializeNamespace}.
      */
-    public static void deserialize(byte[] data, InodeTable inodeTable,
-                                   DirectoryTable directoryTable, SpaceManager spaceManager)
+    public static void deserializeNamespace(byte[] data, InodeTable inodeTable, DirectoryTable directoryTable)
+            throws IOException {
+        // A namespace has an empty free extent list, so no allocator is needed
+        deserialize(data, inodeTable, directoryTable, null, new RefCounts(), new SnapshotTable(), new DedupIndex(),
+                new MetadataLog(1));
+    }
+
+    /**
+     * Deserializes a checkpoint, including the location and generation of the metadata log. The log is
+     * reset to be empty; its records are applied separately with {@link #applyChanges}.
+     */
+    public static void deserialize(byte[] data, InodeTable inodeTable, DirectoryTable directoryTable,
+                                   BlockAllocator spaceManager, RefCounts refCounts,
+                                   SnapshotTable snapshots, DedupIndex dedupIndex, MetadataLog log)
             throws IOException {
         var bais = new ByteArrayInputStream(data);
         var dis = new DataInputStream(bais);
@@ -78,7 +256,277 @@ public class MetadataSerializer {
         for (var i = 0; i < freeExtentCount; i++) {
             freeExtents.add(readExtent(dis));
         }
-        spaceManager.setFreeExtents(freeExtents);
+        if (spaceManager instanceof SpaceManager extentList) {
+            extentList.setFreeExtents(freeExtents);
+        } else if (spaceManager instanceof AllocationGroups groups) {
+            groups.setFreeExtents(freeExtents);
+        } else if (!freeExtents.isEmpty()) {
+            throw new IOException("Free extent list found in a container with a free-space bitmap");
+        }
+
+        // Read unwritten ranges, absent in older containers
+        if (dis.available() >= Integer.BYTES) {
+            var preallocatedCount = dis.readInt();
+            for (var i = 0; i < preallocatedCount; i++) {
+                var inodeId = dis.readLong();
+                var inode = inodeTable.get(inodeId)
+                        .orElseThrow(() -> new IOException("Unwritten ranges for unknown inode " + inodeId));
+                var rangeCount = dis.readInt();
+                for (var r = 0; r < rangeCount; r++) {
+                    var range = readExtent(dis);
+                    inode.markUnwritten(range.startBlock(), range.blockCount());
+                }
+            }
+        }
+
+        // Read inline tails, absent in older containers
+        if (dis.available() >= Integer.BYTES) {
+            var inlinedCount = dis.readInt();
+            for (var i = 0; i < inlinedCount; i++) {
+                var inodeId = dis.readLong();
+                var inode = inodeTable.get(inodeId)
+                        .orElseThrow(() -> new IOException("Inline tail for unknown inode " + inodeId));
+                var length = dis.readInt();
+                if (length < 0 || length > dis.available()) {
+                    throw new IOException("Invalid inline tail length " + length + " for inode " + inodeId);
+                }
+                var tail = new byte[length];
+                dis.readFully(tail);
+                inode.setInlineTail(tail);
+            }
+        }
+
+        // Read reference counts of shared blocks, absent in older containers
+        if (dis.available() >= Integer.BYTES) {
+            readSharedRanges(dis, refCounts);
+        } else {
+            refCounts.setRanges(List.of());
+        }
+
+        // Read snapshots, absent in older containers
+        var snapshotEntries = new ArrayList<SnapshotTable.Entry>();
+        if (dis.available() >= Integer.BYTES) {
+            var snapshotCount = dis.readInt();
+            for (var i = 0; i < snapshotCount; i++) {
+                var nameBytes = new byte[dis.readUnsignedShort()];
+                dis.readFully(nameBytes);
+                var creationTime = dis.readLong();
+                var endBlock = dis.readLong();
+                var extentCount = dis.readInt();
+                var extents = new ArrayList<Extent>(extentCount);
+                for (var e = 0; e < extentCount; e++) {
+                    extents.add(readExtent(dis));
+                }
+                snapshotEntries.add(new SnapshotTable.Entry(
+                        new String(nameBytes, StandardCharsets.UTF_8), creationTime, extents, endBlock));
+            }
+        }
+        try {
+            snapshots.setAll(snapshotEntries);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid snapshot list", e);
+        }
+
+        // Read the block hash index, absent in older containers
+        var hashes = new TreeMap<Long, Long>();
+        if (dis.available() >= Integer.BYTES) {
+            var hashCount = dis.readInt();
+            for (var i = 0; i < hashCount; i++) {
+                var block = dis.readLong();
+                hashes.put(block, dis.readLong());
+            }
+        }
+        dedupIndex.setEntries(hashes);
+
+        // Read compression settings and chunk maps, absent in older containers
+        if (dis.available() >= Integer.BYTES) {
+            var compressedCount = dis.readInt();
+            for (var i = 0; i < compressedCount; i++) {
+                var inodeId = dis.readLong();
+                var inode = inodeTable.get(inodeId)
+                        .orElseThrow(() -> new IOException("Chunk map for unknown inode " + inodeId));
+                var chunkBlocks = dis.readInt();
+                var chunkCount = dis.readInt();
+                if (chunkBlocks <= 0 || chunkCount < 0 || chunkCount > dis.available() / Integer.BYTES) {
+                    throw new IOException("Invalid chunk map for inode " + inodeId);
+                }
+                var lengths = new int[chunkCount];
+                for (var c = 0; c < chunkCount; c++) {
+                    lengths[c] = dis.readInt();
+                }
+                inode.setChunkBlocks(chunkBlocks);
+                inode.setChunkLengths(lengths);
+            }
+        }
+
+        // Read the generation and location of the metadata log, absent in older containers
+        var logExtent = (Extent) null;
+        var generation = 0L;
+        if (dis.available() >= Long.BYTES + Integer.BYTES + Long.BYTES) {
+            generation = dis.readLong();
+            var logBlocks = dis.readInt();
+            var logStart = dis.readLong();
+            if (logBlocks > 0) {
+                logExtent = new Extent(logStart, logBlocks);
+            }
+        }
+        log.reset(logExtent, generation);
+
+        // What was just read is the persisted state
+        inodeTable.takeChanges();
+        directoryTable.takeChanges();
+    }
+
+    /**
+     * Applies the changes of a {@link MetadataLog} record written by {@link #serializeChanges}.
+     */
+    public static void applyChanges(byte[] data, InodeTable inodeTable, DirectoryTable directoryTable,
+                                    BlockAllocator spaceManager, RefCounts refCounts, DedupIndex dedupIndex)
+            throws IOException {
+        var dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        var changedCount = dis.readInt();
+        var inodes = new ArrayList<Inode>();
+        var entries = new ArrayList<DirectoryEntry>();
+        for (var i = 0; i < changedCount; i++) {
+            var id = dis.readLong();
+            // Old entries go first, so that a name passed from one inode to another is free again
+            directoryTable.getEntryForChild(id)
+                    .ifPresent(entry -> directoryTable.removeEntry(entry.parentId(), entry.name()));
+            if (!dis.readBoolean()) {
+                if (id != InodeTable.ROOT_INODE_ID) {
+                    inodeTable.remove(id);
+                }
+                continue;
+            }
+            var inode = readInode(dis);
+            if (inode.getId() != id) {
+                throw new IOException("Changed inode " + inode.getId() + " logged as " + id);
+            }
+            readInodeDetails(dis, inode);
+            inodes.add(inode);
+            if (dis.readBoolean()) {
+                entries.add(readDirectoryEntry(dis));
+            }
+        }
+        for (var inode : inodes) {
+            inodeTable.registerInode(inode);
+        }
+        for (var entry : entries) {
+            directoryTable.addEntry(entry);
+        }
+
+        var rangeCount = dis.readInt();
+        if (rangeCount > 0 && spaceManager instanceof BitmapAllocator) {
+            throw new IOException("Free extents logged for a container with a free-space bitmap");
+        }
+        for (var i = 0; i < rangeCount; i++) {
+            var range = readExtent(dis);
+            var freeCount = dis.readInt();
+            var free = new ArrayList<Extent>(freeCount);
+            for (var j = 0; j < freeCount; j++) {
+                free.add(readExtent(dis));
+            }
+            try {
+                spaceManager.replaceFreeExtents(range, free);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupted free extents logged for " + range, e);
+            }
+        }
+
+        if (dis.readBoolean()) {
+            readSharedRanges(dis, refCounts);
+        }
+
+        var indexedCount = dis.readInt();
+        for (var i = 0; i < indexedCount; i++) {
+            var block = dis.readLong();
+            dedupIndex.put(dis.readLong(), block);
+        }
+
+        inodeTable.takeChanges();
+        directoryTable.takeChanges();
+        dedupIndex.takeAdded();
+        spaceManager.takeChangedRanges();
+    }
+
+    /**
+     * Writes what the checkpoint keeps of an inode in sections of their own: unwritten ranges, the
+     * inline tail and the chunk map.
+     */
+    private static void writeInodeDetails(DataOutputStream dos, Inode inode) throws IOException {
+        var ranges = inode.getUnwrittenRanges();
+        dos.writeInt(ranges.size());
+        for (var range : ranges) {
+            writeExtent(dos, range);
+        }
+        var tail = inode.getInlineTail();
+        dos.writeInt(tail != null ? tail.length : 0);
+        if (tail != null) {
+            dos.write(tail);
+        }
+        var lengths = inode.getChunkLengths();
+        dos.writeInt(inode.getChunkBlocks());
+        dos.writeInt(lengths.length);
+        for (var length : lengths) {
+            dos.writeInt(length);
+        }
+    }
+
+    private static void readInodeDetails(DataInputStream dis, Inode inode) throws IOException {
+        var rangeCount = dis.readInt();
+        for (var r = 0; r < rangeCount; r++) {
+            var range = readExtent(dis);
+            inode.markUnwritten(range.startBlock(), range.blockCount());
+        }
+        var tailLength = dis.readInt();
+        if (tailLength < 0 || tailLength > dis.available()) {
+            throw new IOException("Invalid inline tail length " + tailLength + " for inode " + inode.getId());
+        }
+        var tail = new byte[tailLength];
+        dis.readFully(tail);
+        inode.setInlineTail(tail);
+        var chunkBlocks = dis.readInt();
+        var chunkCount = dis.readInt();
+        if (chunkBlocks < 0 || chunkCount < 0 || chunkCount > dis.available() / Integer.BYTES) {
+            throw new IOException("Invalid chunk map for inode " + inode.getId());
+        }
+        var lengths = new int[chunkCount];
+        for (var c = 0; c < chunkCount; c++) {
+            lengths[c] = dis.readInt();
+        }
+        inode.setChunkBlocks(chunkBlocks);
+        inode.setChunkLengths(lengths);
+    }
+
+    private static void writeSharedRanges(DataOutputStream dos, RefCounts refCounts) throws IOException {
+        var shared = refCounts.getRanges();
+        dos.writeInt(shared.size());
+        for (var range : shared) {
+            dos.writeLong(range.startBlock());
+            dos.writeLong(range.endBlock() - range.startBlock());
+            dos.writeInt(range.references());
+        }
+    }
+
+    private static void readSharedRanges(DataInputStream dis, RefCounts refCounts) throws IOException {
+        var shared = new ArrayList<RefCounts.Range>();
+        var sharedCount = dis.readInt();
+        for (var i = 0; i < sharedCount; i++) {
+            var startBlock = dis.readLong();
+            var blockCount = dis.readLong();
+            var references = dis.readInt();
+            try {
+                shared.add(new RefCounts.Range(startBlock, startBlock + blockCount, references));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid shared block range", e);
+            }
+        }
+        try {
+            refCounts.setRanges(shared);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid shared block ranges", e);
+        }
     }
 
     private static void writeInode(DataOutputStream dos, Inode inode) throws IOException {
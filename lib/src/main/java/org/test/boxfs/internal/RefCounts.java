@@ -0,0 +1,240 @@
+package org.test.boxfs.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reference counts of container blocks that more than one file maps, as left behind by copy-on-write
+ * copies. A block that is not listed has a single owner, so a container without shared data keeps
+ * nothing here and a copy of a file costs one entry per extent, however large the file.
+ * <p>
+ * Shared blocks are kept as disjoint ranges ordered by start block, each with the number of files
+ * mapping it; neighbouring ranges with the same count are merged. Safe for concurrent use.
+ */
+public class RefCounts {
+
+    /**
+     * A range of shared blocks and the number of files mapping each of them.
+     */
+    public record Range(long startBlock, long endBlock, int references) {
+        public Range {
+            if (startBlock < 0 || endBlock <= startBlock) {
+                throw new IllegalArgumentException("Invalid shared range " + startBlock + ".." + endBlock);
+            }
+            if (references < 2) {
+                throw new IllegalArgumentException("A shared range has at least two references");
+            }
+        }
+    }
+
+    // Start block -> range starting there
+    private final TreeMap<Long, Range> ranges = new TreeMap<>();
+    // Bumped on every change, so a persisted copy can tell whether it is current
+    private long version;
+
+    /**
+     * Adds a reference to every block of {@code extent}, which must already be mapped by a file.
+     */
+    public synchronized void share(Extent extent) {
+        version++;
+        var start = extent.startBlock();
+        var end = extent.endBlock();
+        split(start);
+        split(end);
+        for (var cursor = start; cursor < end; ) {
+            var range = ranges.get(cursor);
+            if (range != null) {
+                ranges.put(cursor, new Range(cursor, range.endBlock(), range.references() + 1));
+                cursor = range.endBlock();
+            } else {
+                var next = ranges.ceilingKey(cursor);
+                var gapEnd = next == null ? end : Math.min(end, next);
+                ranges.put(cursor, new Range(cursor, gapEnd, 2));
+                cursor = gapEnd;
+            }
+        }
+        mergeAround(start, end);
+    }
+
+    /**
+     * Drops a reference to every block of {@code extent}.
+     *
+     * @return the blocks whose last reference this was, ordered by start block
+     */
+    public synchronized List<Extent> release(Extent extent) {
+        var start = extent.startBlock();
+        var end = extent.endBlock();
+        var unreferenced = new ArrayList<Extent>();
+        if (ranges.isEmpty()) {
+            unreferenced.add(extent);
+            return unreferenced;
+        }
+        version++;
+        split(start);
+        split(end);
+        for (var cursor = start; cursor < end; ) {
+            var range = ranges.get(cursor);
+            if (range != null) {
+                if (range.references() == 2) {
+                    ranges.remove(cursor);
+                } else {
+                    ranges.put(cursor, new Range(cursor, range.endBlock(), range.references() - 1));
+                }
+                cursor = range.endBlock();
+            } else {
+                var next = ranges.ceilingKey(cursor);
+                var gapEnd = next == null ? end : Math.min(end, next);
+                unreferenced.add(new Extent(cursor, (int) (gapEnd - cursor)));
+                cursor = gapEnd;
+            }
+        }
+        mergeAround(start, end);
+        return unreferenced;
+    }
+
+    public synchronized boolean isShared(long block) {
+        var range = ranges.floorEntry(block);
+        return range != null && range.getValue().endBlock() > block;
+    }
+
+    /**
+     * Returns true if any block of the given extents is shared.
+     */
+    public synchronized boolean anyShared(List<Extent> extents) {
+        for (var extent : extents) {
+            var range = ranges.lowerEntry(extent.endBlock());
+            if (range != null && range.getValue().endBlock() > extent.startBlock()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first block after {@code block} whose shared state differs from it,
+     * or {@link Long#MAX_VALUE} if there is none.
+     */
+    public synchronized long nextBoundary(long block) {
+        var range = ranges.floorEntry(block);
+        if (range != null && range.getValue().endBlock() > block) {
+            // A directly following range with another count is still shared
+            var end = range.getValue().endBlock();
+            while (ranges.containsKey(end)) {
+                end = ranges.get(end).endBlock();
+            }
+            return end;
+        }
+        var next = ranges.higherKey(block);
+        return next != null ? next : Long.MAX_VALUE;
+    }
+
+    /**
+     * Moves the counts of the shared blocks from {@code startBlock} on to the blocks of {@code targets},
+     * in order, after their contents were copied there.
+     */
+    public synchronized void relocate(long startBlock, List<Extent> targets) {
+        version++;
+        var length = targets.stream().mapToLong(Extent::blockCount).sum();
+        split(startBlock);
+        split(startBlock + length);
+        var moved = new ArrayList<>(ranges.subMap(startBlock, startBlock + length).values());
+        ranges.subMap(startBlock, startBlock + length).clear();
+        for (var range : moved) {
+            var offset = range.startBlock() - startBlock;
+            var remaining = range.endBlock() - range.startBlock();
+            var targetStart = 0L;
+            for (var target : targets) {
+                if (remaining == 0) {
+                    break;
+                }
+                if (offset >= targetStart + target.blockCount()) {
+                    targetStart += target.blockCount();
+                    continue;
+                }
+                var from = target.startBlock() + (offset - targetStart);
+                var count = Math.min(remaining, targetStart + target.blockCount() - offset);
+                ranges.put(from, new Range(from, from + count, range.references()));
+                offset += count;
+                remaining -= count;
+                targetStart += target.blockCount();
+            }
+        }
+        for (var target : targets) {
+            mergeAround(target.startBlock(), target.endBlock());
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * Returns a number that changes whenever the counts do.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the shared ranges ordered by start block.
+     */
+    public synchronized List<Range> getRanges() {
+        return new ArrayList<>(ranges.values());
+    }
+
+    /**
+     * Replaces all counts with the given ranges (used during deserialization).
+     */
+    public synchronized void setRanges(List<Range> newRanges) {
+        version++;
+        ranges.clear();
+        for (var range : newRanges) {
+            var overlapping = ranges.lowerEntry(range.endBlock());
+            if (overlapping != null && overlapping.getValue().endBlock() > range.startBlock()) {
+                throw new IllegalArgumentException("Shared ranges overlap at block " + range.startBlock());
+            }
+            ranges.put(range.startBlock(), range);
+        }
+    }
+
+    /**
+     * Splits the range containing {@code block}, if any, so that a range starts there.
+     */
+    private void split(long block) {
+        var entry = ranges.lowerEntry(block);
+        if (entry == null || entry.getValue().endBlock() <= block) {
+            return;
+        }
+        var range = entry.getValue();
+        ranges.put(range.startBlock(), new Range(range.startBlock(), block, range.references()));
+        ranges.put(block, new Range(block, range.endBlock(), range.references()));
+    }
+
+    /**
+     * Merges the ranges touching [start, end) with neighbours that continue them with the same count.
+     */
+    private void mergeAround(long start, long end) {
+        var entry = ranges.lowerEntry(start);
+        if (entry == null) {
+            entry = ranges.ceilingEntry(start);
+        }
+        while (entry != null && entry.getKey() <= end) {
+            var next = ranges.higherEntry(entry.getKey());
+            if (next != null && canMerge(entry, next)) {
+                var merged = new Range(entry.getKey(), next.getValue().endBlock(), entry.getValue().references());
+                ranges.remove(next.getKey());
+                ranges.put(entry.getKey(), merged);
+                entry = Map.entry(entry.getKey(), merged);
+            } else {
+                entry = next;
+            }
+        }
+    }
+
+    private static boolean canMerge(Map.Entry<Long, Range> first, Map.Entry<Long, Range> second) {
+        return first.getValue().endBlock() == second.getKey()
+                && first.getValue().references() == second.getValue().references();
+    }
+}
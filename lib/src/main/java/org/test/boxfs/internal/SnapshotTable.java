@@ -0,0 +1,82 @@
+package org.test.boxfs.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * The named snapshots of a container. Each snapshot keeps a frozen copy of the inode and directory
+ * tables in blocks of its own; the file data it refers to is shared with the live files through
+ * {@link RefCounts}, so nothing but metadata is stored per snapshot.
+ * <p>
+ * Snapshots are ordered by name. Safe for concurrent use.
+ */
+public class SnapshotTable {
+
+    /**
+     * A snapshot and where its metadata lives.
+     *
+     * @param name             unique name of the snapshot
+     * @param creationTime     when the snapshot was taken, in milliseconds since the epoch
+     * @param metadataExtents  blocks holding the serialized inode and directory tables
+     * @param endBlock         one past the highest block the snapshot refers to, data or metadata
+     */
+    public record Entry(String name, long creationTime, List<Extent> metadataExtents, long endBlock) {
+        public Entry {
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("Snapshot name must not be empty");
+            }
+            metadataExtents = List.copyOf(metadataExtents);
+        }
+    }
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Adds a snapshot.
+     *
+     * @throws IllegalArgumentException if a snapshot with the same name exists
+     */
+    public synchronized void add(Entry entry) {
+        if (entries.putIfAbsent(entry.name(), entry) != null) {
+            throw new IllegalArgumentException("Snapshot already exists: " + entry.name());
+        }
+    }
+
+    public synchronized Optional<Entry> get(String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    public synchronized Optional<Entry> remove(String name) {
+        return Optional.ofNullable(entries.remove(name));
+    }
+
+    /**
+     * Returns the snapshots ordered by name.
+     */
+    public synchronized List<Entry> getAll() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Returns one past the highest block any snapshot refers to, or 0 if there are no snapshots.
+     */
+    public synchronized long endBlock() {
+        return entries.values().stream().mapToLong(Entry::endBlock).max().orElse(0);
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Replaces all snapshots with the given ones (used during deserialization).
+     */
+    public synchronized void setAll(List<Entry> newEntries) {
+        entries.clear();
+        for (var entry : newEntries) {
+            add(entry);
+        }
+    }
+}
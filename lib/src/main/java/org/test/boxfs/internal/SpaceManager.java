@@ -4,15 +4,31 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Manages free space in the container using a free extent list.
- * Uses first-fit allocation and coalesces adjacent free extents.
+ * <p>
+ * Free extents are indexed twice: by start block, to coalesce a freed extent with its neighbours,
+ * and by size, to find the smallest extent that fits a request. Both operations are O(log n) in the
+ * number of free extents, and the free block total is kept as a running counter.
+ * <p>
+ * The block ranges allocated or freed are remembered, merged, until they are taken, so persisting a
+ * change to free space costs as much as the change rather than the whole list.
  */
-public class SpaceManager {
+public class SpaceManager implements BlockAllocator {
 
-    private final List<Extent> freeExtents = new ArrayList<>();
+    private static final Comparator<Extent> BY_SIZE = Comparator
+            .comparingInt(Extent::blockCount)
+            .thenComparingLong(Extent::startBlock);
+
+    private final TreeMap<Long, Extent> byStart = new TreeMap<>();
+    private final TreeSet<Extent> bySize = new TreeSet<>(BY_SIZE);
+    // Ranges allocated or freed since last taken: start block -> end block, merged when they touch
+    private final TreeMap<Long, Long> changedRanges = new TreeMap<>();
     private final long totalBlocks;
+    private long freeBlocks;
 
     public SpaceManager(long totalBlocks) {
         this.totalBlocks = totalBlocks;
@@ -22,205 +38,311 @@ public class SpaceManager {
      * Initializes free space for a new file system.
      * Reserves block 0 for metadata initially.
      */
-    public void initializeNew(int reservedBlocks) {
-        freeExtents.clear();
+    @Override
+    public synchronized void initializeNew(int reservedBlocks) {
+        clear();
         if (reservedBlocks < totalBlocks) {
-            freeExtents.add(new Extent(reservedBlocks, (int) (totalBlocks - reservedBlocks)));
+            insert(new Extent(reservedBlocks, (int) (totalBlocks - reservedBlocks)));
         }
+        changedRanges.clear();
     }
 
     /**
      * Sets the free extent list (used during deserialization).
      */
-    public void setFreeExtents(List<Extent> extents) {
-        freeExtents.clear();
-        freeExtents.addAll(extents);
-        sortAndCoalesce();
+    @Override
+    public synchronized void setFreeExtents(List<Extent> extents) {
+        clear();
+        for (var extent : extents) {
+            free(extent);
+        }
+        changedRanges.clear();
     }
 
     /**
-     * Returns a copy of the free extent list.
+     * Returns a copy of the free extent list, ordered by start block.
      */
-    public List<Extent> getFreeExtents() {
-        return new ArrayList<>(freeExtents);
+    @Override
+    public synchronized List<Extent> getFreeExtents() {
+        return new ArrayList<>(byStart.values());
     }
 
     /**
-     * Allocates a contiguous range of blocks using first-fit.
+     * Allocates a contiguous range of blocks using best-fit: the smallest free extent that is
+     * large enough, lowest start block first among equal sizes.
      *
      * @param blockCount number of blocks to allocate
      * @return the allocated extent, or empty if no space available
      */
-    public Optional<Extent> allocate(int blockCount) {
+    @Override
+    public synchronized Optional<Extent> allocate(int blockCount) {
         if (blockCount <= 0) {
             throw new IllegalArgumentException("blockCount must be positive");
         }
 
-        // First-fit: find first extent large enough
-        for (var i = 0; i < freeExtents.size(); i++) {
-            var free = freeExtents.get(i);
-            if (free.blockCount() >= blockCount) {
-                var allocated = new Extent(free.startBlock(), blockCount);
-
-                if (free.blockCount() == blockCount) {
-                    // Exact fit - remove the free extent
-                    freeExtents.remove(i);
-                } else {
-                    // Partial use - shrink the free extent
-                    freeExtents.set(i, new Extent(
-                            free.startBlock() + blockCount,
-                            free.blockCount() - blockCount
-                    ));
-                }
-
-                return Optional.of(allocated);
-            }
+        var free = bySize.ceiling(new Extent(0, blockCount));
+        if (free == null) {
+            return Optional.empty();
         }
+        return Optional.of(takeFrom(free, blockCount));
+    }
 
-        return Optional.empty();
+    /**
+     * Allocates the blocks starting exactly at {@code goalBlock} when they are all free, so a file can
+     * grow in place; otherwise falls back to best-fit.
+     */
+    @Override
+    public synchronized Optional<Extent> allocate(int blockCount, long goalBlock) {
+        var atGoal = takeAt(goalBlock, blockCount);
+        return atGoal != null ? Optional.of(atGoal) : allocate(blockCount);
     }
 
     /**
      * Allocates multiple extents to satisfy a block request.
-     * Used when a single contiguous extent is not available.
+     * A single best-fit extent is used when one is large enough; otherwise the request is split
+     * over the largest free extents, which keeps the number of fragments minimal.
      *
      * @param blockCount total blocks needed
      * @return list of allocated extents, or empty list if not enough space
      */
-    public List<Extent> allocateMultiple(int blockCount) {
+    @Override
+    public synchronized List<Extent> allocateMultiple(int blockCount) {
         if (blockCount <= 0) {
             throw new IllegalArgumentException("blockCount must be positive");
         }
 
-        // Check total free space first
-        var totalFree = getTotalFreeBlocks();
-        if (totalFree < blockCount) {
+        if (freeBlocks < blockCount) {
             return List.of();
         }
 
+        var single = allocate(blockCount);
+        if (single.isPresent()) {
+            return List.of(single.get());
+        }
+
         var allocated = new ArrayList<Extent>();
         var remaining = blockCount;
+        while (remaining > 0) {
+            var largest = bySize.last();
+            var toAllocate = Math.min(remaining, largest.blockCount());
+            allocated.add(takeFrom(largest, toAllocate));
+            remaining -= toAllocate;
+        }
+        return allocated;
+    }
 
-        while (remaining > 0 && !freeExtents.isEmpty()) {
-            var free = freeExtents.getFirst();
-            var toAllocate = Math.min(remaining, free.blockCount());
+    /**
+     * Like {@link #allocateMultiple(int)}, but first tries a single extent starting at {@code goalBlock}.
+     */
+    @Override
+    public synchronized List<Extent> allocateMultiple(int blockCount, long goalBlock) {
+        var atGoal = takeAt(goalBlock, blockCount);
+        return atGoal != null ? List.of(atGoal) : allocateMultiple(blockCount);
+    }
 
-            allocated.add(new Extent(free.startBlock(), toAllocate));
+    /**
+     * Frees a previously allocated extent, merging it with adjacent free extents.
+     *
+     * @throws IllegalArgumentException if the extent overlaps free space
+     */
+    @Override
+    public synchronized void free(Extent extent) {
+        var merged = extent;
 
-            if (free.blockCount() == toAllocate) {
-                freeExtents.removeFirst();
-            } else {
-                freeExtents.set(0, new Extent(
-                        free.startBlock() + toAllocate,
-                        free.blockCount() - toAllocate
-                ));
-            }
+        var before = byStart.floorEntry(extent.startBlock());
+        if (before != null && before.getValue().endBlock() > extent.startBlock()) {
+            throw new IllegalArgumentException("Extent overlaps free space: " + extent);
+        }
+        var after = byStart.ceilingEntry(extent.startBlock());
+        if (after != null && after.getKey() < extent.endBlock()) {
+            throw new IllegalArgumentException("Extent overlaps free space: " + extent);
+        }
 
-            remaining -= toAllocate;
+        if (before != null && before.getValue().endBlock() == extent.startBlock()) {
+            remove(before.getValue());
+            merged = before.getValue().mergeWith(merged);
         }
+        if (after != null && after.getKey() == extent.endBlock()) {
+            remove(after.getValue());
+            merged = merged.mergeWith(after.getValue());
+        }
+        insert(merged);
+        noteChange(extent);
+    }
 
-        if (remaining > 0) {
-            // Should not happen if we checked space, but handle gracefully
-            // Return blocks to free list
-            for (var extent : allocated) {
-                free(extent);
+    @Override
+    public synchronized List<Extent> takeChangedRanges() {
+        var ranges = new ArrayList<Extent>();
+        for (var range : changedRanges.entrySet()) {
+            for (var start = range.getKey(); start < range.getValue(); ) {
+                var count = (int) Math.min(range.getValue() - start, Integer.MAX_VALUE);
+                ranges.add(new Extent(start, count));
+                start += count;
             }
-            return List.of();
         }
+        changedRanges.clear();
+        return ranges;
+    }
 
-        return allocated;
+    @Override
+    public synchronized void markChanged(Extent range) {
+        noteChange(range);
+    }
+
+    @Override
+    public synchronized List<Extent> getFreeExtents(Extent range) {
+        var free = new ArrayList<Extent>();
+        for (var extent : overlapping(range)) {
+            var start = Math.max(extent.startBlock(), range.startBlock());
+            var end = Math.min(extent.endBlock(), range.endBlock());
+            free.add(new Extent(start, (int) (end - start)));
+        }
+        return free;
+    }
+
+    @Override
+    public synchronized void replaceFreeExtents(Extent range, List<Extent> extents) {
+        for (var extent : extents) {
+            if (extent.startBlock() < range.startBlock() || extent.endBlock() > range.endBlock()) {
+                throw new IllegalArgumentException("Free extent " + extent + " outside " + range);
+            }
+        }
+        // The whole range is allocated first, keeping the parts of free extents outside it
+        for (var extent : overlapping(range)) {
+            remove(extent);
+            if (extent.startBlock() < range.startBlock()) {
+                insert(new Extent(extent.startBlock(), (int) (range.startBlock() - extent.startBlock())));
+            }
+            if (extent.endBlock() > range.endBlock()) {
+                insert(new Extent(range.endBlock(), (int) (extent.endBlock() - range.endBlock())));
+            }
+        }
+        noteChange(range);
+        for (var extent : extents) {
+            free(extent);
+        }
     }
 
     /**
-     * Frees a previously allocated extent.
+     * Returns total free blocks.
      */
-    public void free(Extent extent) {
-        freeExtents.add(extent);
-        sortAndCoalesce();
+    @Override
+    public synchronized long getTotalFreeBlocks() {
+        return freeBlocks;
     }
 
     /**
-     * Frees multiple extents.
+     * Returns the largest contiguous free extent size.
      */
-    public void freeAll(List<Extent> extents) {
-        freeExtents.addAll(extents);
-        sortAndCoalesce();
+    @Override
+    public synchronized int getLargestFreeExtent() {
+        return bySize.isEmpty() ? 0 : bySize.last().blockCount();
     }
 
     /**
-     * Returns total free blocks.
+     * Returns the number of free extents.
      */
-    public long getTotalFreeBlocks() {
-        return freeExtents.stream()
-                .mapToLong(Extent::blockCount)
-                .sum();
+    public synchronized int getFreeExtentCount() {
+        return byStart.size();
     }
 
     /**
-     * Returns total used blocks.
+     * Checks if the specified blocks are free.
      */
-    public long getTotalUsedBlocks() {
-        return totalBlocks - getTotalFreeBlocks();
+    @Override
+    public synchronized boolean areFree(long startBlock, int blockCount) {
+        var containing = byStart.floorEntry(startBlock);
+        return containing != null && containing.getValue().endBlock() >= startBlock + blockCount;
     }
 
     /**
-     * Returns the largest contiguous free extent size.
+     * Returns total blocks managed.
      */
-    public int getLargestFreeExtent() {
-        return freeExtents.stream()
-                .mapToInt(Extent::blockCount)
-                .max()
-                .orElse(0);
+    @Override
+    public synchronized long getTotalBlocks() {
+        return totalBlocks;
     }
 
     /**
-     * Sorts free extents by start block and coalesces adjacent extents.
+     * Allocates the first {@code blockCount} blocks of a free extent, keeping the rest free.
      */
-    private void sortAndCoalesce() {
-        if (freeExtents.size() <= 1) {
-            return;
-        }
-
-        // Sort by start block
-        freeExtents.sort(Comparator.comparingLong(Extent::startBlock));
-
-        // Coalesce adjacent extents
-        var coalesced = new ArrayList<Extent>();
-        var current = freeExtents.getFirst();
-
-        for (var i = 1; i < freeExtents.size(); i++) {
-            var next = freeExtents.get(i);
-            if (current.endBlock() == next.startBlock()) {
-                // Adjacent - merge
-                current = current.mergeWith(next);
-            } else {
-                coalesced.add(current);
-                current = next;
-            }
+    private Extent takeFrom(Extent free, int blockCount) {
+        remove(free);
+        if (free.blockCount() > blockCount) {
+            insert(new Extent(free.startBlock() + blockCount, free.blockCount() - blockCount));
         }
-        coalesced.add(current);
-
-        freeExtents.clear();
-        freeExtents.addAll(coalesced);
+        var allocated = new Extent(free.startBlock(), blockCount);
+        noteChange(allocated);
+        return allocated;
     }
 
     /**
-     * Checks if the specified blocks are free.
+     * Allocates exactly [start, start + blockCount) if it lies within one free extent.
+     *
+     * @return the allocated extent, or null if any of the blocks is in use
      */
-    public boolean areFree(long startBlock, int blockCount) {
-        var endBlock = startBlock + blockCount;
-        for (var free : freeExtents) {
-            if (free.startBlock() <= startBlock && free.endBlock() >= endBlock) {
-                return true;
-            }
+    private Extent takeAt(long start, int blockCount) {
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("blockCount must be positive");
+        }
+        var containing = start >= 0 ? byStart.floorEntry(start) : null;
+        if (containing == null || containing.getValue().endBlock() < start + blockCount) {
+            return null;
+        }
+        var free = containing.getValue();
+        remove(free);
+        if (free.startBlock() < start) {
+            insert(new Extent(free.startBlock(), (int) (start - free.startBlock())));
+        }
+        if (free.endBlock() > start + blockCount) {
+            insert(new Extent(start + blockCount, (int) (free.endBlock() - start - blockCount)));
         }
-        return false;
+        var allocated = new Extent(start, blockCount);
+        noteChange(allocated);
+        return allocated;
     }
 
     /**
-     * Returns total blocks managed.
+     * Returns the free extents that share at least one block with {@code range}.
      */
-    public long getTotalBlocks() {
-        return totalBlocks;
+    private List<Extent> overlapping(Extent range) {
+        var first = byStart.floorEntry(range.startBlock());
+        var from = first != null && first.getValue().endBlock() > range.startBlock()
+                ? first.getKey() : range.startBlock();
+        return new ArrayList<>(byStart.subMap(from, true, range.endBlock(), false).values());
+    }
+
+    private void noteChange(Extent extent) {
+        var start = extent.startBlock();
+        var end = extent.endBlock();
+        var before = changedRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        for (var after = changedRanges.ceilingEntry(start); after != null && after.getKey() <= end;
+             after = changedRanges.ceilingEntry(start)) {
+            end = Math.max(end, after.getValue());
+            changedRanges.remove(after.getKey());
+        }
+        changedRanges.put(start, end);
+    }
+
+    private void insert(Extent extent) {
+        byStart.put(extent.startBlock(), extent);
+        bySize.add(extent);
+        freeBlocks += extent.blockCount();
+    }
+
+    private void remove(Extent extent) {
+        byStart.remove(extent.startBlock());
+        bySize.remove(extent);
+        freeBlocks -= extent.blockCount();
+    }
+
+    private void clear() {
+        byStart.clear();
+        bySize.clear();
+        freeBlocks = 0;
     }
 }
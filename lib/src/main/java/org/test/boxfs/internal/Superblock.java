@@ -6,31 +6,55 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.CRC32C;
 
 /**
  * The superblock stored at sector 0 of the container.
  * Contains bootstrap information for the file system.
+ * <p>
+ * Containers whose free space is tracked by a {@link BitmapAllocator} add the location of the bitmap
+ * after {@code totalBlocks} (format versions 2 and 4); containers with a free extent list leave it out
+ * (versions 1 and 3).
+ * <p>
+ * Versions 3 and 4 end the block with a generation number and a CRC-32C of everything before it. The
+ * container keeps two copies, written alternately, so a superblock write torn by a crash leaves the
+ * other copy, of the previous generation, intact; the valid copy with the higher generation is the
+ * current one. Versions 1 and 2 are still read, as generation 0 without a checksum.
  */
 public class Superblock {
 
     public static final int MIN_BLOCK_SIZE = 512;
+    // Bounds what a corrupt header can make a reader allocate before its checksum is verified
+    public static final int MAX_BLOCK_SIZE = 1 << 24;
     public static final int MAGIC = 0x424F5846; // "BOXF"
     public static final int VERSION = 1;
+    public static final int VERSION_FREE_SPACE_BITMAP = 2;
+    public static final int VERSION_GENERATIONS = 3;
+    public static final int VERSION_GENERATIONS_FREE_SPACE_BITMAP = 4;
     public static final int DEFAULT_BLOCK_SIZE = 4096;
 
     // Header: magic(4) + version(4) + blockSize(4) + totalBlocks(8) + extentCount(4) = 24 bytes
     private static final int HEADER_FIXED_SIZE = 24;
+    // Version 2 adds bitmapStartBlock(8) + bitmapBlockCount(4)
+    private static final int BITMAP_FIELDS_SIZE = 12;
     // Each extent: startBlock(8) + blockCount(4) = 12 bytes
     private static final int EXTENT_SIZE = 12;
+    // At the end of the block: generation(8) + checksum(4)
+    private static final int TRAILER_SIZE = 12;
 
     private final int blockSize;
-    private final long totalBlocks;
+    private long totalBlocks;
     private final List<Extent> metadataExtents = new ArrayList<>();
+    private Extent freeSpaceBitmap;
+    private long generation;
 
   public Superblock(int blockSize, long totalBlocks) {
         if (blockSize < MIN_BLOCK_SIZE) {
             throw new IllegalArgumentException("blockSize must be at least " + MIN_BLOCK_SIZE);
         }
+        if (blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at most " + MAX_BLOCK_SIZE);
+        }
         if ((blockSize & (blockSize - 1)) != 0) {
             throw new IllegalArgumentException("blockSize must be a power of 2");
         }
@@ -49,12 +73,62 @@ public class Superblock {
         return totalBlocks;
     }
 
+    /**
+     * Changes the recorded container size, for example after the container was compacted.
+     */
+    public void setTotalBlocks(long totalBlocks) {
+        if (totalBlocks <= 0) {
+            throw new IllegalArgumentException("totalBlocks must be positive");
+        }
+        if (freeSpaceBitmap != null && freeSpaceBitmap.endBlock() > totalBlocks) {
+            throw new IllegalArgumentException("Free-space bitmap does not fit in the container");
+        }
+        this.totalBlocks = totalBlocks;
+    }
+
+    /**
+     * Returns the number of times the superblock was written; 0 for a container that predates it.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
     public List<Extent> getMetadataExtents() {
         return Collections.unmodifiableList(metadataExtents);
     }
 
+    /**
+     * Returns how many metadata extents a superblock written now can refer to.
+     */
     public int getMaxMetadataExtents() {
-        return (blockSize - HEADER_FIXED_SIZE) / EXTENT_SIZE;
+        return maxMetadataExtents(true);
+    }
+
+    // Versions 1 and 2 have no trailer, so their extents may run to the end of the block
+    private int maxMetadataExtents(boolean trailer) {
+        var headerSize = freeSpaceBitmap != null ? HEADER_FIXED_SIZE + BITMAP_FIELDS_SIZE : HEADER_FIXED_SIZE;
+        return (blockSize - headerSize - (trailer ? TRAILER_SIZE : 0)) / EXTENT_SIZE;
+    }
+
+    /**
+     * Returns the blocks holding the free-space bitmap, or null if free space is kept as an extent list.
+     */
+    public Extent getFreeSpaceBitmap() {
+        return freeSpaceBitmap;
+    }
+
+    public void setFreeSpaceBitmap(Extent freeSpaceBitmap) {
+        if (freeSpaceBitmap != null && freeSpaceBitmap.endBlock() > totalBlocks) {
+            throw new IllegalArgumentException("Free-space bitmap does not fit in the container");
+        }
+        this.freeSpaceBitmap = freeSpaceBitmap;
+        if (metadataExtents.size() > getMaxMetadataExtents()) {
+            throw new IllegalStateException("Too many metadata extents for a superblock with a free-space bitmap");
+        }
     }
 
     public void setMetadataExtents(List<Extent> extents) {
@@ -77,13 +151,20 @@ public class Superblock {
      * Serializes the superblock to a byte buffer.
      */
     public byte[] serialize() {
+        if (metadataExtents.size() > getMaxMetadataExtents()) {
+            throw new IllegalStateException("Metadata extents read from an older version must be replaced first");
+        }
         var buffer = ByteBuffer.allocate(blockSize);
         buffer.order(ByteOrder.BIG_ENDIAN);
 
         buffer.putInt(MAGIC);
-        buffer.putInt(VERSION);
+        buffer.putInt(freeSpaceBitmap != null ? VERSION_GENERATIONS_FREE_SPACE_BITMAP : VERSION_GENERATIONS);
         buffer.putInt(blockSize);
         buffer.putLong(totalBlocks);
+        if (freeSpaceBitmap != null) {
+            buffer.putLong(freeSpaceBitmap.startBlock());
+            buffer.putInt(freeSpaceBitmap.blockCount());
+        }
         buffer.putInt(metadataExtents.size());
 
         for (var extent : metadataExtents) {
@@ -91,15 +172,15 @@ public class Superblock {
             buffer.putInt(extent.blockCount());
         }
 
-        while (buffer.position() < blockSize) {
-            buffer.put((byte) 0);
-        }
-
+        buffer.putLong(blockSize - TRAILER_SIZE, generation);
+        buffer.putInt(blockSize - Integer.BYTES, checksum(buffer.array(), blockSize));
         return buffer.array();
     }
 
     /**
-     * Deserializes a superblock from a byte array.
+     * Deserializes a superblock from a byte array holding at least its whole block.
+     *
+     * @throws IOException if the data is not a superblock, or its checksum does not match
      */
     public static Superblock deserialize(byte[] data) throws IOException {
         if (data.length < HEADER_FIXED_SIZE) {
@@ -115,16 +196,38 @@ public class Superblock {
         }
 
         var version = buffer.getInt();
-        if (version != VERSION) {
+        if (version < VERSION || version > VERSION_GENERATIONS_FREE_SPACE_BITMAP) {
             throw new IOException("Unsupported version: " + version);
         }
 
         var blockSize = buffer.getInt();
         var totalBlocks = buffer.getLong();
-        var extentCount = buffer.getInt();
+        if (!isValidBlockSize(blockSize) || totalBlocks <= 0) {
+            throw new IOException("Invalid superblock geometry: blockSize " + blockSize + ", totalBlocks " + totalBlocks);
+        }
 
         var superblock = new Superblock(blockSize, totalBlocks);
-        int maxExtents = superblock.getMaxMetadataExtents();
+        if (version >= VERSION_GENERATIONS) {
+            if (data.length < blockSize) {
+                throw new IOException("Superblock data too short");
+            }
+            if (buffer.getInt(blockSize - Integer.BYTES) != checksum(data, blockSize)) {
+                throw new IOException("Superblock checksum mismatch");
+            }
+            superblock.generation = buffer.getLong(blockSize - TRAILER_SIZE);
+        }
+        if (version == VERSION_FREE_SPACE_BITMAP || version == VERSION_GENERATIONS_FREE_SPACE_BITMAP) {
+            var bitmapStart = buffer.getLong();
+            var bitmapBlocks = buffer.getInt();
+            try {
+                superblock.setFreeSpaceBitmap(new Extent(bitmapStart, bitmapBlocks));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid free-space bitmap location", e);
+            }
+        }
+        var extentCount = buffer.getInt();
+
+        int maxExtents = superblock.maxMetadataExtents(version >= VERSION_GENERATIONS);
 
         if (extentCount < 0 || extentCount > maxExtents) {
             throw new IOException("Invalid metadata extent count: " + extentCount + " (max " + maxExtents + ")");
@@ -133,12 +236,39 @@ public class Superblock {
         for (var i = 0; i < extentCount; i++) {
             var startBlock = buffer.getLong();
             var blockCount = buffer.getInt();
-            superblock.addMetadataExtent(new Extent(startBlock, blockCount));
+            superblock.metadataExtents.add(new Extent(startBlock, blockCount));
         }
 
         return superblock;
     }
 
+    /**
+     * Reads the block size from the start of a superblock without validating the rest.
+     *
+     * @return the block size, or -1 if {@code data} does not start with a superblock header
+     */
+    public static int peekBlockSize(byte[] data) {
+        if (data.length < HEADER_FIXED_SIZE) {
+            return -1;
+        }
+        var buffer = ByteBuffer.wrap(data);
+        var blockSize = buffer.getInt(8);
+        if (buffer.getInt(0) != MAGIC || !isValidBlockSize(blockSize)) {
+            return -1;
+        }
+        return blockSize;
+    }
+
+    private static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && (blockSize & (blockSize - 1)) == 0;
+    }
+
+    private static int checksum(byte[] block, int blockSize) {
+        var crc = new CRC32C();
+        crc.update(block, 0, blockSize - Integer.BYTES);
+        return (int) crc.getValue();
+    }
+
     /**
      * Returns the byte offset for a given block number.
      */
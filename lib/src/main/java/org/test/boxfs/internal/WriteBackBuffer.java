@@ -0,0 +1,356 @@
+package org.test.boxfs.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Dirty-block write-back layer for {@link ContainerIO}.
+ * <p>
+ * Writes are copied into per-block buffers that track the dirty byte range of each block, and return
+ * without touching the container. A background flusher writes dirty blocks back in ascending block order,
+ * merging physically adjacent blocks into single large writes. Blocks are flushed once they are older than
+ * the age limit, or all at once when the dirty byte total passes the threshold. Reads overlay dirty bytes
+ * on top of what the container returns, so callers always see their own writes.
+ * <p>
+ * A container read and its overlay run between {@link #beginRead} and {@link #endRead}, which keeps the
+ * flusher from dropping blocks meanwhile: a block is then either still buffered, or was written to the
+ * container before the read began.
+ */
+public class WriteBackBuffer implements Closeable {
+
+  /**
+   * Access to the underlying container, bypassing this buffer.
+   */
+  interface Backend {
+    void read(long block, int offsetInBlock, ByteBuffer dest) throws IOException;
+
+    void write(long block, int offsetInBlock, ByteBuffer src) throws IOException;
+  }
+
+  // Upper bound on the size of a single merged write
+  static final int MAX_BATCH_BYTES = 1 << 20;
+
+  private final Backend backend;
+  private final BufferPool bufferPool;
+  private final int blockSize;
+  private final long maxDirtyBytes;
+  private final long maxAgeNanos;
+  private final TreeMap<Long, DirtyBlock> dirtyBlocks = new TreeMap<>();
+  private final Object flushLock = new Object();
+  // Shared by readers between their container read and overlay, exclusive while flushed blocks are dropped
+  private final ReentrantReadWriteLock readLock = new ReentrantReadWriteLock();
+  private final Thread flusher;
+  private long dirtyBytes;
+  private long flushedWrites;
+  private long flushedBlocks;
+  private IOException backgroundFailure;
+  private boolean closed;
+
+  WriteBackBuffer(Backend backend, BufferPool bufferPool, int blockSize, long maxDirtyBytes, long maxAgeMillis) {
+    if (maxDirtyBytes < blockSize) {
+      throw new IllegalArgumentException("Dirty threshold must hold at least one block");
+    }
+    if (maxAgeMillis <= 0) {
+      throw new IllegalArgumentException("Age limit must be positive");
+    }
+    this.backend = backend;
+    this.bufferPool = bufferPool;
+    this.blockSize = blockSize;
+    this.maxDirtyBytes = maxDirtyBytes;
+    this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    this.flusher = Thread.ofPlatform().daemon().name("boxfs-writeback").start(this::runFlusher);
+  }
+
+  /**
+   * Buffers {@code length} bytes from {@code src} at the given block and offset, advancing its position.
+   * The range may span several blocks.
+   */
+  public void write(long block, int offsetInBlock, ByteBuffer src, int length) throws IOException {
+    var flushNow = false;
+    synchronized (this) {
+      checkNotClosed();
+      var remaining = length;
+      while (remaining > 0) {
+        var n = Math.min(remaining, blockSize - offsetInBlock);
+        writeToBlock(block, offsetInBlock, src, n);
+        remaining -= n;
+        block++;
+        offsetInBlock = 0;
+      }
+
+      if (dirtyBytes > maxDirtyBytes) {
+        notifyAll();
+      }
+      // Back-pressure: writers flush themselves once the flusher falls far behind
+      flushNow = dirtyBytes > 2 * maxDirtyBytes;
+    }
+    if (flushNow) {
+      flush();
+    }
+  }
+
+  private void writeToBlock(long block, int offset, ByteBuffer src, int length) throws IOException {
+    var dirty = dirtyBlocks.get(block);
+    if (dirty == null) {
+      dirty = new DirtyBlock(new byte[blockSize], offset, offset + length, System.nanoTime());
+      dirtyBlocks.put(block, dirty);
+      dirtyBytes += blockSize;
+    } else {
+      // Keep a single dirty range per block: fill any gap with the container's current bytes
+      if (offset > dirty.to) {
+        backend.read(block, dirty.to, ByteBuffer.wrap(dirty.data, dirty.to, offset - dirty.to));
+      } else if (offset + length < dirty.from) {
+        var gapStart = offset + length;
+        backend.read(block, gapStart, ByteBuffer.wrap(dirty.data, gapStart, dirty.from - gapStart));
+      }
+      dirty.from = Math.min(dirty.from, offset);
+      dirty.to = Math.max(dirty.to, offset + length);
+      dirty.version++;
+    }
+    src.get(dirty.data, offset, length);
+  }
+
+  /**
+   * Starts a container read that is overlaid afterwards; must be paired with {@link #endRead}.
+   */
+  public void beginRead() {
+    readLock.readLock().lock();
+  }
+
+  public void endRead() {
+    readLock.readLock().unlock();
+  }
+
+  /**
+   * Copies dirty bytes over a range that was just read from the container, between {@link #beginRead}
+   * and {@link #endRead}.
+   *
+   * @param dest      buffer holding the container bytes; positions are absolute and left unchanged
+   * @param destIndex index in {@code dest} of the first byte of the range
+   */
+  public synchronized void overlay(long block, int offsetInBlock, ByteBuffer dest, int destIndex, int length) {
+    if (dirtyBlocks.isEmpty() || length <= 0) {
+      return;
+    }
+    var rangeStart = block * blockSize + offsetInBlock;
+    var rangeEnd = rangeStart + length;
+    var lastBlock = (rangeEnd - 1) / blockSize;
+
+    for (var entry : dirtyBlocks.subMap(block, true, lastBlock, true).entrySet()) {
+      var dirty = entry.getValue();
+      var dirtyStart = entry.getKey() * blockSize + dirty.from;
+      var dirtyEnd = entry.getKey() * blockSize + dirty.to;
+      var from = Math.max(rangeStart, dirtyStart);
+      var to = Math.min(rangeEnd, dirtyEnd);
+      if (from < to) {
+        var offsetInDirty = (int) (from - entry.getKey() * blockSize);
+        dest.put(destIndex + (int) (from - rangeStart), dirty.data, offsetInDirty, (int) (to - from));
+      }
+    }
+  }
+
+  /**
+   * Writes every dirty block back to the container.
+   */
+  public void flush() throws IOException {
+    synchronized (this) {
+      if (backgroundFailure != null) {
+        var failure = backgroundFailure;
+        backgroundFailure = null;
+        throw new IOException("Background write-back failed", failure);
+      }
+    }
+    flushOlderThan(Long.MAX_VALUE);
+  }
+
+  public synchronized boolean isDirty(long block) {
+    return dirtyBlocks.containsKey(block);
+  }
+
+  public synchronized long getDirtyBytes() {
+    return dirtyBytes;
+  }
+
+  /**
+   * Number of container writes issued by flushes so far.
+   */
+  public synchronized long getFlushedWrites() {
+    return flushedWrites;
+  }
+
+  public synchronized long getFlushedBlocks() {
+    return flushedBlocks;
+  }
+
+  private void flushOlderThan(long cutoffNanos) throws IOException {
+    synchronized (flushLock) {
+      var batch = snapshot(cutoffNanos);
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      var runStart = 0;
+      var runBytes = 0;
+      for (var i = 0; i < batch.size(); i++) {
+        var current = batch.get(i);
+        runBytes += current.data.length;
+        var next = i + 1 < batch.size() ? batch.get(i + 1) : null;
+        if (next == null || !current.continuesInto(next, blockSize) || runBytes + next.data.length > MAX_BATCH_BYTES) {
+          writeRun(batch, runStart, i, runBytes);
+          runStart = i + 1;
+          runBytes = 0;
+        }
+      }
+
+      readLock.writeLock().lock();
+      try {
+        synchronized (this) {
+          for (var flushed : batch) {
+            var dirty = dirtyBlocks.get(flushed.block);
+            // A block rewritten during the flush stays dirty for the next round
+            if (dirty != null && dirty.version == flushed.version) {
+              dirtyBlocks.remove(flushed.block);
+              dirtyBytes -= blockSize;
+            }
+          }
+          flushedBlocks += batch.size();
+        }
+      } finally {
+        readLock.writeLock().unlock();
+      }
+    }
+  }
+
+  private synchronized List<FlushEntry> snapshot(long cutoffNanos) {
+    var batch = new ArrayList<FlushEntry>();
+    for (var entry : dirtyBlocks.entrySet()) {
+      var dirty = entry.getValue();
+      if (cutoffNanos == Long.MAX_VALUE || dirty.dirtiedAt <= cutoffNanos) {
+        var data = new byte[dirty.to - dirty.from];
+        System.arraycopy(dirty.data, dirty.from, data, 0, data.length);
+        batch.add(new FlushEntry(entry.getKey(), dirty.from, data, dirty.version));
+      }
+    }
+    return batch;
+  }
+
+  private void writeRun(List<FlushEntry> batch, int first, int last, int runBytes) throws IOException {
+    var buffer = bufferPool.acquire(runBytes);
+    try {
+      for (var i = first; i <= last; i++) {
+        buffer.put(batch.get(i).data);
+      }
+      var head = batch.get(first);
+      backend.write(head.block, head.offset, buffer.flip());
+    } finally {
+      bufferPool.release(buffer);
+    }
+    synchronized (this) {
+      flushedWrites++;
+    }
+  }
+
+  private void runFlusher() {
+    while (true) {
+      long cutoff;
+      synchronized (this) {
+        try {
+          waitForWork();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (closed) {
+          return;
+        }
+        cutoff = dirtyBytes > maxDirtyBytes ? Long.MAX_VALUE : System.nanoTime() - maxAgeNanos;
+      }
+
+      try {
+        flushOlderThan(cutoff);
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          backgroundFailure = e instanceof IOException io ? io : new IOException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sleeps until the oldest dirty block reaches the age limit or the dirty threshold is exceeded.
+   */
+  private void waitForWork() throws InterruptedException {
+    while (!closed && dirtyBytes <= maxDirtyBytes) {
+      var oldest = oldestDirtyTime();
+      if (oldest == Long.MAX_VALUE) {
+        wait();
+        continue;
+      }
+      var waitNanos = oldest + maxAgeNanos - System.nanoTime();
+      if (waitNanos <= 0) {
+        return;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+    }
+  }
+
+  private long oldestDirtyTime() {
+    var oldest = Long.MAX_VALUE;
+    for (var dirty : dirtyBlocks.values()) {
+      oldest = Math.min(oldest, dirty.dirtiedAt);
+    }
+    return oldest;
+  }
+
+  private void checkNotClosed() throws IOException {
+    if (closed) {
+      throw new IOException("Write-back buffer is closed");
+    }
+  }
+
+  /**
+   * Flushes all dirty blocks and stops the background flusher.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  private static final class DirtyBlock {
+    final byte[] data;
+    final long dirtiedAt;
+    int from;
+    int to;
+    long version;
+
+    DirtyBlock(byte[] data, int from, int to, long dirtiedAt) {
+      this.data = data;
+      this.from = from;
+      this.to = to;
+      this.dirtiedAt = dirtiedAt;
+    }
+  }
+
+  private record FlushEntry(long block, int offset, byte[] data, long version) {
+    boolean continuesInto(FlushEntry next, int blockSize) {
+      return next.block == block + 1 && offset + data.length == blockSize && next.offset == 0;
+    }
+  }
+}
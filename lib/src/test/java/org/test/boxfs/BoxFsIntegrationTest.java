@@ -3,17 +3,27 @@ package org.test.boxfs;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
 import org.junit.jupiter.api.io.TempDir;
+import org.test.boxfs.internal.Extent;
+import org.test.boxfs.internal.Superblock;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -23,6 +33,7 @@ import static org.junit.jupiter.api.Assertions.*;
 class BoxFsIntegrationTest {
 
     private static final int BLOCK_SIZE = 4096;
+    private static final long MAX_BYTES_PER_READ = 64;
 
     @TempDir
     Path tempDir;
@@ -624,6 +635,1088 @@ class BoxFsIntegrationTest {
         }
     }
 
+    @Test
+    void memoryMappedContainer() throws IOException {
+        var mappedContainer = tempDir.resolve("mapped.box");
+        var mappedUri = URI.create("box:" + mappedContainer);
+        var data = randomData(BLOCK_SIZE * 5 + 123);
+
+        try (var mappedFs = FileSystems.newFileSystem(mappedUri,
+                Map.of("create", "true", "totalBlocks", 64L, "memoryMapped", "true"))) {
+            Files.write(mappedFs.getPath("/data.bin"), data);
+            Files.write(mappedFs.getPath("/data.bin"), "tail".getBytes(), StandardOpenOption.APPEND);
+        }
+
+        try (var mappedFs = FileSystems.newFileSystem(mappedUri, Map.of("memoryMapped", true))) {
+            var result = Files.readAllBytes(mappedFs.getPath("/data.bin"));
+            assertEquals(data.length + 4, result.length);
+            assertArrayEquals(data, Arrays.copyOf(result, data.length));
+            assertEquals("tail", new String(result, data.length, 4));
+        }
+    }
+
+    @Test
+    void blockCacheStaysCoherentWithWrites() throws IOException {
+        var cachedContainer = tempDir.resolve("cached.box");
+        var cachedUri = URI.create("box:" + cachedContainer);
+
+        try (var cachedFs = FileSystems.newFileSystem(cachedUri,
+                Map.of("create", "true", "totalBlocks", 64L, "cacheSize", 8L * BLOCK_SIZE, "cachePolicy", "lru"))) {
+            var first = cachedFs.getPath("/first.bin");
+            var data = randomData(BLOCK_SIZE * 3);
+            Files.write(first, data);
+            assertArrayEquals(data, Files.readAllBytes(first));
+
+            try (var channel = Files.newByteChannel(first, StandardOpenOption.WRITE)) {
+                channel.position(BLOCK_SIZE - 2);
+                channel.write(ByteBuffer.wrap("patch".getBytes()));
+            }
+            System.arraycopy("patch".getBytes(), 0, data, BLOCK_SIZE - 2, 5);
+            assertArrayEquals(data, Files.readAllBytes(first));
+
+            // Freed blocks are reused by the next file; cached copies must reflect the new content
+            Files.delete(first);
+            var second = cachedFs.getPath("/second.bin");
+            var other = randomData(BLOCK_SIZE * 3 + 1);
+            Files.write(second, other);
+            assertArrayEquals(other, Files.readAllBytes(second));
+            assertTrue((long) Files.getFileStore(second).getAttribute("cacheHits") > 0);
+        }
+    }
+
+    @Test
+    void writeBackContainerSurvivesReopen() throws IOException {
+        var bufferedContainer = tempDir.resolve("writeback.box");
+        var bufferedUri = URI.create("box:" + bufferedContainer);
+        var data = randomData(BLOCK_SIZE * 6 + 17);
+
+        try (var bufferedFs = FileSystems.newFileSystem(bufferedUri,
+                Map.of("create", "true", "totalBlocks", 64L, "writeBack", "true", "cacheSize", 4L * BLOCK_SIZE))) {
+            var file = bufferedFs.getPath("/data.bin");
+            try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (var offset = 0; offset < data.length; offset += 100) {
+                    channel.write(ByteBuffer.wrap(data, offset, Math.min(100, data.length - offset)));
+                }
+            }
+            assertArrayEquals(data, Files.readAllBytes(file));
+            assertTrue((long) Files.getFileStore(file).getAttribute("dirtyBytes") > 0);
+        }
+
+        try (var bufferedFs = FileSystems.newFileSystem(bufferedUri, Map.of())) {
+            assertArrayEquals(data, Files.readAllBytes(bufferedFs.getPath("/data.bin")));
+        }
+    }
+
+    @Test
+    void bitmapAllocatorContainerSurvivesReopen() throws IOException {
+        var bitmapContainer = tempDir.resolve("bitmap.box");
+        var bitmapUri = URI.create("box:" + bitmapContainer);
+        var data = randomData(BLOCK_SIZE * 9 + 5);
+
+        long freeSpace;
+        try (var bitmapFs = FileSystems.newFileSystem(bitmapUri,
+                Map.of("create", "true", "totalBlocks", 256L, "allocator", "bitmap"))) {
+            for (var i = 0; i < 8; i++) {
+                Files.write(bitmapFs.getPath("/file" + i), data);
+            }
+            for (var i = 0; i < 8; i += 2) {
+                Files.delete(bitmapFs.getPath("/file" + i));
+            }
+            freeSpace = Files.getFileStore(bitmapFs.getPath("/")).getUnallocatedSpace();
+        }
+
+        try (var bitmapFs = FileSystems.newFileSystem(bitmapUri, Map.of())) {
+            assertEquals(freeSpace, Files.getFileStore(bitmapFs.getPath("/")).getUnallocatedSpace());
+            for (var i = 1; i < 8; i += 2) {
+                assertArrayEquals(data, Files.readAllBytes(bitmapFs.getPath("/file" + i)));
+            }
+            // Freed space is reused without touching the surviving files
+            Files.write(bitmapFs.getPath("/again"), data);
+            assertArrayEquals(data, Files.readAllBytes(bitmapFs.getPath("/file1")));
+        }
+
+        try (var bitmapFs = FileSystems.newFileSystem(bitmapUri, Map.of())) {
+            assertArrayEquals(data, Files.readAllBytes(bitmapFs.getPath("/again")));
+        }
+    }
+
+    @Test
+    void parallelWritersToDifferentFiles() throws Exception {
+        var groupedContainer = tempDir.resolve("groups.box");
+        var writers = 4;
+        var chunk = BLOCK_SIZE / 2 + 3;
+        var contents = new ArrayList<byte[]>();
+        for (var i = 0; i < writers; i++) {
+            contents.add(randomData(chunk * 50));
+        }
+
+        try (var groupedFs = FileSystems.newFileSystem(URI.create("box:" + groupedContainer),
+                Map.of("create", "true", "totalBlocks", 4096L, "allocationGroups", writers))) {
+            var failures = new ArrayList<Throwable>();
+            var threads = new ArrayList<Thread>();
+            for (var i = 0; i < writers; i++) {
+                var file = groupedFs.getPath("/writer" + i);
+                var data = contents.get(i);
+                var thread = new Thread(() -> {
+                    try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        for (var offset = 0; offset < data.length; offset += chunk) {
+                            channel.write(ByteBuffer.wrap(data, offset, chunk));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+            assertEquals(List.of(), failures);
+
+            for (var i = 0; i < writers; i++) {
+                assertArrayEquals(contents.get(i), Files.readAllBytes(groupedFs.getPath("/writer" + i)));
+            }
+        }
+
+        try (var groupedFs = FileSystems.newFileSystem(URI.create("box:" + groupedContainer), Map.of("allocationGroups", 3))) {
+            for (var i = 0; i < writers; i++) {
+                assertArrayEquals(contents.get(i), Files.readAllBytes(groupedFs.getPath("/writer" + i)));
+            }
+        }
+    }
+
+    @Test
+    void delayedAllocationKeepsInterleavedFilesContiguous() throws IOException {
+        assertEquals(List.of(1, 1), writeInterleaved(fs, 32));
+
+        var eagerContainer = tempDir.resolve("eager.box");
+        try (var eagerFs = FileSystems.newFileSystem(URI.create("box:" + eagerContainer),
+                Map.of("create", "true", "totalBlocks", 256L, "delayedAllocationMax", 0L))) {
+            assertTrue(writeInterleaved(eagerFs, 32).stream().allMatch(count -> count > 1));
+        }
+    }
+
+    /**
+     * Writes two files in alternating 8 KiB chunks and returns their extent counts once closed.
+     */
+    private List<Integer> writeInterleaved(FileSystem fileSystem, int chunks) throws IOException {
+        var files = List.of(fileSystem.getPath("/first.bin"), fileSystem.getPath("/second.bin"));
+        var contents = List.of(randomData(chunks * 8192), randomData(chunks * 8192));
+        try (var first = Files.newByteChannel(files.get(0), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var second = Files.newByteChannel(files.get(1), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (var i = 0; i < chunks; i++) {
+                first.write(ByteBuffer.wrap(contents.get(0), i * 8192, 8192));
+                second.write(ByteBuffer.wrap(contents.get(1), i * 8192, 8192));
+            }
+            // Buffered data is visible before it has blocks
+            assertArrayEquals(contents.get(0), Files.readAllBytes(files.get(0)));
+        }
+
+        var boxFs = (BoxFileSystem) fileSystem;
+        var extentCounts = new ArrayList<Integer>();
+        for (var i = 0; i < files.size(); i++) {
+            assertArrayEquals(contents.get(i), Files.readAllBytes(files.get(i)));
+            extentCounts.add(boxFs.resolvePathToInode((BoxPath) files.get(i)).orElseThrow().getExtentCount());
+        }
+        return extentCounts;
+    }
+
+    @Test
+    void defragmentMovesFragmentedFilesIntoSingleExtents() throws Exception {
+        var fragmentedContainer = tempDir.resolve("fragmented.box");
+        var env = Map.of("create", "true", "totalBlocks", 1024L, "delayedAllocationMax", 0L,
+                "defragBytesPerSecond", 4L * 1024 * 1024);
+        List<byte[]> contents;
+        try (var fragmentedFs = FileSystems.newFileSystem(URI.create("box:" + fragmentedContainer), env)) {
+            assertEquals(List.of(32, 32), writeInterleaved(fragmentedFs, 32));
+            var files = List.of(fragmentedFs.getPath("/first.bin"), fragmentedFs.getPath("/second.bin"));
+            contents = List.of(Files.readAllBytes(files.get(0)), Files.readAllBytes(files.get(1)));
+            var store = Files.getFileStore(files.get(0));
+            var freeBefore = store.getUnallocatedSpace();
+
+            var startNanos = System.nanoTime();
+            var report = ((BoxFileSystem) fragmentedFs).defragment().get();
+            var elapsedNanos = System.nanoTime() - startNanos;
+
+            assertEquals(new DefragReport(2, 2, 64, 2, 2L * 32 * 8192), report);
+            assertTrue(elapsedNanos >= report.bytesMoved() * 1_000_000_000L / (4L * 1024 * 1024),
+                    "copying stays within the budget");
+            assertEquals(freeBefore, store.getUnallocatedSpace());
+            for (var i = 0; i < files.size(); i++) {
+                assertArrayEquals(contents.get(i), Files.readAllBytes(files.get(i)));
+            }
+            assertEquals(new DefragReport(0, 0, 0, 0, 0), ((BoxFileSystem) fragmentedFs).defragment().get());
+        }
+
+        try (var reopened = FileSystems.newFileSystem(URI.create("box:" + fragmentedContainer), Map.of())) {
+            var path = reopened.getPath("/second.bin");
+            assertArrayEquals(contents.get(1), Files.readAllBytes(path));
+            assertEquals(1, ((BoxFileSystem) reopened).resolvePathToInode((BoxPath) path).orElseThrow().getExtentCount());
+        }
+    }
+
+    @Test
+    void onlineVacuumShrinksInBudgetedSteps() throws IOException {
+        var boxFs = (BoxFileSystem) fs;
+        var data = randomData(BLOCK_SIZE * 4 + 100);
+        for (var i = 0; i < 32; i++) {
+            Files.write(fs.getPath("/f" + i), data);
+        }
+        for (var i = 0; i < 32; i++) {
+            if (i % 8 != 7) {
+                Files.delete(fs.getPath("/f" + i));
+            }
+        }
+        var totalBefore = boxFs.getTotalBlocks();
+
+        var budget = BLOCK_SIZE * 6L;
+        var steps = 0;
+        VacuumReport report;
+        do {
+            report = boxFs.vacuum(budget, data.length);
+            assertTrue(report.bytesMoved() <= budget);
+            assertEquals((report.blocksAfter() + 1) * BLOCK_SIZE, Files.size(container));
+            // The file system stays usable between steps
+            assertArrayEquals(data, Files.readAllBytes(fs.getPath("/f7")));
+            steps++;
+        } while (!report.complete() && steps < 100);
+
+        assertTrue(report.complete());
+        assertTrue(steps > 1, "compaction took " + steps + " steps");
+        assertTrue(boxFs.getTotalBlocks() < totalBefore / 4);
+        assertTrue(boxFs.getFreeBlocks() >= 5 && boxFs.getFreeBlocks() < 12, boxFs.getFreeBlocks() + " blocks left free");
+
+        Files.write(fs.getPath("/after"), data);
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of());
+        for (var i = 7; i < 32; i += 8) {
+            assertArrayEquals(data, Files.readAllBytes(fs.getPath("/f" + i)));
+        }
+        assertArrayEquals(data, Files.readAllBytes(fs.getPath("/after")));
+    }
+
+    @Test
+    void vacuumOfBitmapContainerSurvivesReopen() throws IOException {
+        var bitmapContainer = tempDir.resolve("bitmap-vacuum.box");
+        var bitmapUri = URI.create("box:" + bitmapContainer);
+        var data = randomData(BLOCK_SIZE * 3 + 17);
+
+        try (var bitmapFs = FileSystems.newFileSystem(bitmapUri,
+                Map.of("create", "true", "totalBlocks", 512L, "allocator", "bitmap"))) {
+            for (var i = 0; i < 20; i++) {
+                Files.write(bitmapFs.getPath("/file" + i), data);
+            }
+            for (var i = 0; i < 19; i++) {
+                Files.delete(bitmapFs.getPath("/file" + i));
+            }
+            var report = ((BoxFileSystem) bitmapFs).vacuum(Long.MAX_VALUE, data.length);
+            assertTrue(report.complete());
+            assertTrue(report.blocksAfter() < 20, "shrunk to " + report.blocksAfter() + " blocks");
+        }
+
+        try (var bitmapFs = FileSystems.newFileSystem(bitmapUri, Map.of())) {
+            assertArrayEquals(data, Files.readAllBytes(bitmapFs.getPath("/file19")));
+            Files.write(bitmapFs.getPath("/again"), data);
+            assertArrayEquals(data, Files.readAllBytes(bitmapFs.getPath("/file19")));
+            assertArrayEquals(data, Files.readAllBytes(bitmapFs.getPath("/again")));
+        }
+    }
+
+    @Test
+    void delayedAllocationReservesSpaceAtWriteTime() throws IOException {
+        var file = fs.getPath("/big.bin");
+        var store = Files.getFileStore(file);
+        var freeBefore = store.getUnallocatedSpace();
+
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(randomData(BLOCK_SIZE * 10)));
+            assertEquals(freeBefore - BLOCK_SIZE * 10L, store.getUnallocatedSpace());
+
+            var ex = assertThrows(IOException.class, () -> channel.write(ByteBuffer.wrap(randomData((int) freeBefore))));
+            assertTrue(ex.getMessage().contains("No space available"));
+
+            channel.truncate(BLOCK_SIZE * 4L + 1);
+            assertEquals(freeBefore - BLOCK_SIZE * 5L, store.getUnallocatedSpace());
+        }
+        // The last byte is kept inline in the inode once the channel is closed
+        assertEquals(freeBefore - BLOCK_SIZE * 4L, store.getUnallocatedSpace());
+        assertEquals(BLOCK_SIZE * 4L + 1, Files.size(file));
+    }
+
+    @Test
+    void directWritesLeaveBlocksReservedForDelayedData() throws IOException {
+        fs.close();
+        var reserveUri = URI.create("box:" + tempDir.resolve("reserve.box"));
+        fs = FileSystems.newFileSystem(reserveUri,
+                Map.of("create", "true", "totalBlocks", 256L, "delayedAllocationMax", BLOCK_SIZE * 16L));
+        var store = Files.getFileStore(fs.getPath("/"));
+        var delayedData = randomData(BLOCK_SIZE * 10);
+        try (var channel = Files.newByteChannel(fs.getPath("/delayed.bin"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(delayedData));
+            var free = store.getUnallocatedSpace();
+
+            // Too large to be delayed, so allocated right away; it would fit only into the reserved blocks
+            try (var direct = Files.newByteChannel(fs.getPath("/direct.bin"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                var ex = assertThrows(IOException.class,
+                        () -> direct.write(ByteBuffer.wrap(randomData((int) free + BLOCK_SIZE * 5))));
+                assertTrue(ex.getMessage().contains("No space available"));
+                direct.write(ByteBuffer.wrap(randomData((int) free - BLOCK_SIZE)));
+            }
+        }
+        fs.close();
+
+        fs = FileSystems.newFileSystem(reserveUri, Map.of());
+        assertArrayEquals(delayedData, Files.readAllBytes(fs.getPath("/delayed.bin")));
+    }
+
+    @Test
+    void sparseFileAllocatesOnlyTheBlocksItWrites() throws IOException {
+        var file = fs.getPath("/sparse.bin");
+        var store = Files.getFileStore(file);
+        var freeBefore = store.getUnallocatedSpace();
+        var head = randomData(10);
+        var tail = randomData(BLOCK_SIZE + 10);
+        var middle = randomData(3);
+        // Far larger than the container, which only has 256 blocks
+        var tailPosition = 1000L * BLOCK_SIZE + 5;
+
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(head));
+            channel.position(tailPosition).write(ByteBuffer.wrap(tail));
+            channel.position(500L * BLOCK_SIZE).write(ByteBuffer.wrap(new byte[BLOCK_SIZE]));
+        }
+        assertEquals(tailPosition + tail.length, Files.size(file));
+        // One block for the head and one for the tail, whose last 15 bytes are kept inline
+        assertEquals(freeBefore - 2L * BLOCK_SIZE, store.getUnallocatedSpace());
+
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.position(20L * BLOCK_SIZE + 100).write(ByteBuffer.wrap(middle));
+        }
+        assertEquals(freeBefore - 3L * BLOCK_SIZE, store.getUnallocatedSpace());
+
+        var expected = new byte[(int) (tailPosition + tail.length)];
+        System.arraycopy(head, 0, expected, 0, head.length);
+        System.arraycopy(middle, 0, expected, 20 * BLOCK_SIZE + 100, middle.length);
+        System.arraycopy(tail, 0, expected, (int) tailPosition, tail.length);
+        assertArrayEquals(expected, Files.readAllBytes(file));
+
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of());
+        file = fs.getPath("/sparse.bin");
+        assertArrayEquals(expected, Files.readAllBytes(file));
+
+        Files.delete(file);
+        assertEquals(freeBefore, Files.getFileStore(fs.getPath("/")).getUnallocatedSpace());
+    }
+
+    @Test
+    void smallFilesAreStoredInlineWithoutDataBlocks() throws IOException {
+        var store = Files.getFileStore(fs.getPath("/"));
+        var freeBefore = store.getUnallocatedSpace();
+        var documents = new ArrayList<byte[]>();
+        for (var i = 0; i < 100; i++) {
+            var document = randomData(100 + i * 7);
+            documents.add(document);
+            Files.write(fs.getPath("/doc" + i + ".json"), document);
+        }
+        assertEquals(freeBefore, store.getUnallocatedSpace());
+
+        var log = fs.getPath("/doc0.json");
+        var appended = randomData(BLOCK_SIZE);
+        Files.write(log, appended, StandardOpenOption.APPEND);
+        var expectedLog = new byte[documents.getFirst().length + appended.length];
+        System.arraycopy(documents.getFirst(), 0, expectedLog, 0, documents.getFirst().length);
+        System.arraycopy(appended, 0, expectedLog, documents.getFirst().length, appended.length);
+        assertArrayEquals(expectedLog, Files.readAllBytes(log));
+        assertEquals(freeBefore - BLOCK_SIZE, store.getUnallocatedSpace());
+
+        try (var channel = Files.newByteChannel(fs.getPath("/doc1.json"), StandardOpenOption.WRITE)) {
+            channel.truncate(50);
+        }
+        Files.copy(fs.getPath("/doc2.json"), fs.getPath("/copy.json"));
+        assertEquals(freeBefore - BLOCK_SIZE, store.getUnallocatedSpace());
+
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of("cacheSize", 16L * BLOCK_SIZE));
+        var cacheStore = Files.getFileStore(fs.getPath("/"));
+        var missesBefore = (long) cacheStore.getAttribute("cacheMisses");
+        assertArrayEquals(expectedLog, Files.readAllBytes(fs.getPath("/doc0.json")));
+        assertArrayEquals(Arrays.copyOf(documents.get(1), 50), Files.readAllBytes(fs.getPath("/doc1.json")));
+        assertArrayEquals(documents.get(2), Files.readAllBytes(fs.getPath("/copy.json")));
+        var missesForBlock = (long) cacheStore.getAttribute("cacheMisses") - missesBefore;
+        for (var i = 2; i < documents.size(); i++) {
+            assertArrayEquals(documents.get(i), Files.readAllBytes(fs.getPath("/doc" + i + ".json")));
+        }
+        // Only the appended file has a data block to read
+        assertEquals(missesBefore + missesForBlock, (long) cacheStore.getAttribute("cacheMisses"));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void discardPunchesDeletedFilesOutOfTheContainer() throws IOException {
+        var discardContainer = tempDir.resolve("discard.box");
+        var kept = randomData(BLOCK_SIZE * 3);
+        var deleted = randomData(BLOCK_SIZE * 8);
+        List<Extent> deletedExtents;
+
+        try (var discardFs = FileSystems.newFileSystem(URI.create("box:" + discardContainer),
+                Map.of("create", "true", "totalBlocks", 64L, "discard", true))) {
+            var boxFs = (BoxFileSystem) discardFs;
+            Files.write(discardFs.getPath("/kept.bin"), kept);
+            Files.write(discardFs.getPath("/deleted.bin"), deleted);
+            boxFs.sync();
+            deletedExtents = boxFs.resolvePathToInode((BoxPath) discardFs.getPath("/deleted.bin")).orElseThrow().getExtents();
+
+            Files.delete(discardFs.getPath("/deleted.bin"));
+            boxFs.sync();
+
+            var raw = Files.readAllBytes(discardContainer);
+            for (var extent : deletedExtents) {
+                var start = (int) (extent.startBlock() + 1) * BLOCK_SIZE;
+                var punched = Arrays.copyOfRange(raw, start, start + extent.blockCount() * BLOCK_SIZE);
+                assertArrayEquals(new byte[punched.length], punched);
+            }
+            assertEquals(BLOCK_SIZE * 65L, raw.length);
+            assertArrayEquals(kept, Files.readAllBytes(discardFs.getPath("/kept.bin")));
+            Files.write(discardFs.getPath("/again.bin"), deleted);
+        }
+
+        try (var discardFs = FileSystems.newFileSystem(URI.create("box:" + discardContainer), Map.of("discard", true))) {
+            assertArrayEquals(kept, Files.readAllBytes(discardFs.getPath("/kept.bin")));
+            assertArrayEquals(deleted, Files.readAllBytes(discardFs.getPath("/again.bin")));
+        }
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void discardWaitsUntilTheFreeIsOnDisk() throws IOException, InterruptedException {
+        var discardContainer = tempDir.resolve("discard-order.box");
+        var deleted = randomData(BLOCK_SIZE * 8);
+
+        try (var discardFs = FileSystems.newFileSystem(URI.create("box:" + discardContainer),
+                Map.of("create", "true", "totalBlocks", 64L, "discard", true))) {
+            var boxFs = (BoxFileSystem) discardFs;
+            Files.write(discardFs.getPath("/deleted.bin"), deleted);
+            boxFs.sync();
+            var extent = boxFs.resolvePathToInode((BoxPath) discardFs.getPath("/deleted.bin")).orElseThrow()
+                    .getExtents().getFirst();
+            var start = (int) (extent.startBlock() + 1) * BLOCK_SIZE;
+
+            // The metadata on disk still refers to the blocks, so they keep their data
+            Files.delete(discardFs.getPath("/deleted.bin"));
+            Thread.sleep(Discarder.BATCH_DELAY_MILLIS * 3);
+            var raw = Files.readAllBytes(discardContainer);
+            assertArrayEquals(Arrays.copyOf(deleted, BLOCK_SIZE), Arrays.copyOfRange(raw, start, start + BLOCK_SIZE));
+
+            boxFs.sync();
+            raw = Files.readAllBytes(discardContainer);
+            assertArrayEquals(new byte[BLOCK_SIZE], Arrays.copyOfRange(raw, start, start + BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    void copiesShareBlocksUntilEitherIsWritten() throws IOException {
+        var store = Files.getFileStore(fs.getPath("/"));
+        var content = randomData(BLOCK_SIZE * 40 + 100);
+        var original = fs.getPath("/big.bin");
+        var copy = fs.getPath("/big-copy.bin");
+        Files.write(original, content);
+        Files.createDirectories(fs.getPath("/tree/sub"));
+        Files.write(fs.getPath("/tree/sub/big.bin"), content);
+        Files.writeString(fs.getPath("/tree/note.txt"), "note");
+        var freeBefore = store.getUnallocatedSpace();
+
+        Files.copy(original, copy);
+        ((BoxFileSystem) fs).copyTree((BoxPath) fs.getPath("/tree"), (BoxPath) fs.getPath("/tree-copy"));
+        assertEquals(freeBefore, store.getUnallocatedSpace());
+        assertThrows(IOException.class,
+                () -> ((BoxFileSystem) fs).copyTree((BoxPath) fs.getPath("/tree"), (BoxPath) fs.getPath("/tree/sub/loop")));
+
+        // Only the block the write lands in is copied
+        try (var channel = Files.newByteChannel(copy, StandardOpenOption.WRITE)) {
+            channel.position(BLOCK_SIZE * 5L + 10);
+            channel.write(ByteBuffer.wrap("changed".getBytes(StandardCharsets.UTF_8)));
+        }
+        var changed = content.clone();
+        System.arraycopy("changed".getBytes(StandardCharsets.UTF_8), 0, changed, BLOCK_SIZE * 5 + 10, 7);
+        assertArrayEquals(content, Files.readAllBytes(original));
+        assertArrayEquals(changed, Files.readAllBytes(copy));
+        assertEquals(freeBefore - BLOCK_SIZE, store.getUnallocatedSpace());
+
+        // The original's blocks stay in use by the copy, except the one the copy replaced
+        Files.delete(original);
+        assertEquals(freeBefore, store.getUnallocatedSpace());
+
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of());
+        store = Files.getFileStore(fs.getPath("/"));
+        assertArrayEquals(changed, Files.readAllBytes(fs.getPath("/big-copy.bin")));
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/tree-copy/sub/big.bin")));
+        assertEquals("note", Files.readString(fs.getPath("/tree-copy/note.txt")));
+
+        ((BoxFileSystem) fs).vacuum(Long.MAX_VALUE, 0);
+        assertArrayEquals(changed, Files.readAllBytes(fs.getPath("/big-copy.bin")));
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/tree/sub/big.bin")));
+        var freeAfterVacuum = store.getUnallocatedSpace();
+        Files.delete(fs.getPath("/tree/sub/big.bin"));
+        assertEquals(freeAfterVacuum, store.getUnallocatedSpace());
+        Files.delete(fs.getPath("/tree-copy/sub/big.bin"));
+        assertEquals(freeAfterVacuum + BLOCK_SIZE * 40L, store.getUnallocatedSpace());
+        Files.delete(fs.getPath("/big-copy.bin"));
+        assertEquals(freeAfterVacuum + BLOCK_SIZE * 80L, store.getUnallocatedSpace());
+    }
+
+    @Test
+    void copyCanBeWrittenPastTheSharedBlocks() throws IOException {
+        var content = randomData(BLOCK_SIZE * 3);
+        Files.write(fs.getPath("/small.bin"), content);
+        var copy = fs.getPath("/small-copy.bin");
+        Files.copy(fs.getPath("/small.bin"), copy);
+
+        // The new blocks lie past every shared range, at a lower container block than their file block
+        var tail = randomData(BLOCK_SIZE);
+        try (var channel = Files.newByteChannel(copy, StandardOpenOption.WRITE)) {
+            channel.position(BLOCK_SIZE * 100L);
+            channel.write(ByteBuffer.wrap(tail));
+            channel.position(BLOCK_SIZE * 100L + 10);
+            channel.write(ByteBuffer.wrap("changed".getBytes(StandardCharsets.UTF_8)));
+        }
+        System.arraycopy("changed".getBytes(StandardCharsets.UTF_8), 0, tail, 10, 7);
+        var expected = new byte[BLOCK_SIZE * 101];
+        System.arraycopy(content, 0, expected, 0, content.length);
+        System.arraycopy(tail, 0, expected, BLOCK_SIZE * 100, BLOCK_SIZE);
+
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of());
+        assertArrayEquals(expected, Files.readAllBytes(fs.getPath("/small-copy.bin")));
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/small.bin")));
+    }
+
+    @Test
+    void streamingCopyKeepsHolesAndCrossesBlockSizes() throws IOException {
+        var copyContainer = tempDir.resolve("copy.box");
+        var otherContainer = tempDir.resolve("other.box");
+        try (var copyFs = FileSystems.newFileSystem(URI.create("box:" + copyContainer),
+                Map.of("create", "true", "totalBlocks", 2048L, "reflink", false));
+             var otherFs = FileSystems.newFileSystem(URI.create("box:" + otherContainer),
+                Map.of("create", "true", "totalBlocks", 1024L, "blockSize", 8192))) {
+            var source = copyFs.getPath("/sparse.bin");
+            try (var channel = Files.newByteChannel(source, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(randomData(CopyEngine.CHUNK_BYTES * 2 + 100)));
+                channel.position(BLOCK_SIZE * 1000L);
+                channel.write(ByteBuffer.wrap(randomData(500)));
+            }
+            var expected = Files.readAllBytes(source);
+            var store = Files.getFileStore(copyFs.getPath("/"));
+            var freeBefore = store.getUnallocatedSpace();
+
+            Files.copy(source, copyFs.getPath("/copy.bin"));
+            assertArrayEquals(expected, Files.readAllBytes(copyFs.getPath("/copy.bin")));
+            // The hole stays a hole and the last 500 bytes stay inline
+            assertEquals(freeBefore - 513L * BLOCK_SIZE, store.getUnallocatedSpace());
+
+            Files.copy(source, otherFs.getPath("/copy.bin"));
+            assertArrayEquals(expected, Files.readAllBytes(otherFs.getPath("/copy.bin")));
+            Files.copy(otherFs.getPath("/copy.bin"), copyFs.getPath("/back.bin"));
+            assertArrayEquals(expected, Files.readAllBytes(copyFs.getPath("/back.bin")));
+        }
+    }
+
+    @Test
+    void snapshotKeepsItsContentsWhileLiveFilesChange() throws IOException {
+        var box = (BoxFileSystem) fs;
+        var store = Files.getFileStore(fs.getPath("/"));
+        var content = randomData(BLOCK_SIZE * 40 + 100);
+        Files.write(fs.getPath("/data.bin"), content);
+        Files.createDirectories(fs.getPath("/dir"));
+        Files.writeString(fs.getPath("/dir/note.txt"), "before");
+        var freeBefore = store.getUnallocatedSpace();
+
+        box.createSnapshot("nightly");
+        // Only the frozen metadata takes space
+        assertTrue(freeBefore - store.getUnallocatedSpace() <= 2L * BLOCK_SIZE);
+        assertThrows(IllegalArgumentException.class, () -> box.createSnapshot("nightly"));
+
+        try (var channel = Files.newByteChannel(fs.getPath("/data.bin"), StandardOpenOption.WRITE)) {
+            channel.position(BLOCK_SIZE * 7L);
+            channel.write(ByteBuffer.wrap("changed".getBytes(StandardCharsets.UTF_8)));
+        }
+        Files.write(fs.getPath("/data.bin"), randomData(BLOCK_SIZE * 3), StandardOpenOption.APPEND);
+        Files.delete(fs.getPath("/dir/note.txt"));
+        Files.writeString(fs.getPath("/new.txt"), "new");
+        var live = Files.readAllBytes(fs.getPath("/data.bin"));
+
+        try (var snapshot = box.mountSnapshot("nightly")) {
+            assertTrue(snapshot.isReadOnly());
+            assertArrayEquals(content, Files.readAllBytes(snapshot.getPath("/data.bin")));
+            assertEquals("before", Files.readString(snapshot.getPath("/dir/note.txt")));
+            assertFalse(Files.exists(snapshot.getPath("/new.txt")));
+            assertThrows(ReadOnlyFileSystemException.class,
+                    () -> Files.write(snapshot.getPath("/data.bin"), new byte[1]));
+            assertThrows(ReadOnlyFileSystemException.class, () -> Files.delete(snapshot.getPath("/dir/note.txt")));
+            assertThrows(IllegalStateException.class, () -> box.deleteSnapshot("nightly"));
+
+            // Restoring a file copies it out of the snapshot
+            Files.copy(snapshot.getPath("/dir/note.txt"), fs.getPath("/dir/note.txt"));
+            assertEquals("before", Files.readString(fs.getPath("/dir/note.txt")));
+        }
+
+        box.vacuum(Long.MAX_VALUE, 0);
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of());
+        var reopened = (BoxFileSystem) fs;
+        store = Files.getFileStore(fs.getPath("/"));
+        assertEquals(List.of("nightly"), reopened.listSnapshots().stream().map(Snapshot::name).toList());
+        var snapshot = reopened.mountSnapshot("nightly");
+        assertArrayEquals(content, Files.readAllBytes(snapshot.getPath("/data.bin")));
+        assertArrayEquals(live, Files.readAllBytes(fs.getPath("/data.bin")));
+        snapshot.close();
+
+        // The block replaced in the live file and the snapshot metadata are freed with the snapshot
+        var freeWithSnapshot = store.getUnallocatedSpace();
+        reopened.deleteSnapshot("nightly");
+        assertTrue(reopened.listSnapshots().isEmpty());
+        assertTrue(store.getUnallocatedSpace() >= freeWithSnapshot + 2L * BLOCK_SIZE);
+        assertArrayEquals(live, Files.readAllBytes(fs.getPath("/data.bin")));
+
+        // Views are closed with their container
+        reopened.createSnapshot("last");
+        var view = reopened.mountSnapshot("last");
+        fs.close();
+        assertFalse(view.isOpen());
+    }
+
+    @Test
+    void dedupSharesBlocksOfIdenticalFiles() throws IOException {
+        fs.close();
+        var dedupContainer = tempDir.resolve("dedup.box");
+        var dedupOn = Map.of("create", "true", "totalBlocks", 512L, "dedup", true);
+        fs = FileSystems.newFileSystem(URI.create("box:" + dedupContainer), dedupOn);
+        var store = Files.getFileStore(fs.getPath("/"));
+        var content = randomData(BLOCK_SIZE * 40);
+        Files.write(fs.getPath("/a.bin"), content);
+        var freeAfterFirst = store.getUnallocatedSpace();
+
+        Files.write(fs.getPath("/b.bin"), content);
+        assertEquals(freeAfterFirst, store.getUnallocatedSpace());
+        // Blocks repeated at another offset are found too
+        var shifted = Arrays.copyOfRange(content, BLOCK_SIZE * 10, BLOCK_SIZE * 20);
+        Files.write(fs.getPath("/c.bin"), shifted);
+        assertEquals(freeAfterFirst, store.getUnallocatedSpace());
+
+        // Writing to one file leaves the others alone
+        try (var channel = Files.newByteChannel(fs.getPath("/b.bin"), StandardOpenOption.WRITE)) {
+            channel.position(BLOCK_SIZE * 12L);
+            channel.write(ByteBuffer.wrap(randomData(BLOCK_SIZE)));
+        }
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/a.bin")));
+        assertArrayEquals(shifted, Files.readAllBytes(fs.getPath("/c.bin")));
+        assertEquals(freeAfterFirst - BLOCK_SIZE, store.getUnallocatedSpace());
+        Files.delete(fs.getPath("/a.bin"));
+        assertEquals(freeAfterFirst - BLOCK_SIZE, store.getUnallocatedSpace());
+
+        // The index is verified when the container is opened again
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + dedupContainer), Map.of("dedup", true));
+        store = Files.getFileStore(fs.getPath("/"));
+        var free = store.getUnallocatedSpace();
+        Files.write(fs.getPath("/d.bin"), content);
+        assertEquals(free - BLOCK_SIZE, store.getUnallocatedSpace());
+
+        // Opened without dedup the index is dropped, and it is rebuilt from the files next time
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + dedupContainer), Map.of());
+        Files.write(fs.getPath("/e.bin"), content);
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + dedupContainer), Map.of("dedup", true));
+        store = Files.getFileStore(fs.getPath("/"));
+        free = store.getUnallocatedSpace();
+        Files.write(fs.getPath("/f.bin"), content);
+        assertEquals(free, store.getUnallocatedSpace());
+        for (var name : List.of("/d.bin", "/e.bin", "/f.bin")) {
+            assertArrayEquals(content, Files.readAllBytes(fs.getPath(name)));
+        }
+    }
+
+    @Test
+    void overwritingARepeatedBlockLeavesItsTwinAlone() throws IOException {
+        fs.close();
+        var dedupContainer = tempDir.resolve("dedup.box");
+        fs = FileSystems.newFileSystem(URI.create("box:" + dedupContainer),
+                Map.of("create", "true", "totalBlocks", 512L, "dedup", true));
+        // Blocks 60 to 119 repeat blocks 0 to 59, so the blocks appended after them sit low in the container
+        var content = randomData(BLOCK_SIZE * 140);
+        System.arraycopy(content, 0, content, BLOCK_SIZE * 60, BLOCK_SIZE * 60);
+        var file = fs.getPath("/twins.bin");
+        var store = Files.getFileStore(fs.getPath("/"));
+        var freeBefore = store.getUnallocatedSpace();
+        Files.write(file, Arrays.copyOf(content, BLOCK_SIZE * 60));
+        Files.write(file, Arrays.copyOfRange(content, BLOCK_SIZE * 60, BLOCK_SIZE * 120), StandardOpenOption.APPEND);
+        Files.write(file, Arrays.copyOfRange(content, BLOCK_SIZE * 120, BLOCK_SIZE * 140), StandardOpenOption.APPEND);
+        assertTrue(freeBefore - store.getUnallocatedSpace() < BLOCK_SIZE * 100L);
+
+        // The last repeated block is overwritten partly, together with the unshared block after it
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.position(BLOCK_SIZE * 120L - 3);
+            channel.write(ByteBuffer.wrap("changed".getBytes(StandardCharsets.UTF_8)));
+        }
+        // Block 59, which the overwritten block shared, keeps its contents
+        System.arraycopy("changed".getBytes(StandardCharsets.UTF_8), 0, content, BLOCK_SIZE * 120 - 3, 7);
+        assertArrayEquals(content, Files.readAllBytes(file));
+
+        fs.close();
+        fs = FileSystems.newFileSystem(URI.create("box:" + dedupContainer), Map.of("dedup", true));
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/twins.bin")));
+    }
+
+    @Test
+    void compressedFilesTakeLessSpaceAndReadBackAtAnyOffset() throws IOException {
+        fs.close();
+        var compressedContainer = tempDir.resolve("compressed.box");
+        var boxFs = BoxFs.create(compressedContainer, 1024);
+        fs = boxFs.getFileSystem();
+        var store = Files.getFileStore(fs.getPath("/"));
+        boxFs.createDirectory("/logs");
+        boxFs.setCompressed("/logs", true);
+
+        var text = new StringBuilder();
+        for (var i = 0; text.length() < 600_000; i++) {
+            text.append("{\"seq\":").append(i).append(",\"level\":\"INFO\",\"message\":\"request served\"}\n");
+        }
+        var content = text.toString().getBytes(StandardCharsets.UTF_8);
+        var freeBefore = store.getUnallocatedSpace();
+        Files.write(fs.getPath("/logs/app.log"), content);
+        assertTrue(freeBefore - store.getUnallocatedSpace() < content.length / 4);
+        var report = boxFs.compressionReport();
+        assertEquals(1, report.files());
+        assertEquals(content.length, report.logicalBytes());
+        assertTrue(report.ratio() > 4);
+
+        // Random reads decompress only the chunks they touch
+        try (var channel = Files.newByteChannel(fs.getPath("/logs/app.log"))) {
+            for (var position : new int[] {123_456, 65_530, 0, 599_000}) {
+                var buffer = ByteBuffer.allocate(1000);
+                channel.position(position);
+                channel.read(buffer);
+                assertArrayEquals(Arrays.copyOfRange(content, position, position + 1000), buffer.array());
+            }
+        }
+
+        // Writes into the middle of compressed chunks, truncation, and incompressible data
+        try (var channel = Files.newByteChannel(fs.getPath("/logs/app.log"), StandardOpenOption.WRITE)) {
+            channel.position(70_000);
+            channel.write(ByteBuffer.wrap("PATCHED".getBytes(StandardCharsets.UTF_8)));
+            channel.truncate(300_000);
+        }
+        System.arraycopy("PATCHED".getBytes(StandardCharsets.UTF_8), 0, content, 70_000, 7);
+        content = Arrays.copyOf(content, 300_000);
+        var noise = randomData(BLOCK_SIZE * 40);
+        Files.write(fs.getPath("/logs/noise.bin"), noise);
+        boxFs.copyFile("/logs/app.log", "/copy.log");
+
+        boxFs.close();
+        boxFs = BoxFs.open(compressedContainer);
+        fs = boxFs.getFileSystem();
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/logs/app.log")));
+        assertArrayEquals(content, Files.readAllBytes(fs.getPath("/copy.log")));
+        assertArrayEquals(noise, Files.readAllBytes(fs.getPath("/logs/noise.bin")));
+        assertEquals(3, boxFs.compressionReport().files());
+        var reopened = boxFs;
+        assertThrows(IOException.class, () -> reopened.setCompressed("/logs/app.log", false));
+    }
+
+    @Test
+    void tornSuperblockLeavesThePreviousCheckpoint() throws IOException {
+        fs.close();
+        var shadowContainer = tempDir.resolve("shadow.box");
+        // Without a log every sync is a checkpoint
+        fs = FileSystems.newFileSystem(URI.create("box:" + shadowContainer),
+                Map.of("create", "true", "totalBlocks", 256L, "metadataLogSize", 0L));
+        var first = randomData(BLOCK_SIZE * 3);
+        Files.write(fs.getPath("/first"), first);
+        ((BoxFileSystem) fs).sync();
+        Files.write(fs.getPath("/second"), randomData(BLOCK_SIZE * 3));
+        Files.move(fs.getPath("/first"), fs.getPath("/first-renamed"));
+        ((BoxFileSystem) fs).sync();
+
+        // A crash that tears the latest superblock
+        var crashed = tempDir.resolve("crashed.box");
+        Files.copy(shadowContainer, crashed);
+        fs.close();
+        var bytes = Files.readAllBytes(crashed);
+        var slots = new Superblock[2];
+        for (var slot = 0; slot < 2; slot++) {
+            slots[slot] = Superblock.deserialize(Arrays.copyOfRange(bytes, slot * BLOCK_SIZE, (slot + 1) * BLOCK_SIZE));
+        }
+        var latest = slots[0].getGeneration() > slots[1].getGeneration() ? 0 : 1;
+        Arrays.fill(bytes, latest * BLOCK_SIZE + 100, latest * BLOCK_SIZE + 200, (byte) 0xA5);
+        Files.write(crashed, bytes);
+
+        fs = FileSystems.newFileSystem(URI.create("box:" + crashed), Map.of());
+        assertArrayEquals(first, Files.readAllBytes(fs.getPath("/first")));
+        assertFalse(Files.exists(fs.getPath("/second")));
+        assertFalse(Files.exists(fs.getPath("/first-renamed")));
+        var third = randomData(BLOCK_SIZE * 5);
+        Files.write(fs.getPath("/third"), third);
+        fs.close();
+
+        fs = FileSystems.newFileSystem(URI.create("box:" + crashed), Map.of());
+        assertArrayEquals(first, Files.readAllBytes(fs.getPath("/first")));
+        assertArrayEquals(third, Files.readAllBytes(fs.getPath("/third")));
+    }
+
+    @Test
+    void reopeningWithoutChangesKeepsFreeSpace() throws IOException {
+        fs.close();
+        // Without a log every close is a checkpoint
+        for (var allocator : List.of("extents", "bitmap")) {
+            for (var logSize : List.of(0L, 16L * BLOCK_SIZE)) {
+                var cycleUri = URI.create("box:" + tempDir.resolve("cycle-" + allocator + "-" + logSize + ".box"));
+                fs = FileSystems.newFileSystem(cycleUri, Map.of("create", "true", "totalBlocks", 256L,
+                        "allocator", allocator, "metadataLogSize", logSize));
+                Files.write(fs.getPath("/data.bin"), randomData(BLOCK_SIZE * 3));
+                fs.close();
+
+                var freeSpace = new ArrayList<Long>();
+                for (var cycle = 0; cycle < 5; cycle++) {
+                    fs = FileSystems.newFileSystem(cycleUri, Map.of("metadataLogSize", logSize));
+                    freeSpace.add(Files.getFileStore(fs.getPath("/")).getUnallocatedSpace());
+                    if (cycle == 2) {
+                        // A checkpoint in between, which frees the blocks of the previous one
+                        ((BoxFileSystem) fs).createSnapshot("middle");
+                        ((BoxFileSystem) fs).deleteSnapshot("middle");
+                    }
+                    fs.close();
+                }
+                assertEquals(1, freeSpace.stream().distinct().count(), allocator + " " + logSize + ": " + freeSpace);
+            }
+        }
+    }
+
+    @Test
+    void syncsAppendChangesToTheMetadataLog() throws IOException {
+        fs.close();
+        var logContainer = tempDir.resolve("log.box");
+        var logUri = URI.create("box:" + logContainer);
+        fs = FileSystems.newFileSystem(logUri,
+                Map.of("create", "true", "totalBlocks", 1024L, "metadataLogSize", 16L * BLOCK_SIZE));
+        var files = new TreeMap<String, byte[]>();
+        for (var i = 0; i < 300; i++) {
+            files.put("f" + i, ("file " + i).getBytes(StandardCharsets.UTF_8));
+            Files.write(fs.getPath("/f" + i), files.get("f" + i));
+        }
+        ((BoxFileSystem) fs).sync();
+
+        // Changing one file rewrites a log block, not the metadata of all 300
+        var before = Files.readAllBytes(logContainer);
+        files.put("f7", "changed".getBytes(StandardCharsets.UTF_8));
+        Files.write(fs.getPath("/f7"), files.get("f7"));
+        ((BoxFileSystem) fs).sync();
+        var after = Files.readAllBytes(logContainer);
+        var blocksWritten = 0;
+        for (var offset = 0; offset < after.length; offset += BLOCK_SIZE) {
+            if (!Arrays.equals(before, offset, offset + BLOCK_SIZE, after, offset, offset + BLOCK_SIZE)) {
+                blocksWritten++;
+            }
+        }
+        assertEquals(1, blocksWritten);
+
+        // Renames over existing names, deletes and new files, over several rollovers of the log
+        for (var i = 0; i < 100; i++) {
+            Files.move(fs.getPath("/f" + i), fs.getPath("/f" + (i + 150)), StandardCopyOption.REPLACE_EXISTING);
+            files.put("f" + (i + 150), files.remove("f" + i));
+            Files.delete(fs.getPath("/f" + (i + 200)));
+            files.remove("f" + (i + 200));
+            var data = randomData(BLOCK_SIZE * 2 + i);
+            Files.write(fs.getPath("/new" + i), data);
+            files.put("new" + i, data);
+            ((BoxFileSystem) fs).sync();
+        }
+        fs.close();
+
+        fs = FileSystems.newFileSystem(logUri, Map.of());
+        try (var listing = Files.list(fs.getPath("/"))) {
+            assertEquals(files.keySet(), listing.map(path -> path.getFileName().toString())
+                    .collect(Collectors.toSet()));
+        }
+        for (var file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), Files.readAllBytes(fs.getPath("/" + file.getKey())));
+        }
+        var store = Files.getFileStore(fs.getPath("/"));
+        var free = store.getUnallocatedSpace();
+        Files.write(fs.getPath("/last"), randomData(BLOCK_SIZE * 3));
+        assertEquals(free - 3 * BLOCK_SIZE, store.getUnallocatedSpace());
+    }
+
+    @Test
+    void appendedLogStaysInFewExtentsAndReleasesItsTail() throws IOException {
+        var logContainer = tempDir.resolve("log.box");
+        try (var logFs = FileSystems.newFileSystem(URI.create("box:" + logContainer),
+                Map.of("create", "true", "totalBlocks", 1024L, "delayedAllocationMax", 0L))) {
+            var boxFs = (BoxFileSystem) logFs;
+            var store = Files.getFileStore(logFs.getPath("/"));
+            var freeBefore = store.getUnallocatedSpace();
+            var log = logFs.getPath("/app.log");
+            var record = randomData(BLOCK_SIZE / 4);
+            var other = randomData(BLOCK_SIZE);
+
+            try (var appender = Files.newByteChannel(log, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                 var writer = Files.newByteChannel(logFs.getPath("/other.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (var i = 0; i < 256; i++) {
+                    appender.write(ByteBuffer.wrap(record));
+                    if (i % 4 == 3) {
+                        writer.write(ByteBuffer.wrap(other));
+                    }
+                }
+                assertTrue(store.getUnallocatedSpace() < freeBefore - 128L * BLOCK_SIZE, "speculative blocks are held");
+
+                boxFs.sync();
+                assertEquals(freeBefore - 128L * BLOCK_SIZE, store.getUnallocatedSpace());
+                appender.write(ByteBuffer.wrap(record));
+            }
+
+            var inode = boxFs.resolvePathToInode((BoxPath) log).orElseThrow();
+            assertTrue(inode.getExtentCount() <= 8, "log has " + inode.getExtentCount() + " extents");
+            assertEquals(257L * record.length, Files.size(log));
+            assertEquals(freeBefore - 129L * BLOCK_SIZE, store.getUnallocatedSpace());
+            var contents = Files.readAllBytes(log);
+            for (var i = 0; i < 257; i++) {
+                assertArrayEquals(record, Arrays.copyOfRange(contents, i * record.length, (i + 1) * record.length));
+            }
+        }
+    }
+
+    @Test
+    void delayedDataIsPersistedWhileChannelIsOpen() throws IOException {
+        var data = randomData(BLOCK_SIZE * 3 + 11);
+        var file = fs.getPath("/open.bin");
+        var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(data));
+        fs.close();
+        assertThrows(ClosedFileSystemException.class, () -> channel.write(ByteBuffer.wrap(data)));
+
+        fs = FileSystems.newFileSystem(URI.create("box:" + container), Map.of());
+        assertArrayEquals(data, Files.readAllBytes(fs.getPath("/open.bin")));
+    }
+
+    @Test
+    void readPathAllocatesNothingPerRead() throws IOException {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var configurations = List.<Map<String, Object>>of(
+                Map.of("create", "true", "totalBlocks", 128L),
+                Map.of("create", "true", "totalBlocks", 128L, "memoryMapped", true),
+                Map.of("create", "true", "totalBlocks", 128L, "cacheSize", 64L * BLOCK_SIZE));
+
+        for (var i = 0; i < configurations.size(); i++) {
+            var env = configurations.get(i);
+            try (var readFs = FileSystems.newFileSystem(URI.create("box:" + tempDir.resolve("alloc" + i + ".box")), env)) {
+                // Interleaved appends leave the file split over several extents
+                var file = readFs.getPath("/data.bin");
+                var other = readFs.getPath("/other.bin");
+                for (var round = 0; round < 4; round++) {
+                    Files.write(file, randomData(BLOCK_SIZE * 8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    Files.write(other, randomData(BLOCK_SIZE), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+
+                for (var dest : List.of(ByteBuffer.allocate(BLOCK_SIZE * 3), ByteBuffer.allocateDirect(BLOCK_SIZE * 3))) {
+                    try (var channel = Files.newByteChannel(file)) {
+                        readAtStrides(channel, dest, 2_000);
+                        var before = threads.getCurrentThreadAllocatedBytes();
+                        readAtStrides(channel, dest, 10_000);
+                        var bytesPerRead = (threads.getCurrentThreadAllocatedBytes() - before) / 10_000;
+                        // Escape analysis usually removes everything; a small slack allows for an interpreter
+                        // or an agent, far below the block-sized buffers a read would otherwise allocate
+                        assertTrue(bytesPerRead < MAX_BYTES_PER_READ,
+                                env + ", direct=" + dest.isDirect() + ": " + bytesPerRead + " bytes per read");
+                    }
+                }
+            }
+        }
+    }
+
+    private static void readAtStrides(SeekableByteChannel channel, ByteBuffer dest, int reads) throws IOException {
+        for (var i = 0; i < reads; i++) {
+            dest.clear();
+            channel.position((i * 1237L) % (BLOCK_SIZE * 29));
+            channel.read(dest);
+        }
+    }
+
+    @Test
+    void sequentialReadsAreServedByReadahead() throws IOException {
+        var streamUri = URI.create("box:" + tempDir.resolve("stream.box"));
+        try (var streamFs = FileSystems.newFileSystem(streamUri, Map.of("create", "true", "totalBlocks", 1024L))) {
+            var file = streamFs.getPath("/media.bin");
+            var data = randomData(BLOCK_SIZE * 900 + 11);
+            Files.write(file, data);
+
+            var result = ByteBuffer.allocate(data.length);
+            try (var channel = Files.newByteChannel(file)) {
+                var chunk = ByteBuffer.allocate(16 * 1024);
+                while (channel.read(chunk.clear()) > 0) {
+                    result.put(chunk.flip());
+                }
+            }
+            assertArrayEquals(data, result.array());
+
+            var store = Files.getFileStore(file);
+            assertTrue((long) store.getAttribute("readaheadFetches") >= 3);
+            // Windows double, so most of the file comes out of read-ahead data
+            assertTrue((long) store.getAttribute("readaheadHitBytes") > data.length / 2);
+        }
+    }
+
+    @Test
+    void randomReadsDoNotTriggerReadahead() throws IOException {
+        var file = fs.getPath("/random.bin");
+        var data = randomData(BLOCK_SIZE * 64);
+        Files.write(file, data);
+
+        var random = new Random(7);
+        try (var channel = Files.newByteChannel(file)) {
+            var dest = ByteBuffer.allocate(1000);
+            for (var i = 0; i < 200; i++) {
+                var position = random.nextInt(data.length - 1000);
+                channel.position(position);
+                channel.read(dest.clear());
+                assertArrayEquals(Arrays.copyOfRange(data, position, position + 1000), dest.array());
+            }
+        }
+        assertEquals(0L, Files.getFileStore(file).getAttribute("readaheadFetches"));
+    }
+
+    @Test
+    void readaheadSeesConcurrentWrites() throws IOException {
+        var file = fs.getPath("/changing.bin");
+        var data = randomData(BLOCK_SIZE * 100);
+        Files.write(file, data);
+
+        try (var reader = Files.newByteChannel(file)) {
+            var dest = ByteBuffer.allocate(BLOCK_SIZE);
+            for (var i = 0; i < 4; i++) {
+                reader.read(dest.clear());
+            }
+
+            // Overwrite a region that has already been read ahead
+            try (var writer = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+                writer.position(BLOCK_SIZE * 6L);
+                writer.write(ByteBuffer.wrap(new byte[BLOCK_SIZE]));
+            }
+            System.arraycopy(new byte[BLOCK_SIZE], 0, data, BLOCK_SIZE * 6, BLOCK_SIZE);
+
+            for (var i = 4; i < 100; i++) {
+                reader.read(dest.clear());
+                assertArrayEquals(Arrays.copyOfRange(data, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE), dest.array(),
+                        "block " + i);
+            }
+        }
+    }
+
     // ==================== Block Boundary Edge Cases ====================
 
     @Test
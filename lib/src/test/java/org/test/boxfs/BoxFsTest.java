@@ -4,8 +4,13 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -299,4 +304,118 @@ class BoxFsTest {
       assertTrue(fs.exists("/project/src/Main.java"));
     }
   }
+
+  @Test
+  void pinnedFileIsServedFromBlockCache() throws IOException {
+    var containerPath = tempDir.resolve("cached.box");
+    // Three blocks, with a last partial block too large to be kept inline
+    var content = "x".repeat(12_000).getBytes();
+
+    try (var fs = BoxFs.create(containerPath)) {
+      try (var out = fs.openWrite("/config.json")) {
+        out.write(content);
+      }
+    }
+
+    try (var fs = BoxFs.open(containerPath, Map.of("cacheSize", 64 * 4096L, "cachePolicy", "arc"))) {
+      fs.pin("/config.json");
+      var store = Files.getFileStore(fs.getFileSystem().getPath("/"));
+      assertEquals(3, store.getAttribute("pinnedBlocks"));
+      var missesAfterPin = (long) store.getAttribute("cacheMisses");
+
+      for (var i = 0; i < 5; i++) {
+        try (var in = fs.openRead("/config.json")) {
+          assertArrayEquals(content, in.readAllBytes());
+        }
+      }
+
+      assertEquals(missesAfterPin, store.getAttribute("cacheMisses"));
+      assertTrue((long) store.getAttribute("cacheHits") >= 15);
+
+      fs.unpin("/config.json");
+      assertEquals(0, store.getAttribute("pinnedBlocks"));
+    }
+  }
+
+  @Test
+  void preallocatedSpaceReadsAsZerosUntilWritten() throws IOException {
+    var containerPath = tempDir.resolve("prealloc.box");
+    var stale = new byte[64 * 1024];
+    Arrays.fill(stale, (byte) 0x5A);
+
+    try (var fs = BoxFs.create(containerPath)) {
+      // Leave non-zero data in the blocks the preallocation will reuse
+      try (var out = fs.openWrite("/old.bin")) {
+        out.write(stale);
+      }
+      fs.deleteFile("/old.bin");
+
+      var store = Files.getFileStore(fs.getFileSystem().getPath("/"));
+      var freeBefore = store.getUnallocatedSpace();
+      fs.preallocate("/upload.bin", 64 * 1024);
+      assertEquals(freeBefore - 64 * 1024, store.getUnallocatedSpace());
+      assertEquals(0, fs.size("/upload.bin"));
+
+      try (var channel = Files.newByteChannel(fs.getFileSystem().getPath("/upload.bin"), StandardOpenOption.WRITE)) {
+        channel.position(1000).write(ByteBuffer.wrap("head".getBytes()));
+        channel.position(40_000).write(ByteBuffer.wrap("tail".getBytes()));
+      }
+      assertEquals(freeBefore - 64 * 1024, store.getUnallocatedSpace());
+      var inode = ((BoxFileSystem) fs.getFileSystem())
+        .resolvePathToInode((BoxPath) fs.getFileSystem().getPath("/upload.bin")).orElseThrow();
+      assertEquals(1, inode.getExtentCount());
+    }
+
+    var expected = new byte[40_004];
+    System.arraycopy("head".getBytes(), 0, expected, 1000, 4);
+    System.arraycopy("tail".getBytes(), 0, expected, 40_000, 4);
+    try (var fs = BoxFs.open(containerPath); var in = fs.openRead("/upload.bin")) {
+      assertArrayEquals(expected, in.readAllBytes());
+    }
+  }
+
+  @Test
+  void offlineVacuumShrinksContainerAfterBulkDelete() throws IOException {
+    var containerPath = tempDir.resolve("vacuum.box");
+    var data = new byte[16 * 1024];
+    Arrays.fill(data, (byte) 7);
+
+    try (var fs = BoxFs.create(containerPath, 1024)) {
+      for (var i = 0; i < 40; i++) {
+        try (var out = fs.openWrite("/file" + i)) {
+          out.write(data);
+        }
+      }
+      for (var i = 0; i < 38; i++) {
+        fs.deleteFile("/file" + i);
+      }
+    }
+    var sizeBefore = Files.size(containerPath);
+
+    var report = BoxFs.vacuum(containerPath, 0);
+
+    assertEquals(1024, report.blocksBefore());
+    assertTrue(report.complete());
+    assertTrue(report.blocksAfter() < 20, "shrunk to " + report.blocksAfter() + " blocks");
+    assertEquals(2L * data.length, report.bytesMoved());
+    assertEquals((report.blocksAfter() + 1) * 4096, Files.size(containerPath));
+    assertTrue(Files.size(containerPath) < sizeBefore / 50);
+
+    try (var fs = BoxFs.open(containerPath)) {
+      for (var i = 38; i < 40; i++) {
+        try (var in = fs.openRead("/file" + i)) {
+          assertArrayEquals(data, in.readAllBytes());
+        }
+      }
+      assertFalse(fs.vacuum(Long.MAX_VALUE, 0).blocksAfter() < report.blocksAfter());
+    }
+  }
+
+  @Test
+  void pinWithoutCacheIsRejected() throws IOException {
+    try (var fs = BoxFs.create(tempDir.resolve("nocache.box"))) {
+      fs.createFile("/a.txt");
+      assertThrows(UnsupportedOperationException.class, () -> fs.pin("/a.txt"));
+    }
+  }
 }
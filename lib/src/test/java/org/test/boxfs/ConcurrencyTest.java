@@ -13,6 +13,7 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -31,10 +32,11 @@ class ConcurrencyTest {
   Path tempDir;
 
   private FileSystem fs;
+  private Path container;
 
   @BeforeEach
   void setUp() throws IOException {
-    Path container = tempDir.resolve("concurrent.box");
+    container = tempDir.resolve("concurrent.box");
     var uri = URI.create("box:" + container);
     fs = FileSystems.newFileSystem(uri, Map.of("create", "true", "totalBlocks", 512L));
   }
@@ -180,4 +182,117 @@ class ConcurrencyTest {
     assertEquals(0, inconsistencies.get(),
       "All reads should see consistent data (all same byte)");
   }
+
+  /**
+   * Verifies that writers forcing at the same time share commits, and that every forced write is in
+   * the container file as it is on disk when the writes return, without closing the file system.
+   */
+  @Test
+  void concurrentForcesShareCommits() throws Exception {
+    int threadCount = 16;
+    int records = 20;
+    var startLatch = new CountDownLatch(1);
+    var errors = new AtomicBoolean(false);
+    var threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      var file = fs.getPath("/journal" + t);
+      var record = new byte[100];
+      Arrays.fill(record, (byte) t);
+      var thread = new Thread(() -> {
+        try {
+          startLatch.await();
+          try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.DSYNC)) {
+            for (int i = 0; i < records; i++) {
+              channel.write(ByteBuffer.wrap(record));
+            }
+          }
+        } catch (Exception e) {
+          errors.set(true);
+          e.printStackTrace();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    startLatch.countDown();
+    for (var thread : threads) {
+      thread.join(30000);
+    }
+    assertFalse(errors.get(), "No errors should occur");
+
+    var store = Files.getFileStore(fs.getPath("/"));
+    var requests = (long) store.getAttribute("durableRequests");
+    var commits = (long) store.getAttribute("durableCommits");
+    assertEquals(threadCount * records, requests);
+    // How many forces share a commit depends on timing; GroupCommitTest checks the sharing itself
+    assertTrue(commits >= 1 && commits <= requests, commits + " commits for " + requests + " forces");
+
+    // What a crash would leave behind
+    var crashed = tempDir.resolve("crashed.box");
+    Files.copy(container, crashed);
+    try (var recovered = FileSystems.newFileSystem(URI.create("box:" + crashed), Map.of())) {
+      for (int t = 0; t < threadCount; t++) {
+        var expected = new byte[100 * records];
+        Arrays.fill(expected, (byte) t);
+        assertArrayEquals(expected, Files.readAllBytes(recovered.getPath("/journal" + t)));
+      }
+    }
+  }
+
+  /**
+   * Verifies that defragmentation and compression reports, which walk the extent lists of all files,
+   * can run while writers change those lists.
+   */
+  @Test
+  void extentScansRunAlongsideWriters() throws Exception {
+    var box = (BoxFileSystem) fs;
+    Files.createDirectory(fs.getPath("/packed"));
+    box.setCompressed((BoxPath) fs.getPath("/packed"), true);
+    int writerCount = 4;
+    var stop = new AtomicBoolean(false);
+    var errors = new AtomicBoolean(false);
+    var threads = new ArrayList<Thread>();
+    for (int t = 0; t < writerCount; t++) {
+      var file = fs.getPath(t % 2 == 0 ? "/sparse" + t : "/packed/sparse" + t);
+      var seed = t;
+      var thread = new Thread(() -> {
+        var random = new java.util.Random(seed);
+        var block = new byte[4096];
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+          // Blocks written into holes at random add and merge extents
+          while (!stop.get()) {
+            random.nextBytes(block);
+            channel.position(4096L * random.nextInt(48));
+            channel.write(ByteBuffer.wrap(block));
+            if (random.nextInt(8) == 0) {
+              channel.truncate(4096L * random.nextInt(48));
+            }
+          }
+        } catch (Exception e) {
+          errors.set(true);
+          e.printStackTrace();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    try {
+      for (var pass = 0; System.nanoTime() < deadline; pass++) {
+        box.fragmentedFiles();
+        box.compressionReport();
+        if (pass % 100 == 0) {
+          box.defragment().join();
+        }
+      }
+    } finally {
+      stop.set(true);
+      for (var thread : threads) {
+        thread.join(30000);
+      }
+    }
+    assertFalse(errors.get(), "No errors should occur");
+  }
 }
@@ -0,0 +1,117 @@
+package org.test.boxfs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitTest {
+
+  private static final int CALLERS = 8;
+
+  /**
+   * Verifies that callers arriving while a commit runs share the next commit: the first commit holds
+   * until every caller has its ticket, so exactly one more commit covers all the others.
+   */
+  @Test
+  void callersWaitingOnACommitShareTheNext() throws Exception {
+    var firstStarted = new CountDownLatch(1);
+    var calls = new AtomicInteger();
+    var holder = new GroupCommit[1];
+    var group = new GroupCommit(() -> {
+      if (calls.incrementAndGet() == 1) {
+        firstStarted.countDown();
+        awaitRequests(holder[0], CALLERS);
+      }
+    });
+    holder[0] = group;
+
+    var threads = new ArrayList<Thread>();
+    var failures = new AtomicInteger();
+    for (var i = 0; i < CALLERS; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          group.await();
+        } catch (IOException e) {
+          failures.incrementAndGet();
+        }
+      }));
+    }
+    threads.getFirst().start();
+    assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+    threads.subList(1, CALLERS).forEach(Thread::start);
+    for (var thread : threads) {
+      thread.join(10_000);
+      assertFalse(thread.isAlive());
+    }
+
+    assertEquals(0, failures.get());
+    assertEquals(CALLERS, group.getRequests());
+    assertEquals(2, group.getCommits());
+  }
+
+  /**
+   * Verifies that a failed commit is reported to every caller it covered and that the next caller
+   * leads a fresh commit.
+   */
+  @Test
+  void failureReachesCoveredCallersOnly() throws Exception {
+    var firstStarted = new CountDownLatch(1);
+    var calls = new AtomicInteger();
+    var holder = new GroupCommit[1];
+    var group = new GroupCommit(() -> {
+      var call = calls.incrementAndGet();
+      if (call == 1) {
+        firstStarted.countDown();
+        awaitRequests(holder[0], 2);
+      } else if (call == 2) {
+        throw new IOException("disk full");
+      }
+    });
+    holder[0] = group;
+
+    var firstFailed = new AtomicInteger();
+    var leader = new Thread(() -> {
+      try {
+        group.await();
+      } catch (IOException e) {
+        firstFailed.incrementAndGet();
+      }
+    });
+    leader.start();
+    assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+    // Arrives during the first commit, so it leads the second, failing one
+    var secondFailed = new AtomicInteger();
+    var waiter = new Thread(() -> {
+      try {
+        group.await();
+      } catch (IOException e) {
+        secondFailed.incrementAndGet();
+      }
+    });
+    waiter.start();
+    leader.join(10_000);
+    waiter.join(10_000);
+    assertFalse(waiter.isAlive());
+    assertEquals(0, firstFailed.get());
+    assertEquals(1, secondFailed.get());
+
+    group.await();
+    assertEquals(3, group.getCommits());
+  }
+
+  private static void awaitRequests(GroupCommit group, long requests) throws IOException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (group.getRequests() < requests) {
+      if (System.nanoTime() > deadline) {
+        throw new IOException("Callers never took their tickets");
+      }
+      Thread.onSpinWait();
+    }
+  }
+}
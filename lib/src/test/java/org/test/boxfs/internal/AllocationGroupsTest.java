@@ -0,0 +1,150 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AllocationGroupsTest {
+
+    private static final long GROUP_BLOCKS = AllocationGroups.MIN_GROUP_BLOCKS;
+
+    @Test
+    void groupCountIsCappedByContainerSize() {
+        assertEquals(1, new AllocationGroups(100, 8).getGroupCount());
+        assertEquals(4, new AllocationGroups(GROUP_BLOCKS * 4, 8).getGroupCount());
+        assertEquals(2, new AllocationGroups(GROUP_BLOCKS * 4, 2).getGroupCount());
+        assertEquals(1, new AllocationGroups(GROUP_BLOCKS * 4, 0).getGroupCount());
+    }
+
+    @Test
+    void freeExtentsAreMergedAcrossGroupBoundaries() {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 4, 4);
+        groups.initializeNew(1);
+
+        assertEquals(List.of(new Extent(1, (int) (GROUP_BLOCKS * 4 - 1))), groups.getFreeExtents());
+        assertEquals(GROUP_BLOCKS * 4 - 1, groups.getTotalFreeBlocks());
+        assertEquals(GROUP_BLOCKS, groups.getLargestFreeExtent());
+
+        var restored = new AllocationGroups(GROUP_BLOCKS * 4, 3);
+        restored.setFreeExtents(groups.getFreeExtents());
+        assertEquals(groups.getFreeExtents(), restored.getFreeExtents());
+        assertTrue(restored.areFree(GROUP_BLOCKS - 10, 20));
+    }
+
+    @Test
+    void goalBlockSelectsGroup() {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 4, 4);
+        groups.initializeNew(1);
+
+        var extent = groups.allocate(10, GROUP_BLOCKS * 2 + 5).orElseThrow();
+        assertEquals(2, extent.startBlock() / GROUP_BLOCKS);
+        var extents = groups.allocateMultiple(10, GROUP_BLOCKS * 3);
+        assertEquals(3, extents.getFirst().startBlock() / GROUP_BLOCKS);
+    }
+
+    @Test
+    void fullGroupStealsFromTheEmptiestOther() {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 4, 4);
+        groups.initializeNew(0);
+        groups.allocate((int) GROUP_BLOCKS, 0).orElseThrow();
+        groups.allocate((int) GROUP_BLOCKS - 5, GROUP_BLOCKS).orElseThrow();
+        groups.allocate((int) GROUP_BLOCKS - 100, GROUP_BLOCKS * 2).orElseThrow();
+
+        var extents = groups.allocateMultiple(50, 0);
+        assertEquals(3, extents.getFirst().startBlock() / GROUP_BLOCKS);
+    }
+
+    @Test
+    void requestLargerThanAnyGroupSpansGroups() {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 4, 4);
+        groups.initializeNew(1);
+
+        var extents = groups.allocateMultiple((int) (GROUP_BLOCKS * 3));
+        assertEquals(GROUP_BLOCKS * 3, extents.stream().mapToLong(Extent::blockCount).sum());
+        assertEquals(GROUP_BLOCKS - 1, groups.getTotalFreeBlocks());
+        assertTrue(groups.allocateMultiple((int) GROUP_BLOCKS).isEmpty());
+        assertEquals(GROUP_BLOCKS - 1, groups.getTotalFreeBlocks(), "a failed request keeps nothing");
+
+        groups.freeAll(extents);
+        assertEquals(GROUP_BLOCKS * 4 - 1, groups.getTotalFreeBlocks());
+    }
+
+    @Test
+    void freeSplitsExtentsAtGroupBoundaries() {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 2, 2);
+        groups.setFreeExtents(List.of());
+
+        groups.free(new Extent(GROUP_BLOCKS - 10, 20));
+
+        assertEquals(List.of(new Extent(GROUP_BLOCKS - 10, 20)), groups.getFreeExtents());
+        assertEquals(10, groups.getLargestFreeExtent());
+        assertThrows(IllegalArgumentException.class, () -> groups.free(new Extent(GROUP_BLOCKS, 5)));
+        assertThrows(IllegalArgumentException.class, () -> groups.free(new Extent(GROUP_BLOCKS * 2 - 1, 5)));
+    }
+
+    @Test
+    void changedRangesReplayWithAnotherGroupCount() {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 4, 4);
+        groups.initializeNew(1);
+        var restored = new AllocationGroups(GROUP_BLOCKS * 4, 3);
+        restored.setFreeExtents(groups.getFreeExtents());
+        groups.takeChangedRanges();
+
+        var spanning = groups.allocateMultiple((int) (GROUP_BLOCKS * 2), GROUP_BLOCKS);
+        groups.free(new Extent(GROUP_BLOCKS + 5, 10));
+        for (var range : groups.takeChangedRanges()) {
+            restored.replaceFreeExtents(range, groups.getFreeExtents(range));
+        }
+
+        assertEquals(groups.getFreeExtents(), restored.getFreeExtents());
+        assertEquals(groups.getTotalFreeBlocks(), restored.getTotalFreeBlocks());
+        assertFalse(spanning.isEmpty());
+    }
+
+    @Test
+    void concurrentAllocationsNeverOverlap() throws InterruptedException {
+        var groups = new AllocationGroups(GROUP_BLOCKS * 8, 8);
+        groups.initializeNew(1);
+        var allocated = Collections.synchronizedList(new ArrayList<Extent>());
+        var start = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+
+        for (var t = 0; t < 8; t++) {
+            var thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (var i = 0; i < 200; i++) {
+                    var extents = groups.allocateMultiple(1 + i % 7);
+                    allocated.addAll(extents);
+                    if (i % 3 == 0 && !extents.isEmpty()) {
+                        groups.freeAll(extents);
+                        allocated.removeAll(extents);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        var used = new boolean[(int) groups.getTotalBlocks()];
+        for (var extent : allocated) {
+            for (var block = extent.startBlock(); block < extent.endBlock(); block++) {
+                assertFalse(used[(int) block], "block " + block + " allocated twice");
+                used[(int) block] = true;
+            }
+        }
+        var usedBlocks = allocated.stream().mapToLong(Extent::blockCount).sum();
+        assertEquals(groups.getTotalBlocks() - 1 - usedBlocks, groups.getTotalFreeBlocks());
+    }
+}
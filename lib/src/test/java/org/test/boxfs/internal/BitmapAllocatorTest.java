@@ -0,0 +1,195 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BitmapAllocatorTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private BitmapAllocator allocator;
+
+    @BeforeEach
+    void setUp() {
+        allocator = new BitmapAllocator(100, BLOCK_SIZE);
+        allocator.initializeNew(1);
+    }
+
+    @Test
+    void initialFreeSpace() {
+        assertEquals(99, allocator.getTotalFreeBlocks());
+        assertEquals(1, allocator.getTotalUsedBlocks());
+        assertEquals(99, allocator.getLargestFreeExtent());
+        assertTrue(allocator.areFree(1, 99));
+        assertFalse(allocator.areFree(0, 1));
+    }
+
+    @Test
+    void allocateIsFirstFit() {
+        assertEquals(new Extent(1, 10), allocator.allocate(10).orElseThrow());
+        var middle = allocator.allocate(5).orElseThrow();
+        allocator.allocate(5).orElseThrow();
+        allocator.free(middle);
+
+        assertEquals(new Extent(11, 3), allocator.allocate(3).orElseThrow());
+        assertEquals(new Extent(21, 6), allocator.allocate(6).orElseThrow());
+        assertTrue(allocator.allocate(100).isEmpty());
+    }
+
+    @Test
+    void runsSpanChunkBoundaries() {
+        var large = new BitmapAllocator(BitmapAllocator.CHUNK_BLOCKS * 3L, BLOCK_SIZE);
+        large.initializeNew(1);
+        // Leave a free run straddling the first and second chunk only
+        large.allocate(BitmapAllocator.CHUNK_BLOCKS - 101).orElseThrow();
+        var straddling = large.allocate(200).orElseThrow();
+        large.allocate(BitmapAllocator.CHUNK_BLOCKS * 2 - 100).orElseThrow();
+        large.free(straddling);
+
+        assertEquals(200, large.getLargestFreeExtent());
+        assertEquals(new Extent(straddling.startBlock(), 150), large.allocate(150).orElseThrow());
+        assertEquals(50, large.getLargestFreeExtent());
+    }
+
+    @Test
+    void freeRejectsBlocksThatAreAlreadyFree() {
+        var extent = allocator.allocate(10).orElseThrow();
+        allocator.free(extent);
+
+        assertThrows(IllegalArgumentException.class, () -> allocator.free(extent));
+        assertThrows(IllegalArgumentException.class, () -> allocator.free(new Extent(50, 2)));
+        assertEquals(99, allocator.getTotalFreeBlocks());
+    }
+
+    @Test
+    void allocateMultipleTakesLongestRunsWhenFragmented() {
+        var holes = new ArrayList<Extent>();
+        for (var i = 0; i < 5; i++) {
+            holes.add(allocator.allocate(4 + i).orElseThrow());
+            allocator.allocate(1).orElseThrow();
+        }
+        allocator.allocate(allocator.getLargestFreeExtent()).orElseThrow();
+        allocator.freeAll(holes);
+
+        var extents = allocator.allocateMultiple(15);
+        assertEquals(List.of(holes.get(4), holes.get(3)), extents);
+        assertTrue(allocator.allocateMultiple(100).isEmpty());
+    }
+
+    @Test
+    void freeExtentsRoundTripAcrossWords() {
+        var large = new BitmapAllocator(BitmapAllocator.CHUNK_BLOCKS * 2L + 10, BLOCK_SIZE);
+        var free = List.of(new Extent(3, 5), new Extent(64, 128), new Extent(1000, 4000),
+                new Extent(BitmapAllocator.CHUNK_BLOCKS * 2L, 10));
+        large.setFreeExtents(free);
+
+        assertEquals(free, large.getFreeExtents());
+        assertEquals(4143, large.getTotalFreeBlocks());
+        assertEquals(4000, large.getLargestFreeExtent());
+        assertEquals(large.getPageCount(), large.getDirtyPageCount());
+        assertThrows(IllegalArgumentException.class, () -> large.setFreeExtents(List.of(new Extent(8000, 500))));
+    }
+
+    @Test
+    void onlyChangedPagesAreWritten() throws IOException {
+        var large = new BitmapAllocator(BLOCK_SIZE * 8L * 4, BLOCK_SIZE);
+        assertEquals(4, large.getPageCount());
+        large.initializeNew(1);
+        assertEquals(4, large.getDirtyPageCount());
+        large.writeDirtyPages((firstPage, pages) -> { });
+        assertEquals(0, large.getDirtyPageCount());
+
+        // The first block of page 2 is the first still-free block once pages 0 and 1 are used up
+        large.allocate(BLOCK_SIZE * 8 * 2 - 1).orElseThrow();
+        large.writeDirtyPages((firstPage, pages) -> { });
+        large.allocate(1).orElseThrow();
+
+        var written = new ArrayList<Integer>();
+        large.writeDirtyPages((firstPage, pages) -> {
+            written.add(firstPage);
+            assertEquals(BLOCK_SIZE, pages.length);
+        });
+        assertEquals(List.of(2), written);
+    }
+
+    @Test
+    void loadRestoresPersistedState() throws IOException {
+        var totalBlocks = BitmapAllocator.CHUNK_BLOCKS * 2L + 123;
+        var original = new BitmapAllocator(totalBlocks, BLOCK_SIZE);
+        original.initializeNew(3);
+        var random = new Random(7);
+        var allocated = new ArrayList<Extent>();
+        for (var i = 0; i < 500; i++) {
+            original.allocate(1 + random.nextInt(20)).ifPresent(allocated::add);
+            if (random.nextBoolean()) {
+                original.free(allocated.remove(random.nextInt(allocated.size())));
+            }
+        }
+
+        original.freesPersisted();
+        var pages = new ByteArrayOutputStream();
+        original.writeDirtyPages((firstPage, bytes) -> pages.write(bytes));
+        var restored = new BitmapAllocator(totalBlocks, BLOCK_SIZE);
+        restored.load(pages.toByteArray());
+
+        assertEquals(original.getTotalFreeBlocks(), restored.getTotalFreeBlocks());
+        assertEquals(original.getLargestFreeExtent(), restored.getLargestFreeExtent());
+        for (var extent : allocated) {
+            assertFalse(restored.areFree(extent.startBlock(), 1));
+        }
+        assertFalse(restored.areFree(totalBlocks - 1, 2), "blocks past the end are never free");
+    }
+
+    @Test
+    void freesReachThePagesOnlyOncePersisted() throws IOException {
+        var extent = allocator.allocate(10).orElseThrow();
+        allocator.writeDirtyPages((firstPage, bytes) -> { });
+        allocator.free(extent);
+        allocator.free(allocator.allocate(3).orElseThrow());
+
+        var pages = new ByteArrayOutputStream();
+        allocator.writeDirtyPages((firstPage, bytes) -> pages.write(bytes));
+        var onDisk = new BitmapAllocator(100, BLOCK_SIZE);
+        onDisk.load(pages.toByteArray());
+        assertFalse(onDisk.areFree(extent.startBlock(), 1));
+        assertEquals(89, onDisk.getTotalFreeBlocks());
+        assertEquals(99, allocator.getTotalFreeBlocks());
+
+        allocator.freesPersisted();
+        pages.reset();
+        allocator.writeDirtyPages((firstPage, bytes) -> pages.write(bytes));
+        onDisk.load(pages.toByteArray());
+        assertTrue(onDisk.areFree(extent.startBlock(), extent.blockCount()));
+        assertEquals(99, onDisk.getTotalFreeBlocks());
+    }
+
+    @Test
+    void countersStayConsistentUnderChurn() {
+        var manager = new BitmapAllocator(100_000, BLOCK_SIZE);
+        manager.initializeNew(1);
+        var random = new Random(42);
+        var allocated = new ArrayList<Extent>();
+
+        for (var i = 0; i < 5_000; i++) {
+            if (allocated.isEmpty() || random.nextInt(3) > 0) {
+                manager.allocate(1 + random.nextInt(16)).ifPresent(allocated::add);
+            } else {
+                manager.free(allocated.remove(random.nextInt(allocated.size())));
+            }
+        }
+
+        var used = allocated.stream().mapToLong(Extent::blockCount).sum();
+        assertEquals(99_999 - used, manager.getTotalFreeBlocks());
+
+        manager.freeAll(allocated);
+        assertEquals(99_999, manager.getTotalFreeBlocks());
+        assertEquals(99_999, manager.getLargestFreeExtent());
+    }
+}
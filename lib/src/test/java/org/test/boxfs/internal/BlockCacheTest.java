@@ -0,0 +1,178 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    @Test
+    void hitAfterInstall() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 4L, EvictionPolicy.Kind.CLOCK)) {
+            assertFalse(cache.read(7, 0, ByteBuffer.allocate(10), 10));
+            assertTrue(cache.install(7, block(7), 0));
+
+            var dest = ByteBuffer.allocate(10);
+            assertTrue(cache.read(7, 100, dest, 10));
+            assertEquals((byte) (7 + 100), dest.get(0));
+
+            var stats = cache.stats();
+            assertEquals(1, stats.hits());
+            assertEquals(1, stats.misses());
+            assertEquals(1, stats.cachedBlocks());
+        }
+    }
+
+    @Test
+    void updateChangesResidentCopyOnly() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 4L, EvictionPolicy.Kind.LRU)) {
+            cache.install(1, block(1), 0);
+            var data = MemorySegment.ofArray(new byte[]{42, 43});
+            cache.update(1, 5, data, 0, 2);
+            cache.update(2, 5, data, 0, 2);
+
+            var dest = ByteBuffer.allocate(2);
+            cache.read(1, 5, dest, 2);
+            assertArrayEquals(new byte[]{42, 43}, dest.array());
+            assertFalse(cache.contains(2));
+        }
+    }
+
+    @Test
+    void lruEvictsLeastRecentlyUsed() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 3L, EvictionPolicy.Kind.LRU)) {
+            cache.install(1, block(1), 0);
+            cache.install(2, block(2), 0);
+            cache.install(3, block(3), 0);
+            cache.read(1, 0, ByteBuffer.allocate(1), 1);
+
+            cache.install(4, block(4), 0);
+
+            assertTrue(cache.contains(1));
+            assertFalse(cache.contains(2));
+            assertEquals(1, cache.stats().evictions());
+        }
+    }
+
+    @Test
+    void clockGivesReferencedBlocksSecondChance() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 3L, EvictionPolicy.Kind.CLOCK)) {
+            cache.install(1, block(1), 0);
+            cache.install(2, block(2), 0);
+            cache.install(3, block(3), 0);
+
+            // First sweep clears every reference bit and evicts the frame under the hand
+            cache.install(4, block(4), 0);
+            cache.read(2, 0, ByteBuffer.allocate(1), 1);
+            cache.install(5, block(5), 0);
+
+            assertTrue(cache.contains(2));
+            assertTrue(cache.contains(4));
+            assertTrue(cache.contains(5));
+        }
+    }
+
+    @Test
+    void arcKeepsFrequentBlocksAcrossScan() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 4L, EvictionPolicy.Kind.ARC)) {
+            cache.install(1, block(1), 0);
+            cache.install(2, block(2), 0);
+            cache.read(1, 0, ByteBuffer.allocate(1), 1);
+            cache.read(2, 0, ByteBuffer.allocate(1), 1);
+
+            // A one-off scan larger than the cache must not flush the frequently used blocks
+            for (var block = 100; block < 120; block++) {
+                cache.install(block, block(block), 0);
+            }
+
+            assertTrue(cache.contains(1));
+            assertTrue(cache.contains(2));
+        }
+    }
+
+    @Test
+    void pinnedBlocksAreNeverEvicted() {
+        for (var kind : EvictionPolicy.Kind.values()) {
+            try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 2L, kind)) {
+                cache.install(1, block(1), 0);
+                assertTrue(cache.pin(1));
+
+                for (var block = 10; block < 30; block++) {
+                    assertTrue(cache.install(block, block(block), 0));
+                }
+
+                assertTrue(cache.contains(1), kind + " evicted a pinned block");
+                assertEquals(1, cache.stats().pinnedBlocks());
+            }
+        }
+    }
+
+    @Test
+    void installFailsWhenEveryFrameIsPinned() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 2L, EvictionPolicy.Kind.LRU)) {
+            cache.install(1, block(1), 0);
+            cache.install(2, block(2), 0);
+            cache.pin(1);
+            cache.pin(2);
+
+            assertFalse(cache.install(3, block(3), 0));
+
+            cache.unpin(2);
+            assertTrue(cache.install(3, block(3), 0));
+            assertFalse(cache.contains(2));
+        }
+    }
+
+    @Test
+    void indexSurvivesHeavyChurn() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 64L, EvictionPolicy.Kind.CLOCK)) {
+            for (var block = 0; block < 5000; block++) {
+                cache.install(block * 7919L, block(block), 0);
+            }
+            var resident = 0;
+            for (var block = 0; block < 5000; block++) {
+                if (cache.contains(block * 7919L)) {
+                    var dest = ByteBuffer.allocate(1);
+                    assertTrue(cache.read(block * 7919L, 3, dest, 1));
+                    assertEquals((byte) (block + 3), dest.get(0));
+                    resident++;
+                }
+            }
+            assertEquals(64, resident);
+        }
+    }
+
+    @Test
+    void installRefusesABlockWrittenSinceItsRead() {
+        try (var cache = new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 4L, EvictionPolicy.Kind.LRU)) {
+            var readSince = cache.writeSequence();
+            // Written while not resident, after the read of the old image began
+            cache.update(1, 0, MemorySegment.ofArray(new byte[]{42}), 0, 1);
+
+            assertFalse(cache.install(1, block(1), 0, readSince));
+            assertFalse(cache.contains(1));
+            assertTrue(cache.writtenSince(1, readSince));
+            assertTrue(cache.install(2, block(2), 0, readSince));
+            assertTrue(cache.install(1, block(1), 0, cache.writeSequence()));
+        }
+    }
+
+    @Test
+    void rejectsBudgetSmallerThanOneBlock() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new BlockCache(BLOCK_SIZE, BLOCK_SIZE - 1, EvictionPolicy.Kind.LRU));
+    }
+
+    private static ByteBuffer block(int seed) {
+        var data = new byte[BLOCK_SIZE];
+        for (var i = 0; i < BLOCK_SIZE; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return ByteBuffer.wrap(data);
+    }
+}
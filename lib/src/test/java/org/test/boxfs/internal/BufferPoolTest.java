@@ -0,0 +1,43 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    @Test
+    void acquireRoundsUpToSizeClass() {
+        var pool = new BufferPool();
+        var buffer = pool.acquire(5000);
+
+        assertTrue(buffer.isDirect());
+        assertEquals(8192, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(5000, buffer.limit());
+    }
+
+    @Test
+    void releasedBuffersAreReused() {
+        var pool = new BufferPool();
+        var first = pool.acquire(4096);
+        first.position(100);
+        pool.release(first);
+
+        var second = pool.acquire(1000);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1000, second.limit());
+    }
+
+    @Test
+    void oversizedBuffersAreNotPooled() {
+        var pool = new BufferPool();
+        var size = (1 << BufferPool.MAX_CLASS_SHIFT) + 1;
+        var buffer = pool.acquire(size);
+        assertEquals(size, buffer.capacity());
+
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(size));
+    }
+}
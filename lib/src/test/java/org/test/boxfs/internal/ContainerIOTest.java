@@ -0,0 +1,186 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContainerIOTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void mappedExtentRoundTrip() throws IOException {
+        var path = tempDir.resolve("mapped.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16, true)) {
+            assertTrue(io.isMemoryMapped());
+
+            var extent = new Extent(2, 3);
+            var data = pattern(1000);
+            assertEquals(1000, io.writeToExtent(extent, 100, ByteBuffer.wrap(data)));
+
+            var dest = ByteBuffer.allocate(1000);
+            assertEquals(1000, io.readFromExtent(extent, 100, dest));
+            assertArrayEquals(data, dest.array());
+        }
+    }
+
+    @Test
+    void mappedWritesVisibleToChannelMode() throws IOException {
+        var path = tempDir.resolve("shared.box");
+        var data = pattern(BLOCK_SIZE * 2);
+
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16, true)) {
+            io.writeBlocks(4, data);
+            io.sync();
+        }
+
+        try (var io = ContainerIO.open(path)) {
+            assertFalse(io.isMemoryMapped());
+            assertArrayEquals(data, io.readBlocks(4, 2));
+        }
+    }
+
+    @Test
+    void accessSpanningMapWindowsIsSplit() throws IOException {
+        var path = tempDir.resolve("windows.box");
+        // A window size that is not block aligned forces extents to straddle window boundaries
+        var windowSize = BLOCK_SIZE * 3 + 100L;
+
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16, windowSize)) {
+            var extent = new Extent(1, 8);
+            var data = pattern(BLOCK_SIZE * 8);
+            io.writeToExtent(extent, 0, ByteBuffer.wrap(data));
+
+            var dest = ByteBuffer.allocateDirect(data.length - 7);
+            assertEquals(data.length - 7, io.readFromExtent(extent, 7, dest));
+            dest.flip();
+            var actual = new byte[dest.remaining()];
+            dest.get(actual);
+
+            var expected = new byte[data.length - 7];
+            System.arraycopy(data, 7, expected, 0, expected.length);
+            assertArrayEquals(expected, actual);
+        }
+
+        try (var io = ContainerIO.open(path, windowSize)) {
+            assertArrayEquals(pattern(BLOCK_SIZE * 8), io.readBlocks(1, 8));
+        }
+    }
+
+    @Test
+    void truncateShrinksMappedContainer() throws IOException {
+        var path = tempDir.resolve("truncate.box");
+        var data = pattern(BLOCK_SIZE * 2);
+
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16, true)) {
+            io.writeBlocks(3, data);
+            io.getSuperblock().setTotalBlocks(6);
+            io.writeSuperblock();
+            io.truncate();
+
+            assertEquals(BLOCK_SIZE * 7L, Files.size(path));
+            assertArrayEquals(data, io.readBlocks(3, 2));
+            io.writeBlocks(5, pattern(BLOCK_SIZE));
+        }
+
+        try (var io = ContainerIO.open(path, true)) {
+            assertEquals(6, io.getTotalBlocks());
+            assertArrayEquals(data, io.readBlocks(3, 2));
+        }
+    }
+
+    @Test
+    void tornSuperblockFallsBackToThePreviousGeneration() throws IOException {
+        var path = tempDir.resolve("slots.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16)) {
+            io.getSuperblock().setMetadataExtents(List.of(new Extent(2, 1)));
+            io.writeSuperblock();
+            io.getSuperblock().setMetadataExtents(List.of(new Extent(3, 1)));
+            io.writeSuperblock();
+            io.sync();
+        }
+        try (var io = ContainerIO.open(path)) {
+            assertEquals(2, io.getSuperblock().getGeneration());
+            assertEquals(List.of(new Extent(3, 1)), io.getSuperblock().getMetadataExtents());
+        }
+
+        // Generation 2 went to the start of the file; tear it
+        var garbage = new byte[100];
+        Arrays.fill(garbage, (byte) 0xA5);
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(garbage), 200);
+        }
+        try (var io = ContainerIO.open(path)) {
+            assertEquals(1, io.getSuperblock().getGeneration());
+            assertEquals(List.of(new Extent(2, 1)), io.getSuperblock().getMetadataExtents());
+        }
+
+        // With its header gone too, the other slot is found without knowing the block size
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[BLOCK_SIZE]), 0);
+        }
+        try (var io = ContainerIO.open(path)) {
+            assertEquals(1, io.getSuperblock().getGeneration());
+            assertEquals(BLOCK_SIZE, io.getBlockSize());
+        }
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void discardedBlocksReadAsZerosThroughCacheAndFile() throws IOException {
+        var path = tempDir.resolve("discard.box");
+        var data = pattern(BLOCK_SIZE * 4);
+
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16)) {
+            io.attachCache(new BlockCache(BLOCK_SIZE, 16L * BLOCK_SIZE, EvictionPolicy.Kind.CLOCK));
+            io.enableDiscard(path);
+            io.writeBlocks(2, data);
+            assertArrayEquals(data, io.readBlocks(2, 4));
+
+            io.discard(List.of(new Extent(3, 2)));
+
+            var expected = data.clone();
+            Arrays.fill(expected, BLOCK_SIZE, BLOCK_SIZE * 3, (byte) 0);
+            assertArrayEquals(expected, io.readBlocks(2, 4));
+            assertEquals(BLOCK_SIZE * 17L, Files.size(path));
+        }
+
+        try (var io = ContainerIO.open(path)) {
+            var expected = data.clone();
+            Arrays.fill(expected, BLOCK_SIZE, BLOCK_SIZE * 3, (byte) 0);
+            assertArrayEquals(expected, io.readBlocks(2, 4));
+        }
+    }
+
+    @Test
+    void readBeyondExtentReturnsEndOfStream() throws IOException {
+        var path = tempDir.resolve("eof.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16, true)) {
+            var extent = new Extent(0, 1);
+            assertEquals(-1, io.readFromExtent(extent, BLOCK_SIZE, ByteBuffer.allocate(10)));
+        }
+    }
+
+    private static byte[] pattern(int size) {
+        var data = new byte[size];
+        for (var i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,44 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupIndexTest {
+
+    @Test
+    void firstBlockWithAHashIsKept() {
+        var index = new DedupIndex();
+        var data = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        var hash = DedupIndex.hash(data);
+        assertEquals(0, data.position());
+        assertNotEquals(hash, DedupIndex.hash(ByteBuffer.wrap(new byte[]{1, 2, 3, 5})));
+
+        index.put(hash, 10);
+        index.put(hash, 20);
+        assertEquals(10, index.lookup(hash));
+        assertEquals(Map.of(10L, hash), index.getEntries());
+
+        // Rewriting a block under another hash drops its old entry
+        index.put(hash + 1, 10);
+        assertEquals(-1, index.lookup(hash));
+        assertEquals(10, index.lookup(hash + 1));
+    }
+
+    @Test
+    void freedRangesAreDropped() {
+        var index = new DedupIndex();
+        for (var block = 0L; block < 10; block++) {
+            index.put(block * 7, block);
+        }
+        index.removeAll(List.of(new Extent(2, 3)));
+        index.removeFrom(8);
+        assertEquals(List.of(0L, 1L, 5L, 6L, 7L), List.copyOf(index.getEntries().keySet()));
+        assertEquals(-1, index.lookup(3 * 7));
+        assertEquals(6, index.lookup(6 * 7));
+    }
+}
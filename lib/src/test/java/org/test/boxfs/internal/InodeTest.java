@@ -0,0 +1,141 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InodeTest {
+
+    @Test
+    void findExtentTranslatesFileBlocks() {
+        var inode = fragmented();
+        var cursor = new ExtentCursor();
+
+        assertEquals(0, inode.findExtent(0, cursor));
+        assertEquals(0, inode.findExtent(2, cursor));
+        assertEquals(1, inode.findExtent(3, cursor));
+        assertEquals(2, inode.findExtent(4, cursor));
+        assertEquals(3, inode.findExtent(13, cursor));
+        assertEquals(-1, inode.findExtent(15, cursor));
+        assertEquals(8, inode.getExtentStartBlock(3));
+        assertEquals(15, inode.getAllocatedBlocks());
+    }
+
+    @Test
+    void cursorTracksSequentialAccess() {
+        var inode = fragmented();
+        var cursor = new ExtentCursor();
+        for (var block = 0; block < 15; block++) {
+            var index = inode.findExtent(block, cursor);
+            assertTrue(inode.getExtentStartBlock(index) <= block);
+            assertTrue(block < inode.getExtentStartBlock(index) + inode.getExtent(index).blockCount());
+        }
+        assertEquals(3, cursor.index());
+
+        // A stale cursor falls back to searching
+        cursor.moveTo(42);
+        assertEquals(1, inode.findExtent(3, cursor));
+    }
+
+    @Test
+    void appendExtendsIndex() {
+        var inode = new Inode(1, Inode.Type.FILE);
+        for (var i = 0; i < 100; i++) {
+            inode.addExtent(new Extent(i * 10L, 2));
+        }
+        assertEquals(200, inode.getAllocatedBlocks());
+        assertEquals(99, inode.findExtent(199, new ExtentCursor()));
+        assertEquals(50, inode.findExtent(101, new ExtentCursor()));
+    }
+
+    @Test
+    void appendMergesContiguousExtent() {
+        var inode = fragmented();
+
+        inode.addExtent(new Extent(37, 5));
+
+        assertEquals(4, inode.getExtentCount());
+        assertEquals(new Extent(30, 12), inode.getExtent(3));
+        assertEquals(20, inode.getAllocatedBlocks());
+        assertEquals(3, inode.findExtent(19, new ExtentCursor()));
+    }
+
+    @Test
+    void truncateSplitsStraddlingExtent() {
+        var inode = fragmented();
+
+        var freed = inode.truncateToBlocks(6);
+
+        assertEquals(List.of(new Extent(10, 3), new Extent(20, 1), new Extent(40, 2)), List.copyOf(inode.getExtents()));
+        assertEquals(List.of(new Extent(42, 2), new Extent(30, 7)), freed);
+        assertEquals(6, inode.getAllocatedBlocks());
+        assertEquals(-1, inode.findExtent(6, new ExtentCursor()));
+
+        inode.addExtent(new Extent(90, 4));
+        assertEquals(3, inode.findExtent(7, new ExtentCursor()));
+    }
+
+    @Test
+    void truncateToZeroFreesEverything() {
+        var inode = fragmented();
+        assertEquals(4, inode.truncateToBlocks(0).size());
+        assertEquals(0, inode.getAllocatedBlocks());
+        assertTrue(inode.getExtents().isEmpty());
+    }
+
+    @Test
+    void unwrittenRangesSplitOnWriteAndTrimOnTruncate() {
+        var inode = fragmented();
+        inode.markUnwritten(4, 11);
+        inode.markUnwritten(2, 2);
+
+        inode.markWritten(6, 8);
+
+        assertEquals(List.of(new Extent(2, 4), new Extent(8, 7)), inode.getUnwrittenRanges());
+        assertTrue(inode.isUnwritten(5));
+        assertFalse(inode.isUnwritten(6));
+        assertEquals(6, inode.nextUnwrittenBoundary(3));
+        assertEquals(8, inode.nextUnwrittenBoundary(6));
+        assertEquals(2, inode.nextUnwrittenBoundary(0));
+
+        inode.truncateToBlocks(10);
+        assertEquals(List.of(new Extent(2, 4), new Extent(8, 2)), inode.getUnwrittenRanges());
+        inode.markWritten(0, 10);
+        assertFalse(inode.hasUnwrittenBlocks());
+    }
+
+    @Test
+    void holesMergeAndSplitWhenMapped() {
+        var inode = new Inode(1, Inode.Type.FILE);
+        inode.addExtent(new Extent(10, 2));
+        inode.addHole(3);
+        inode.addHole(5);
+        inode.addExtent(new Extent(12, 1));
+
+        assertEquals(List.of(new Extent(10, 2), Extent.hole(8), new Extent(12, 1)), inode.getExtents());
+        assertEquals(List.of(new Extent(10, 2), new Extent(12, 1)), inode.getDataExtents());
+        assertEquals(11, inode.getAllocatedBlocks());
+
+        inode.mapHole(4, List.of(new Extent(50, 2)));
+        assertEquals(List.of(new Extent(10, 2), Extent.hole(2), new Extent(50, 2), Extent.hole(4), new Extent(12, 1)),
+                inode.getExtents());
+
+        inode.mapHole(2, List.of(new Extent(12, 2)));
+        assertEquals(List.of(new Extent(10, 4), new Extent(50, 2), Extent.hole(4), new Extent(12, 1)), inode.getExtents());
+        assertThrows(IllegalArgumentException.class, () -> inode.mapHole(5, List.of(new Extent(70, 1))));
+
+        assertEquals(List.of(new Extent(12, 1)), inode.truncateToBlocks(7));
+        assertEquals(List.of(new Extent(10, 4), new Extent(50, 2), Extent.hole(1)), inode.getExtents());
+        assertTrue(inode.hasHoles());
+        assertEquals(List.of(), inode.truncateToBlocks(6));
+        assertFalse(inode.hasHoles());
+    }
+
+    private static Inode fragmented() {
+        // File blocks: [0,3) [3,4) [4,8) [8,15)
+        return new Inode(1, Inode.Type.FILE, 0,
+                List.of(new Extent(10, 3), new Extent(20, 1), new Extent(40, 4), new Extent(30, 7)), 0);
+    }
+}
@@ -0,0 +1,72 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataLogTest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    @Test
+    void recordsAreReadBackInOrder() throws IOException {
+        var log = new MetadataLog(BLOCK_SIZE);
+        log.reset(new Extent(10, 8), 3);
+        var contents = new byte[8 * BLOCK_SIZE];
+        append(log, contents, new byte[]{1, 2, 3});
+        append(log, contents, new byte[100]);
+        assertEquals(13, log.nextBlock());
+        assertEquals(2, log.getRecordCount());
+
+        var reopened = new MetadataLog(BLOCK_SIZE);
+        reopened.reset(new Extent(10, 8), 3);
+        var payloads = reopened.readRecords(contents);
+        assertEquals(2, payloads.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, payloads.get(0));
+        assertArrayEquals(new byte[100], payloads.get(1));
+        // Appending continues after the records read
+        assertEquals(13, reopened.nextBlock());
+        assertEquals(2, reopened.getRecordCount());
+    }
+
+    @Test
+    void recordThatDoesNotFitIsRefused() {
+        var log = new MetadataLog(BLOCK_SIZE);
+        assertNull(log.encode(new byte[1]));
+        log.reset(new Extent(0, 2), 1);
+        assertNotNull(log.encode(new byte[2 * BLOCK_SIZE - MetadataLog.HEADER_SIZE]));
+        assertNull(log.encode(new byte[2 * BLOCK_SIZE - MetadataLog.HEADER_SIZE + 1]));
+    }
+
+    @Test
+    void tornOrStaleRecordsEndTheLog() throws IOException {
+        var log = new MetadataLog(BLOCK_SIZE);
+        log.reset(new Extent(0, 8), 5);
+        var contents = new byte[8 * BLOCK_SIZE];
+        append(log, contents, new byte[]{1});
+        append(log, contents, new byte[]{2});
+        append(log, contents, new byte[]{3});
+        // The second record is torn; the third cannot be trusted after it
+        contents[BLOCK_SIZE + MetadataLog.HEADER_SIZE] ^= 1;
+
+        var reopened = new MetadataLog(BLOCK_SIZE);
+        reopened.reset(new Extent(0, 8), 5);
+        assertEquals(1, reopened.readRecords(contents).size());
+        assertEquals(1, reopened.nextBlock());
+
+        // Records of an earlier generation are not replayed after a checkpoint
+        reopened.reset(new Extent(0, 8), 6);
+        assertTrue(reopened.readRecords(contents).isEmpty());
+        assertEquals(0, reopened.nextBlock());
+    }
+
+    private static void append(MetadataLog log, byte[] contents, byte[] payload) {
+        var record = log.encode(payload);
+        var offset = (int) (log.nextBlock() - log.getExtent().startBlock()) * BLOCK_SIZE;
+        ByteBuffer.wrap(contents, offset, record.length).put(record);
+        log.appended(record);
+    }
+}
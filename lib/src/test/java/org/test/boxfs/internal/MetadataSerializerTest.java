@@ -2,7 +2,12 @@ package org.test.boxfs.internal;
 
 import org.junit.jupiter.api.Test;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -17,7 +22,8 @@ class MetadataSerializerTest {
         inodeTable.createRootInode();
         spaceManager.initializeNew(1);
 
-        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager);
+        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
         assertNotNull(data);
         assertTrue(data.length > 0);
 
@@ -26,7 +32,8 @@ class MetadataSerializerTest {
         var restoredDirs = new DirectoryTable();
         var restoredSpace = new SpaceManager(100);
 
-        MetadataSerializer.deserialize(data, restoredInodes, restoredDirs, restoredSpace);
+        MetadataSerializer.deserialize(data, restoredInodes, restoredDirs, restoredSpace, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
 
         assertEquals(1, restoredInodes.size());
         assertTrue(restoredInodes.getRoot().isPresent());
@@ -49,14 +56,16 @@ class MetadataSerializerTest {
 
         directoryTable.addEntry(new DirectoryEntry(root.getId(), "test.txt", file.getId()));
 
-        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager);
+        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
 
         // Deserialize
         var restoredInodes = new InodeTable();
         var restoredDirs = new DirectoryTable();
         var restoredSpace = new SpaceManager(100);
 
-        MetadataSerializer.deserialize(data, restoredInodes, restoredDirs, restoredSpace);
+        MetadataSerializer.deserialize(data, restoredInodes, restoredDirs, restoredSpace, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
 
         assertEquals(2, restoredInodes.size());
         assertEquals(1, restoredDirs.size());
@@ -88,14 +97,16 @@ class MetadataSerializerTest {
         file.setSize(2048);
         directoryTable.addEntry(new DirectoryEntry(dir2.getId(), "file.txt", file.getId()));
 
-        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager);
+        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
 
         // Deserialize
         var restoredInodes = new InodeTable();
         var restoredDirs = new DirectoryTable();
         var restoredSpace = new SpaceManager(100);
 
-        MetadataSerializer.deserialize(data, restoredInodes, restoredDirs, restoredSpace);
+        MetadataSerializer.deserialize(data, restoredInodes, restoredDirs, restoredSpace, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
 
         assertEquals(4, restoredInodes.size());
         assertEquals(3, restoredDirs.size());
@@ -119,7 +130,8 @@ class MetadataSerializerTest {
 
         // Set a free list with 1 extent
         spaceManager.setFreeExtents(List.of(new Extent(1, 99)));
-        var sizeWith1Extent = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager).length;
+        var sizeWith1Extent = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1)).length;
 
         // Set a free list with 3 extents (fragmented)
         spaceManager.setFreeExtents(List.of(
@@ -127,7 +139,8 @@ class MetadataSerializerTest {
                 new Extent(40, 30),
                 new Extent(80, 20)
         ));
-        var sizeWith3Extents = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager).length;
+        var sizeWith3Extents = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1)).length;
 
         // More extents = larger serialized size
         assertTrue(sizeWith3Extents > sizeWith1Extent,
@@ -137,4 +150,195 @@ class MetadataSerializerTest {
         assertEquals(24, sizeWith3Extents - sizeWith1Extent,
                 "Each additional extent should add 12 bytes");
     }
+
+    @Test
+    void unwrittenRangesRoundTrip() throws IOException {
+        var inodeTable = new InodeTable();
+        var spaceManager = new SpaceManager(100);
+        spaceManager.initializeNew(1);
+        inodeTable.createRootInode();
+        var file = inodeTable.createInode(Inode.Type.FILE);
+        file.addExtent(new Extent(10, 20));
+        file.markUnwritten(3, 5);
+        file.markUnwritten(12, 8);
+
+        var data = MetadataSerializer.serialize(inodeTable, new DirectoryTable(), spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        // Metadata is read back with the zero padding of its last block
+        var padded = Arrays.copyOf(data, data.length + 64);
+
+        var restoredInodes = new InodeTable();
+        MetadataSerializer.deserialize(padded, restoredInodes, new DirectoryTable(), new SpaceManager(100),
+                new RefCounts(), new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+
+        var restored = restoredInodes.get(file.getId()).orElseThrow();
+        assertEquals(List.of(new Extent(3, 5), new Extent(12, 8)), restored.getUnwrittenRanges());
+        assertFalse(restoredInodes.getRoot().orElseThrow().hasUnwrittenBlocks());
+    }
+
+    @Test
+    void inlineTailsRoundTripWithHoles() throws IOException {
+        var inodeTable = new InodeTable();
+        var spaceManager = new SpaceManager(100);
+        spaceManager.initializeNew(1);
+        inodeTable.createRootInode();
+        var small = inodeTable.createInode(Inode.Type.FILE);
+        small.setInlineTail("{\"id\": 1}".getBytes(StandardCharsets.UTF_8));
+        small.setSize(9);
+        var sparse = inodeTable.createInode(Inode.Type.FILE);
+        sparse.addHole(4);
+        sparse.addExtent(new Extent(10, 1));
+        sparse.setInlineTail(new byte[]{1, 2, 3});
+
+        var data = MetadataSerializer.serialize(inodeTable, new DirectoryTable(), spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        var padded = Arrays.copyOf(data, data.length + 64);
+
+        var restoredInodes = new InodeTable();
+        MetadataSerializer.deserialize(padded, restoredInodes, new DirectoryTable(), new SpaceManager(100),
+                new RefCounts(), new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+
+        assertArrayEquals(small.getInlineTail(), restoredInodes.get(small.getId()).orElseThrow().getInlineTail());
+        assertTrue(restoredInodes.get(small.getId()).orElseThrow().getExtents().isEmpty());
+        var restoredSparse = restoredInodes.get(sparse.getId()).orElseThrow();
+        assertEquals(List.of(Extent.hole(4), new Extent(10, 1)), restoredSparse.getExtents());
+        assertArrayEquals(new byte[]{1, 2, 3}, restoredSparse.getInlineTail());
+        assertNull(restoredInodes.getRoot().orElseThrow().getInlineTail());
+    }
+
+    @Test
+    void sharedBlockCountsRoundTrip() throws IOException {
+        var inodeTable = new InodeTable();
+        var spaceManager = new SpaceManager(100);
+        spaceManager.initializeNew(1);
+        inodeTable.createRootInode();
+        var refCounts = new RefCounts();
+        refCounts.share(new Extent(10, 5));
+        refCounts.share(new Extent(12, 8));
+
+        var data = MetadataSerializer.serialize(inodeTable, new DirectoryTable(), spaceManager, refCounts,
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        var restored = new RefCounts();
+        MetadataSerializer.deserialize(data, new InodeTable(), new DirectoryTable(), new SpaceManager(100), restored,
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        assertEquals(refCounts.getRanges(), restored.getRanges());
+
+        // Containers written before sharing existed have no counts
+        var older = MetadataSerializer.serialize(inodeTable, new DirectoryTable(), spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        MetadataSerializer.deserialize(Arrays.copyOf(older, older.length - Integer.BYTES), new InodeTable(),
+                new DirectoryTable(), new SpaceManager(100), restored, new SnapshotTable(), new DedupIndex(),
+                new MetadataLog(1));
+        assertTrue(restored.isEmpty());
+    }
+
+    @Test
+    void snapshotsAndNamespaceRoundTrip() throws IOException {
+        var inodeTable = new InodeTable();
+        var directoryTable = new DirectoryTable();
+        var spaceManager = new SpaceManager(100);
+        spaceManager.initializeNew(1);
+        inodeTable.createRootInode();
+        var file = inodeTable.createInode(Inode.Type.FILE);
+        file.addExtent(new Extent(20, 4));
+        directoryTable.addEntry(new DirectoryEntry(InodeTable.ROOT_INODE_ID, "file.bin", file.getId()));
+        var snapshots = new SnapshotTable();
+        snapshots.add(new SnapshotTable.Entry("daily", 1234L, List.of(new Extent(30, 2), new Extent(40, 1)), 41));
+
+        var data = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(), snapshots,
+                new DedupIndex(), new MetadataLog(1));
+        var restored = new SnapshotTable();
+        MetadataSerializer.deserialize(data, new InodeTable(), new DirectoryTable(), new SpaceManager(100),
+                new RefCounts(), restored, new DedupIndex(), new MetadataLog(1));
+        assertEquals(snapshots.getAll(), restored.getAll());
+        assertEquals(41, restored.endBlock());
+
+        var namespace = MetadataSerializer.serializeNamespace(inodeTable, directoryTable);
+        var frozenInodes = new InodeTable();
+        var frozenEntries = new DirectoryTable();
+        MetadataSerializer.deserializeNamespace(namespace, frozenInodes, frozenEntries);
+        assertEquals(List.of(new Extent(20, 4)), frozenInodes.get(file.getId()).orElseThrow().getExtents());
+        assertEquals(directoryTable.getAllEntries(), frozenEntries.getAllEntries());
+    }
+
+    @Test
+    void chunkMapsRoundTrip() throws IOException {
+        var inodeTable = new InodeTable();
+        var spaceManager = new SpaceManager(100);
+        spaceManager.initializeNew(1);
+        inodeTable.createRootInode().setChunkBlocks(16);
+        var file = inodeTable.createInode(Inode.Type.FILE);
+        file.setChunkBlocks(16);
+        file.setChunkLength(0, 1500);
+        file.setChunkLength(2, Inode.INCOMPRESSIBLE);
+        var plain = inodeTable.createInode(Inode.Type.FILE);
+
+        var data = MetadataSerializer.serialize(inodeTable, new DirectoryTable(), spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        var restoredInodes = new InodeTable();
+        MetadataSerializer.deserialize(data, restoredInodes, new DirectoryTable(), new SpaceManager(100),
+                new RefCounts(), new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+
+        var restored = restoredInodes.get(file.getId()).orElseThrow();
+        assertEquals(16, restored.getChunkBlocks());
+        assertArrayEquals(new int[]{1500, 0, Inode.INCOMPRESSIBLE}, restored.getChunkLengths());
+        assertTrue(restored.hasCompressedChunks());
+        assertTrue(restoredInodes.getRoot().orElseThrow().isCompressed());
+        assertFalse(restoredInodes.get(plain.getId()).orElseThrow().isCompressed());
+    }
+
+    @Test
+    void loggedChangesReplayOntoCheckpoint() throws IOException {
+        var inodeTable = new InodeTable();
+        var directoryTable = new DirectoryTable();
+        var spaceManager = new SpaceManager(100);
+        spaceManager.initializeNew(1);
+        var root = inodeTable.createRootInode();
+        var kept = inodeTable.createInode(Inode.Type.FILE);
+        var renamed = inodeTable.createInode(Inode.Type.FILE);
+        var deleted = inodeTable.createInode(Inode.Type.FILE);
+        directoryTable.addEntry(new DirectoryEntry(root.getId(), "kept", kept.getId()));
+        directoryTable.addEntry(new DirectoryEntry(root.getId(), "renamed", renamed.getId()));
+        directoryTable.addEntry(new DirectoryEntry(root.getId(), "deleted", deleted.getId()));
+        var checkpoint = MetadataSerializer.serialize(inodeTable, directoryTable, spaceManager, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        inodeTable.takeChanges();
+        directoryTable.takeChanges();
+        spaceManager.takeChangedRanges();
+
+        // "renamed" takes the place of "deleted", and a new file is written
+        directoryTable.removeEntry(root.getId(), "renamed");
+        directoryTable.removeEntry(root.getId(), "deleted");
+        inodeTable.remove(deleted.getId());
+        directoryTable.addEntry(new DirectoryEntry(root.getId(), "deleted", renamed.getId()));
+        var created = inodeTable.createInode(Inode.Type.FILE);
+        created.addExtent(spaceManager.allocate(3).orElseThrow());
+        created.setSize(3 * 4096);
+        directoryTable.addEntry(new DirectoryEntry(root.getId(), "created", created.getId()));
+        var changedIds = new TreeSet<>(inodeTable.takeChanges());
+        changedIds.addAll(directoryTable.takeChanges());
+        assertFalse(changedIds.contains(kept.getId()));
+        var changes = MetadataSerializer.serializeChanges(inodeTable, directoryTable, changedIds, spaceManager,
+                spaceManager.takeChangedRanges(), null, Map.of(created.getExtents().getFirst().startBlock(), 42L));
+
+        var restoredInodes = new InodeTable();
+        var restoredDirs = new DirectoryTable();
+        var restoredSpace = new SpaceManager(100);
+        var restoredIndex = new DedupIndex();
+        MetadataSerializer.deserialize(checkpoint, restoredInodes, restoredDirs, restoredSpace, new RefCounts(),
+                new SnapshotTable(), new DedupIndex(), new MetadataLog(1));
+        MetadataSerializer.applyChanges(changes, restoredInodes, restoredDirs, restoredSpace, new RefCounts(),
+                restoredIndex);
+
+        assertEquals(inodeTable.size(), restoredInodes.size());
+        assertTrue(restoredInodes.get(deleted.getId()).isEmpty());
+        var byName = Comparator.comparing(DirectoryEntry::name);
+        assertEquals(directoryTable.getAllEntries().stream().sorted(byName).toList(),
+                restoredDirs.getAllEntries().stream().sorted(byName).toList());
+        assertEquals(created.getExtents(), restoredInodes.get(created.getId()).orElseThrow().getExtents());
+        assertEquals(3 * 4096, restoredInodes.get(created.getId()).orElseThrow().getSize());
+        assertEquals(spaceManager.getFreeExtents(), restoredSpace.getFreeExtents());
+        assertEquals(created.getExtents().getFirst().startBlock(), restoredIndex.lookup(42L));
+        assertTrue(restoredInodes.takeChanges().isEmpty());
+    }
 }
@@ -0,0 +1,56 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RefCountsTest {
+
+    @Test
+    void releaseReturnsOnlyBlocksWithoutOtherReferences() {
+        var refCounts = new RefCounts();
+        refCounts.share(new Extent(10, 10));
+        refCounts.share(new Extent(15, 10));
+
+        assertEquals(List.of(new RefCounts.Range(10, 15, 2), new RefCounts.Range(15, 20, 3),
+                new RefCounts.Range(20, 25, 2)), refCounts.getRanges());
+        assertTrue(refCounts.isShared(24));
+        assertFalse(refCounts.isShared(25));
+        assertEquals(25, refCounts.nextBoundary(12));
+        assertEquals(Long.MAX_VALUE, refCounts.nextBoundary(25));
+
+        assertEquals(List.of(), refCounts.release(new Extent(10, 15)));
+        assertEquals(List.of(new Extent(10, 5), new Extent(20, 5)), refCounts.release(new Extent(10, 15)));
+        assertEquals(List.of(new Extent(15, 5)), refCounts.release(new Extent(15, 5)));
+        assertTrue(refCounts.isEmpty());
+        assertEquals(List.of(new Extent(30, 2)), refCounts.release(new Extent(30, 2)));
+    }
+
+    @Test
+    void neighbouringRangesWithTheSameCountMerge() {
+        var refCounts = new RefCounts();
+        refCounts.share(new Extent(0, 4));
+        refCounts.share(new Extent(4, 4));
+        refCounts.share(new Extent(2, 4));
+        refCounts.release(new Extent(2, 4));
+
+        assertEquals(List.of(new RefCounts.Range(0, 8, 2)), refCounts.getRanges());
+        assertTrue(refCounts.anyShared(List.of(new Extent(7, 3))));
+        assertFalse(refCounts.anyShared(List.of(new Extent(8, 3))));
+    }
+
+    @Test
+    void relocateMovesCountsToTheNewBlocks() {
+        var refCounts = new RefCounts();
+        refCounts.share(new Extent(100, 6));
+        refCounts.share(new Extent(102, 2));
+
+        refCounts.relocate(100, List.of(new Extent(10, 3), new Extent(20, 3)));
+
+        assertEquals(List.of(new RefCounts.Range(10, 12, 2), new RefCounts.Range(12, 13, 3),
+                new RefCounts.Range(20, 21, 3), new RefCounts.Range(21, 23, 2)), refCounts.getRanges());
+        assertFalse(refCounts.isShared(100));
+    }
+}
@@ -2,8 +2,10 @@ package org.test.boxfs.internal;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -84,4 +86,117 @@ class SpaceManagerTest {
         spaceManager.allocate(50);
         assertEquals(49, spaceManager.getLargestFreeExtent());
     }
+
+    @Test
+    void bestFitPicksSmallestSufficientExtent() {
+        // Free holes of 8, 3 and 5 blocks separated by allocated blocks
+        spaceManager.setFreeExtents(List.of(new Extent(10, 8), new Extent(30, 3), new Extent(50, 5)));
+
+        assertEquals(new Extent(50, 4), spaceManager.allocate(4).orElseThrow());
+        assertEquals(new Extent(30, 3), spaceManager.allocate(3).orElseThrow());
+        assertEquals(List.of(new Extent(10, 8), new Extent(54, 1)), spaceManager.getFreeExtents());
+    }
+
+    @Test
+    void freeCoalescesWithBothNeighbours() {
+        spaceManager.setFreeExtents(List.of(new Extent(10, 5), new Extent(20, 5)));
+
+        spaceManager.free(new Extent(15, 5));
+
+        assertEquals(List.of(new Extent(10, 15)), spaceManager.getFreeExtents());
+        assertEquals(15, spaceManager.getTotalFreeBlocks());
+        assertEquals(15, spaceManager.getLargestFreeExtent());
+    }
+
+    @Test
+    void freeRejectsOverlap() {
+        spaceManager.setFreeExtents(List.of(new Extent(10, 5)));
+
+        assertThrows(IllegalArgumentException.class, () -> spaceManager.free(new Extent(12, 2)));
+        assertThrows(IllegalArgumentException.class, () -> spaceManager.free(new Extent(8, 3)));
+        assertEquals(5, spaceManager.getTotalFreeBlocks());
+    }
+
+    @Test
+    void allocateMultiplePrefersContiguousThenLargest() {
+        spaceManager.setFreeExtents(List.of(new Extent(10, 2), new Extent(20, 6), new Extent(40, 4)));
+
+        assertEquals(List.of(new Extent(40, 4)), spaceManager.allocateMultiple(4));
+        assertEquals(List.of(new Extent(20, 6), new Extent(10, 1)), spaceManager.allocateMultiple(7));
+        assertEquals(List.of(new Extent(11, 1)), spaceManager.getFreeExtents());
+    }
+
+    @Test
+    void goalBlockIsTakenWhenFree() {
+        spaceManager.setFreeExtents(List.of(new Extent(10, 4), new Extent(30, 20)));
+
+        assertEquals(new Extent(35, 5), spaceManager.allocate(5, 35).orElseThrow());
+        assertEquals(List.of(new Extent(10, 4), new Extent(30, 5), new Extent(40, 10)), spaceManager.getFreeExtents());
+        // Goal in use: best-fit instead
+        assertEquals(new Extent(10, 3), spaceManager.allocate(3, 36).orElseThrow());
+        assertEquals(List.of(new Extent(40, 8)), spaceManager.allocateMultiple(8, 40));
+        assertEquals(List.of(new Extent(30, 5), new Extent(48, 2)), spaceManager.allocateMultiple(7, 13));
+    }
+
+    @Test
+    void countersStayConsistentUnderChurn() {
+        var manager = new SpaceManager(100_000);
+        manager.initializeNew(1);
+        var random = new Random(42);
+        var allocated = new ArrayList<Extent>();
+
+        for (var i = 0; i < 5_000; i++) {
+            if (allocated.isEmpty() || random.nextInt(3) > 0) {
+                manager.allocate(1 + random.nextInt(16)).ifPresent(allocated::add);
+            } else {
+                manager.free(allocated.remove(random.nextInt(allocated.size())));
+            }
+        }
+
+        var used = allocated.stream().mapToLong(Extent::blockCount).sum();
+        assertEquals(99_999 - used, manager.getTotalFreeBlocks());
+        var listed = manager.getFreeExtents();
+        assertEquals(manager.getTotalFreeBlocks(), listed.stream().mapToLong(Extent::blockCount).sum());
+        assertEquals(listed.stream().mapToInt(Extent::blockCount).max().orElse(0), manager.getLargestFreeExtent());
+        for (var i = 1; i < listed.size(); i++) {
+            assertTrue(listed.get(i - 1).endBlock() < listed.get(i).startBlock(), "free extents must be disjoint and coalesced");
+        }
+
+        manager.freeAll(allocated);
+        assertEquals(List.of(new Extent(1, 99_999)), manager.getFreeExtents());
+    }
+
+    @Test
+    void changedRangesReplayOntoTheEarlierFreeList() {
+        var manager = new SpaceManager(100_000);
+        manager.initializeNew(1);
+        var random = new Random(7);
+        var allocated = new ArrayList<Extent>();
+        for (var i = 0; i < 2_000; i++) {
+            manager.allocate(1 + random.nextInt(16)).ifPresent(allocated::add);
+        }
+        var replayed = new SpaceManager(100_000);
+        replayed.setFreeExtents(manager.getFreeExtents());
+        assertTrue(manager.takeChangedRanges().size() <= 1);
+
+        // A few frees and allocations among many free extents change only a few ranges
+        for (var i = 0; i < 10; i++) {
+            manager.free(allocated.remove(random.nextInt(allocated.size())));
+        }
+        for (var i = 0; i < 400; i += 2) {
+            manager.free(allocated.get(i));
+        }
+        manager.allocate(5);
+        var ranges = manager.takeChangedRanges();
+        assertTrue(manager.takeChangedRanges().isEmpty());
+        for (var range : ranges) {
+            replayed.replaceFreeExtents(range, manager.getFreeExtents(range));
+        }
+
+        assertEquals(manager.getFreeExtents(), replayed.getFreeExtents());
+        assertEquals(manager.getTotalFreeBlocks(), replayed.getTotalFreeBlocks());
+        assertEquals(manager.getLargestFreeExtent(), replayed.getLargestFreeExtent());
+        assertThrows(IllegalArgumentException.class,
+                () -> replayed.replaceFreeExtents(new Extent(10, 5), List.of(new Extent(12, 5))));
+    }
 }
@@ -2,6 +2,7 @@ package org.test.boxfs.internal;
 
 import org.junit.jupiter.api.Test;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -26,6 +27,11 @@ class SuperblockTest {
         assertThrows(IllegalArgumentException.class, () -> new Superblock(256, 256));
     }
 
+    @Test
+    void rejectBlockSizeAboveMaximum() {
+        assertThrows(IllegalArgumentException.class, () -> new Superblock(Superblock.MAX_BLOCK_SIZE * 2, 256));
+    }
+
     @Test
     void acceptMinimumBlockSize() {
         var sb = new Superblock(512, 256);
@@ -60,6 +66,35 @@ class SuperblockTest {
         assertEquals(2, restored.getMetadataExtents().size());
     }
 
+    @Test
+    void serializeAndDeserializeWithFreeSpaceBitmap() throws IOException {
+        var original = new Superblock(4096, 1 << 20);
+        original.setFreeSpaceBitmap(new Extent(1, 32));
+        original.addMetadataExtent(new Extent(100, 2));
+
+        var restored = Superblock.deserialize(original.serialize());
+        assertEquals(new Extent(1, 32), restored.getFreeSpaceBitmap());
+        assertEquals(List.of(new Extent(100, 2)), restored.getMetadataExtents());
+        assertNull(Superblock.deserialize(new Superblock(4096, 256).serialize()).getFreeSpaceBitmap());
+    }
+
+    @Test
+    void rejectFreeSpaceBitmapOutsideContainer() {
+        var sb = new Superblock(4096, 256);
+        assertThrows(IllegalArgumentException.class, () -> sb.setFreeSpaceBitmap(new Extent(250, 10)));
+    }
+
+    @Test
+    void totalBlocksCanShrinkDownToTheBitmap() throws IOException {
+        var sb = new Superblock(4096, 1 << 20);
+        sb.setFreeSpaceBitmap(new Extent(1, 32));
+
+        sb.setTotalBlocks(1000);
+        assertEquals(1000, Superblock.deserialize(sb.serialize()).getTotalBlocks());
+        assertThrows(IllegalArgumentException.class, () -> sb.setTotalBlocks(20));
+        assertThrows(IllegalArgumentException.class, () -> sb.setTotalBlocks(0));
+    }
+
     @Test
     void blockOffsetCalculation() {
         var sb = new Superblock(4096, 256);
@@ -76,4 +111,53 @@ class SuperblockTest {
         }
         assertThrows(IllegalStateException.class, () -> sb.addMetadataExtent(new Extent(100, 1)));
     }
+
+    @Test
+    void generationAndChecksumRoundTrip() throws IOException {
+        var original = new Superblock(4096, 256);
+        original.setGeneration(7);
+        original.addMetadataExtent(new Extent(5, 3));
+        var data = original.serialize();
+        assertEquals(7, Superblock.deserialize(data).getGeneration());
+
+        // A torn write is detected anywhere in the block
+        data[30] ^= 1;
+        assertThrows(IOException.class, () -> Superblock.deserialize(data));
+    }
+
+    @Test
+    void superblockWithoutGenerationIsStillRead() throws IOException {
+        var legacy = ByteBuffer.allocate(4096);
+        legacy.putInt(Superblock.MAGIC).putInt(Superblock.VERSION).putInt(4096).putLong(256);
+        legacy.putInt(1).putLong(5).putInt(3);
+
+        var restored = Superblock.deserialize(legacy.array());
+        assertEquals(0, restored.getGeneration());
+        assertEquals(List.of(new Extent(5, 3)), restored.getMetadataExtents());
+        assertEquals(4096, Superblock.peekBlockSize(legacy.array()));
+        assertEquals(-1, Superblock.peekBlockSize(new byte[512]));
+
+        // A header claiming a huge block size is not read as one
+        legacy.putInt(8, 1 << 30);
+        assertEquals(-1, Superblock.peekBlockSize(legacy.array()));
+        assertThrows(IOException.class, () -> Superblock.deserialize(legacy.array()));
+    }
+
+    @Test
+    void legacySuperblockMayUseTheWholeBlockForExtents() throws IOException {
+        // 339 extents fill a version 1 block of 4 KiB, which has no trailer
+        var legacy = ByteBuffer.allocate(4096);
+        legacy.putInt(Superblock.MAGIC).putInt(Superblock.VERSION).putInt(4096).putLong(10_000);
+        legacy.putInt(339);
+        for (var i = 0; i < 339; i++) {
+            legacy.putLong(i * 2L).putInt(1);
+        }
+
+        var restored = Superblock.deserialize(legacy.array());
+        assertEquals(339, restored.getMetadataExtents().size());
+        assertEquals(338, restored.getMaxMetadataExtents());
+        assertThrows(IllegalStateException.class, restored::serialize);
+        restored.setMetadataExtents(List.of(new Extent(1000, 4)));
+        assertEquals(List.of(new Extent(1000, 4)), Superblock.deserialize(restored.serialize()).getMetadataExtents());
+    }
 }
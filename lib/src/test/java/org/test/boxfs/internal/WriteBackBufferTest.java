@@ -0,0 +1,225 @@
+package org.test.boxfs.internal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBackBufferTest {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final long NEVER = 3_600_000;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void bufferedWritesAreReadBackBeforeFlush() throws IOException {
+        var path = tempDir.resolve("buffered.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16)) {
+            io.enableWriteBack(BLOCK_SIZE * 64L, NEVER);
+
+            var extent = new Extent(3, 2);
+            var data = pattern(700, 1);
+            io.writeToExtent(extent, 50, ByteBuffer.wrap(data));
+
+            assertEquals(BLOCK_SIZE * 2L, io.getDirtyBytes());
+            assertArrayEquals(new byte[700], readRaw(path, 3, 50, 700));
+
+            var dest = ByteBuffer.allocate(700);
+            assertEquals(700, io.readFromExtent(extent, 50, dest));
+            assertArrayEquals(data, dest.array());
+
+            io.sync();
+            assertEquals(0, io.getDirtyBytes());
+            assertArrayEquals(data, readRaw(path, 3, 50, 700));
+        }
+    }
+
+    @Test
+    void partialWritesKeepSurroundingBytes() throws IOException {
+        var path = tempDir.resolve("partial.box");
+        var original = pattern(BLOCK_SIZE, 5);
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16)) {
+            io.writeBlocks(2, original);
+            io.enableWriteBack(BLOCK_SIZE * 64L, NEVER);
+
+            // Two disjoint writes into the same block force the gap to be filled from the container
+            var extent = new Extent(2, 1);
+            io.writeToExtent(extent, 10, ByteBuffer.wrap(new byte[]{1, 2}));
+            io.writeToExtent(extent, 400, ByteBuffer.wrap(new byte[]{3, 4}));
+            io.writeToExtent(extent, 0, ByteBuffer.wrap(new byte[]{5}));
+
+            var expected = original.clone();
+            expected[10] = 1;
+            expected[11] = 2;
+            expected[400] = 3;
+            expected[401] = 4;
+            expected[0] = 5;
+            assertArrayEquals(expected, io.readBlocks(2, 1));
+        }
+
+        try (var io = ContainerIO.open(path)) {
+            var expected = original.clone();
+            expected[10] = 1;
+            expected[11] = 2;
+            expected[400] = 3;
+            expected[401] = 4;
+            expected[0] = 5;
+            assertArrayEquals(expected, io.readBlocks(2, 1));
+        }
+    }
+
+    @Test
+    void adjacentBlocksAreMergedIntoOneWrite() throws IOException {
+        var path = tempDir.resolve("merged.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 32)) {
+            io.enableWriteBack(BLOCK_SIZE * 64L, NEVER);
+
+            // Small writes issued back to front still end up as a single sequential write
+            var extent = new Extent(4, 8);
+            for (var chunk = 15; chunk >= 0; chunk--) {
+                io.writeToExtent(extent, chunk * 256L, ByteBuffer.wrap(pattern(256, chunk)));
+            }
+            io.writeToExtent(new Extent(20, 1), 0, ByteBuffer.wrap(pattern(10, 99)));
+            io.sync();
+
+            var buffer = io.getWriteBackBuffer();
+            assertEquals(2, buffer.getFlushedWrites());
+            assertEquals(9, buffer.getFlushedBlocks());
+            assertArrayEquals(pattern(256, 7), readRaw(path, 4, 7 * 256, 256));
+        }
+    }
+
+    @Test
+    void agedBlocksAreFlushedInBackground() throws Exception {
+        var path = tempDir.resolve("aged.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16)) {
+            io.enableWriteBack(BLOCK_SIZE * 64L, 20);
+            io.writeBlocks(1, pattern(BLOCK_SIZE, 3));
+
+            var deadline = System.nanoTime() + 5_000_000_000L;
+            while (io.getDirtyBytes() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, io.getDirtyBytes());
+            assertArrayEquals(pattern(BLOCK_SIZE, 3), readRaw(path, 1, 0, BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    void dirtyThresholdTriggersFlush() throws IOException {
+        var path = tempDir.resolve("threshold.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 64)) {
+            io.enableWriteBack(BLOCK_SIZE * 4L, NEVER);
+            for (var block = 0; block < 32; block++) {
+                io.writeBlocks(block, pattern(BLOCK_SIZE, block));
+            }
+            // Writers flush synchronously once the flusher lags twice the threshold behind
+            assertTrue(io.getDirtyBytes() <= BLOCK_SIZE * 8L);
+        }
+    }
+
+    @Test
+    void closeFlushesDirtyData() throws IOException {
+        var path = tempDir.resolve("close.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16, true)) {
+            io.enableWriteBack(BLOCK_SIZE * 64L, NEVER);
+            io.writeBlocks(5, pattern(BLOCK_SIZE * 2, 8));
+        }
+        assertArrayEquals(pattern(BLOCK_SIZE * 2, 8), readRaw(path, 5, 0, BLOCK_SIZE * 2));
+    }
+
+    @Test
+    void flushKeepsBlockCacheCoherent() throws IOException {
+        var path = tempDir.resolve("cached.box");
+        try (var io = ContainerIO.create(path, BLOCK_SIZE, 16)) {
+            io.attachCache(new BlockCache(BLOCK_SIZE, BLOCK_SIZE * 8L, EvictionPolicy.Kind.LRU));
+            io.enableWriteBack(BLOCK_SIZE * 64L, NEVER);
+
+            var extent = new Extent(2, 1);
+            io.readFromExtent(extent, 0, ByteBuffer.allocate(BLOCK_SIZE));
+            io.writeToExtent(extent, 0, ByteBuffer.wrap(pattern(BLOCK_SIZE, 4)));
+            io.sync();
+
+            var dest = ByteBuffer.allocate(BLOCK_SIZE);
+            io.readFromExtent(extent, 0, dest);
+            assertArrayEquals(pattern(BLOCK_SIZE, 4), dest.array());
+            assertEquals(1, io.getCacheStats().hits());
+        }
+    }
+
+    @Test
+    void readOverlappingAFlushSeesTheWrite() throws Exception {
+        var container = new byte[BLOCK_SIZE];
+        var writing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var backend = new WriteBackBuffer.Backend() {
+            @Override
+            public void read(long block, int offsetInBlock, ByteBuffer dest) {
+                dest.put(container, offsetInBlock, dest.remaining());
+            }
+
+            @Override
+            public void write(long block, int offsetInBlock, ByteBuffer src) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                src.get(container, offsetInBlock, src.remaining());
+            }
+        };
+        try (var buffer = new WriteBackBuffer(backend, new BufferPool(), BLOCK_SIZE, BLOCK_SIZE * 64L, NEVER)) {
+            buffer.write(0, 0, ByteBuffer.wrap(pattern(BLOCK_SIZE, 5)), BLOCK_SIZE);
+            var flusher = Thread.ofPlatform().start(() -> {
+                try {
+                    buffer.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writing.await();
+
+            // The container is read before the flush lands and overlaid after it would have been dropped
+            var dest = ByteBuffer.allocate(BLOCK_SIZE);
+            buffer.beginRead();
+            try {
+                backend.read(0, 0, dest);
+                release.countDown();
+                flusher.join(200);
+                buffer.overlay(0, 0, dest, 0, BLOCK_SIZE);
+            } finally {
+                buffer.endRead();
+            }
+            flusher.join();
+
+            assertArrayEquals(pattern(BLOCK_SIZE, 5), dest.array());
+            assertEquals(0, buffer.getDirtyBytes());
+        }
+    }
+
+    private static byte[] readRaw(Path path, long block, int offsetInBlock, int length) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var dest = ByteBuffer.allocate(length);
+            channel.read(dest, BLOCK_SIZE * (block + 1) + offsetInBlock);
+            return dest.array();
+        }
+    }
+
+    private static byte[] pattern(int size, int seed) {
+        var data = new byte[size];
+        for (var i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}